@@ -126,6 +126,14 @@ public interface Constants {
      */
     int MESSAGE_MAX_BYTES = 450;
 
+    /**
+     * Max number of bytes allowed in a chat message or private
+     * chat message, when every user receiving it supports fragments.
+     * Messages larger than one udp packet are split into fragments.
+     * The limit is {@link #MESSAGE_MAX_BYTES} otherwise.
+     */
+    int CHAT_MESSAGE_MAX_BYTES = 30000;
+
     /**
      * The folder where the application can save files.
      */
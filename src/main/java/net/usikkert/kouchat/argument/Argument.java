@@ -45,6 +45,14 @@ public enum Argument {
     NO_PRIVATE_CHAT(null, "--no-private-chat", "Disables private chat.", false),
     ALWAYS_LOG(null, "--always-log", "Enables logging, without option to disable.", false),
     LOG_LOCATION(null, "--log-location", "Location to store log files.", true),
+    NIO_RECEIVER(null, "--nio-receiver", "Receives messages using nio channels.", false),
+    NIO_SELECTOR(null, "--nio-selector", "Uses a single thread for all network sockets.", false),
+    VIRTUAL_THREADS(null, "--virtual-threads", "Runs blocking network tasks on virtual threads.", false),
+    INBOUND_QUEUE(null, "--inbound-queue", "Queues received messages. Value is drop or block when full.", true),
+    COMPRESSION(null, "--compression", "Compresses messages to users that support it.", false),
+    NO_BINARY_PROTOCOL(null, "--no-binary-protocol", "Uses only the text protocol with other users.", false),
+    TCP_RELAY(null, "--tcp-relay", "Connects to a few relay users instead of everyone.", false),
+    RELIABLE_MULTICAST(null, "--reliable-multicast", "Asks for lost multicast messages to be sent again.", false),
     UNKNOWN(null, null, null, false);
 
     private final String shortArgumentName;
@@ -39,6 +39,14 @@ public class ArgumentSettingsLoader {
      *   <li>--always-log ({@link Settings#isAlwaysLog()}</li>
      *   <li>--no-private-chat ({@link Settings#isNoPrivateChat()}</li>
      *   <li>--log-location ({@link Settings#getLogLocation()}</li>
+     *   <li>--nio-receiver ({@link Settings#isNioReceiver()}</li>
+     *   <li>--nio-selector ({@link Settings#isNioSelector()}</li>
+     *   <li>--virtual-threads ({@link Settings#isVirtualThreads()}</li>
+     *   <li>--inbound-queue ({@link Settings#getInboundQueue()}</li>
+     *   <li>--compression ({@link Settings#isCompression()}</li>
+     *   <li>--no-binary-protocol ({@link Settings#isNoBinaryProtocol()}</li>
+     *   <li>--tcp-relay ({@link Settings#isTcpRelay()}</li>
+     *   <li>--reliable-multicast ({@link Settings#isReliableMulticast()}</li>
      * </ul>
      *
      * @param argumentParser The parsed arguments.
@@ -47,9 +55,20 @@ public class ArgumentSettingsLoader {
     public void loadSettings(final ArgumentParser argumentParser, final Settings settings) {
         settings.setAlwaysLog(argumentParser.hasArgument(Argument.ALWAYS_LOG));
         settings.setNoPrivateChat(argumentParser.hasArgument(Argument.NO_PRIVATE_CHAT));
+        settings.setNioReceiver(argumentParser.hasArgument(Argument.NIO_RECEIVER));
+        settings.setNioSelector(argumentParser.hasArgument(Argument.NIO_SELECTOR));
+        settings.setVirtualThreads(argumentParser.hasArgument(Argument.VIRTUAL_THREADS));
+        settings.setCompression(argumentParser.hasArgument(Argument.COMPRESSION));
+        settings.setNoBinaryProtocol(argumentParser.hasArgument(Argument.NO_BINARY_PROTOCOL));
+        settings.setTcpRelay(argumentParser.hasArgument(Argument.TCP_RELAY));
+        settings.setReliableMulticast(argumentParser.hasArgument(Argument.RELIABLE_MULTICAST));
 
         if (argumentParser.hasArgument(Argument.LOG_LOCATION)) {
             settings.setLogLocation(argumentParser.getArgument(Argument.LOG_LOCATION).getValue());
         }
+
+        if (argumentParser.hasArgument(Argument.INBOUND_QUEUE)) {
+            settings.setInboundQueue(argumentParser.getArgument(Argument.INBOUND_QUEUE).getValue());
+        }
     }
 }
@@ -32,6 +32,7 @@ import net.usikkert.kouchat.event.NetworkConnectionListener;
 import net.usikkert.kouchat.jmx.JMXBeanLoader;
 import net.usikkert.kouchat.message.CoreMessages;
 import net.usikkert.kouchat.net.AsyncMessageResponderWrapper;
+import net.usikkert.kouchat.net.ClientCapability;
 import net.usikkert.kouchat.net.DefaultMessageResponder;
 import net.usikkert.kouchat.net.DefaultPrivateMessageResponder;
 import net.usikkert.kouchat.net.FileReceiver;
@@ -128,20 +129,23 @@ public class Controller implements NetworkConnectionListener {
         me = settings.getMe();
         userListController = new UserListController(settings);
         chatState = new ChatState();
-        tList = new TransferList();
+        tList = new TransferList(settings.isVirtualThreads());
         wList = new WaitingList();
         idleThread = new IdleThread(this, ui, settings);
         dayTimer = new DayTimer(ui);
         networkService = new NetworkService(this, settings, errorHandler);
         final MessageResponder msgResponder = new DefaultMessageResponder(this, ui, settings, coreMessages);
-        final AsyncMessageResponderWrapper msgResponderWrapper = new AsyncMessageResponderWrapper(msgResponder, this);
+        final AsyncMessageResponderWrapper msgResponderWrapper = new AsyncMessageResponderWrapper(msgResponder, this,
+                settings.isVirtualThreads());
         final PrivateMessageResponder privmsgResponder = new DefaultPrivateMessageResponder(this, ui, settings);
         final MessageParser msgParser = new MessageParser(msgResponderWrapper, settings);
+        msgParser.registerPeerActivityListener(idleThread);
         networkService.registerMainChatMessageReceiverListener(msgParser);
         final PrivateMessageParser privmsgParser = new PrivateMessageParser(privmsgResponder, settings);
         networkService.registerPrivateChatReceiverListener(privmsgParser);
         networkMessages = new NetworkMessages(networkService, settings);
         networkService.registerNetworkConnectionListener(this);
+        networkService.registerPeerLinkListener(idleThread);
         msgController = ui.getMessageController();
     }
 
@@ -555,15 +559,17 @@ public class Controller implements NetworkConnectionListener {
      *         or the message is too long.
      */
     public void sendChatMessage(final String msg) throws CommandException {
+        final int maxBytes = networkService.isFragmentSupportedByAllUsers() ?
+                Constants.CHAT_MESSAGE_MAX_BYTES : Constants.MESSAGE_MAX_BYTES;
+
         if (!isConnected()) {
             throw new CommandException(coreMessages.getMessage("core.chatMessage.error.notConnected"));
         } else if (me.isAway()) {
             throw new CommandException(coreMessages.getMessage("core.chatMessage.error.meIsAway"));
         } else if (msg.trim().length() == 0) {
             throw new CommandException(coreMessages.getMessage("core.chatMessage.error.emptyMessage"));
-        } else if (Tools.getBytes(msg) > Constants.MESSAGE_MAX_BYTES) {
-            throw new CommandException(coreMessages.getMessage("core.chatMessage.error.messageTooLong",
-                                                               Constants.MESSAGE_MAX_BYTES));
+        } else if (Tools.getBytes(msg) > maxBytes) {
+            throw new CommandException(coreMessages.getMessage("core.chatMessage.error.messageTooLong", maxBytes));
         } else {
             networkMessages.sendChatMessage(msg);
         }
@@ -639,6 +645,26 @@ public class Controller implements NetworkConnectionListener {
         networkMessages.sendFileAccept(user, port, fileHash, fileName);
     }
 
+    /**
+     * Sends a message over the network to notify the file sender that you
+     * accepted the file transfer, and want to resume it from an offset, or receive it over several connections.
+     *
+     * @param user The user sending a file.
+     * @param port The port the file sender can connect to on this client
+     *             to start the file transfer.
+     * @param fileHash The unique hash code of the file.
+     * @param fileName The name of the file.
+     * @param resumeOffset The number of bytes already received, or 0 to start from the beginning.
+     * @param resumeChecksum The CRC32 checksum of the bytes already received.
+     * @param streams The highest number of connections to receive the file over.
+     * @throws CommandException If the message was not sent successfully.
+     */
+    public void sendFileAccept(final User user, final int port, final int fileHash, final String fileName,
+                               final long resumeOffset, final long resumeChecksum, final int streams)
+            throws CommandException {
+        networkMessages.sendFileAccept(user, port, fileHash, fileName, resumeOffset, resumeChecksum, streams);
+    }
+
     /**
      * Sends a message over the network to notify another user that the
      * application user wants to send a file.
@@ -720,15 +746,18 @@ public class Controller implements NetworkConnectionListener {
      *                          or the specified user is away or offline.
      */
     public void sendPrivateMessage(final String privmsg, final User user) throws CommandException {
+        final int maxBytes = user.hasCapability(ClientCapability.FRAGMENT) ?
+                Constants.CHAT_MESSAGE_MAX_BYTES : Constants.MESSAGE_MAX_BYTES;
+
         if (!isConnected()) {
             throw new CommandException(coreMessages.getMessage("core.privateChatMessage.error.notConnected"));
         } else if (me.isAway()) {
             throw new CommandException(coreMessages.getMessage("core.privateChatMessage.error.meIsAway"));
         } else if (privmsg.trim().length() == 0) {
             throw new CommandException(coreMessages.getMessage("core.privateChatMessage.error.emptyMessage"));
-        } else if (Tools.getBytes(privmsg) > Constants.MESSAGE_MAX_BYTES) {
+        } else if (Tools.getBytes(privmsg) > maxBytes) {
             throw new CommandException(coreMessages.getMessage("core.privateChatMessage.error.messageTooLong",
-                                                               Constants.MESSAGE_MAX_BYTES));
+                                                               maxBytes));
         } else if (user.getPrivateChatPort() == 0) {
             throw new CommandException(coreMessages.getMessage("core.privateChatMessage.error.noPortNumber"));
         } else if (user.isAway()) {
@@ -753,6 +782,17 @@ public class Controller implements NetworkConnectionListener {
         userListController.changeNewMessage(code, newMsg);
     }
 
+    /**
+     * Updates the port to use for tcp connections to the user, and notifies the user list listeners,
+     * so a tcp connection can be made right away.
+     *
+     * @param code The user code for the user to update.
+     * @param tcpChatPort The new tcp port of the user.
+     */
+    public void changeTcpChatPort(final int code, final int tcpChatPort) {
+        userListController.changeTcpChatPort(code, tcpChatPort);
+    }
+
     /**
      * Returns if the client is logged on to the chat and connected to the network.
      *
@@ -0,0 +1,110 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.misc;
+
+/**
+ * The latest intervals between heartbeats from a single user, with the mean
+ * and standard deviation kept up to date as intervals are added.
+ *
+ * <p>The intervals are kept in a ring of {@link #MAX_SAMPLES} values,
+ * so the oldest interval is forgotten when a new one is added to a full history.</p>
+ *
+ * @author Christian Ihle
+ * @see PresenceDetector
+ */
+public class HeartbeatHistory {
+
+    /** The number of intervals to remember. */
+    static final int MAX_SAMPLES = 100;
+
+    private final long[] intervals;
+
+    private int next;
+    private int size;
+    private long sum;
+    private double squaredSum;
+
+    public HeartbeatHistory() {
+        intervals = new long[MAX_SAMPLES];
+    }
+
+    /**
+     * Adds the time between two heartbeats.
+     *
+     * @param interval The interval, in milliseconds.
+     */
+    public void add(final long interval) {
+        if (size == MAX_SAMPLES) {
+            final long oldest = intervals[next];
+            sum -= oldest;
+            squaredSum -= (double) oldest * oldest;
+        }
+
+        else {
+            size++;
+        }
+
+        intervals[next] = interval;
+        sum += interval;
+        squaredSum += (double) interval * interval;
+        next = (next + 1) % MAX_SAMPLES;
+    }
+
+    /**
+     * Gets the number of intervals in the history.
+     *
+     * @return The number of intervals.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Gets the mean of the intervals.
+     *
+     * @return The mean, in milliseconds, or 0 if the history is empty.
+     */
+    public double getMean() {
+        if (size == 0) {
+            return 0;
+        }
+
+        return (double) sum / size;
+    }
+
+    /**
+     * Gets the standard deviation of the intervals.
+     *
+     * @return The standard deviation, in milliseconds, or 0 if the history is empty.
+     */
+    public double getStdDeviation() {
+        if (size == 0) {
+            return 0;
+        }
+
+        final double mean = getMean();
+        final double variance = squaredSum / size - mean * mean;
+
+        return Math.sqrt(Math.max(0, variance));
+    }
+}
@@ -22,9 +22,15 @@
 
 package net.usikkert.kouchat.misc;
 
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import net.usikkert.kouchat.net.PeerActivityListener;
+import net.usikkert.kouchat.net.PeerLinkListener;
 import net.usikkert.kouchat.settings.Settings;
 import net.usikkert.kouchat.ui.UserInterface;
 import net.usikkert.kouchat.util.Validate;
@@ -33,13 +39,20 @@ import net.usikkert.kouchat.util.Validate;
  * This thread is responsible for sending a special "idle"
  * message every IDLE_TIME milliseconds to inform other clients
  * that this client is still online. It will also check if
- * other clients have stopped sending these messages,
+ * other clients have stopped sending messages,
  * and if that is the case, remove them and show a message
  * in the user interface.
  *
+ * <p>When another client has been silent for too long is decided by a {@link PresenceDetector},
+ * which learns how steady the idle messages from each client are. The thread only wakes up
+ * to check the clients that are about to time out, instead of going through all of them.</p>
+ *
+ * <p>Users that stop answering probes on every path are removed
+ * right away, instead of after the timeout.</p>
+ *
  * @author Christian Ihle
  */
-public class IdleThread extends Thread {
+public class IdleThread extends Thread implements PeerLinkListener, PeerActivityListener {
 
     /** The logger. */
     private static final Logger LOG = Logger.getLogger(IdleThread.class.getName());
@@ -48,20 +61,22 @@ public class IdleThread extends Thread {
      * Number of milliseconds to wait before the next
      * idle message will be sent.
      */
-    private static final int IDLE_TIME = 15000;
-
-    /**
-     * If an idle message has not been received from another
-     * client in this number of milliseconds, then it's not
-     * on the network anymore and must be removed.
-     */
-    private static final int TIMEOUT = 120000;
+    static final int IDLE_TIME = 15000;
 
     private final Controller controller;
     private final UserList userList;
     private final User me;
     private final MessageController msgController;
 
+    /** Decides when other users have been silent for too long. */
+    private final PresenceDetector presenceDetector;
+
+    /** Users reported as unreachable, waiting to be removed. */
+    private final Set<User> unreachableUsers;
+
+    /** When to send the next idle message. */
+    private long nextIdleMessage;
+
     /** The thread runs while this is true. */
     private boolean run;
 
@@ -82,6 +97,8 @@ public class IdleThread extends Thread {
         userList = controller.getUserList();
         me = settings.getMe();
         msgController = ui.getMessageController();
+        presenceDetector = new PresenceDetector(currentTime());
+        unreachableUsers = Collections.newSetFromMap(new ConcurrentHashMap<User, Boolean>());
 
         run = true;
         setName("IdleThread");
@@ -93,6 +110,7 @@ public class IdleThread extends Thread {
      * <li>Sends idle messages
      * <li>Restarts the network if there are problems
      * <li>Removes timed out clients
+     * <li>Removes unreachable clients as soon as they are reported
      */
     @Override
     public void run() {
@@ -100,25 +118,10 @@ public class IdleThread extends Thread {
         me.setLastIdle(System.currentTimeMillis());
 
         while (run) {
-            controller.sendIdleMessage();
-            boolean timeout = false;
-
-            for (int i = 0; i < userList.size(); i++) {
-                final User temp = userList.get(i);
-
-                if (temp.getCode() != me.getCode() && temp.getLastIdle() < System.currentTimeMillis() - TIMEOUT) {
-                    userTimedOut(temp);
-                    timeout = true;
-                    i--;
-                }
-            }
-
-            if (timeout) {
-                controller.updateAfterTimeout();
-            }
+            final long nextWakeUp = checkUsers(currentTime());
 
             try {
-                sleep(IDLE_TIME);
+                sleep(Math.max(1, nextWakeUp - currentTime()));
             }
 
             // Sleep interrupted - probably from stopThread()
@@ -128,6 +131,89 @@ public class IdleThread extends Thread {
         }
     }
 
+    /**
+     * Sends the idle message when it's time, and removes the users that are unreachable
+     * or have timed out.
+     *
+     * @param now The current time, in milliseconds.
+     * @return The time when the thread should wake up to check again.
+     */
+    long checkUsers(final long now) {
+        if (now >= nextIdleMessage) {
+            controller.sendIdleMessage();
+            nextIdleMessage = now + IDLE_TIME;
+        }
+
+        boolean timeout = removeUnreachableUsers();
+
+        for (final int userCode : presenceDetector.expire(now)) {
+            final User user = controller.getUser(userCode);
+
+            if (user != null && !user.isMe()) {
+                userTimedOut(user);
+                timeout = true;
+            }
+        }
+
+        if (timeout) {
+            controller.updateAfterTimeout();
+        }
+
+        return getNextWakeUp();
+    }
+
+    /**
+     * Gives the message to the presence detector, so the user is not timed out.
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public void activityArrived(final int userCode, final boolean heartbeat) {
+        if (heartbeat) {
+            presenceDetector.heartbeatArrived(userCode, currentTime());
+        }
+
+        else {
+            presenceDetector.activityArrived(userCode, currentTime());
+        }
+    }
+
+    /**
+     * Forgets the user in the presence detector, so the user is not timed out after logging off.
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public void userLoggedOff(final int userCode) {
+        presenceDetector.forget(userCode);
+    }
+
+    /**
+     * Wakes up the thread to remove the user.
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public void peerUnreachable(final User user) {
+        unreachableUsers.add(user);
+        interrupt();
+    }
+
+    private boolean removeUnreachableUsers() {
+        boolean timeout = false;
+
+        for (final User user : unreachableUsers) {
+            unreachableUsers.remove(user);
+
+            if (!user.isMe() && userList.indexOf(user) >= 0) {
+                userTimedOut(user);
+                timeout = true;
+            }
+        }
+
+        return timeout;
+    }
+
     /**
      * When a user times out, all current file transfers must
      * be canceled, and messages must be shown in the normal
@@ -137,11 +223,31 @@ public class IdleThread extends Thread {
      */
     private void userTimedOut(final User user) {
         final String timeOutMessage = user.getNick() + " timed out";
+        presenceDetector.forget(user.getCode());
 
         controller.removeUser(user, timeOutMessage);
         msgController.showSystemMessage(timeOutMessage);
     }
 
+    private long getNextWakeUp() {
+        final long nextCheckTime = presenceDetector.getNextCheckTime();
+
+        if (nextCheckTime < 0) {
+            return nextIdleMessage;
+        }
+
+        return Math.min(nextIdleMessage, nextCheckTime);
+    }
+
+    /**
+     * Gets the time in milliseconds from a clock that never goes backwards, unlike the system time.
+     *
+     * @return The current time.
+     */
+    static long currentTime() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
     /**
      * Shuts down the thread in a controlled manner.
      */
@@ -0,0 +1,285 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.misc;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.usikkert.kouchat.util.TimingWheel;
+
+/**
+ * Decides when users have left the network without logging off, using a phi accrual failure detector.
+ *
+ * <p>The intervals between the idle messages from each user are kept in a {@link HeartbeatHistory}.
+ * Phi is the suspicion level that the user is gone, based on how unlikely it is to have heard nothing
+ * for so long, given the mean and standard deviation of those intervals. A phi of 1 means a 10% chance
+ * of being wrong, 2 means 1%, and so on. Any message from the user counts as a sign of life,
+ * but only idle messages are used for the intervals, since they are sent at a steady pace.</p>
+ *
+ * <p>Up to {@link #ACCEPTABLE_MISSED_HEARTBEATS} idle messages in a row can be lost before
+ * the suspicion starts to grow. The time when phi reaches {@link #THRESHOLD} is the deadline
+ * of the user, and the deadlines are kept in a {@link TimingWheel}, so only the users that
+ * are about to expire are looked at. Users without enough intervals yet,
+ * or with very uneven intervals, expire after {@link #MAX_TIMEOUT}.</p>
+ *
+ * <p>All the times are in milliseconds, from a clock that never goes backwards.</p>
+ *
+ * @author Christian Ihle
+ */
+public class PresenceDetector {
+
+    /** The suspicion level where a user is taken as gone. */
+    static final double THRESHOLD = 8.0;
+
+    /** The longest time to wait for a sign of life, in milliseconds. */
+    static final long MAX_TIMEOUT = 120000;
+
+    /** The number of idle messages in a row that can be lost before the user is suspected. */
+    static final int ACCEPTABLE_MISSED_HEARTBEATS = 2;
+
+    /** The lowest standard deviation to use, so a very steady user doesn't expire at the first delay. */
+    static final double MIN_STD_DEVIATION = 1000;
+
+    /** The number of intervals needed before phi is used instead of {@link #MAX_TIMEOUT}. */
+    static final int MIN_SAMPLES = 3;
+
+    /** The number of milliseconds in each tick of the timing wheel. */
+    static final long TICK_DURATION = 1000;
+
+    /** The number of slots in the timing wheel. Longer than {@link #MAX_TIMEOUT}, so no laps are needed. */
+    private static final int WHEEL_SIZE = 128;
+
+    /** The number of standard deviations above the mean where phi reaches the threshold. */
+    private static final double THRESHOLD_DEVIATIONS = findDeviations(THRESHOLD);
+
+    private final Map<Integer, Presence> presences;
+    private final TimingWheel<Integer> deadlines;
+
+    /**
+     * Constructor.
+     *
+     * @param currentTime The current time.
+     */
+    public PresenceDetector(final long currentTime) {
+        presences = new HashMap<>();
+        deadlines = new TimingWheel<>(TICK_DURATION, WHEEL_SIZE, currentTime);
+    }
+
+    /**
+     * An idle message arrived from the user.
+     *
+     * @param userCode The code of the user.
+     * @param currentTime The current time.
+     */
+    public synchronized void heartbeatArrived(final int userCode, final long currentTime) {
+        final Presence presence = getPresence(userCode);
+
+        if (presence.lastHeartbeat >= 0 && currentTime > presence.lastHeartbeat) {
+            presence.history.add(currentTime - presence.lastHeartbeat);
+        }
+
+        presence.lastHeartbeat = currentTime;
+        activityArrived(userCode, presence, currentTime);
+    }
+
+    /**
+     * Some other message than an idle message arrived from the user.
+     *
+     * @param userCode The code of the user.
+     * @param currentTime The current time.
+     */
+    public synchronized void activityArrived(final int userCode, final long currentTime) {
+        activityArrived(userCode, getPresence(userCode), currentTime);
+    }
+
+    /**
+     * Finds the users that have passed their deadline, and stops tracking them.
+     *
+     * @param currentTime The current time.
+     * @return The codes of the users that are gone.
+     */
+    public synchronized List<Integer> expire(final long currentTime) {
+        final List<Integer> expired = new ArrayList<>();
+
+        for (final Integer userCode : deadlines.advance(currentTime)) {
+            final Presence presence = presences.get(userCode);
+
+            if (currentTime - presence.lastActivity >= getTimeout(presence)) {
+                presences.remove(userCode);
+                expired.add(userCode);
+            }
+
+            // Rounding to the tick can expire it a little early
+            else {
+                deadlines.schedule(userCode, presence.lastActivity + getTimeout(presence));
+            }
+        }
+
+        return expired;
+    }
+
+    /**
+     * Stops tracking the user.
+     *
+     * @param userCode The code of the user.
+     */
+    public synchronized void forget(final int userCode) {
+        presences.remove(userCode);
+        deadlines.cancel(userCode);
+    }
+
+    /**
+     * Gets the current suspicion level that the user is gone.
+     *
+     * @param userCode The code of the user.
+     * @param currentTime The current time.
+     * @return Phi, or 0 if the user is not tracked or there are too few intervals to tell.
+     */
+    public synchronized double getPhi(final int userCode, final long currentTime) {
+        final Presence presence = presences.get(userCode);
+
+        if (presence == null || presence.history.size() < MIN_SAMPLES) {
+            return 0;
+        }
+
+        final double deviations = (currentTime - presence.lastActivity - getMean(presence)) / getStdDeviation(presence);
+
+        return phi(deviations);
+    }
+
+    /**
+     * Gets the time the user can be silent before being taken as gone.
+     *
+     * @param userCode The code of the user.
+     * @return The timeout in milliseconds, or -1 if the user is not tracked.
+     */
+    public synchronized long getTimeout(final int userCode) {
+        final Presence presence = presences.get(userCode);
+
+        if (presence == null) {
+            return -1;
+        }
+
+        return getTimeout(presence);
+    }
+
+    /**
+     * Gets the time when the first tracked user can time out, which is when the detector
+     * should be asked to {@link #expire(long)} users next.
+     *
+     * @return The time of the next check, or -1 if no users are tracked.
+     */
+    public synchronized long getNextCheckTime() {
+        return deadlines.getNextDeadlineTime();
+    }
+
+    private void activityArrived(final int userCode, final Presence presence, final long currentTime) {
+        presence.lastActivity = Math.max(presence.lastActivity, currentTime);
+        deadlines.schedule(userCode, presence.lastActivity + getTimeout(presence));
+    }
+
+    private Presence getPresence(final int userCode) {
+        Presence presence = presences.get(userCode);
+
+        if (presence == null) {
+            presence = new Presence();
+            presences.put(userCode, presence);
+        }
+
+        return presence;
+    }
+
+    private long getTimeout(final Presence presence) {
+        if (presence.history.size() < MIN_SAMPLES) {
+            return MAX_TIMEOUT;
+        }
+
+        final double timeout = getMean(presence) + THRESHOLD_DEVIATIONS * getStdDeviation(presence);
+
+        return Math.min(MAX_TIMEOUT, (long) Math.ceil(timeout));
+    }
+
+    private double getMean(final Presence presence) {
+        return presence.history.getMean() * (1 + ACCEPTABLE_MISSED_HEARTBEATS);
+    }
+
+    private double getStdDeviation(final Presence presence) {
+        return Math.max(MIN_STD_DEVIATION, presence.history.getStdDeviation());
+    }
+
+    /**
+     * Calculates phi from the number of standard deviations above the mean, using a logistic
+     * approximation of the cumulative normal distribution.
+     *
+     * @param deviations The number of standard deviations above the mean.
+     * @return Phi.
+     */
+    static double phi(final double deviations) {
+        final double e = Math.exp(-deviations * (1.5976 + 0.070566 * deviations * deviations));
+
+        if (deviations > 0) {
+            return -Math.log10(e / (1.0 + e));
+        }
+
+        return -Math.log10(1.0 - 1.0 / (1.0 + e));
+    }
+
+    /**
+     * Finds the number of standard deviations above the mean where phi reaches the threshold,
+     * by bisection, since phi grows with the number of deviations.
+     *
+     * @param threshold The phi to find the deviations for.
+     * @return The deviations, rounded up so phi is at least the threshold.
+     */
+    static double findDeviations(final double threshold) {
+        double low = 0;
+        double high = 64;
+
+        for (int i = 0; i < 64; i++) {
+            final double middle = (low + high) / 2;
+
+            if (phi(middle) < threshold) {
+                low = middle;
+            }
+
+            else {
+                high = middle;
+            }
+        }
+
+        return high;
+    }
+
+    private static final class Presence {
+
+        private final HeartbeatHistory history = new HeartbeatHistory();
+
+        /** The time of the last idle message, or -1 if none. */
+        private long lastHeartbeat = -1;
+
+        /** The time of the last message of any kind. */
+        private long lastActivity = Long.MIN_VALUE;
+    }
+}
@@ -37,6 +37,9 @@ import org.jetbrains.annotations.Nullable;
  * <p>The users in the list are sorted by nick name,
  * as specified in {@link User#compareTo(User)}.</p>
  *
+ * <p>The list is changed from both the udp and the tcp receiver threads, so changes and lookups
+ * are synchronized. Listeners are notified outside the lock.</p>
+ *
  * @author Christian Ihle
  */
 public class SortedUserList implements UserList {
@@ -64,11 +67,17 @@ public class SortedUserList implements UserList {
     public boolean add(final User user) {
         Validate.notNull(user, "User can not be null");
 
-        final boolean success = userList.add(user);
+        final boolean success;
+        final int pos;
 
-        if (success) {
+        synchronized (userList) {
+            success = userList.add(user);
             Collections.sort(userList);
-            fireUserAdded(userList.indexOf(user), user);
+            pos = userList.indexOf(user);
+        }
+
+        if (success) {
+            fireUserAdded(pos, user);
         }
 
         return success;
@@ -80,10 +89,12 @@ public class SortedUserList implements UserList {
     @Nullable
     @Override
     public User get(final int pos) {
-        if (pos < userList.size()) {
-            return userList.get(pos);
-        } else {
-            return null;
+        synchronized (userList) {
+            if (pos < userList.size()) {
+                return userList.get(pos);
+            } else {
+                return null;
+            }
         }
     }
 
@@ -94,7 +105,9 @@ public class SortedUserList implements UserList {
     public int indexOf(final User user) {
         Validate.notNull(user, "User can not be null");
 
-        return userList.indexOf(user);
+        synchronized (userList) {
+            return userList.indexOf(user);
+        }
     }
 
     /**
@@ -104,8 +117,13 @@ public class SortedUserList implements UserList {
     public boolean remove(final User user) {
         Validate.notNull(user, "User can not be null");
 
-        final int pos = userList.indexOf(user);
-        final boolean success = userList.remove(user);
+        final int pos;
+        final boolean success;
+
+        synchronized (userList) {
+            pos = userList.indexOf(user);
+            success = userList.remove(user);
+        }
 
         if (success) {
             fireUserRemoved(pos, user);
@@ -123,9 +141,16 @@ public class SortedUserList implements UserList {
     public User set(final int pos, final User user) {
         Validate.notNull(user, "User can not be null");
 
-        final User oldUser = userList.set(pos, user);
-        Collections.sort(userList);
-        fireUserChanged(userList.indexOf(user), user);
+        final User oldUser;
+        final int newPos;
+
+        synchronized (userList) {
+            oldUser = userList.set(pos, user);
+            Collections.sort(userList);
+            newPos = userList.indexOf(user);
+        }
+
+        fireUserChanged(newPos, user);
 
         return oldUser;
     }
@@ -135,7 +160,9 @@ public class SortedUserList implements UserList {
      */
     @Override
     public int size() {
-        return userList.size();
+        synchronized (userList) {
+            return userList.size();
+        }
     }
 
     /**
@@ -22,7 +22,11 @@
 
 package net.usikkert.kouchat.misc;
 
+import java.util.Collections;
+import java.util.Set;
+
 import net.usikkert.kouchat.ui.PrivateChatWindow;
+import net.usikkert.kouchat.util.Validate;
 
 import org.jetbrains.annotations.Nullable;
 
@@ -64,6 +68,12 @@ public class User implements Comparable<User> {
     /** Whether a tcp connection is enabled for this user. */
     private boolean tcpEnabled;
 
+    /** Whether messages from this user arrive through a tcp relay. */
+    private boolean tcpRelayed;
+
+    /** The optional features the user's client supports, like compression. */
+    private Set<String> capabilities;
+
     /** The time when the last idle message came from this user. */
     private long lastIdle;
 
@@ -118,6 +128,7 @@ public class User implements Comparable<User> {
         newMsg = false;
         privateChatPort = 0;
         tcpChatPort = 0;
+        capabilities = Collections.emptySet();
         privchat = null;
         online = true;
         newPrivMsg = false;
@@ -135,6 +146,7 @@ public class User implements Comparable<User> {
         newMsg = false;
         privateChatPort = 0;
         tcpChatPort = 0;
+        capabilities = Collections.emptySet();
         privchat = null;
         newPrivMsg = false;
     }
@@ -401,6 +413,35 @@ public class User implements Comparable<User> {
         this.tcpChatPort = tcpChatPort;
     }
 
+    /**
+     * Gets the optional features the user's client supports.
+     *
+     * @return The capabilities of the user's client.
+     */
+    public Set<String> getCapabilities() {
+        return capabilities;
+    }
+
+    /**
+     * Sets the optional features the user's client supports.
+     *
+     * @param capabilities The capabilities of the user's client.
+     */
+    public void setCapabilities(final Set<String> capabilities) {
+        Validate.notNull(capabilities, "Capabilities can not be null");
+        this.capabilities = capabilities;
+    }
+
+    /**
+     * Checks if the user's client supports an optional feature.
+     *
+     * @param capability The capability to check.
+     * @return If the user's client supports the feature.
+     */
+    public boolean hasCapability(final String capability) {
+        return capabilities.contains(capability);
+    }
+
     /**
      * Gets whether a tcp connection is enabled for this user.
      *
@@ -419,6 +460,24 @@ public class User implements Comparable<User> {
         this.tcpEnabled = tcpEnabled;
     }
 
+    /**
+     * Returns whether messages from this user arrive through a tcp relay.
+     *
+     * @return If messages from this user arrive through a tcp relay.
+     */
+    public boolean isTcpRelayed() {
+        return tcpRelayed;
+    }
+
+    /**
+     * Sets whether messages from this user arrive through a tcp relay.
+     *
+     * @param tcpRelayed If messages from this user arrive through a tcp relay.
+     */
+    public void setTcpRelayed(final boolean tcpRelayed) {
+        this.tcpRelayed = tcpRelayed;
+    }
+
     /**
      * Checks if this user is logged on to the chat.
      *
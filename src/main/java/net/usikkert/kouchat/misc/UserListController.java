@@ -172,6 +172,24 @@ public class UserListController {
         }
     }
 
+    /**
+     * Changes the port to use for tcp connections to a user.
+     *
+     * @param code The unique code of the user.
+     * @param tcpChatPort The new tcp port of the user.
+     */
+    public void changeTcpChatPort(final int code, final int tcpChatPort) {
+        for (int i = 0; i < userList.size(); i++) {
+            final User temp = userList.get(i);
+
+            if (temp.getCode() == code) {
+                temp.setTcpChatPort(tcpChatPort);
+                userList.set(i, temp);
+                break;
+            }
+        }
+    }
+
     /**
      * Checks if the nick name is in use by any other users.
      *
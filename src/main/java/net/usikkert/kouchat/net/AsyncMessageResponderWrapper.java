@@ -22,13 +22,14 @@
 
 package net.usikkert.kouchat.net;
 
+import java.util.Set;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 import net.usikkert.kouchat.misc.Controller;
 import net.usikkert.kouchat.misc.User;
 import net.usikkert.kouchat.misc.WaitingList;
 import net.usikkert.kouchat.util.Sleeper;
+import net.usikkert.kouchat.util.TaskExecutors;
 import net.usikkert.kouchat.util.Validate;
 
 /**
@@ -43,21 +44,30 @@ import net.usikkert.kouchat.util.Validate;
  * Those will add the user to a waiting list, ask the user to identify, and then wait for it to happen,
  * before continuing.</p>
  *
+ * <p>The operations in new threads can run on virtual threads instead of a thread pool.
+ * See {@link TaskExecutors}.</p>
+ *
  * @author Christian Ihle
  */
 public class AsyncMessageResponderWrapper implements MessageResponder {
 
     private final Sleeper sleeper = new Sleeper();
-    private final ExecutorService executorService = Executors.newCachedThreadPool();
+    private final ExecutorService executorService;
 
     private final MessageResponder messageResponder;
     private final Controller controller;
     private final WaitingList waitingList;
 
     public AsyncMessageResponderWrapper(final MessageResponder messageResponder, final Controller controller) {
+        this(messageResponder, controller, false);
+    }
+
+    public AsyncMessageResponderWrapper(final MessageResponder messageResponder, final Controller controller,
+                                        final boolean virtualThreads) {
         Validate.notNull(messageResponder, "MessageResponder can not be null");
         Validate.notNull(controller, "Controller can not be null");
 
+        this.executorService = TaskExecutors.newTaskExecutor(virtualThreads);
         this.messageResponder = messageResponder;
         this.controller = controller;
         this.waitingList = controller.getWaitingList();
@@ -218,19 +228,23 @@ public class AsyncMessageResponderWrapper implements MessageResponder {
      * in a different thread.
      */
     @Override
-    public void fileSendAccepted(final int userCode, final String fileName, final int fileHash, final int port) {
+    public void fileSendAccepted(final int userCode, final String fileName, final int fileHash, final int port,
+                                 final long resumeOffset, final long resumeChecksum, final int streams) {
         executorService.execute(new Runnable() {
             @Override
             public void run() {
-                messageResponder.fileSendAccepted(userCode, fileName, fileHash, port);
+                messageResponder.fileSendAccepted(userCode, fileName, fileHash, port,
+                                                  resumeOffset, resumeChecksum, streams);
             }
         });
     }
 
     @Override
     public void clientInfo(final int userCode, final String client, final long timeSinceLogon,
-                           final String operatingSystem, final int privateChatPort, final int tcpChatPort) {
-        messageResponder.clientInfo(userCode, client, timeSinceLogon, operatingSystem, privateChatPort, tcpChatPort);
+                           final String operatingSystem, final int privateChatPort, final int tcpChatPort,
+                           final Set<String> capabilities) {
+        messageResponder.clientInfo(userCode, client, timeSinceLogon, operatingSystem, privateChatPort, tcpChatPort,
+                                    capabilities);
     }
 
     /**
@@ -0,0 +1,172 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import static net.usikkert.kouchat.net.BinaryMessageEncoder.*;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.usikkert.kouchat.Constants;
+
+/**
+ * Decodes udp packets in the binary format from {@link BinaryMessageEncoder} back into the text format,
+ * so they can be handled by {@link MessageParser} like any other message.
+ *
+ * <p>The decoded message is exactly the same as the one that was encoded, except that the nick name
+ * is empty in message types where it's not needed.</p>
+ *
+ * @author Christian Ihle
+ */
+public final class BinaryMessageDecoder {
+
+    /** The logger. */
+    private static final Logger LOG = Logger.getLogger(BinaryMessageDecoder.class.getName());
+
+    private static final Charset CHARSET = Charset.forName(Constants.MESSAGE_CHARSET);
+
+    private BinaryMessageDecoder() {
+        // Only static methods
+    }
+
+    /**
+     * Checks if the packet is in the binary format. Does not change the position of the buffer.
+     *
+     * @param bytes The received bytes, between position and limit.
+     * @return If the packet is in the binary format.
+     */
+    public static boolean isBinary(final ByteBuffer bytes) {
+        return bytes.hasRemaining() && bytes.get(bytes.position()) == BINARY_MARKER;
+    }
+
+    /**
+     * Decodes a binary packet. Does not change the position of the buffer.
+     *
+     * @param bytes The received bytes, between position and limit.
+     * @return The message in the text format, or an empty string if the packet is invalid.
+     */
+    public static String decode(final ByteBuffer bytes) {
+        final ByteBuffer buffer = bytes.duplicate();
+
+        try {
+            buffer.get(); // The marker
+            final int version = buffer.get() & 0xFF;
+
+            if (version != VERSION) {
+                LOG.log(Level.WARNING, "Unsupported version of binary packet: " + version);
+                return "";
+            }
+
+            final int typeIndex = (buffer.get() & 0xFF) - 1;
+
+            if (typeIndex < 0 || typeIndex >= TYPES.length) {
+                LOG.log(Level.WARNING, "Unknown type in binary packet: " + (typeIndex + 1));
+                return "";
+            }
+
+            final int flags = buffer.get() & 0xFF;
+            final int userCode = (int) readVarLong(buffer);
+
+            final StringBuilder message = new StringBuilder(buffer.remaining() * 2 + 32);
+            message.append(userCode);
+
+            if ((flags & FLAG_SEQUENCE) != 0) {
+                message.append('.').append(readVarLong(buffer));
+            }
+
+            message.append('!').append(TYPES[typeIndex]).append('#');
+
+            if ((flags & FLAG_NICK) != 0) {
+                message.append(readString(buffer, (int) readVarLong(buffer)));
+            }
+
+            message.append(':');
+
+            final String layout = LAYOUTS[typeIndex];
+
+            for (int i = 0; i < layout.length(); i += 3) {
+                message.append(layout.charAt(i));
+
+                if (layout.charAt(i + 1) == 'n') {
+                    final long zigzag = readVarLong(buffer);
+                    message.append((zigzag >>> 1) ^ -(zigzag & 1));
+                }
+
+                else {
+                    message.append(readString(buffer, (int) readVarLong(buffer)));
+                }
+
+                message.append(layout.charAt(i + 2));
+            }
+
+            message.append(readString(buffer, buffer.remaining()));
+
+            return message.toString();
+        }
+
+        catch (final BufferUnderflowException | IllegalArgumentException e) {
+            LOG.log(Level.WARNING, "Invalid binary packet: " + e);
+            return "";
+        }
+    }
+
+    private static long readVarLong(final ByteBuffer buffer) {
+        long value = 0;
+
+        for (int shift = 0; shift < 64; shift += 7) {
+            final byte current = buffer.get();
+            value |= (long) (current & 0x7F) << shift;
+
+            if ((current & 0x80) == 0) {
+                return value;
+            }
+        }
+
+        throw new IllegalArgumentException("Varint is too long");
+    }
+
+    private static String readString(final ByteBuffer buffer, final int length) {
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IllegalArgumentException("Invalid length of text: " + length);
+        }
+
+        final String string;
+
+        if (buffer.hasArray()) {
+            string = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, CHARSET);
+        }
+
+        else {
+            final byte[] bytes = new byte[length];
+            buffer.duplicate().get(bytes);
+            string = new String(bytes, CHARSET);
+        }
+
+        buffer.position(buffer.position() + length);
+
+        return string;
+    }
+}
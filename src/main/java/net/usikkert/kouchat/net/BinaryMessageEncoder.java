@@ -0,0 +1,254 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import static net.usikkert.kouchat.net.NetworkMessageType.*;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+
+import net.usikkert.kouchat.Constants;
+import net.usikkert.kouchat.util.Validate;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Encodes messages built by {@link NetworkMessages} in the compact binary format, for sending in udp packets
+ * to users that support {@link ClientCapability#BINARY}.
+ *
+ * <p>The text format repeats the sender's nick name in every message, and sends the user code, colors,
+ * ports and times as decimal text between delimiters. The binary format sends numbers as varints,
+ * and only includes the nick name in the message types that actually need it.</p>
+ *
+ * <p>A binary packet looks like this:</p>
+ *
+ * <ul>
+ *   <li>The byte {@link #BINARY_MARKER}, never used in UTF-8.</li>
+ *   <li>The version of the format, {@link #VERSION}.</li>
+ *   <li>The message type, as an index into the known types.</li>
+ *   <li>Flags. {@link #FLAG_NICK} and {@link #FLAG_SEQUENCE}.</li>
+ *   <li>The user code, as an unsigned varint.</li>
+ *   <li>The sequence from {@link MessageSequencer}, if flagged, as an unsigned varint. Only flagged when
+ *   sent to users that support {@link ClientCapability#SEQUENCE}, since older clients don't know the flag.</li>
+ *   <li>The nick name, if flagged, as a varint length followed by UTF-8.</li>
+ *   <li>The fields of the message type, with numbers as zigzag varints and text as a varint length
+ *   followed by UTF-8.</li>
+ *   <li>The rest of the payload, as UTF-8 until the end of the packet.</li>
+ * </ul>
+ *
+ * <p>Only the message types sent after the other clients know about each other are supported.
+ * Messages like {@link NetworkMessageType#LOGON} and {@link NetworkMessageType#CLIENT} are always
+ * sent as text, since they are how clients find out about each other's capabilities.
+ * The same goes for fragments and batches, and for messages that don't follow the expected layout.
+ * {@link BinaryMessageDecoder} turns a binary packet back into the exact same text message.</p>
+ *
+ * @author Christian Ihle
+ */
+public class BinaryMessageEncoder {
+
+    /** The first byte of a binary packet. */
+    public static final byte BINARY_MARKER = (byte) 0xFE;
+
+    /** The version of the binary format. Matches the number in {@link ClientCapability#BINARY}. */
+    public static final int VERSION = 2;
+
+    /** Flag for packets with the nick name of the sender. */
+    static final int FLAG_NICK = 1;
+
+    /** Flag for packets with a sequence. */
+    static final int FLAG_SEQUENCE = 2;
+
+    /** The message types supported by the binary format. The type byte is the index plus one. */
+    static final String[] TYPES = {
+            MSG, PRIVMSG, IDLE, WRITING, STOPPEDWRITING, AWAY, BACK, TOPIC, GETTOPIC, NICK,
+            SENDFILE, SENDFILEACCEPT, SENDFILEABORT, LOGOFF
+    };
+
+    /**
+     * The fields at the start of the payload of each type. Each field is three characters: the opening delimiter,
+     * <code>n</code> for a number or <code>s</code> for text, and the closing delimiter.
+     */
+    static final String[] LAYOUTS = {
+            "[n]", "(n)[n]", "", "", "", "", "", "(s)[n]", "", "",
+            "(n)[n]{n}", "(n)[n]{n}", "(n){n}", ""
+    };
+
+    /** If the nick name is needed to handle each type. */
+    static final boolean[] INCLUDES_NICK = {
+            false, false, false, false, false, false, false, false, false, true,
+            true, false, false, false
+    };
+
+    private static final Charset CHARSET = Charset.forName(Constants.MESSAGE_CHARSET);
+
+    /**
+     * Encodes the message in the binary format.
+     *
+     * @param message The message to encode.
+     * @return The bytes to send, or <code>null</code> if the message must be sent as text.
+     */
+    @Nullable
+    public byte[] encode(final String message) {
+        Validate.notNull(message, "Message can not be null");
+
+        if (message.startsWith(MessageFragmenter.FRAGMENT_PREFIX) || message.startsWith(MessageBatcher.BATCH_PREFIX)) {
+            return null;
+        }
+
+        final MessageEnvelope envelope;
+
+        try {
+            envelope = MessageEnvelope.parse(message);
+        }
+
+        catch (final NumberFormatException | StringIndexOutOfBoundsException e) {
+            return null;
+        }
+
+        final int typeIndex = getTypeIndex(envelope.getType());
+
+        if (typeIndex < 0) {
+            return null;
+        }
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(message.length());
+        out.write(BINARY_MARKER);
+        out.write(VERSION);
+        out.write(typeIndex + 1);
+        out.write((INCLUDES_NICK[typeIndex] ? FLAG_NICK : 0) | (envelope.hasSequence() ? FLAG_SEQUENCE : 0));
+        writeVarLong(out, envelope.getUserCode() & 0xFFFFFFFFL);
+
+        if (envelope.hasSequence()) {
+            writeVarLong(out, envelope.getSequence());
+        }
+
+        if (INCLUDES_NICK[typeIndex]) {
+            writeString(out, envelope.getNick());
+        }
+
+        final String payload = envelope.getPayload();
+        final int restStart = writeFields(out, LAYOUTS[typeIndex], payload);
+
+        if (restStart < 0) {
+            return null;
+        }
+
+        final byte[] rest = payload.substring(restStart).getBytes(CHARSET);
+        out.write(rest, 0, rest.length);
+
+        if (out.size() > Constants.NETWORK_PACKET_SIZE) {
+            return null;
+        }
+
+        return out.toByteArray();
+    }
+
+    /**
+     * Writes the fields of the layout, found at the start of the payload.
+     *
+     * @return Where the rest of the payload starts, or -1 if the payload does not follow the layout.
+     */
+    private int writeFields(final ByteArrayOutputStream out, final String layout, final String payload) {
+        int position = 0;
+
+        for (int i = 0; i < layout.length(); i += 3) {
+            if (position >= payload.length() || payload.charAt(position) != layout.charAt(i)) {
+                return -1;
+            }
+
+            final int end = payload.indexOf(layout.charAt(i + 2), position + 1);
+
+            if (end < 0) {
+                return -1;
+            }
+
+            final String field = payload.substring(position + 1, end);
+
+            if (layout.charAt(i + 1) == 'n') {
+                final Long number = parseNumber(field);
+
+                if (number == null) {
+                    return -1;
+                }
+
+                writeVarLong(out, (number << 1) ^ (number >> 63));
+            }
+
+            else {
+                writeString(out, field);
+            }
+
+            position = end + 1;
+        }
+
+        return position;
+    }
+
+    /**
+     * Parses the number, but only if it's written exactly the way it will be when decoded.
+     */
+    @Nullable
+    private Long parseNumber(final String field) {
+        try {
+            final long number = Long.parseLong(field);
+
+            if (Long.toString(number).equals(field)) {
+                return number;
+            }
+        }
+
+        catch (final NumberFormatException e) {
+            // Not a number
+        }
+
+        return null;
+    }
+
+    private void writeString(final ByteArrayOutputStream out, final String string) {
+        final byte[] bytes = string.getBytes(CHARSET);
+
+        writeVarLong(out, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private void writeVarLong(final ByteArrayOutputStream out, final long value) {
+        long remaining = value;
+
+        while ((remaining & ~0x7FL) != 0) {
+            out.write((int) ((remaining & 0x7F) | 0x80));
+            remaining >>>= 7;
+        }
+
+        out.write((int) remaining);
+    }
+
+    private int getTypeIndex(final String type) {
+        for (int i = 0; i < TYPES.length; i++) {
+            if (TYPES[i].equals(type)) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+}
@@ -0,0 +1,151 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * A CRC32 checksum of a block in a file transfer, updated with the bytes while they are copied,
+ * so the block is checked without reading it again.
+ *
+ * <p>On Java 8 and newer, buffers are given straight to the checksum, which reads direct buffers without copying.
+ * The method is looked up at runtime, so the application still runs on Java 7, where direct buffers are copied
+ * through a small array instead. CRC32 is used instead of CRC32C, since CRC32C is only in Java 9 and newer,
+ * and both sides must use the same checksum. It's also the checksum used in the {@link FileCheckpoint}.</p>
+ *
+ * <p>Not thread safe.</p>
+ *
+ * @author Christian Ihle
+ */
+class BlockChecksum {
+
+    /** The size of the array used to copy bytes from direct buffers. */
+    static final int COPY_SIZE = 64 * 1024;
+
+    /** <code>CRC32.update(ByteBuffer)</code>, or <code>null</code> if not supported. */
+    @Nullable
+    private static final Method UPDATE_BUFFER = findUpdateBuffer();
+
+    /** The checksum. */
+    private final CRC32 crc;
+
+    /** The array for copying bytes from direct buffers, or <code>null</code> until needed. */
+    @Nullable
+    private byte[] copy;
+
+    /**
+     * Constructor.
+     */
+    BlockChecksum() {
+        crc = new CRC32();
+    }
+
+    /**
+     * Updates the checksum with bytes from an array.
+     *
+     * @param bytes The array with the bytes.
+     * @param offset The offset of the first byte.
+     * @param length The number of bytes.
+     */
+    public void update(final byte[] bytes, final int offset, final int length) {
+        crc.update(bytes, offset, length);
+    }
+
+    /**
+     * Updates the checksum with the remaining bytes in the buffer, without changing the position of the buffer.
+     *
+     * @param buffer The buffer with the bytes.
+     */
+    public void update(final ByteBuffer buffer) {
+        if (UPDATE_BUFFER != null && !buffer.hasArray()) {
+            updateBuffer(UPDATE_BUFFER, buffer);
+            return;
+        }
+
+        if (buffer.hasArray()) {
+            crc.update(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            return;
+        }
+
+        if (copy == null) {
+            copy = new byte[COPY_SIZE];
+        }
+
+        final byte[] array = copy;
+        final ByteBuffer bytes = buffer.duplicate();
+
+        while (bytes.hasRemaining()) {
+            final int length = Math.min(array.length, bytes.remaining());
+            bytes.get(array, 0, length);
+            crc.update(array, 0, length);
+        }
+    }
+
+    /**
+     * Gets the checksum of the bytes so far.
+     *
+     * @return The checksum.
+     */
+    public int getValue() {
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Starts over with a new block.
+     */
+    public void reset() {
+        crc.reset();
+    }
+
+    private void updateBuffer(final Method updateBuffer, final ByteBuffer buffer) {
+        final int position = buffer.position();
+
+        try {
+            updateBuffer.invoke(crc, buffer);
+        }
+
+        catch (final IllegalAccessException | InvocationTargetException e) {
+            throw new IllegalStateException("Failed to update checksum", e);
+        }
+
+        finally {
+            buffer.position(position);
+        }
+    }
+
+    @Nullable
+    private static Method findUpdateBuffer() {
+        try {
+            return CRC32.class.getMethod("update", ByteBuffer.class);
+        }
+
+        catch (final NoSuchMethodException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,117 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import net.usikkert.kouchat.util.Validate;
+
+/**
+ * A bounded pool of reusable byte buffers, for receiving datagrams and files.
+ *
+ * <p>Buffers are allocated on demand, and returned to the pool when released. If the pool is empty
+ * a new buffer is allocated, and if the pool is full when a buffer is released the buffer
+ * is left for the garbage collector. This keeps the memory use bounded even if a listener
+ * holds on to buffers for a while.</p>
+ *
+ * <p>Buffers can be acquired and released from different threads.</p>
+ *
+ * @author Christian Ihle
+ */
+public class ByteBufferPool {
+
+    private final BlockingQueue<ByteBuffer> buffers;
+    private final int bufferSize;
+    private final boolean direct;
+
+    /**
+     * Constructor.
+     *
+     * @param poolSize The max number of idle buffers to keep in the pool.
+     * @param bufferSize The size of each buffer, in bytes.
+     * @param direct If the buffers should be direct buffers. Heap buffers are used otherwise.
+     */
+    public ByteBufferPool(final int poolSize, final int bufferSize, final boolean direct) {
+        Validate.isTrue(poolSize > 0, "Pool size must be positive");
+        Validate.isTrue(bufferSize > 0, "Buffer size must be positive");
+
+        this.buffers = new ArrayBlockingQueue<>(poolSize);
+        this.bufferSize = bufferSize;
+        this.direct = direct;
+    }
+
+    /**
+     * Gets a cleared buffer from the pool, or a new buffer if the pool is empty.
+     *
+     * @return A buffer ready for reading into.
+     */
+    public ByteBuffer acquire() {
+        final ByteBuffer buffer = buffers.poll();
+
+        if (buffer == null) {
+            return allocate();
+        }
+
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer to the pool, so it can be reused. Buffers not created by this pool are ignored.
+     *
+     * @param buffer The buffer to return to the pool.
+     */
+    public void release(final ByteBuffer buffer) {
+        if (buffer.capacity() == bufferSize && buffer.isDirect() == direct) {
+            buffers.offer(buffer);
+        }
+    }
+
+    /**
+     * Gets the number of idle buffers in the pool.
+     *
+     * @return The number of idle buffers.
+     */
+    public int getAvailable() {
+        return buffers.size();
+    }
+
+    /**
+     * Gets the size of each buffer in this pool.
+     *
+     * @return The buffer size, in bytes.
+     */
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    private ByteBuffer allocate() {
+        if (direct) {
+            return ByteBuffer.allocateDirect(bufferSize);
+        }
+
+        return ByteBuffer.allocate(bufferSize);
+    }
+}
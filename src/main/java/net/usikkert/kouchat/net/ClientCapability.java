@@ -0,0 +1,106 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+/**
+ * Optional features a client can support, advertised to the other clients in the
+ * {@link NetworkMessageType#CLIENT} message.
+ *
+ * <p>Clients that don't advertise a feature, like older versions, must never receive messages that depend on it.</p>
+ *
+ * @author Christian Ihle
+ */
+public interface ClientCapability {
+
+    /** Can receive udp packets compressed by {@link MessageCompressor}. */
+    String DEFLATE = "deflate";
+
+    /** Can receive udp packets in version 2 of the binary format from {@link BinaryMessageEncoder}. */
+    String BINARY = "binary2";
+
+    /** Can receive several messages in a single multicast packet, batched by {@link MessageBatcher}. */
+    String BATCH = "batch";
+
+    /**
+     * Uses the relay topology for tcp from {@link net.usikkert.kouchat.net.tcp.TCPRelayTopology}.
+     * Only advertised when enabled, since relays are elected among the users that advertise it.
+     */
+    String RELAY = "relay";
+
+    /**
+     * Only connects over tcp to users with a higher user code, and waits for the users with a lower code
+     * to connect, so two users never connect to each other at the same time.
+     */
+    String TCP_TIE_BREAK = "tcptie";
+
+    /** Can receive messages with a sequence in the header, from {@link MessageSequencer}. */
+    String SEQUENCE = "seq";
+
+    /**
+     * Keeps the latest multicast messages, and sends them again when asked by a {@link NetworkMessageType#NACK}
+     * from {@link ReliableMulticast}. Only advertised when enabled, which also needs private chat.
+     */
+    String NACK = "nack";
+
+    /**
+     * Answers pings on tcp connections, and {@link NetworkMessageType#PING} probes on the private chat port,
+     * used by {@link PeerLinkMonitor} to measure the round trip time and loss of each path to the user.
+     */
+    String PING = "ping";
+
+    /**
+     * Can resume file transfers from a {@link FileCheckpoint}, with the offset to resume from in the
+     * {@link NetworkMessageType#SENDFILEACCEPT} message, and the offset actually used first in the file stream.
+     */
+    String RESUME = "resume";
+
+    /**
+     * Can send and receive a file over several tcp connections at the same time, as blocks from {@link FileSender}
+     * with the offset in front and a checksum after. The receiver asks for it in the
+     * {@link NetworkMessageType#SENDFILEACCEPT} message with the highest number of connections it accepts.
+     */
+    String STREAMS = "streams";
+
+    /**
+     * Understands the offer to switch a tcp connection to the length-prefixed framing from
+     * {@link net.usikkert.kouchat.net.tcp.TCPClient#offerLengthPrefixedFraming()}.
+     */
+    String FRAMING = "framing";
+
+    /**
+     * Can put together udp messages split into fragments by {@link MessageFragmenter}, so chat messages
+     * up to {@link net.usikkert.kouchat.Constants#CHAT_MESSAGE_MAX_BYTES} can be sent.
+     */
+    String FRAGMENT = "frag";
+
+    /**
+     * Sends the {@link BlockChecksum} of the bytes sent after a file sent over a single connection, and checks it
+     * when receiving, so a file that didn't arrive as sent fails the transfer. Files sent as blocks with
+     * {@link #STREAMS} always have a checksum after each block.
+     */
+    String FILE_CHECKSUM = "filecrc";
+
+    /** The capabilities of this client, separated by commas. */
+    String SUPPORTED = DEFLATE + "," + BINARY + "," + BATCH + "," + TCP_TIE_BREAK + "," + SEQUENCE + "," + PING
+            + "," + RESUME + "," + STREAMS + "," + FRAGMENT + "," + FRAMING + "," + FILE_CHECKSUM;
+}
@@ -0,0 +1,45 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import net.usikkert.kouchat.event.ReceiverListener;
+
+/**
+ * A {@link ReceiverListener} that can take ownership of the raw datagram instead of
+ * a decoded message.
+ *
+ * <p>The receivers hand the pooled buffer directly to listeners implementing this interface,
+ * without decoding the message first. The listener is responsible for calling
+ * {@link ReceivedDatagram#release()} when done with the datagram, so the buffer can be reused.</p>
+ *
+ * @author Christian Ihle
+ */
+public interface DatagramReceiverListener extends ReceiverListener {
+
+    /**
+     * Called when a new datagram arrives over the network.
+     *
+     * @param datagram The datagram that arrived. Must be released when done.
+     */
+    void datagramArrived(ReceivedDatagram datagram);
+}
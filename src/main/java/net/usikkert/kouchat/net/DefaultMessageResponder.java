@@ -24,6 +24,7 @@ package net.usikkert.kouchat.net;
 
 import java.io.File;
 import java.util.Date;
+import java.util.Set;
 
 import net.usikkert.kouchat.message.CoreMessages;
 import net.usikkert.kouchat.misc.ChatState;
@@ -491,7 +492,23 @@ public class DefaultMessageResponder implements MessageResponder {
 
                     try {
                         final int port = fileRes.startServer();
-                        controller.sendFileAccept(tmpUser, port, fileHash, fileName);
+                        final long resumeOffset = fileRes.prepareResume(fileHash,
+                                                                        tmpUser.hasCapability(ClientCapability.RESUME));
+                        final int streams = fileRes.prepareStreams(tmpUser.hasCapability(ClientCapability.STREAMS));
+
+                        if (resumeOffset > 0) {
+                            msgController.showSystemMessage("Resuming " + fileName + " from " +
+                                                                    Tools.byteToString(resumeOffset));
+                        }
+
+                        if (resumeOffset > 0 || streams > 1) {
+                            controller.sendFileAccept(tmpUser, port, fileHash, fileName,
+                                                      resumeOffset, fileRes.getResumeChecksum(), streams);
+                        }
+
+                        else {
+                            controller.sendFileAccept(tmpUser, port, fileHash, fileName);
+                        }
 
                         if (fileRes.transfer()) {
                             msgController.showSystemMessage("Successfully received " + fileName +
@@ -575,9 +592,13 @@ public class DefaultMessageResponder implements MessageResponder {
      * @param fileName The name of the file.
      * @param fileHash The hash code of the file.
      * @param port The port to use for connecting to the other user.
+     * @param resumeOffset The number of bytes the user already has, or 0 to start from the beginning.
+     * @param resumeChecksum The CRC32 checksum of the bytes the user already has.
+     * @param streams The highest number of connections the user accepts for the file.
      */
     @Override
-    public void fileSendAccepted(final int userCode, final String fileName, final int fileHash, final int port) {
+    public void fileSendAccepted(final int userCode, final String fileName, final int fileHash, final int port,
+                                 final long resumeOffset, final long resumeChecksum, final int streams) {
         final User user = controller.getUser(userCode);
         final FileSender fileSend = tList.getFileSender(user, fileName, fileHash);
 
@@ -587,7 +608,7 @@ public class DefaultMessageResponder implements MessageResponder {
             // Give the server some time to set up the connection first
             sleeper.sleep(200);
 
-            if (fileSend.transfer(port)) {
+            if (fileSend.transfer(port, resumeOffset, resumeChecksum, streams)) {
                 msgController.showSystemMessage(fileName + " successfully sent to " + user.getNick());
             }
 
@@ -608,10 +629,12 @@ public class DefaultMessageResponder implements MessageResponder {
      * @param operatingSystem The user's operating system.
      * @param privateChatPort The port to use for sending private chat messages to this user.
      * @param tcpChatPort The port to use for sending chat messages to this user using tcp.
+     * @param capabilities The optional features the client supports.
      */
     @Override
     public void clientInfo(final int userCode, final String client, final long timeSinceLogon,
-                           final String operatingSystem, final int privateChatPort, final int tcpChatPort) {
+                           final String operatingSystem, final int privateChatPort, final int tcpChatPort,
+                           final Set<String> capabilities) {
         final User user = controller.getUser(userCode);
 
         if (user != null) {
@@ -619,7 +642,8 @@ public class DefaultMessageResponder implements MessageResponder {
             user.setLogonTime(System.currentTimeMillis() - timeSinceLogon);
             user.setOperatingSystem(operatingSystem);
             user.setPrivateChatPort(privateChatPort);
-            user.setTcpChatPort(tcpChatPort);
+            user.setCapabilities(capabilities);
+            controller.changeTcpChatPort(userCode, tcpChatPort); // Last, since it notifies listeners
         }
 
         else {
@@ -0,0 +1,216 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+import java.util.zip.CRC32;
+
+import net.usikkert.kouchat.util.Logger;
+import net.usikkert.kouchat.util.PropertyTools;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * How far a failed file transfer got, saved next to the partial file so the transfer can be resumed.
+ *
+ * <p>The checkpoint has the size and hash code of the file from the sender, the number of bytes
+ * received, and a CRC32 checksum of those bytes. The sender compares the checksum with the start
+ * of its own file before resuming, so a partial file that doesn't match is never stitched
+ * together with the rest of another file.</p>
+ *
+ * @author Christian Ihle
+ * @see FileReceiver
+ */
+public class FileCheckpoint {
+
+    /** Added to the name of the partial file to get the name of the checkpoint file. */
+    public static final String CHECKPOINT_FILE_SUFFIX = ".checkpoint";
+
+    private static final Logger LOG = Logger.getLogger(FileCheckpoint.class);
+
+    private static final String SIZE = "size";
+    private static final String FILE_HASH = "fileHash";
+    private static final String TRANSFERRED = "transferred";
+    private static final String CHECKSUM = "checksum";
+
+    private final long size;
+    private final int fileHash;
+    private final long transferred;
+    private final long checksum;
+
+    /**
+     * Constructor.
+     *
+     * @param size The size of the file from the sender, in bytes.
+     * @param fileHash The hash code of the file from the sender.
+     * @param transferred The number of bytes received.
+     * @param checksum The CRC32 checksum of the bytes received.
+     */
+    public FileCheckpoint(final long size, final int fileHash, final long transferred, final long checksum) {
+        this.size = size;
+        this.fileHash = fileHash;
+        this.transferred = transferred;
+        this.checksum = checksum;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public int getFileHash() {
+        return fileHash;
+    }
+
+    public long getTransferred() {
+        return transferred;
+    }
+
+    public long getChecksum() {
+        return checksum;
+    }
+
+    /**
+     * Checks if the partial file can be resumed with this checkpoint, for the file offered by the sender.
+     *
+     * @param partFile The partial file.
+     * @param theSize The size of the file offered by the sender.
+     * @param theFileHash The hash code of the file offered by the sender.
+     * @return If the transfer can be resumed.
+     */
+    public boolean canResume(final File partFile, final long theSize, final int theFileHash) {
+        return size == theSize && fileHash == theFileHash && transferred > 0 && transferred < size
+                && partFile.length() >= transferred;
+    }
+
+    /**
+     * Saves the checkpoint next to the partial file.
+     *
+     * @param partFile The partial file.
+     * @throws IOException If the checkpoint could not be saved.
+     */
+    public void save(final File partFile) throws IOException {
+        final Properties properties = new Properties();
+        properties.setProperty(SIZE, String.valueOf(size));
+        properties.setProperty(FILE_HASH, String.valueOf(fileHash));
+        properties.setProperty(TRANSFERRED, String.valueOf(transferred));
+        properties.setProperty(CHECKSUM, String.valueOf(checksum));
+
+        new PropertyTools().saveProperties(getCheckpointFile(partFile).getPath(), properties,
+                                           "Checkpoint for resuming " + partFile.getName());
+    }
+
+    /**
+     * Loads the checkpoint saved next to the partial file.
+     *
+     * @param partFile The partial file.
+     * @return The checkpoint, or <code>null</code> if there is none, or it could not be read.
+     */
+    @Nullable
+    public static FileCheckpoint load(final File partFile) {
+        final File checkpointFile = getCheckpointFile(partFile);
+
+        if (!checkpointFile.exists()) {
+            return null;
+        }
+
+        try {
+            final Properties properties = new PropertyTools().loadProperties(checkpointFile.getPath());
+
+            return new FileCheckpoint(Long.parseLong(properties.getProperty(SIZE)),
+                                      Integer.parseInt(properties.getProperty(FILE_HASH)),
+                                      Long.parseLong(properties.getProperty(TRANSFERRED)),
+                                      Long.parseLong(properties.getProperty(CHECKSUM)));
+        }
+
+        catch (final IOException | NumberFormatException e) {
+            LOG.warning("Could not read checkpoint %s: %s", checkpointFile, e);
+            return null;
+        }
+    }
+
+    /**
+     * Deletes the checkpoint saved next to the partial file, if there is one.
+     *
+     * @param partFile The partial file.
+     */
+    public static void delete(final File partFile) {
+        final File checkpointFile = getCheckpointFile(partFile);
+
+        if (checkpointFile.exists() && !checkpointFile.delete()) {
+            LOG.warning("Could not delete %s", checkpointFile);
+        }
+    }
+
+    /**
+     * Creates a checkpoint for the first bytes of the partial file.
+     *
+     * @param partFile The partial file.
+     * @param size The size of the file from the sender, in bytes.
+     * @param fileHash The hash code of the file from the sender.
+     * @param transferred The number of bytes received.
+     * @return The checkpoint.
+     * @throws IOException If the partial file could not be read.
+     */
+    public static FileCheckpoint create(final File partFile, final long size, final int fileHash,
+                                        final long transferred) throws IOException {
+        try (final InputStream inputStream = new FileInputStream(partFile)) {
+            return new FileCheckpoint(size, fileHash, transferred, checksum(inputStream, transferred));
+        }
+    }
+
+    /**
+     * Calculates the CRC32 checksum of the next bytes from the input stream.
+     * The stream is left right after those bytes.
+     *
+     * @param inputStream The stream to read from.
+     * @param length The number of bytes to include.
+     * @return The checksum, or -1 if the stream ended before all the bytes were read.
+     * @throws IOException If the stream could not be read.
+     */
+    public static long checksum(final InputStream inputStream, final long length) throws IOException {
+        final CRC32 crc = new CRC32();
+        final byte[] buffer = new byte[64 * 1024];
+        long remaining = length;
+
+        while (remaining > 0) {
+            final int read = inputStream.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+
+            if (read == -1) {
+                return -1;
+            }
+
+            crc.update(buffer, 0, read);
+            remaining -= read;
+        }
+
+        return crc.getValue();
+    }
+
+    private static File getCheckpointFile(final File partFile) {
+        return new File(partFile.getPath() + CHECKPOINT_FILE_SUFFIX);
+    }
+}
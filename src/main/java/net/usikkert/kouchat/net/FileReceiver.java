@@ -23,11 +23,26 @@
 package net.usikkert.kouchat.net;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -35,6 +50,7 @@ import net.usikkert.kouchat.Constants;
 import net.usikkert.kouchat.event.FileTransferListener;
 import net.usikkert.kouchat.misc.User;
 import net.usikkert.kouchat.util.ByteCounter;
+import net.usikkert.kouchat.util.TaskExecutors;
 
 import org.jetbrains.annotations.Nullable;
 
@@ -44,6 +60,26 @@ import org.jetbrains.annotations.Nullable;
  * <p>To receive a file, a server socket has to be opened,
  * to wait for incoming transfers.</p>
  *
+ * <p>The file is written to a partial file next to the chosen file, with {@link #PART_FILE_SUFFIX}
+ * added to the name. The partial file is set to the full size before the transfer starts, so the file
+ * system can keep it in one piece, and is renamed to the chosen file when every byte has arrived.
+ * A failed transfer never touches the chosen file. The partial file is deleted, unless the sender
+ * can resume transfers. Then it's kept with a {@link FileCheckpoint}, so the transfer can continue
+ * where it stopped the next time the same file is offered.
+ * The bytes are read from the socket channel into a large direct buffer,
+ * and written from there to the file channel.</p>
+ *
+ * <p>If the sender supports {@link ClientCapability#STREAMS}, the file can arrive over up to {@link #MAX_STREAMS}
+ * connections at the same time. The sender opens more connections while it helps the speed. The file is
+ * then sent as blocks with the offset and length in front and a {@link BlockChecksum} after, and each connection
+ * has its own thread writing the blocks to the file at their offset. The checksum is updated while each block
+ * is received, and a block only counts as received if it matches the checksum from the sender.
+ * A block that doesn't match fails the transfer.</p>
+ *
+ * <p>If the file arrives over a single connection from a sender that supports
+ * {@link ClientCapability#FILE_CHECKSUM}, the checksum of the bytes sent follows the file, and the file is only
+ * complete if it matches. Otherwise the partial file is kept or deleted like any other failed transfer.</p>
+ *
  * @author Christian Ihle
  */
 public class FileReceiver implements FileTransfer {
@@ -51,6 +87,27 @@ public class FileReceiver implements FileTransfer {
     /** The logger. */
     private static final Logger LOG = Logger.getLogger(FileReceiver.class.getName());
 
+    /** Added to the name of the chosen file to get the name of the partial file. */
+    public static final String PART_FILE_SUFFIX = ".part";
+
+    /** The size of the buffers used to receive files. */
+    static final int BUFFER_SIZE = 256 * 1024;
+
+    /** The number of bytes to receive between each progress update, if the percent doesn't change. */
+    private static final long UPDATE_INTERVAL = 1024 * 1024;
+
+    /** The highest number of connections to receive a file over. */
+    public static final int MAX_STREAMS = 8;
+
+    /** Milliseconds to wait for another connection before checking if the file is complete. */
+    private static final int STREAM_ACCEPT_TIMEOUT = 100;
+
+    /** Milliseconds to wait for new connections after every connection has closed before the file is complete. */
+    private static final long STREAM_LINGER = 3000;
+
+    /** Buffers shared by all the file transfers, since the buffers are large. */
+    private static final ByteBufferPool BUFFER_POOL = new ByteBufferPool(4, BUFFER_SIZE, true);
+
     /** The user sending the file. */
     private final User user;
 
@@ -66,20 +123,23 @@ public class FileReceiver implements FileTransfer {
     /** The unique ID of this file transfer. */
     private final int id;
 
+    /** If the blocks should be received on virtual threads, when supported. */
+    private final boolean virtualThreads;
+
     /** Keeps count of the transfer speed. */
     private final ByteCounter bCounter;
 
     /** Percent of the file received. */
-    private int percent;
+    private volatile int percent;
 
     /** Number of bytes received. */
-    private long transferred;
+    private volatile long transferred;
 
     /** If the file was successfully received. */
     private boolean received;
 
     /** If the file transfer is canceled. */
-    private boolean cancel;
+    private volatile boolean cancel;
 
     /** If the client has accepted to receive the file. */
     private boolean accepted;
@@ -98,13 +158,52 @@ public class FileReceiver implements FileTransfer {
     @Nullable
     private Socket sock;
 
-    /** The output stream to the file. */
+    /** The partial file being written to. */
     @Nullable
-    private FileOutputStream fos;
+    private RandomAccessFile raf;
 
-    /** The input stream from the other user. */
+    /** The hash code of the file from the sender, used in the checkpoint. */
+    private int fileHash;
+
+    /** If the sender can resume transfers, so the partial file is kept if the transfer fails. */
+    private boolean canResume;
+
+    /** The offset the transfer is resumed from, or 0 if not resuming. */
+    private long resumeOffset;
+
+    /** The CRC32 checksum of the bytes before the resume offset. */
+    private long resumeChecksum;
+
+    /** The highest number of connections the sender can use. More than 1 means the file is sent as blocks. */
+    private int maxStreams = 1;
+
+    /** Guards the progress when receiving blocks over several connections. */
+    private final Object streamLock = new Object();
+
+    /** The connections receiving blocks. */
+    private final List<Socket> streamSockets = new CopyOnWriteArrayList<>();
+
+    /** The blocks received so far, when receiving blocks. */
     @Nullable
-    private InputStream is;
+    private ReceivedRanges ranges;
+
+    /** The offset the sender started from, when receiving blocks. Blocks before it would overwrite the resumed part. */
+    private long blockStart;
+
+    /** The number of connections still receiving blocks. */
+    private int activeStreams;
+
+    /** The percent at the last progress update, when receiving blocks. */
+    private int updatedPercent;
+
+    /** The number of bytes to receive before the next progress update, when receiving blocks. */
+    private long nextUpdate;
+
+    /** If a connection failed in the middle of a block. */
+    private volatile boolean streamFailed;
+
+    /** If the connections are being closed after receiving blocks, so errors are expected. */
+    private volatile boolean streamsClosing;
 
     /**
      * Constructor. Creates a new file receiver.
@@ -115,10 +214,25 @@ public class FileReceiver implements FileTransfer {
      * @param id The unique ID of this file transfer.
      */
     public FileReceiver(final User user, final File file, final long size, final int id) {
+        this(user, file, size, id, false);
+    }
+
+    /**
+     * Constructor. Creates a new file receiver.
+     *
+     * @param user The user which sends the file.
+     * @param file The file the user is sending.
+     * @param size The size of the file, in bytes.
+     * @param id The unique ID of this file transfer.
+     * @param virtualThreads If the blocks should be received on virtual threads, when supported.
+     */
+    public FileReceiver(final User user, final File file, final long size, final int id,
+                        final boolean virtualThreads) {
         this.user = user;
         this.file = file;
         this.size = size;
         this.id = id;
+        this.virtualThreads = virtualThreads;
         this.originalFileName = file.getName();
 
         bCounter = new ByteCounter();
@@ -138,7 +252,7 @@ public class FileReceiver implements FileTransfer {
 
         while (!done && counter < 50) {
             try {
-                sSock = new ServerSocket(port);
+                sSock = openServerSocket(port);
                 final TimeoutThread tt = new TimeoutThread();
                 tt.start();
                 done = true;
@@ -177,32 +291,29 @@ public class FileReceiver implements FileTransfer {
             if (sSock != null) {
                 sock = sSock.accept();
                 listener.statusTransferring();
-                fos = new FileOutputStream(file);
-                is = sock.getInputStream();
-
-                final byte[] b = new byte[1024];
-                transferred = 0;
-                percent = 0;
-                int tmpTransferred = 0;
-                int tmpPercent = 0;
-                int transCounter = 0;
+
+                final File partFile = getPartFile();
+                FileCheckpoint.delete(partFile);
+
+                raf = new RandomAccessFile(partFile, "rw");
+                raf.setLength(size);
+
+                ranges = null;
+                transferred = readStart(sock.getChannel());
+                percent = (int) (size > 0 ? (transferred * 100) / size : 0);
                 bCounter.prepare();
 
-                while (!cancel && (tmpTransferred = is.read(b)) != -1) {
-                    fos.write(b, 0, tmpTransferred);
-                    transferred += tmpTransferred;
-                    percent = (int) ((transferred * 100) / size);
-                    bCounter.addBytes(tmpTransferred);
-                    transCounter++;
-
-                    if (percent > tmpPercent || transCounter >= 250) {
-                        transCounter = 0;
-                        tmpPercent = percent;
-                        listener.transferUpdate();
-                    }
+                if (maxStreams > 1) {
+                    receiveBlocks(raf.getChannel());
+                }
+
+                else {
+                    receiveSingleStream(sock.getChannel(), raf.getChannel());
                 }
 
-                if (!cancel && transferred == size) {
+                if (!cancel && getCompletePrefix() == size) {
+                    raf.close();
+                    moveToFile(partFile);
                     received = true;
                     listener.statusCompleted();
                 }
@@ -221,48 +332,473 @@ public class FileReceiver implements FileTransfer {
         finally {
             stopReceiver();
             cleanupConnections();
+
+            if (!received) {
+                keepOrDeletePartFile();
+            }
         }
 
         return received;
     }
 
     /**
-     * Sets all connections to null.
+     * Checks if there is a checkpoint from an earlier failed transfer of the same file, and prepares
+     * to resume from it. Must be called before the transfer, to keep the partial file if this transfer fails.
+     *
+     * @param theFileHash The hash code of the file from the sender.
+     * @param senderCanResume If the sender supports {@link ClientCapability#RESUME}.
+     * @return The offset to resume from, or 0 to start from the beginning.
      */
-    private void cleanupConnections() {
-        is = null;
-        fos = null;
-        sock = null;
-        sSock = null;
+    public long prepareResume(final int theFileHash, final boolean senderCanResume) {
+        fileHash = theFileHash;
+        canResume = senderCanResume;
+        resumeOffset = 0;
+        resumeChecksum = 0;
+
+        if (!canResume) {
+            return 0;
+        }
+
+        final File partFile = getPartFile();
+        final FileCheckpoint checkpoint = FileCheckpoint.load(partFile);
+
+        if (checkpoint != null && checkpoint.canResume(partFile, size, fileHash)) {
+            resumeOffset = checkpoint.getTransferred();
+            resumeChecksum = checkpoint.getChecksum();
+        }
+
+        return resumeOffset;
     }
 
     /**
-     * Closes the connection to the user.
+     * Prepares to receive the file over several connections, if the sender supports it.
+     *
+     * @param senderCanUseStreams If the sender supports {@link ClientCapability#STREAMS}.
+     * @return The highest number of connections the sender can use.
      */
-    private void stopReceiver() {
+    public int prepareStreams(final boolean senderCanUseStreams) {
+        maxStreams = senderCanUseStreams ? MAX_STREAMS : 1;
+
+        return maxStreams;
+    }
+
+    /**
+     * Gets the CRC32 checksum of the bytes already received, when resuming.
+     *
+     * @return The checksum.
+     */
+    public long getResumeChecksum() {
+        return resumeChecksum;
+    }
+
+    /**
+     * Reads where the sender starts sending from, if resuming. The sender checks the checksum
+     * of the partial file against its own file, and starts from the beginning if they don't match.
+     *
+     * @param socketChannel The channel to read from.
+     * @return The offset the sender starts from.
+     * @throws IOException If the start could not be read, or is not a valid offset.
+     */
+    private long readStart(final SocketChannel socketChannel) throws IOException {
+        if (resumeOffset == 0) {
+            return 0;
+        }
+
+        final ByteBuffer buffer = ByteBuffer.allocate(8);
+
+        while (buffer.hasRemaining()) {
+            if (socketChannel.read(buffer) == -1) {
+                throw new IOException("Connection closed before the start of the resumed transfer");
+            }
+        }
+
+        buffer.flip();
+        final long start = buffer.getLong();
+
+        if (start != 0 && start != resumeOffset) {
+            throw new IOException("Invalid start of resumed transfer: " + start);
+        }
+
+        if (start == 0) {
+            LOG.log(Level.WARNING, "Partial file did not match, starting from the beginning: " + getPartFile());
+        }
+
+        return start;
+    }
+
+    /**
+     * Keeps the partial file with a checkpoint after a failed transfer, so it can be resumed later.
+     * The partial file is deleted if the transfer was canceled, nothing was received,
+     * or the sender can't resume transfers.
+     */
+    private void keepOrDeletePartFile() {
+        final File partFile = getPartFile();
+
+        final long completePrefix = getCompletePrefix();
+
+        if (!cancel && canResume && completePrefix > 0 && partFile.exists()) {
+            try {
+                FileCheckpoint.create(partFile, size, fileHash, completePrefix).save(partFile);
+                return;
+            }
+
+            catch (final IOException e) {
+                LOG.log(Level.SEVERE, "Could not save checkpoint for " + partFile, e);
+            }
+        }
+
+        FileCheckpoint.delete(partFile);
+        deletePartFile();
+    }
+
+    /**
+     * Receives the rest of the file over the first connection, and checks the checksum after the file
+     * if the sender supports {@link ClientCapability#FILE_CHECKSUM}.
+     *
+     * @param socketChannel The channel to read the file from.
+     * @param fileChannel The channel to write the file to.
+     * @throws IOException If the connection fails, the file can't be written, or the checksum doesn't match.
+     */
+    private void receiveSingleStream(final SocketChannel socketChannel, final FileChannel fileChannel)
+            throws IOException {
+        final long start = transferred;
+        final BlockChecksum checksum = user.hasCapability(ClientCapability.FILE_CHECKSUM) ? new BlockChecksum() : null;
+
+        fileChannel.position(start);
+        receiveToFile(socketChannel, fileChannel, checksum);
+
+        if (checksum == null || cancel || transferred < size) {
+            return;
+        }
+
+        final ByteBuffer trailer = ByteBuffer.allocate(FileSender.BLOCK_TRAILER_SIZE);
+
+        while (trailer.hasRemaining()) {
+            if (socketChannel.read(trailer) == -1) {
+                transferred = start;
+                throw new IOException("Connection closed before the checksum of " + getPartFile());
+            }
+        }
+
+        trailer.flip();
+
+        if (trailer.getInt() != checksum.getValue()) {
+            // Only the part verified when resuming can be trusted
+            transferred = start;
+            throw new IOException("Checksum of " + getPartFile() + " did not match");
+        }
+    }
+
+    /**
+     * Reads from the socket into a pooled direct buffer, and writes the buffer to the file,
+     * until the whole file has arrived.
+     *
+     * @param socketChannel The channel to read the file from.
+     * @param fileChannel The channel to write the file to.
+     * @param checksum The checksum to update with the bytes received, or <code>null</code> if not needed.
+     * @throws IOException If the connection fails, or the file can't be written.
+     */
+    private void receiveToFile(final SocketChannel socketChannel, final FileChannel fileChannel,
+                               @Nullable final BlockChecksum checksum) throws IOException {
+        final ByteBuffer buffer = BUFFER_POOL.acquire();
+
+        try {
+            int tmpPercent = 0;
+            long nextUpdate = UPDATE_INTERVAL;
+
+            while (!cancel && transferred < size) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), size - transferred));
+
+                final int read = socketChannel.read(buffer);
+
+                if (read == -1) {
+                    break;
+                }
+
+                buffer.flip();
+
+                if (checksum != null) {
+                    checksum.update(buffer);
+                }
+
+                while (buffer.hasRemaining()) {
+                    fileChannel.write(buffer);
+                }
+
+                transferred += read;
+                percent = (int) ((transferred * 100) / size);
+                bCounter.addBytes(read);
+
+                if (percent > tmpPercent || transferred >= nextUpdate) {
+                    tmpPercent = percent;
+                    nextUpdate = transferred + UPDATE_INTERVAL;
+                    listener.transferUpdate();
+                }
+            }
+        }
+
+        finally {
+            BUFFER_POOL.release(buffer);
+        }
+    }
+
+    /**
+     * Receives the file as blocks over the first connection, and over any other connections the sender opens
+     * while the transfer is running. Returns when the whole file has arrived, a connection fails, or every
+     * connection has been closed for {@link #STREAM_LINGER} milliseconds.
+     *
+     * @param fileChannel The channel to write the file to.
+     * @throws IOException If waiting for connections fails.
+     */
+    private void receiveBlocks(final FileChannel fileChannel) throws IOException {
+        final ExecutorService executorService = TaskExecutors.newTaskExecutor(virtualThreads);
+        final List<Future<?>> blockReceivers = new ArrayList<>();
+
+        synchronized (streamLock) {
+            ranges = new ReceivedRanges(transferred);
+            blockStart = transferred;
+            updatedPercent = percent;
+            nextUpdate = transferred + UPDATE_INTERVAL;
+        }
+
+        streamFailed = false;
+        streamsClosing = false;
+
         try {
-            if (is != null) {
-                is.close();
+            blockReceivers.add(startBlockReceiver(executorService, sock, fileChannel));
+            final ServerSocket serverSocket = sSock;
+            serverSocket.setSoTimeout(STREAM_ACCEPT_TIMEOUT);
+            long idleSince = 0;
+
+            while (!cancel && !streamFailed && getCompletePrefix() < size) {
+                try {
+                    final Socket socket = serverSocket.accept();
+
+                    if (blockReceivers.size() < maxStreams
+                            && socket.getInetAddress().equals(sock.getInetAddress())) {
+                        blockReceivers.add(startBlockReceiver(executorService, socket, fileChannel));
+                    }
+
+                    else {
+                        LOG.log(Level.WARNING, "Refused extra connection from " + socket.getInetAddress());
+                        socket.close();
+                    }
+                }
+
+                catch (final SocketTimeoutException e) {
+                    if (getActiveStreams() > 0) {
+                        idleSince = 0;
+                    }
+
+                    else if (idleSince == 0) {
+                        idleSince = System.currentTimeMillis();
+                    }
+
+                    else if (System.currentTimeMillis() - idleSince > STREAM_LINGER) {
+                        break;
+                    }
+                }
+
+                // Closed when the file is complete, or the transfer is canceled
+                catch (final IOException e) {
+                    if (!cancel && getCompletePrefix() < size) {
+                        throw e;
+                    }
+                }
             }
         }
 
-        catch (final IOException e) {
-            LOG.log(Level.SEVERE, e.toString(), e);
+        finally {
+            // Stops the block receivers waiting for more blocks
+            streamsClosing = true;
+            closeStreams();
+
+            for (final Future<?> blockReceiver : blockReceivers) {
+                try {
+                    blockReceiver.get();
+                }
+
+                catch (final InterruptedException | ExecutionException e) {
+                    LOG.log(Level.SEVERE, e.toString(), e);
+                }
+            }
+
+            executorService.shutdown();
+        }
+    }
+
+    /**
+     * Starts receiving blocks from the connection, on a thread from the executor.
+     *
+     * @param executorService The executor to run the block receiver.
+     * @param socket The connection to receive blocks from.
+     * @param fileChannel The channel to write the blocks to.
+     * @return The running block receiver.
+     */
+    private Future<?> startBlockReceiver(final ExecutorService executorService, final Socket socket,
+                                         final FileChannel fileChannel) {
+        synchronized (streamLock) {
+            activeStreams++;
         }
 
+        streamSockets.add(socket);
+
+        return executorService.submit(new BlockReceiver(socket, fileChannel));
+    }
+
+    /**
+     * Registers a block as received, after the checksum matched.
+     *
+     * @param start The offset of the block.
+     * @param end The offset after the block.
+     */
+    private void addBlock(final long start, final long end) {
+        final boolean complete;
+
+        synchronized (streamLock) {
+            ranges.add(start, end);
+            complete = ranges.getCompletePrefix() == size;
+        }
+
+        // Stops waiting for more connections
+        if (complete) {
+            closeServerSocket();
+        }
+    }
+
+    /**
+     * Updates the progress with bytes written to the file from a block.
+     *
+     * @param bytes The number of bytes written.
+     */
+    private void addProgress(final long bytes) {
+        synchronized (streamLock) {
+            transferred += bytes;
+            percent = (int) ((transferred * 100) / size);
+            bCounter.addBytes(bytes);
+
+            if (percent > updatedPercent || transferred >= nextUpdate) {
+                updatedPercent = percent;
+                nextUpdate = transferred + UPDATE_INTERVAL;
+                listener.transferUpdate();
+            }
+        }
+    }
+
+    /**
+     * Gets the number of bytes from the start of the file where every byte has been received.
+     *
+     * @return The size of the complete part of the file.
+     */
+    private long getCompletePrefix() {
+        synchronized (streamLock) {
+            return ranges != null ? ranges.getCompletePrefix() : transferred;
+        }
+    }
+
+    private int getActiveStreams() {
+        synchronized (streamLock) {
+            return activeStreams;
+        }
+    }
+
+    private void closeServerSocket() {
         try {
-            if (fos != null) {
-                fos.flush();
+            if (sSock != null) {
+                sSock.close();
             }
         }
 
         catch (final IOException e) {
             LOG.log(Level.SEVERE, e.toString(), e);
         }
+    }
+
+    /**
+     * Closes the connections receiving blocks.
+     */
+    private void closeStreams() {
+        for (final Socket socket : streamSockets) {
+            try {
+                socket.close();
+            }
+
+            catch (final IOException e) {
+                LOG.log(Level.SEVERE, e.toString(), e);
+            }
+        }
+
+        streamSockets.clear();
+    }
+
+    /**
+     * Renames the complete partial file to the chosen file, replacing any existing file.
+     *
+     * @param partFile The complete partial file.
+     * @throws IOException If the file could not be renamed.
+     */
+    private void moveToFile(final File partFile) throws IOException {
+        final Path source = partFile.toPath();
+        final Path target = file.toPath();
+
+        try {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        catch (final AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private void deletePartFile() {
+        final File partFile = getPartFile();
+
+        if (partFile.exists() && !partFile.delete()) {
+            LOG.log(Level.WARNING, "Could not delete " + partFile);
+        }
+    }
+
+    /**
+     * Opens a server socket backed by a channel, so the file can be received through the channel.
+     *
+     * @param port The port to listen on.
+     * @return The server socket.
+     * @throws IOException If the port could not be used.
+     */
+    private ServerSocket openServerSocket(final int port) throws IOException {
+        final ServerSocketChannel serverSocketChannel = ServerSocketChannel.open();
+
+        try {
+            serverSocketChannel.socket().bind(new InetSocketAddress(port));
+        }
+
+        catch (final IOException e) {
+            serverSocketChannel.close();
+            throw e;
+        }
+
+        return serverSocketChannel.socket();
+    }
+
+    /**
+     * Sets all connections to null.
+     */
+    private void cleanupConnections() {
+        raf = null;
+        sock = null;
+        sSock = null;
+    }
+
+    /**
+     * Closes the connection to the user.
+     */
+    private void stopReceiver() {
+        closeStreams();
 
         try {
-            if (fos != null) {
-                fos.close();
+            if (raf != null) {
+                raf.close();
             }
         }
 
@@ -343,6 +879,15 @@ public class FileReceiver implements FileTransfer {
         return file;
     }
 
+    /**
+     * Gets the partial file the transfer is written to until it's complete.
+     *
+     * @return The partial file.
+     */
+    public File getPartFile() {
+        return new File(file.getPath() + PART_FILE_SUFFIX);
+    }
+
     /**
      * Changes the file to save to.
      *
@@ -508,7 +1053,7 @@ public class FileReceiver implements FileTransfer {
             }
 
             try {
-                if (sSock != null) {
+                if (sSock != null && sock == null) {
                     sSock.close();
                     sSock = null;
                 }
@@ -519,4 +1064,164 @@ public class FileReceiver implements FileTransfer {
             }
         }
     }
+
+    /**
+     * Receives blocks of the file from one connection, and writes them to the file at their offset.
+     */
+    private class BlockReceiver implements Runnable {
+
+        /** The connection to receive blocks from. */
+        private final Socket socket;
+
+        /** The channel to write the blocks to. */
+        private final FileChannel fileChannel;
+
+        /** The checksum of the block being received. */
+        private final BlockChecksum checksum;
+
+        /**
+         * Constructor.
+         *
+         * @param socket The connection to receive blocks from.
+         * @param fileChannel The channel to write the blocks to.
+         */
+        BlockReceiver(final Socket socket, final FileChannel fileChannel) {
+            this.socket = socket;
+            this.fileChannel = fileChannel;
+
+            checksum = new BlockChecksum();
+        }
+
+        /**
+         * Receives blocks until the sender closes the connection between two blocks.
+         * Each block starts with the offset as a long and the length as an int, and ends with the checksum as an int.
+         */
+        @Override
+        public void run() {
+            final ByteBuffer header = ByteBuffer.allocate(FileSender.BLOCK_HEADER_SIZE);
+            final ByteBuffer trailer = ByteBuffer.allocate(FileSender.BLOCK_TRAILER_SIZE);
+            final ByteBuffer buffer = BUFFER_POOL.acquire();
+
+            try {
+                final SocketChannel socketChannel = socket.getChannel();
+
+                while (!cancel && !streamFailed && readHeader(socketChannel, header)) {
+                    final long offset = header.getLong();
+                    final int length = header.getInt();
+
+                    if (offset < blockStart || length <= 0 || offset + length > size) {
+                        throw new IOException("Invalid block at " + offset + " with length " + length);
+                    }
+
+                    if (receiveBlock(socketChannel, buffer, offset, offset + length)) {
+                        readTrailer(socketChannel, trailer);
+                        final int expected = trailer.getInt();
+
+                        if (expected != checksum.getValue()) {
+                            throw new IOException("Checksum of block at " + offset + " did not match");
+                        }
+
+                        addBlock(offset, offset + length);
+                    }
+                }
+            }
+
+            catch (final IOException e) {
+                if (!cancel && !streamsClosing) {
+                    LOG.log(Level.SEVERE, "Failed to receive block: " + e);
+                    streamFailed = true;
+                }
+            }
+
+            finally {
+                BUFFER_POOL.release(buffer);
+
+                try {
+                    socket.close();
+                }
+
+                catch (final IOException e) {
+                    LOG.log(Level.SEVERE, e.toString(), e);
+                }
+
+                synchronized (streamLock) {
+                    activeStreams--;
+                }
+            }
+        }
+
+        /**
+         * Reads the header of the next block.
+         *
+         * @return If a header was read, or false if the connection was closed before the next block.
+         * @throws IOException If the connection was closed in the middle of the header.
+         */
+        private boolean readHeader(final SocketChannel socketChannel, final ByteBuffer header) throws IOException {
+            header.clear();
+
+            while (header.hasRemaining()) {
+                if (socketChannel.read(header) == -1) {
+                    if (header.position() == 0) {
+                        return false;
+                    }
+
+                    throw new IOException("Connection closed in the middle of a block header");
+                }
+            }
+
+            header.flip();
+
+            return true;
+        }
+
+        /**
+         * Reads the checksum after a block.
+         *
+         * @throws IOException If the connection was closed before the whole checksum arrived.
+         */
+        private void readTrailer(final SocketChannel socketChannel, final ByteBuffer trailer) throws IOException {
+            trailer.clear();
+
+            while (trailer.hasRemaining()) {
+                if (socketChannel.read(trailer) == -1) {
+                    throw new IOException("Connection closed before the checksum of a block");
+                }
+            }
+
+            trailer.flip();
+        }
+
+        /**
+         * Receives a block, and writes it to the file while updating the checksum.
+         *
+         * @return If the whole block was received, or false if the transfer was canceled.
+         * @throws IOException If the connection was closed in the middle of the block, or the file can't be written.
+         */
+        private boolean receiveBlock(final SocketChannel socketChannel, final ByteBuffer buffer,
+                                     final long offset, final long end) throws IOException {
+            long position = offset;
+            checksum.reset();
+
+            while (!cancel && position < end) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), end - position));
+
+                if (socketChannel.read(buffer) == -1) {
+                    throw new IOException("Connection closed in the middle of a block");
+                }
+
+                buffer.flip();
+                checksum.update(buffer);
+                final long written = position;
+
+                while (buffer.hasRemaining()) {
+                    position += fileChannel.write(buffer, position);
+                }
+
+                addProgress(position - written);
+            }
+
+            return position == end;
+        }
+    }
 }
@@ -22,18 +22,31 @@
 
 package net.usikkert.kouchat.net;
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import net.usikkert.kouchat.event.FileTransferListener;
 import net.usikkert.kouchat.misc.User;
 import net.usikkert.kouchat.util.ByteCounter;
+import net.usikkert.kouchat.util.TaskExecutors;
 
 import org.jetbrains.annotations.Nullable;
 
@@ -43,6 +56,24 @@ import org.jetbrains.annotations.Nullable;
  * <p>To send a file, the user at the other end needs to
  * open a server socket so this client can connect.</p>
  *
+ * <p>Real files sent without a checksum, to users of older versions, are sent with
+ * {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)},
+ * which lets the operating system copy the bytes straight from the file to the socket.
+ * Progress is reported for every {@link #TRANSFER_CHUNK_SIZE} bytes.
+ * Other files are copied through a small buffer.</p>
+ *
+ * <p>If the user asks for the file over several connections, the file is sent as blocks of {@link #BLOCK_SIZE}
+ * bytes, each with the offset and length in front, and a {@link BlockChecksum} after, so the user can check
+ * that the block arrived as sent. Each chunk of a block is read into a direct buffer, added to the checksum,
+ * and sent from the same buffer, so the checksum is always of the bytes that were sent. Transfers with checksums
+ * are therefore not zero-copy. Real files start
+ * with one connection, and get another connection after each measurement of the speed as long as the
+ * {@link StreamScaler} finds that it helps. Each connection has its own thread taking the next block to send.</p>
+ *
+ * <p>If the file is sent over a single connection, and the user supports {@link ClientCapability#FILE_CHECKSUM},
+ * the checksum of the bytes sent follows the file, so the user can check the whole file the same way.
+ * The file is then copied through a direct buffer like the blocks.</p>
+ *
  * @author Christian Ihle
  */
 public class FileSender implements FileTransfer {
@@ -50,6 +81,21 @@ public class FileSender implements FileTransfer {
     /** The logger. */
     private static final Logger LOG = Logger.getLogger(FileSender.class.getName());
 
+    /** The number of bytes to send from a real file before reporting progress. */
+    static final long TRANSFER_CHUNK_SIZE = 1024 * 1024;
+
+    /** The size of the blocks when sending over several connections. */
+    static final int BLOCK_SIZE = 4 * 1024 * 1024;
+
+    /** The size of the header in front of each block, with the offset as a long and the length as an int. */
+    static final int BLOCK_HEADER_SIZE = 12;
+
+    /** The size of the trailer after each block, with the checksum of the block as an int. */
+    static final int BLOCK_TRAILER_SIZE = 4;
+
+    /** Milliseconds between each measurement of the speed, when deciding on the number of connections. */
+    static final long STREAM_PROBE_INTERVAL = 1000;
+
     /** The user to send a file to. */
     private final User user;
 
@@ -59,20 +105,23 @@ public class FileSender implements FileTransfer {
     /** The unique ID of this file transfer. */
     private final int id;
 
+    /** If the blocks should be sent from virtual threads, when supported. */
+    private final boolean virtualThreads;
+
     /** Keeps count of the transfer speed. */
     private final ByteCounter bCounter;
 
     /** Percent of the file transferred. */
-    private int percent;
+    private volatile int percent;
 
     /** Number of bytes transferred. */
-    private long transferred;
+    private volatile long transferred;
 
     /** If the file was successfully sent. */
     private boolean sent;
 
     /** If the file transfer is canceled. */
-    private boolean cancel;
+    private volatile boolean cancel;
 
     /** If still waiting for the file transfer to begin. */
     private boolean waiting;
@@ -92,6 +141,21 @@ public class FileSender implements FileTransfer {
     @Nullable
     private Socket sock;
 
+    /** Guards the progress and the next block when sending blocks over several connections. */
+    private final Object streamLock = new Object();
+
+    /** The connections opened in addition to the first connection. */
+    private final List<Socket> extraSockets = new CopyOnWriteArrayList<>();
+
+    /** The offset of the next block to send. */
+    private long nextBlock;
+
+    /** The number of threads still sending blocks. */
+    private int activeStreams;
+
+    /** If a connection failed while sending blocks. */
+    private volatile boolean streamFailed;
+
     /**
      * Constructor. Creates a new file sender.
      *
@@ -100,9 +164,22 @@ public class FileSender implements FileTransfer {
      * @param id The unique ID of this file transfer.
      */
     public FileSender(final User user, final FileToSend file, final int id) {
+        this(user, file, id, false);
+    }
+
+    /**
+     * Constructor. Creates a new file sender.
+     *
+     * @param user The user to send the file to.
+     * @param file The file to send.
+     * @param id The unique ID of this file transfer.
+     * @param virtualThreads If the blocks should be sent from virtual threads, when supported.
+     */
+    public FileSender(final User user, final FileToSend file, final int id, final boolean virtualThreads) {
         this.user = user;
         this.file = file;
         this.id = id;
+        this.virtualThreads = virtualThreads;
 
         bCounter = new ByteCounter();
         waiting = true;
@@ -116,6 +193,41 @@ public class FileSender implements FileTransfer {
      * @return If the file transfer was successful.
      */
     public boolean transfer(final int port) {
+        return transfer(port, 0, 0);
+    }
+
+    /**
+     * Connects to the user at the specified port and transfers the file
+     * to that user, resuming from an offset if the user already has the start of the file.
+     *
+     * <p>When resuming, the checksum of the start of the file is compared with the checksum from the user.
+     * The offset to send from is sent first, so the user knows if the file is resumed, or sent from
+     * the beginning because the checksums didn't match.</p>
+     *
+     * @param port The port to use when connecting to the user.
+     * @param resumeOffset The number of bytes the user already has, or 0 to send the whole file.
+     * @param resumeChecksum The CRC32 checksum of the bytes the user already has.
+     * @return If the file transfer was successful.
+     */
+    public boolean transfer(final int port, final long resumeOffset, final long resumeChecksum) {
+        return transfer(port, resumeOffset, resumeChecksum, 1);
+    }
+
+    /**
+     * Connects to the user at the specified port and transfers the file to that user, resuming from an offset
+     * if the user already has the start of the file, and using up to the given number of connections.
+     *
+     * <p>With more than one connection allowed, the file is sent as blocks, even if only one connection
+     * ends up being used.</p>
+     *
+     * @param port The port to use when connecting to the user.
+     * @param resumeOffset The number of bytes the user already has, or 0 to send the whole file.
+     * @param resumeChecksum The CRC32 checksum of the bytes the user already has.
+     * @param maxStreams The highest number of connections the user accepts.
+     * @return If the file transfer was successful.
+     */
+    public boolean transfer(final int port, final long resumeOffset, final long resumeChecksum,
+                            final int maxStreams) {
         if (!cancel) {
             listener.statusConnecting();
 
@@ -123,60 +235,31 @@ public class FileSender implements FileTransfer {
             sent = false;
 
             try {
-                int counter = 0;
-
-                while (sock == null && counter < 10) {
-                    counter++;
+                sock = connect(port, 10);
 
-                    try {
-                        sock = new Socket(InetAddress.getByName(user.getIpAddress()), port);
-                    }
+                if (sock != null && !cancel) {
+                    listener.statusTransferring();
+                    transferred = 0;
 
-                    catch (final UnknownHostException e) {
-                        LOG.log(Level.SEVERE, e.toString(), e);
+                    if (resumeOffset > 0) {
+                        transferred = findStart(resumeOffset, resumeChecksum);
+                        writeStart(transferred);
                     }
 
-                    catch (final IOException e) {
-                        LOG.log(Level.SEVERE, e.toString(), e);
-                    }
+                    percent = (int) (file.length() > 0 ? (transferred * 100) / file.length() : 0);
+                    bCounter.prepare();
 
-                    try {
-                        Thread.sleep(100);
-                    }
+                    final File realFile = file.getFile();
 
-                    catch (final InterruptedException e) {
-                        LOG.log(Level.SEVERE, e.toString(), e);
+                    if (maxStreams > 1) {
+                        transferBlocks(port, realFile, maxStreams);
                     }
-                }
-
-                if (sock != null && !cancel) {
-                    listener.statusTransferring();
-                    is = file.getInputStream();
-                    os = sock.getOutputStream();
-
-                    final byte[] b = new byte[1024];
-                    transferred = 0;
-                    percent = 0;
-                    int tmpTransferred = 0;
-                    int tmpPercent = 0;
-                    int transCounter = 0;
-                    bCounter.prepare();
 
-                    while (!cancel && (tmpTransferred = is.read(b)) != -1) {
-                        os.write(b, 0, tmpTransferred);
-                        transferred += tmpTransferred;
-                        percent = (int) ((transferred * 100) / file.length());
-                        bCounter.addBytes(tmpTransferred);
-                        transCounter++;
-
-                        if (percent > tmpPercent || transCounter >= 250) {
-                            transCounter = 0;
-                            tmpPercent = percent;
-                            listener.transferUpdate();
-                        }
+                    else {
+                        transferSingleStream(realFile);
                     }
 
-                    if (!cancel && transferred == file.length()) {
+                    if (!cancel && !streamFailed && transferred == file.length()) {
                         sent = true;
                         listener.statusCompleted();
                     }
@@ -210,10 +293,454 @@ public class FileSender implements FileTransfer {
         return sent;
     }
 
+    /**
+     * Connects to the user, trying again after a short pause if it fails.
+     *
+     * @param port The port to connect to.
+     * @param attempts The number of times to try.
+     * @return The connection, or <code>null</code> if every attempt failed.
+     */
+    @Nullable
+    private Socket connect(final int port, final int attempts) {
+        Socket socket = null;
+        int counter = 0;
+
+        while (socket == null && counter < attempts) {
+            counter++;
+
+            try {
+                final InetAddress address = InetAddress.getByName(user.getIpAddress());
+                socket = SocketChannel.open(new InetSocketAddress(address, port)).socket();
+            }
+
+            catch (final UnknownHostException e) {
+                LOG.log(Level.SEVERE, e.toString(), e);
+            }
+
+            catch (final IOException e) {
+                LOG.log(Level.SEVERE, e.toString(), e);
+            }
+
+            try {
+                Thread.sleep(100);
+            }
+
+            catch (final InterruptedException e) {
+                LOG.log(Level.SEVERE, e.toString(), e);
+            }
+        }
+
+        return socket;
+    }
+
+    /**
+     * Sends the file as blocks. Other files than real files are sent one block after the other over the first
+     * connection.
+     * Real files are sent over the first connection, and more connections are opened while the
+     * {@link StreamScaler} finds that they make the transfer faster.
+     *
+     * @param port The port to use when opening more connections.
+     * @param realFile The file to send, or <code>null</code> if not a real file.
+     * @param maxStreams The highest number of connections to use.
+     * @throws IOException If the file can't be read, or the first connection fails.
+     */
+    private void transferBlocks(final int port, @Nullable final File realFile, final int maxStreams)
+            throws IOException {
+        streamFailed = false;
+
+        if (realFile == null) {
+            final BlockChecksum checksum = new BlockChecksum();
+
+            while (!cancel && transferred < file.length()) {
+                final long end = Math.min(transferred + BLOCK_SIZE, file.length());
+
+                checksum.reset();
+                writeBlockHeader(sock.getChannel(), transferred, end - transferred);
+                transferFromStream(checksum, end);
+
+                // The file got shorter after the transfer was offered
+                if (cancel || transferred < end) {
+                    return;
+                }
+
+                writeBlockTrailer(sock.getChannel(), checksum.getValue());
+            }
+
+            return;
+        }
+
+        if (is != null) {
+            is.close();
+        }
+
+        final FileInputStream fileInputStream = new FileInputStream(realFile);
+        is = fileInputStream;
+
+        final FileChannel fileChannel = fileInputStream.getChannel();
+        final ExecutorService executorService = TaskExecutors.newTaskExecutor(virtualThreads);
+        final List<Future<?>> blockSenders = new ArrayList<>();
+        final StreamScaler scaler = new StreamScaler(maxStreams);
+
+        synchronized (streamLock) {
+            nextBlock = transferred;
+        }
+
+        try {
+            blockSenders.add(startBlockSender(executorService, sock, fileChannel));
+
+            long measureStart = System.currentTimeMillis();
+            long measured = transferred;
+
+            while (!scaler.isDone() && !cancel && !streamFailed && getBlocksLeft() >= 2) {
+                waitForBlockSenders(STREAM_PROBE_INTERVAL);
+                final long elapsed = System.currentTimeMillis() - measureStart;
+
+                if (elapsed < STREAM_PROBE_INTERVAL) {
+                    continue;
+                }
+
+                final long speed = (transferred - measured) * 1000 / elapsed;
+                measureStart = System.currentTimeMillis();
+                measured = transferred;
+
+                if (scaler.update(speed) > blockSenders.size() && getBlocksLeft() >= 2) {
+                    final Socket socket = connect(port, 1);
+
+                    if (socket == null) {
+                        break;
+                    }
+
+                    extraSockets.add(socket);
+                    blockSenders.add(startBlockSender(executorService, socket, fileChannel));
+                }
+            }
+
+            for (final Future<?> blockSender : blockSenders) {
+                try {
+                    blockSender.get();
+                }
+
+                catch (final InterruptedException | ExecutionException e) {
+                    LOG.log(Level.SEVERE, e.toString(), e);
+                }
+            }
+        }
+
+        finally {
+            executorService.shutdown();
+        }
+    }
+
+    /**
+     * Starts sending blocks over the connection, on a thread from the executor.
+     *
+     * @param executorService The executor to run the block sender.
+     * @param socket The connection to send blocks over.
+     * @param fileChannel The channel to read the blocks from.
+     * @return The running block sender.
+     */
+    private Future<?> startBlockSender(final ExecutorService executorService, final Socket socket,
+                                       final FileChannel fileChannel) {
+        synchronized (streamLock) {
+            activeStreams++;
+        }
+
+        return executorService.submit(new BlockSender(socket, fileChannel));
+    }
+
+    /**
+     * Waits until every thread sending blocks is done, or the timeout runs out.
+     *
+     * @param timeout Milliseconds to wait.
+     */
+    private void waitForBlockSenders(final long timeout) {
+        synchronized (streamLock) {
+            if (activeStreams > 0) {
+                try {
+                    streamLock.wait(timeout);
+                }
+
+                catch (final InterruptedException e) {
+                    LOG.log(Level.SEVERE, e.toString(), e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets the next block to send, and moves on to the block after.
+     *
+     * @return The offset and length of the block, or <code>null</code> if there are no more blocks.
+     */
+    @Nullable
+    private long[] takeBlock() {
+        synchronized (streamLock) {
+            final long length = Math.min(BLOCK_SIZE, file.length() - nextBlock);
+
+            if (length <= 0) {
+                return null;
+            }
+
+            final long[] block = {nextBlock, length};
+            nextBlock += length;
+
+            return block;
+        }
+    }
+
+    private long getBlocksLeft() {
+        synchronized (streamLock) {
+            return (file.length() - nextBlock) / BLOCK_SIZE;
+        }
+    }
+
+    /**
+     * Registers bytes sent from a block, and updates the progress.
+     *
+     * @param bytes The number of bytes sent.
+     */
+    private void addTransferred(final long bytes) {
+        synchronized (streamLock) {
+            transferred += bytes;
+            percent = (int) ((transferred * 100) / file.length());
+            bCounter.addBytes(bytes);
+            listener.transferUpdate();
+        }
+    }
+
+    /**
+     * Sends the offset and length of a block, in front of the block.
+     *
+     * @param socketChannel The connection to send the block over.
+     * @param offset The offset of the block in the file.
+     * @param length The number of bytes in the block.
+     * @throws IOException If the connection fails.
+     */
+    private void writeBlockHeader(final SocketChannel socketChannel, final long offset, final long length)
+            throws IOException {
+        final ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER_SIZE);
+        header.putLong(offset);
+        header.putInt((int) length);
+        header.flip();
+
+        while (header.hasRemaining()) {
+            socketChannel.write(header);
+        }
+    }
+
+    /**
+     * Sends the checksum of a block, after the block. Also used after a file sent over a single connection.
+     *
+     * @param socketChannel The connection the block was sent over.
+     * @param checksum The checksum of the block.
+     * @throws IOException If the connection fails.
+     */
+    private void writeBlockTrailer(final SocketChannel socketChannel, final int checksum) throws IOException {
+        final ByteBuffer trailer = ByteBuffer.allocate(BLOCK_TRAILER_SIZE);
+        trailer.putInt(checksum);
+        trailer.flip();
+
+        while (trailer.hasRemaining()) {
+            socketChannel.write(trailer);
+        }
+    }
+
+    /**
+     * Sends the rest of the file over the first connection, followed by the checksum of the bytes sent
+     * if the user supports {@link ClientCapability#FILE_CHECKSUM}.
+     *
+     * @param realFile The file to send, or <code>null</code> if not a real file.
+     * @throws IOException If the file can't be read, or the connection fails.
+     */
+    private void transferSingleStream(@Nullable final File realFile) throws IOException {
+        final boolean withChecksum = user.hasCapability(ClientCapability.FILE_CHECKSUM);
+
+        if (realFile != null) {
+            transferFromFile(realFile, withChecksum);
+            return;
+        }
+
+        final BlockChecksum checksum = withChecksum ? new BlockChecksum() : null;
+        transferFromStream(checksum, file.length());
+
+        if (checksum != null && !cancel && transferred == file.length()) {
+            writeBlockTrailer(sock.getChannel(), checksum.getValue());
+        }
+    }
+
+    /**
+     * Sends the file from the file channel straight to the socket channel, without copying it
+     * through the application. With a checksum, the file is copied through a direct buffer instead,
+     * so the checksum is of the bytes that were sent.
+     *
+     * @param realFile The file to send.
+     * @param withChecksum If the checksum of the bytes sent should be sent after the file.
+     * @throws IOException If the file can't be read, or the connection fails.
+     */
+    private void transferFromFile(final File realFile, final boolean withChecksum) throws IOException {
+        if (is != null) {
+            is.close();
+        }
+
+        final FileInputStream fileInputStream = new FileInputStream(realFile);
+        is = fileInputStream;
+
+        final FileChannel fileChannel = fileInputStream.getChannel();
+        final SocketChannel socketChannel = sock.getChannel();
+        final long length = file.length();
+        final BlockChecksum checksum = withChecksum ? new BlockChecksum() : null;
+        final ByteBuffer chunk = withChecksum ? ByteBuffer.allocateDirect((int) TRANSFER_CHUNK_SIZE) : null;
+
+        while (!cancel && transferred < length) {
+            final long sentBytes;
+
+            if (checksum != null) {
+                sentBytes = sendChunk(fileChannel, transferred, length, chunk, checksum, socketChannel);
+            }
+
+            else {
+                final long count = Math.min(TRANSFER_CHUNK_SIZE, length - transferred);
+                sentBytes = fileChannel.transferTo(transferred, count, socketChannel);
+            }
+
+            // The file got shorter after the transfer was offered
+            if (sentBytes <= 0) {
+                return;
+            }
+
+            transferred += sentBytes;
+            percent = (int) ((transferred * 100) / length);
+            bCounter.addBytes(sentBytes);
+            listener.transferUpdate();
+        }
+
+        if (checksum != null && !cancel) {
+            writeBlockTrailer(socketChannel, checksum.getValue());
+        }
+    }
+
+    /**
+     * Reads the next chunk of the file into the buffer, adds it to the checksum, and sends the same buffer,
+     * so the checksum is always of the bytes that were sent.
+     *
+     * @param fileChannel The channel to read the chunk from.
+     * @param position The offset of the chunk in the file.
+     * @param end The offset to stop at.
+     * @param chunk The buffer to read the chunk into.
+     * @param checksum The checksum to update with the chunk.
+     * @param socketChannel The connection to send the chunk over.
+     * @return The number of bytes sent, or 0 if the file ended before the end offset.
+     * @throws IOException If the file can't be read, or the connection fails.
+     */
+    private static int sendChunk(final FileChannel fileChannel, final long position, final long end,
+                                 final ByteBuffer chunk, final BlockChecksum checksum,
+                                 final SocketChannel socketChannel) throws IOException {
+        chunk.clear();
+        chunk.limit((int) Math.min(chunk.capacity(), end - position));
+
+        final int read = fileChannel.read(chunk, position);
+
+        if (read <= 0) {
+            return 0;
+        }
+
+        chunk.flip();
+        checksum.update(chunk);
+
+        while (chunk.hasRemaining()) {
+            socketChannel.write(chunk);
+        }
+
+        return read;
+    }
+
+    /**
+     * Finds the offset to start sending from, by comparing the checksum of the start of the file with the
+     * checksum from the user. The input stream is left open at the offset, ready to send the rest.
+     *
+     * @param resumeOffset The number of bytes the user already has.
+     * @param resumeChecksum The CRC32 checksum of the bytes the user already has.
+     * @return The offset to start from, or 0 if the start of the file doesn't match.
+     * @throws IOException If the file can't be read.
+     */
+    private long findStart(final long resumeOffset, final long resumeChecksum) throws IOException {
+        if (resumeOffset >= file.length()) {
+            return 0;
+        }
+
+        is = file.getInputStream();
+
+        if (FileCheckpoint.checksum(is, resumeOffset) == resumeChecksum) {
+            return resumeOffset;
+        }
+
+        LOG.log(Level.WARNING, "Start of " + file.getName() + " did not match, sending from the beginning");
+        is.close();
+        is = null;
+
+        return 0;
+    }
+
+    /**
+     * Sends the offset the file is sent from, before the file.
+     *
+     * @param start The offset to send from.
+     * @throws IOException If the connection fails.
+     */
+    private void writeStart(final long start) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(8);
+        buffer.putLong(start);
+        buffer.flip();
+
+        while (buffer.hasRemaining()) {
+            sock.getChannel().write(buffer);
+        }
+    }
+
+    /**
+     * Copies the file from the input stream to the socket, until the end offset.
+     *
+     * @param checksum The checksum to update with the bytes sent, or <code>null</code> if not needed.
+     * @param end The offset to stop at.
+     * @throws IOException If the file can't be read, or the connection fails.
+     */
+    private void transferFromStream(@Nullable final BlockChecksum checksum, final long end) throws IOException {
+        if (is == null) {
+            is = file.getInputStream();
+        }
+
+        os = sock.getOutputStream();
+
+        final byte[] b = new byte[1024];
+        int tmpTransferred = 0;
+        int tmpPercent = 0;
+        int transCounter = 0;
+
+        while (!cancel && transferred < end
+                && (tmpTransferred = is.read(b, 0, (int) Math.min(b.length, end - transferred))) != -1) {
+            if (checksum != null) {
+                checksum.update(b, 0, tmpTransferred);
+            }
+
+            os.write(b, 0, tmpTransferred);
+            transferred += tmpTransferred;
+            percent = (int) ((transferred * 100) / file.length());
+            bCounter.addBytes(tmpTransferred);
+            transCounter++;
+
+            if (percent > tmpPercent || transCounter >= 250) {
+                transCounter = 0;
+                tmpPercent = percent;
+                listener.transferUpdate();
+            }
+        }
+    }
+
     /**
      * Sets all connections to null.
      */
     private void cleanupConnections() {
+        extraSockets.clear();
         is = null;
         os = null;
         sock = null;
@@ -223,6 +750,16 @@ public class FileSender implements FileTransfer {
      * Closes the connection to the user.
      */
     private void stopSender() {
+        for (final Socket socket : extraSockets) {
+            try {
+                socket.close();
+            }
+
+            catch (final IOException e) {
+                LOG.log(Level.SEVERE, e.toString(), e);
+            }
+        }
+
         try {
             if (is != null) {
                 is.close();
@@ -403,4 +940,96 @@ public class FileSender implements FileTransfer {
         this.listener = listener;
         listener.statusWaiting();
     }
+
+    /**
+     * Sends blocks of the file over one connection, until there are no more blocks to send.
+     */
+    private class BlockSender implements Runnable {
+
+        /** The connection to send blocks over. */
+        private final Socket socket;
+
+        /** The channel to read the blocks from. */
+        private final FileChannel fileChannel;
+
+        /** The checksum of the block being sent. */
+        private final BlockChecksum checksum;
+
+        /** The chunk of the block being sent. */
+        private final ByteBuffer chunk;
+
+        /**
+         * Constructor.
+         *
+         * @param socket The connection to send blocks over.
+         * @param fileChannel The channel to read the blocks from.
+         */
+        BlockSender(final Socket socket, final FileChannel fileChannel) {
+            this.socket = socket;
+            this.fileChannel = fileChannel;
+
+            checksum = new BlockChecksum();
+            chunk = ByteBuffer.allocateDirect((int) TRANSFER_CHUNK_SIZE);
+        }
+
+        /**
+         * Sends blocks until there are no more, or a connection fails.
+         */
+        @Override
+        public void run() {
+            try {
+                final SocketChannel socketChannel = socket.getChannel();
+                long[] block = takeBlock();
+
+                while (block != null && !cancel && !streamFailed) {
+                    writeBlockHeader(socketChannel, block[0], block[1]);
+                    sendBlock(socketChannel, block[0], block[0] + block[1]);
+                    block = takeBlock();
+                }
+            }
+
+            catch (final IOException e) {
+                if (!cancel) {
+                    LOG.log(Level.SEVERE, "Failed to send block: " + e);
+                    streamFailed = true;
+                }
+            }
+
+            finally {
+                synchronized (streamLock) {
+                    activeStreams--;
+                    streamLock.notifyAll();
+                }
+            }
+        }
+
+        /**
+         * Sends a block one chunk at a time, with the checksum after.
+         *
+         * @param socketChannel The connection to send the block over.
+         * @param offset The offset of the block.
+         * @param end The offset after the block.
+         * @throws IOException If the file can't be read, or the connection fails.
+         */
+        private void sendBlock(final SocketChannel socketChannel, final long offset, final long end)
+                throws IOException {
+            long position = offset;
+            checksum.reset();
+
+            while (!cancel && !streamFailed && position < end) {
+                final int sentBytes = sendChunk(fileChannel, position, end, chunk, checksum, socketChannel);
+
+                if (sentBytes <= 0) {
+                    throw new IOException("The file got shorter after the transfer was offered");
+                }
+
+                position += sentBytes;
+                addTransferred(sentBytes);
+            }
+
+            if (position == end) {
+                writeBlockTrailer(socketChannel, checksum.getValue());
+            }
+        }
+    }
 }
@@ -29,9 +29,14 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.InputStream;
 
+import org.jetbrains.annotations.Nullable;
+
 /**
  * Abstraction around a file to send to another user.
  *
+ * <p>A file to send can be a real file, or anything that can be opened as an input stream.
+ * Real files can be sent without copying the bytes through the application.</p>
+ *
  * @author Christian Ihle
  */
 public class FileToSend {
@@ -40,12 +45,16 @@ public class FileToSend {
     private final String name;
     private final long length;
 
+    @Nullable
+    private final File file;
+
     public FileToSend(final File file) {
         Validate.notNull(file, "File to send can not be null");
 
         this.inputStreamOpener = new FileInputStreamOpener(file);
         this.name = file.getName();
         this.length = file.length();
+        this.file = file;
     }
 
     public FileToSend(final InputStreamOpener inputStreamOpener,
@@ -56,6 +65,7 @@ public class FileToSend {
         this.inputStreamOpener = inputStreamOpener;
         this.name = name;
         this.length = length;
+        this.file = null;
     }
 
     public long length() {
@@ -70,6 +80,16 @@ public class FileToSend {
         return inputStreamOpener.open();
     }
 
+    /**
+     * Gets the real file to send, if there is one.
+     *
+     * @return The file, or <code>null</code> if the file to send is only available as an input stream.
+     */
+    @Nullable
+    public File getFile() {
+        return file;
+    }
+
     @Override
     public boolean equals(final Object o) {
         if (this == o) {
@@ -0,0 +1,358 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.usikkert.kouchat.event.ReceiverListener;
+import net.usikkert.kouchat.util.Validate;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * A bounded queue between a receiver and the listener parsing the messages.
+ *
+ * <p>Without the queue the receiver thread parses and handles each message before it reads the next one
+ * from the socket, so a slow listener makes the receiver fall behind and the operating system drops
+ * datagrams at random. With the queue the receiver only copies the message into a ring buffer, and a
+ * separate thread delivers the messages to the listener in the same order as they arrived.</p>
+ *
+ * <p>The ring buffer has a single producer (the receiver) and a single consumer (the thread of this queue),
+ * so neither side needs a lock. The receivers may overlap for a short moment when the network is restarted,
+ * so the producer side is guarded by a lock that is never contended otherwise.</p>
+ *
+ * <p>When the queue is filling up, the messages that are only about status ({@link NetworkMessageType#IDLE},
+ * {@link NetworkMessageType#WRITING} and {@link NetworkMessageType#STOPPEDWRITING}) are dropped first,
+ * since a newer one will arrive soon anyway. What happens to the other messages when the queue is full
+ * is decided by the {@link OverflowPolicy}.</p>
+ *
+ * @author Christian Ihle
+ */
+public class InboundMessageQueue implements ReceiverListener {
+
+    /** The logger. */
+    private static final Logger LOG = Logger.getLogger(InboundMessageQueue.class.getName());
+
+    /** The default number of messages the queue can hold. */
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    /** How long a blocked producer waits before checking for free space again. */
+    private static final long BLOCK_WAIT_NANOS = 100000L;
+
+    /** The status messages to drop before the queue is full. */
+    private static final String[] LOW_PRIORITY_TYPES = {
+            NetworkMessageType.IDLE + "#",
+            NetworkMessageType.WRITING + "#",
+            NetworkMessageType.STOPPEDWRITING + "#"
+    };
+
+    /**
+     * What to do with a message that arrives when the queue is full.
+     */
+    public enum OverflowPolicy {
+
+        /** Drops the message that arrived. */
+        DROP,
+
+        /** Lets the receiver wait until there is room, so the socket buffer fills up instead. */
+        BLOCK;
+
+        /**
+         * Finds the policy with the given name, ignoring case.
+         *
+         * @param name The name of the policy.
+         * @return The policy, or <code>null</code> if no policy has that name.
+         */
+        @Nullable
+        public static OverflowPolicy fromName(@Nullable final String name) {
+            if (name == null) {
+                return null;
+            }
+
+            for (final OverflowPolicy policy : values()) {
+                if (policy.name().equals(name.toUpperCase(Locale.ENGLISH))) {
+                    return policy;
+                }
+            }
+
+            return null;
+        }
+    }
+
+    private final ReceiverListener listener;
+    private final OverflowPolicy overflowPolicy;
+    private final String name;
+
+    private final AtomicReferenceArray<String> messages;
+    private final AtomicReferenceArray<String> ipAddresses;
+    private final int capacity;
+    private final int mask;
+
+    /** Status messages are dropped when the queue holds this many messages. */
+    private final int highWaterMark;
+
+    /** The index of the next message to deliver. Only written by the consumer. */
+    private final AtomicLong head;
+
+    /** The index of the next free slot. Only written by the producer. */
+    private final AtomicLong tail;
+
+    private final AtomicLong droppedCount;
+    private final AtomicLong droppedLowPriorityCount;
+
+    private final Object producerLock;
+
+    @Nullable
+    private volatile Thread thread;
+
+    /** If the consumer is parked, waiting for the next message. */
+    private volatile boolean consumerWaiting;
+
+    /** If the queue should keep delivering messages. */
+    private volatile boolean running;
+
+    /**
+     * Constructor.
+     *
+     * @param listener The listener to deliver the messages to.
+     * @param overflowPolicy What to do with messages when the queue is full.
+     * @param capacity The number of messages the queue can hold. Rounded up to the nearest power of two.
+     * @param name The name of the queue, used for the name of the thread.
+     */
+    public InboundMessageQueue(final ReceiverListener listener, final OverflowPolicy overflowPolicy,
+                               final int capacity, final String name) {
+        Validate.notNull(listener, "Listener can not be null");
+        Validate.notNull(overflowPolicy, "Overflow policy can not be null");
+        Validate.isTrue(capacity > 1, "Capacity must be larger than 1");
+        Validate.notEmpty(name, "Name can not be empty");
+
+        this.listener = listener;
+        this.overflowPolicy = overflowPolicy;
+        this.name = name;
+
+        this.capacity = Integer.highestOneBit(capacity - 1) << 1;
+        this.mask = this.capacity - 1;
+        this.highWaterMark = this.capacity - this.capacity / 4;
+
+        messages = new AtomicReferenceArray<>(this.capacity);
+        ipAddresses = new AtomicReferenceArray<>(this.capacity);
+        head = new AtomicLong();
+        tail = new AtomicLong();
+        droppedCount = new AtomicLong();
+        droppedLowPriorityCount = new AtomicLong();
+        producerLock = new Object();
+    }
+
+    /**
+     * Starts the thread delivering messages to the listener, if not already started.
+     */
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+
+        LOG.log(Level.FINE, "Starting " + name + " with capacity " + capacity + " and policy " + overflowPolicy);
+
+        running = true;
+
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                deliverMessages();
+            }
+        }, "InboundMessageQueue-" + name);
+
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops the thread delivering messages. Messages still in the queue are delivered after a restart.
+     */
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+
+        LOG.log(Level.FINE, "Stopping " + name);
+
+        running = false;
+
+        if (thread != null) {
+            LockSupport.unpark(thread);
+            thread = null;
+        }
+    }
+
+    /**
+     * Checks if the queue is started.
+     *
+     * @return If the queue is running.
+     */
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Adds the message to the queue, or drops it if there is no room.
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public void messageArrived(final String message, final String ipAddress) {
+        synchronized (producerLock) {
+            offer(message, ipAddress);
+        }
+    }
+
+    private void offer(final String message, final String ipAddress) {
+        final long currentTail = tail.get();
+
+        if (currentTail - head.get() >= highWaterMark && isLowPriority(message)) {
+            droppedLowPriorityCount.incrementAndGet();
+            droppedCount.incrementAndGet();
+            return;
+        }
+
+        while (currentTail - head.get() >= capacity) {
+            if (overflowPolicy == OverflowPolicy.DROP || !running) {
+                droppedCount.incrementAndGet();
+                LOG.log(Level.FINE, "Queue " + name + " is full, dropping message: " + message);
+                return;
+            }
+
+            LockSupport.parkNanos(this, BLOCK_WAIT_NANOS);
+        }
+
+        final int index = (int) currentTail & mask;
+        messages.lazySet(index, message);
+        ipAddresses.lazySet(index, ipAddress);
+
+        // A volatile write, so the consumer can't miss the message after deciding to park
+        tail.set(currentTail + 1);
+
+        if (consumerWaiting) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    private void deliverMessages() {
+        final Thread currentThread = Thread.currentThread();
+
+        while (running && thread == currentThread) {
+            final long currentHead = head.get();
+
+            if (currentHead == tail.get()) {
+                consumerWaiting = true;
+
+                if (currentHead == tail.get() && running) {
+                    LockSupport.park(this);
+                }
+
+                consumerWaiting = false;
+                continue;
+            }
+
+            final int index = (int) currentHead & mask;
+            final String message = messages.get(index);
+            final String ipAddress = ipAddresses.get(index);
+            messages.lazySet(index, null);
+            ipAddresses.lazySet(index, null);
+            head.lazySet(currentHead + 1);
+
+            try {
+                listener.messageArrived(message, ipAddress);
+            }
+
+            catch (final RuntimeException e) {
+                LOG.log(Level.SEVERE, "Failed to deliver message: " + message, e);
+            }
+        }
+    }
+
+    private boolean isLowPriority(final String message) {
+        final int typeStart = message.indexOf('!') + 1;
+
+        if (typeStart == 0) {
+            return false;
+        }
+
+        for (final String type : LOW_PRIORITY_TYPES) {
+            if (message.regionMatches(typeStart, type, 0, type.length())) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Gets the number of messages waiting in the queue.
+     *
+     * @return The queue depth.
+     */
+    public int getDepth() {
+        return (int) (tail.get() - head.get());
+    }
+
+    /**
+     * Gets the number of messages the queue can hold.
+     *
+     * @return The capacity.
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Gets the policy used when the queue is full.
+     *
+     * @return The overflow policy.
+     */
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * Gets the number of messages dropped in total, including status messages.
+     *
+     * @return The number of dropped messages.
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * Gets the number of status messages dropped because the queue was filling up.
+     *
+     * @return The number of dropped status messages.
+     */
+    public long getDroppedLowPriorityCount() {
+        return droppedLowPriorityCount.get();
+    }
+}
@@ -0,0 +1,158 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Round trip time and loss of one path to a user, measured with probes that the user answers.
+ *
+ * <p>The round trip time is smoothed like the retransmission timer of tcp in RFC 6298, with a gain of 1/8
+ * for the average and 1/4 for the variation. A probe counts as lost if the next probe is sent before it's
+ * answered, and the loss is smoothed with a gain of 1/8 as well. The path is dead after
+ * {@link #DEAD_AFTER_MISSES} lost probes in a row, and comes alive again with the next answer.</p>
+ *
+ * @author Christian Ihle
+ */
+public class LinkQuality {
+
+    /** Milliseconds between each probe. */
+    public static final long PROBE_INTERVAL = 2000;
+
+    /** Number of probes in a row without an answer before the path is dead. */
+    public static final int DEAD_AFTER_MISSES = 3;
+
+    /** The loss where a path is no longer healthy. */
+    static final double MAX_HEALTHY_LOSS = 0.2;
+
+    private static final double LOSS_GAIN = 0.125;
+
+    /** The smoothed round trip time, in nanoseconds. */
+    private long smoothedRtt;
+
+    /** The smoothed variation of the round trip time, in nanoseconds. */
+    private long rttVariation;
+
+    /** The smoothed share of lost probes, from 0 to 1. */
+    private double loss;
+
+    private int samples;
+    private int misses;
+    private boolean waitingForAnswer;
+
+    /**
+     * Registers that a probe was sent. Counts the last probe as lost, if it was never answered.
+     */
+    public synchronized void probeSent() {
+        if (waitingForAnswer) {
+            misses++;
+            loss += LOSS_GAIN * (1 - loss);
+        }
+
+        waitingForAnswer = true;
+    }
+
+    /**
+     * Registers the answer to a probe.
+     *
+     * @param rtt The time from the probe was sent until the answer arrived, in nanoseconds.
+     */
+    public synchronized void answered(final long rtt) {
+        if (rtt < 0) {
+            return;
+        }
+
+        if (waitingForAnswer) {
+            loss -= LOSS_GAIN * loss;
+            waitingForAnswer = false;
+        }
+
+        misses = 0;
+
+        if (samples == 0) {
+            smoothedRtt = rtt;
+            rttVariation = rtt / 2;
+        }
+
+        else {
+            rttVariation = (3 * rttVariation + Math.abs(smoothedRtt - rtt)) / 4;
+            smoothedRtt = (7 * smoothedRtt + rtt) / 8;
+        }
+
+        samples++;
+    }
+
+    /**
+     * Gets the smoothed round trip time.
+     *
+     * @return The round trip time in nanoseconds, or 0 if no probes have been answered.
+     */
+    public synchronized long getSmoothedRtt() {
+        return smoothedRtt;
+    }
+
+    /**
+     * Gets the smoothed variation of the round trip time.
+     *
+     * @return The variation in nanoseconds, or 0 if no probes have been answered.
+     */
+    public synchronized long getRttVariation() {
+        return rttVariation;
+    }
+
+    /**
+     * Gets the smoothed share of the probes that were lost.
+     *
+     * @return The loss, from 0 to 1.
+     */
+    public synchronized double getLoss() {
+        return loss;
+    }
+
+    public synchronized boolean hasSamples() {
+        return samples > 0;
+    }
+
+    public synchronized boolean isDead() {
+        return misses >= DEAD_AFTER_MISSES;
+    }
+
+    /**
+     * Checks if the path has answered probes, and doesn't lose too many of them.
+     *
+     * @return If the path is healthy.
+     */
+    public synchronized boolean isHealthy() {
+        return samples > 0 && misses < DEAD_AFTER_MISSES && loss < MAX_HEALTHY_LOSS;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("rtt=%.1fms, variation=%.1fms, loss=%.0f%%, misses=%d",
+                             toMillis(smoothedRtt), toMillis(rttVariation), loss * 100, misses);
+    }
+
+    private static double toMillis(final long nanos) {
+        return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+}
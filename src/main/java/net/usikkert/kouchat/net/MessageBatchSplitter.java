@@ -0,0 +1,134 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.usikkert.kouchat.event.ReceiverListener;
+import net.usikkert.kouchat.util.Validate;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Splits batches from {@link MessageBatcher} back into the original messages, and forwards them
+ * one by one in the same order as they were sent. Other messages are forwarded unchanged.
+ *
+ * <p>Each message is trimmed, like messages received in a packet of their own.</p>
+ *
+ * @author Christian Ihle
+ */
+public class MessageBatchSplitter implements ReceiverListener {
+
+    /** The logger. */
+    private static final Logger LOG = Logger.getLogger(MessageBatchSplitter.class.getName());
+
+    private final ReceiverListener listener;
+
+    /**
+     * Constructor.
+     *
+     * @param listener The listener to forward the messages to.
+     */
+    public MessageBatchSplitter(final ReceiverListener listener) {
+        Validate.notNull(listener, "Listener can not be null");
+
+        this.listener = listener;
+    }
+
+    /**
+     * Forwards the message, or each of the messages in it if it's a batch.
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public void messageArrived(final String message, final String ipAddress) {
+        if (!message.startsWith(MessageBatcher.BATCH_PREFIX)) {
+            listener.messageArrived(message, ipAddress);
+            return;
+        }
+
+        final List<String> messages = split(message);
+
+        if (messages == null) {
+            LOG.log(Level.WARNING, "Invalid batch from " + ipAddress + ": " + message);
+            return;
+        }
+
+        for (final String batchedMessage : messages) {
+            listener.messageArrived(batchedMessage, ipAddress);
+        }
+    }
+
+    /**
+     * Splits the batch into the original messages.
+     *
+     * @param batch The batch to split.
+     * @return The messages, or <code>null</code> if the batch is invalid.
+     */
+    @Nullable
+    static List<String> split(final String batch) {
+        try {
+            final int countEnd = batch.indexOf(':', MessageBatcher.BATCH_PREFIX.length());
+            final int count = Integer.parseInt(batch.substring(MessageBatcher.BATCH_PREFIX.length(), countEnd));
+
+            if (count < 1 || count > batch.length()) {
+                return null;
+            }
+
+            final List<String> messages = new ArrayList<>(count);
+            int position = countEnd + 1;
+
+            for (int i = 0; i < count; i++) {
+                final int lengthEnd = batch.indexOf(':', position);
+                final int length = Integer.parseInt(batch.substring(position, lengthEnd));
+                final boolean last = i == count - 1;
+                int messageEnd = lengthEnd + 1 + length;
+
+                // Whitespace at the end of the packet is trimmed when received
+                if (last && messageEnd > batch.length()) {
+                    messageEnd = batch.length();
+                }
+
+                if (length < 0 || messageEnd > batch.length()) {
+                    return null;
+                }
+
+                messages.add(batch.substring(lengthEnd + 1, messageEnd).trim());
+                position = messageEnd;
+            }
+
+            if (position != batch.length()) {
+                return null;
+            }
+
+            return messages;
+        }
+
+        catch (final NumberFormatException | StringIndexOutOfBoundsException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,218 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import static net.usikkert.kouchat.net.NetworkMessageType.*;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import net.usikkert.kouchat.Constants;
+import net.usikkert.kouchat.util.Validate;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Holds back small protocol messages for a short while, so several of them can be sent together
+ * in a single multicast packet. Used for the bursts of messages sent when logging on and when
+ * the network comes back up.
+ *
+ * <p>The messages are sent in a batch, with the length of each message in front of it:</p>
+ *
+ * <pre>BATCH:messageCount:length:message...length:message</pre>
+ *
+ * <p>The lengths are in characters. The {@link MessageBatchSplitter} splits the batch on the receiving side.
+ * If only one message is waiting when the batch is sent, it's sent on its own, without the header.</p>
+ *
+ * <p>The batch is sent when the flush window ends, when the next message would make it too large for
+ * a single packet, or when {@link #flush()} is called. Messages that are not batched must always flush
+ * first, to keep the order of the messages.</p>
+ *
+ * @author Christian Ihle
+ */
+public class MessageBatcher {
+
+    /** The start of every batch. Regular messages start with the user code, so this never clashes. */
+    public static final String BATCH_PREFIX = "BATCH:";
+
+    /** How long to wait for more messages before sending a batch, in milliseconds. */
+    public static final long FLUSH_WINDOW = 20L;
+
+    /** The message types that can wait for a batch. Everything else has a user waiting, or checks for errors. */
+    private static final Set<String> BATCHED_TYPES = new HashSet<>(Arrays.asList(
+            LOGON, CLIENT, EXPOSE, EXPOSING, GETTOPIC, TOPIC));
+
+    private static final Charset CHARSET = Charset.forName(Constants.MESSAGE_CHARSET);
+
+    private final MessageSender messageSender;
+    private final Timer timer;
+
+    /** The messages waiting to be sent. */
+    private final List<String> messages;
+
+    /** The size of a batch with the waiting messages, in bytes. */
+    private int batchBytes;
+
+    /** If the waiting messages can be compressed. Only if every one of them could. */
+    private boolean compress;
+
+    /** The task that will send the waiting messages, or <code>null</code> if none are waiting. */
+    @Nullable
+    private TimerTask flushTask;
+
+    /**
+     * Constructor.
+     *
+     * @param messageSender The sender to send the batches with.
+     */
+    public MessageBatcher(final MessageSender messageSender) {
+        Validate.notNull(messageSender, "Message sender can not be null");
+
+        this.messageSender = messageSender;
+        timer = new Timer("MessageBatcherTimer", true);
+        messages = new ArrayList<>();
+    }
+
+    /**
+     * Checks if the message is a type that can wait to be sent in a batch.
+     *
+     * @param message The message to check.
+     * @return If the message can be batched.
+     */
+    public boolean isBatchable(final String message) {
+        Validate.notNull(message, "Message can not be null");
+
+        final int exclamation = message.indexOf('!');
+        final int hash = message.indexOf('#');
+
+        if (exclamation < 0 || hash < exclamation) {
+            return false;
+        }
+
+        return BATCHED_TYPES.contains(message.substring(exclamation + 1, hash));
+    }
+
+    /**
+     * Adds the message to the next batch. A message too large to share a packet is sent right away.
+     *
+     * @param message The message to add.
+     * @param compressMessage If the message can be compressed.
+     * @return If the message was accepted. Errors when sending the batch later are only logged.
+     */
+    public synchronized boolean add(final String message, final boolean compressMessage) {
+        Validate.notNull(message, "Message can not be null");
+
+        final int messageBytes = getBatchedSize(message);
+
+        if (batchBytes + messageBytes > Constants.NETWORK_PACKET_SIZE) {
+            flush();
+
+            if (BATCH_PREFIX.length() + 4 + messageBytes > Constants.NETWORK_PACKET_SIZE) {
+                return messageSender.send(message, compressMessage, false, false);
+            }
+        }
+
+        if (messages.isEmpty()) {
+            batchBytes = BATCH_PREFIX.length() + 4; // Room for the message count
+            compress = true;
+            scheduleFlush();
+        }
+
+        messages.add(message);
+        batchBytes += messageBytes;
+        compress &= compressMessage;
+
+        return true;
+    }
+
+    /**
+     * Sends the waiting messages right away.
+     */
+    public synchronized void flush() {
+        if (flushTask != null) {
+            flushTask.cancel();
+            flushTask = null;
+        }
+
+        if (messages.isEmpty()) {
+            return;
+        }
+
+        if (messages.size() == 1) {
+            messageSender.send(messages.get(0), compress, false, false);
+        }
+
+        else {
+            messageSender.send(createBatch(messages), compress, false, false);
+        }
+
+        messages.clear();
+        batchBytes = 0;
+    }
+
+    /**
+     * Gets the number of messages waiting to be sent.
+     *
+     * @return The number of waiting messages.
+     */
+    public synchronized int getWaitingMessages() {
+        return messages.size();
+    }
+
+    /**
+     * Creates a batch with the messages.
+     *
+     * @param messagesInBatch The messages to put in the batch.
+     * @return The batch.
+     */
+    static String createBatch(final List<String> messagesInBatch) {
+        final StringBuilder batch = new StringBuilder(BATCH_PREFIX).append(messagesInBatch.size()).append(':');
+
+        for (final String message : messagesInBatch) {
+            batch.append(message.length()).append(':').append(message);
+        }
+
+        return batch.toString();
+    }
+
+    private void scheduleFlush() {
+        flushTask = new TimerTask() {
+            @Override
+            public void run() {
+                flush();
+            }
+        };
+
+        timer.schedule(flushTask, FLUSH_WINDOW);
+    }
+
+    private int getBatchedSize(final String message) {
+        return message.getBytes(CHARSET).length + String.valueOf(message.length()).length() + 1;
+    }
+}
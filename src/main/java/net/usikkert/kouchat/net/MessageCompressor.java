@@ -0,0 +1,271 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import net.usikkert.kouchat.Constants;
+import net.usikkert.kouchat.util.Validate;
+
+/**
+ * Compresses messages before they are sent in udp packets, to users that support {@link ClientCapability#DEFLATE}.
+ *
+ * <p>The messages are short, so normal deflate would hardly save anything. Instead both sides use a preset
+ * dictionary with the parts that are repeated in most messages: the message types, the separators of the header,
+ * and common client and operating system names. The deflater can then refer back to the dictionary from the
+ * very first byte.</p>
+ *
+ * <p>A compressed packet starts with the byte {@link #COMPRESSED_MARKER}, followed by raw deflate data.
+ * That byte is never used in UTF-8, so a packet with plain text can never be mistaken for a compressed one.
+ * A message is only sent compressed if that makes it smaller.</p>
+ *
+ * @author Christian Ihle
+ */
+public class MessageCompressor {
+
+    /** The logger. */
+    private static final Logger LOG = Logger.getLogger(MessageCompressor.class.getName());
+
+    /** The first byte of a compressed packet. */
+    public static final byte COMPRESSED_MARKER = (byte) 0xFF;
+
+    private static final Charset CHARSET = Charset.forName(Constants.MESSAGE_CHARSET);
+
+    /**
+     * The preset dictionary. The most common strings are at the end, since they are closest
+     * to the data and the cheapest to refer to. Must never change without a new capability name.
+     */
+    static final byte[] DICTIONARY = (
+            "KouChat v1.5.0 Android" + "Windows 10" + "Mac OS X" + "Console" + "KouChat v1.4.0 Swing" + "Linux" +
+            NetworkMessageType.SENDFILEACCEPT + "#" + NetworkMessageType.SENDFILEABORT + "#" +
+            NetworkMessageType.SENDFILE + "#" + NetworkMessageType.NICKCRASH + "#" +
+            NetworkMessageType.EXPOSING + "#" + NetworkMessageType.EXPOSE + "#" +
+            NetworkMessageType.GETTOPIC + "#" + NetworkMessageType.TOPIC + "#" + NetworkMessageType.NICK + "#" +
+            NetworkMessageType.LOGOFF + "#" + NetworkMessageType.LOGON + "#" +
+            NetworkMessageType.AWAY + "#" + NetworkMessageType.BACK + "#" +
+            NetworkMessageType.CLIENT + "#" + ":(KouChat v1.5.0 Swing)[" + "]{Linux}<" + ">/" + "\\|" +
+            ClientCapability.DEFLATE + "|" +
+            NetworkMessageType.PRIVMSG + "#" + ":(" + ")[-" +
+            NetworkMessageType.STOPPEDWRITING + "#" + NetworkMessageType.WRITING + "#" +
+            NetworkMessageType.IDLE + "#" +
+            NetworkMessageType.MSG + "#" + ":[-"
+    ).getBytes(CHARSET);
+
+    /** An inflater for each receiving thread, to avoid creating one for each message. */
+    private static final ThreadLocal<InflaterState> INFLATER_STATE = new ThreadLocal<InflaterState>() {
+        @Override
+        protected InflaterState initialValue() {
+            return new InflaterState();
+        }
+    };
+
+    private final Deflater deflater;
+    private final byte[] output;
+
+    /** Bytes before compression, for each message type. */
+    private final ConcurrentMap<String, AtomicLong> originalBytes;
+
+    /** Bytes actually sent, for each message type. */
+    private final ConcurrentMap<String, AtomicLong> sentBytes;
+
+    /**
+     * Constructor.
+     */
+    public MessageCompressor() {
+        deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+        output = new byte[Constants.NETWORK_PACKET_SIZE * 2];
+        originalBytes = new ConcurrentHashMap<>();
+        sentBytes = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Encodes the message for sending, compressed if that makes it smaller.
+     *
+     * @param message The message to encode.
+     * @return The bytes to send.
+     * @throws UnsupportedEncodingException If the encoding of the message is unsupported.
+     */
+    public synchronized byte[] encode(final String message) throws UnsupportedEncodingException {
+        Validate.notNull(message, "Message can not be null");
+
+        final byte[] plain = message.getBytes(Constants.MESSAGE_CHARSET);
+
+        deflater.reset();
+        deflater.setDictionary(DICTIONARY);
+        deflater.setInput(plain);
+        deflater.finish();
+
+        output[0] = COMPRESSED_MARKER;
+        int length = 1;
+
+        while (!deflater.finished() && length < output.length) {
+            length += deflater.deflate(output, length, output.length - length);
+        }
+
+        final byte[] encoded;
+
+        if (deflater.finished() && length < plain.length) {
+            encoded = Arrays.copyOf(output, length);
+        }
+
+        else {
+            encoded = plain;
+        }
+
+        final String type = getType(message);
+        addBytes(originalBytes, type, plain.length);
+        addBytes(sentBytes, type, encoded.length);
+
+        return encoded;
+    }
+
+    /**
+     * Checks if the bytes are a compressed packet.
+     *
+     * @param bytes The received bytes, between position and limit.
+     * @return If the bytes start with the {@link #COMPRESSED_MARKER}.
+     */
+    public static boolean isCompressed(final ByteBuffer bytes) {
+        return bytes.hasRemaining() && bytes.get(bytes.position()) == COMPRESSED_MARKER;
+    }
+
+    /**
+     * Decompresses a packet encoded by {@link #encode(String)}.
+     *
+     * @param bytes The received bytes, between position and limit, starting with the {@link #COMPRESSED_MARKER}.
+     * @return The decompressed message, or an empty string if the packet is invalid.
+     */
+    public static String decompress(final ByteBuffer bytes) {
+        return INFLATER_STATE.get().inflate(bytes.duplicate());
+    }
+
+    /**
+     * Gets the number of bytes saved by compression so far, for each message type.
+     *
+     * @return A sorted copy of the bytes saved for each message type.
+     */
+    public Map<String, Long> getBytesSaved() {
+        final Map<String, Long> bytesSaved = new TreeMap<>();
+
+        for (final Map.Entry<String, AtomicLong> entry : originalBytes.entrySet()) {
+            final AtomicLong sent = sentBytes.get(entry.getKey());
+            bytesSaved.put(entry.getKey(), entry.getValue().get() - (sent != null ? sent.get() : 0));
+        }
+
+        return bytesSaved;
+    }
+
+    private void addBytes(final ConcurrentMap<String, AtomicLong> bytesPerType, final String type, final int bytes) {
+        AtomicLong counter = bytesPerType.get(type);
+
+        if (counter == null) {
+            final AtomicLong newCounter = new AtomicLong();
+            counter = bytesPerType.putIfAbsent(type, newCounter);
+
+            if (counter == null) {
+                counter = newCounter;
+            }
+        }
+
+        counter.addAndGet(bytes);
+    }
+
+    private String getType(final String message) {
+        if (message.startsWith(MessageFragmenter.FRAGMENT_PREFIX)) {
+            return "FRAG";
+        }
+
+        if (message.startsWith(MessageBatcher.BATCH_PREFIX)) {
+            return "BATCH";
+        }
+
+        final int exclamation = message.indexOf('!');
+        final int hash = message.indexOf('#');
+
+        if (exclamation < 0 || hash < exclamation) {
+            return "UNKNOWN";
+        }
+
+        return message.substring(exclamation + 1, hash);
+    }
+
+    /**
+     * Reusable inflater and buffers for a receiving thread.
+     */
+    private static final class InflaterState {
+
+        private final Inflater inflater = new Inflater(true);
+
+        /** One extra byte, since inflating raw deflate data needs a dummy byte at the end of the input. */
+        private final byte[] input = new byte[Constants.NETWORK_PACKET_SIZE + 1];
+
+        /** One extra byte, to detect messages larger than allowed. */
+        private final byte[] output = new byte[Constants.NETWORK_PACKET_SIZE + 1];
+
+        String inflate(final ByteBuffer bytes) {
+            final int length = bytes.remaining() - 1;
+
+            if (length < 0 || length > Constants.NETWORK_PACKET_SIZE) {
+                LOG.log(Level.WARNING, "Invalid size of compressed packet: " + bytes.remaining());
+                return "";
+            }
+
+            bytes.get(); // The marker
+            bytes.get(input, 0, length);
+            input[length] = 0;
+
+            inflater.reset();
+            inflater.setDictionary(DICTIONARY);
+            inflater.setInput(input, 0, length + 1);
+
+            try {
+                final int inflated = inflater.inflate(output);
+
+                if (!inflater.finished() || inflated > Constants.NETWORK_PACKET_SIZE) {
+                    LOG.log(Level.WARNING, "Compressed packet was too large or incomplete");
+                    return "";
+                }
+
+                return new String(output, 0, inflated, CHARSET);
+            }
+
+            catch (final DataFormatException e) {
+                LOG.log(Level.WARNING, "Failed to decompress packet: " + e);
+                return "";
+            }
+        }
+    }
+}
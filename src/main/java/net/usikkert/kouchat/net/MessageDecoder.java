@@ -0,0 +1,47 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import net.usikkert.kouchat.misc.User;
+
+/**
+ * Decodes the payload of one type of message, and gives the result to a responder.
+ *
+ * <p>Decoders are registered in a {@link MessageDispatcher}, and are only used for messages
+ * from other users while logged on.</p>
+ *
+ * @author Christian Ihle
+ */
+public interface MessageDecoder {
+
+    /**
+     * Decodes the message, and gives the result to the responder.
+     *
+     * @param envelope The message to decode, with the header already parsed.
+     * @param ipAddress The IP address of the user who sent the message.
+     * @param me The application user.
+     * @throws StringIndexOutOfBoundsException If the payload is missing some of the fields.
+     * @throws NumberFormatException If a field in the payload is not a number.
+     */
+    void decode(MessageEnvelope envelope, String ipAddress, User me);
+}
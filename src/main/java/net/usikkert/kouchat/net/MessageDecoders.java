@@ -0,0 +1,489 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import static net.usikkert.kouchat.net.NetworkMessageType.*;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.usikkert.kouchat.misc.User;
+import net.usikkert.kouchat.util.Validate;
+
+/**
+ * The decoders for each type of message supported by the {@link MessageParser}.
+ *
+ * @author Christian Ihle
+ */
+public final class MessageDecoders {
+
+    private MessageDecoders() {
+        // Only static methods and classes
+    }
+
+    /**
+     * Registers a decoder for each of the supported message types.
+     *
+     * @param dispatcher The dispatcher to register the decoders in.
+     * @param responder The responder the decoders should give the result to.
+     */
+    public static void registerAll(final MessageDispatcher dispatcher, final MessageResponder responder) {
+        Validate.notNull(dispatcher, "Dispatcher can not be null");
+        Validate.notNull(responder, "MessageResponder can not be null");
+
+        dispatcher.register(IDLE, new IdleDecoder(responder));
+        dispatcher.register(WRITING, new WritingDecoder(responder, true));
+        dispatcher.register(STOPPEDWRITING, new WritingDecoder(responder, false));
+        dispatcher.register(MSG, new MsgDecoder(responder));
+        dispatcher.register(LOGON, new LogonDecoder(responder));
+        dispatcher.register(EXPOSING, new ExposingDecoder(responder));
+        dispatcher.register(LOGOFF, new LogoffDecoder(responder));
+        dispatcher.register(AWAY, new AwayDecoder(responder, true));
+        dispatcher.register(BACK, new AwayDecoder(responder, false));
+        dispatcher.register(EXPOSE, new ExposeDecoder(responder));
+        dispatcher.register(NICKCRASH, new NickCrashDecoder(responder));
+        dispatcher.register(GETTOPIC, new GetTopicDecoder(responder));
+        dispatcher.register(TOPIC, new TopicDecoder(responder));
+        dispatcher.register(NICK, new NickDecoder(responder));
+        dispatcher.register(SENDFILEACCEPT, new SendFileAcceptDecoder(responder));
+        dispatcher.register(SENDFILEABORT, new SendFileAbortDecoder(responder));
+        dispatcher.register(SENDFILE, new SendFileDecoder(responder));
+        dispatcher.register(CLIENT, new ClientDecoder(responder));
+    }
+
+    /**
+     * Base class for the decoders, with the responder to give the result to.
+     */
+    abstract static class ResponderDecoder implements MessageDecoder {
+
+        protected final MessageResponder responder;
+
+        ResponderDecoder(final MessageResponder responder) {
+            Validate.notNull(responder, "MessageResponder can not be null");
+            this.responder = responder;
+        }
+    }
+
+    /**
+     * Decodes {@link NetworkMessageType#IDLE}.
+     */
+    static class IdleDecoder extends ResponderDecoder {
+
+        IdleDecoder(final MessageResponder responder) {
+            super(responder);
+        }
+
+        @Override
+        public void decode(final MessageEnvelope envelope, final String ipAddress, final User me) {
+            responder.userIdle(envelope.getUserCode(), ipAddress);
+        }
+    }
+
+    /**
+     * Decodes {@link NetworkMessageType#WRITING} and {@link NetworkMessageType#STOPPEDWRITING}.
+     */
+    static class WritingDecoder extends ResponderDecoder {
+
+        private final boolean writing;
+
+        WritingDecoder(final MessageResponder responder, final boolean writing) {
+            super(responder);
+            this.writing = writing;
+        }
+
+        @Override
+        public void decode(final MessageEnvelope envelope, final String ipAddress, final User me) {
+            responder.writingChanged(envelope.getUserCode(), writing);
+        }
+    }
+
+    /**
+     * Decodes {@link NetworkMessageType#MSG}.
+     */
+    static class MsgDecoder extends ResponderDecoder {
+
+        MsgDecoder(final MessageResponder responder) {
+            super(responder);
+        }
+
+        @Override
+        public void decode(final MessageEnvelope envelope, final String ipAddress, final User me) {
+            final String msg = envelope.getPayload();
+            final int leftBracket = msg.indexOf("[");
+            final int rightBracket = msg.indexOf("]");
+            final int rgb = Integer.parseInt(msg.substring(leftBracket + 1, rightBracket));
+
+            responder.messageArrived(envelope.getUserCode(), msg.substring(rightBracket + 1, msg.length()), rgb);
+        }
+    }
+
+    /**
+     * Decodes {@link NetworkMessageType#LOGON}.
+     */
+    static class LogonDecoder extends ResponderDecoder {
+
+        LogonDecoder(final MessageResponder responder) {
+            super(responder);
+        }
+
+        @Override
+        public void decode(final MessageEnvelope envelope, final String ipAddress, final User me) {
+            final User newUser = new User(envelope.getNick(), envelope.getUserCode());
+            newUser.setIpAddress(ipAddress);
+            newUser.setLastIdle(System.currentTimeMillis());
+            newUser.setLogonTime(System.currentTimeMillis());
+
+            responder.userLogOn(newUser);
+        }
+    }
+
+    /**
+     * Decodes {@link NetworkMessageType#EXPOSING}.
+     */
+    static class ExposingDecoder extends ResponderDecoder {
+
+        ExposingDecoder(final MessageResponder responder) {
+            super(responder);
+        }
+
+        @Override
+        public void decode(final MessageEnvelope envelope, final String ipAddress, final User me) {
+            final String msg = envelope.getPayload();
+            final User user = new User(envelope.getNick(), envelope.getUserCode());
+            user.setIpAddress(ipAddress);
+            user.setAwayMsg(msg);
+
+            if (msg.length() > 0) {
+                user.setAway(true);
+            }
+
+            user.setLastIdle(System.currentTimeMillis());
+            user.setLogonTime(System.currentTimeMillis());
+
+            responder.userExposing(user);
+        }
+    }
+
+    /**
+     * Decodes {@link NetworkMessageType#LOGOFF}.
+     */
+    static class LogoffDecoder extends ResponderDecoder {
+
+        LogoffDecoder(final MessageResponder responder) {
+            super(responder);
+        }
+
+        @Override
+        public void decode(final MessageEnvelope envelope, final String ipAddress, final User me) {
+            responder.userLogOff(envelope.getUserCode());
+        }
+    }
+
+    /**
+     * Decodes {@link NetworkMessageType#AWAY} and {@link NetworkMessageType#BACK}.
+     */
+    static class AwayDecoder extends ResponderDecoder {
+
+        private final boolean away;
+
+        AwayDecoder(final MessageResponder responder, final boolean away) {
+            super(responder);
+            this.away = away;
+        }
+
+        @Override
+        public void decode(final MessageEnvelope envelope, final String ipAddress, final User me) {
+            if (away) {
+                responder.awayChanged(envelope.getUserCode(), true, envelope.getPayload());
+            }
+
+            else {
+                responder.awayChanged(envelope.getUserCode(), false, "");
+            }
+        }
+    }
+
+    /**
+     * Decodes {@link NetworkMessageType#EXPOSE}.
+     */
+    static class ExposeDecoder extends ResponderDecoder {
+
+        ExposeDecoder(final MessageResponder responder) {
+            super(responder);
+        }
+
+        @Override
+        public void decode(final MessageEnvelope envelope, final String ipAddress, final User me) {
+            responder.exposeRequested();
+        }
+    }
+
+    /**
+     * Decodes {@link NetworkMessageType#NICKCRASH}.
+     */
+    static class NickCrashDecoder extends ResponderDecoder {
+
+        NickCrashDecoder(final MessageResponder responder) {
+            super(responder);
+        }
+
+        @Override
+        public void decode(final MessageEnvelope envelope, final String ipAddress, final User me) {
+            if (me.getNick().equals(envelope.getPayload())) {
+                responder.nickCrash();
+            }
+        }
+    }
+
+    /**
+     * Decodes {@link NetworkMessageType#GETTOPIC}.
+     */
+    static class GetTopicDecoder extends ResponderDecoder {
+
+        GetTopicDecoder(final MessageResponder responder) {
+            super(responder);
+        }
+
+        @Override
+        public void decode(final MessageEnvelope envelope, final String ipAddress, final User me) {
+            responder.topicRequested();
+        }
+    }
+
+    /**
+     * Decodes {@link NetworkMessageType#TOPIC}.
+     */
+    static class TopicDecoder extends ResponderDecoder {
+
+        TopicDecoder(final MessageResponder responder) {
+            super(responder);
+        }
+
+        @Override
+        public void decode(final MessageEnvelope envelope, final String ipAddress, final User me) {
+            final String msg = envelope.getPayload();
+            final int leftBracket = msg.indexOf("[");
+            final int rightBracket = msg.indexOf("]");
+            final int leftPara = msg.indexOf("(");
+            final int rightPara = msg.indexOf(")");
+
+            if (rightBracket != -1 && leftBracket != -1) {
+                final String theNick = msg.substring(leftPara + 1, rightPara);
+                final long theTime = Long.parseLong(msg.substring(leftBracket + 1, rightBracket));
+                String theTopic = null;
+
+                if (msg.length() > rightBracket + 1) {
+                    theTopic = msg.substring(rightBracket + 1, msg.length());
+                }
+
+                responder.topicChanged(envelope.getUserCode(), theTopic, theNick, theTime);
+            }
+        }
+    }
+
+    /**
+     * Decodes {@link NetworkMessageType#NICK}.
+     */
+    static class NickDecoder extends ResponderDecoder {
+
+        NickDecoder(final MessageResponder responder) {
+            super(responder);
+        }
+
+        @Override
+        public void decode(final MessageEnvelope envelope, final String ipAddress, final User me) {
+            responder.nickChanged(envelope.getUserCode(), envelope.getNick());
+        }
+    }
+
+    /**
+     * Decodes {@link NetworkMessageType#SENDFILEACCEPT}.
+     */
+    static class SendFileAcceptDecoder extends ResponderDecoder {
+
+        SendFileAcceptDecoder(final MessageResponder responder) {
+            super(responder);
+        }
+
+        @Override
+        public void decode(final MessageEnvelope envelope, final String ipAddress, final User me) {
+            if (envelope.getRecipientCode() == me.getCode()) {
+                final String msg = envelope.getPayload();
+                final int leftCurly = msg.indexOf("{");
+                final int rightCurly = msg.indexOf("}");
+                final int leftBracket = msg.indexOf("[");
+                final int rightBracket = msg.indexOf("]");
+                final int port = Integer.parseInt(msg.substring(leftBracket + 1, rightBracket));
+                final int fileHash = Integer.parseInt(msg.substring(leftCurly + 1, rightCurly));
+
+                // The resume offset, checksum and number of connections end with a slash,
+                // which can't be part of a file name
+                final int slash = msg.indexOf("/", rightCurly + 1);
+                long resumeOffset = 0;
+                long resumeChecksum = 0;
+                int streams = 1;
+                final String fileName;
+
+                if (slash >= 0) {
+                    final String[] fields = msg.substring(rightCurly + 1, slash).split(":");
+                    resumeOffset = Long.parseLong(fields[0]);
+                    resumeChecksum = Long.parseLong(fields[1]);
+
+                    if (fields.length > 2) {
+                        streams = Integer.parseInt(fields[2]);
+                    }
+
+                    fileName = msg.substring(slash + 1, msg.length());
+                }
+
+                else {
+                    fileName = msg.substring(rightCurly + 1, msg.length());
+                }
+
+                responder.fileSendAccepted(envelope.getUserCode(), fileName, fileHash, port,
+                                           resumeOffset, resumeChecksum, streams);
+            }
+        }
+    }
+
+    /**
+     * Decodes {@link NetworkMessageType#SENDFILEABORT}.
+     */
+    static class SendFileAbortDecoder extends ResponderDecoder {
+
+        SendFileAbortDecoder(final MessageResponder responder) {
+            super(responder);
+        }
+
+        @Override
+        public void decode(final MessageEnvelope envelope, final String ipAddress, final User me) {
+            if (envelope.getRecipientCode() == me.getCode()) {
+                final String msg = envelope.getPayload();
+                final int leftCurly = msg.indexOf("{");
+                final int rightCurly = msg.indexOf("}");
+                final String fileName = msg.substring(rightCurly + 1, msg.length());
+                final int fileHash = Integer.parseInt(msg.substring(leftCurly + 1, rightCurly));
+
+                responder.fileSendAborted(envelope.getUserCode(), fileName, fileHash);
+            }
+        }
+    }
+
+    /**
+     * Decodes {@link NetworkMessageType#SENDFILE}.
+     */
+    static class SendFileDecoder extends ResponderDecoder {
+
+        SendFileDecoder(final MessageResponder responder) {
+            super(responder);
+        }
+
+        @Override
+        public void decode(final MessageEnvelope envelope, final String ipAddress, final User me) {
+            if (envelope.getRecipientCode() == me.getCode()) {
+                final String msg = envelope.getPayload();
+                final int leftCurly = msg.indexOf("{");
+                final int rightCurly = msg.indexOf("}");
+                final int leftBracket = msg.indexOf("[");
+                final int rightBracket = msg.indexOf("]");
+                final long byteSize = Long.parseLong(msg.substring(leftBracket + 1, rightBracket));
+                final String fileName = msg.substring(rightCurly + 1, msg.length());
+                final int fileHash = Integer.parseInt(msg.substring(leftCurly + 1, rightCurly));
+
+                responder.fileSend(envelope.getUserCode(), byteSize, fileName, envelope.getNick(), fileHash);
+            }
+        }
+    }
+
+    /**
+     * Decodes {@link NetworkMessageType#CLIENT}.
+     */
+    static class ClientDecoder extends ResponderDecoder {
+
+        /** The logger. */
+        private static final Logger LOG = Logger.getLogger(ClientDecoder.class.getName());
+
+        ClientDecoder(final MessageResponder responder) {
+            super(responder);
+        }
+
+        @Override
+        public void decode(final MessageEnvelope envelope, final String ipAddress, final User me) {
+            final String message = envelope.getMessage();
+            final String msg = envelope.getPayload();
+            final int leftPara = msg.indexOf("(");
+            final int rightPara = msg.indexOf(")");
+            final int leftBracket = msg.indexOf("[");
+            final int rightBracket = msg.indexOf("]");
+            final int leftCurly = msg.indexOf("{");
+            final int rightCurly = msg.indexOf("}");
+            final int lessThan = msg.indexOf("<");
+            final int greaterThan = msg.indexOf(">");
+            final int slash = msg.indexOf("/");
+            final int backslash = msg.indexOf("\\");
+
+            final String client = msg.substring(leftPara + 1, rightPara);
+            final long timeSinceLogon = Long.parseLong(msg.substring(leftBracket + 1, rightBracket));
+            final String operatingSystem = msg.substring(leftCurly + 1, rightCurly);
+
+            int privateChatPort = 0;
+
+            try {
+                privateChatPort = Integer.parseInt(msg.substring(lessThan + 1, greaterThan));
+            }
+
+            catch (final NumberFormatException e) {
+                LOG.log(Level.WARNING, "Failed to parse private chat port. message=" + message + ", ipAddress=" + ipAddress, e);
+            }
+
+            int tcpChatPort = 0;
+
+            if (slash != -1 && backslash != -1) {
+                try {
+                    tcpChatPort = Integer.parseInt(msg.substring(slash + 1, backslash));
+                }
+
+                catch (final NumberFormatException e) {
+                    LOG.log(Level.WARNING, "Failed to parse tcp chat port. message=" + message + ", ipAddress=" + ipAddress, e);
+                }
+            }
+
+            final Set<String> capabilities = new HashSet<>();
+            final int leftPipe = msg.indexOf("|", backslash + 1);
+            final int rightPipe = msg.indexOf("|", leftPipe + 1);
+
+            if (backslash != -1 && leftPipe != -1 && rightPipe != -1) {
+                for (final String capability : msg.substring(leftPipe + 1, rightPipe).split(",")) {
+                    if (!capability.isEmpty()) {
+                        capabilities.add(capability);
+                    }
+                }
+            }
+
+            responder.clientInfo(envelope.getUserCode(), client, timeSinceLogon, operatingSystem, privateChatPort, tcpChatPort,
+                                 capabilities);
+        }
+    }
+}
@@ -22,21 +22,37 @@
 
 package net.usikkert.kouchat.net;
 
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import net.usikkert.kouchat.event.ReceiverListener;
 import net.usikkert.kouchat.misc.Controller;
 import net.usikkert.kouchat.misc.User;
 import net.usikkert.kouchat.net.tcp.TCPReceiverListener;
+import net.usikkert.kouchat.settings.Settings;
 import net.usikkert.kouchat.util.Logger;
 import net.usikkert.kouchat.util.Validate;
 
 import org.jetbrains.annotations.Nullable;
 
 /**
- * Proxy that listens for messages from both multicast and tcp and forwards from only one source at
- * a time (per user) to avoid duplicates.
+ * Proxy that listens for messages from both multicast and tcp and forwards only one copy of each message
+ * to avoid duplicates.
+ *
+ * <p>Messages with a sequence from {@link MessageSequencer} are forwarded the first time the sequence
+ * arrives from the user, no matter where it came from, so the fastest copy wins. The sequence is removed
+ * before forwarding. Messages without a sequence, like from older clients, are forwarded from only
+ * one source at a time (per user): tcp if the user is connected using tcp, and multicast if not.</p>
+ *
+ * <p>Private messages are sent to one user at a time, so their sequences are tracked separately.
+ * That way a skipped sequence in the messages to everyone means a lost message, and is reported
+ * to the {@link MessageLossListener}, along with requests from other users to send messages again.
+ * Probes of the udp path go to the {@link LinkProbeListener}.</p>
+ *
+ * <p>The header of each message is parsed once into a {@link MessageEnvelope}, and given to listeners
+ * implementing {@link MessageEnvelopeListener} so they don't have to parse it again. Messages meant for
+ * a single user are dropped here if they are sent by me, or meant for someone else, since none of
+ * the listeners would use them anyway.</p>
  *
  * @author Christian Ihle
  */
@@ -45,7 +61,13 @@ public class MessageDeduplicator implements ReceiverListener, TCPReceiverListene
     private static final Logger LOG = Logger.getLogger(MessageDeduplicator.class);
 
     private final Controller controller;
-    private final Pattern privateMessagePattern;
+    private final Settings settings;
+
+    /** The sequences seen from each user, by user code. */
+    private final ConcurrentMap<Integer, MessageSequenceWindow> sequenceWindows;
+
+    /** The sequences of private messages seen from each user, by user code. */
+    private final ConcurrentMap<Integer, MessageSequenceWindow> privateSequenceWindows;
 
     @Nullable
     private ReceiverListener mainChatListener;
@@ -53,11 +75,20 @@ public class MessageDeduplicator implements ReceiverListener, TCPReceiverListene
     @Nullable
     private ReceiverListener privateChatListener;
 
-    public MessageDeduplicator(final Controller controller) {
+    @Nullable
+    private MessageLossListener lossListener;
+
+    @Nullable
+    private LinkProbeListener probeListener;
+
+    public MessageDeduplicator(final Controller controller, final Settings settings) {
         Validate.notNull(controller, "Controller can not be null");
+        Validate.notNull(settings, "Settings can not be null");
 
         this.controller = controller;
-        this.privateMessagePattern = Pattern.compile("^(\\d+)!(PRIVMSG)#.+");
+        this.settings = settings;
+        this.sequenceWindows = new ConcurrentHashMap<>();
+        this.privateSequenceWindows = new ConcurrentHashMap<>();
     }
 
     public void registerMainChatReceiverListener(final ReceiverListener theListener) {
@@ -68,48 +99,198 @@ public class MessageDeduplicator implements ReceiverListener, TCPReceiverListene
         this.privateChatListener = theListener;
     }
 
+    public void registerMessageLossListener(final MessageLossListener theListener) {
+        this.lossListener = theListener;
+    }
+
+    public void registerLinkProbeListener(final LinkProbeListener theListener) {
+        this.probeListener = theListener;
+    }
+
+    /**
+     * Checks if a message to everyone with the sequence has arrived from the user.
+     *
+     * @param userCode The code of the user that sent the message.
+     * @param sequence The sequence of the message.
+     * @return If the message has arrived.
+     */
+    public boolean isSeen(final int userCode, final long sequence) {
+        final MessageSequenceWindow sequenceWindow = sequenceWindows.get(userCode);
+
+        return sequenceWindow != null && sequenceWindow.isSeen(sequence);
+    }
+
     @Override
     public void messageArrived(final String message, final String ipAddress) {
-        final User user = parseUserFromMessage(message);
+        final MessageEnvelope envelope = parseEnvelope(message);
+
+        if (envelope == null) {
+            forwardMessageToListener(message, ipAddress);
+            return;
+        }
+
+        if (envelope.getType() == NetworkMessageType.NACK) {
+            if (lossListener != null && !isForSomeoneElse(envelope)) {
+                lossListener.nackArrived(envelope, ipAddress);
+            }
+
+            return;
+        }
+
+        if (envelope.getType() == NetworkMessageType.PING || envelope.getType() == NetworkMessageType.PONG) {
+            if (probeListener != null && !isForSomeoneElse(envelope)) {
+                probeListener.probeArrived(envelope, ipAddress);
+            }
+
+            return;
+        }
+
+        if (envelope.hasSequence()) {
+            forwardFirstCopyToListener(envelope, ipAddress);
+            return;
+        }
+
+        final User user = controller.getUser(envelope.getUserCode());
 
-        if (user == null || !user.isTcpEnabled()) {
+        if (user == null || !isReceivingFromTcp(user)) {
             if (user == null || !user.isMe()) {
                 LOG.fine("Multicast message: " + message);
             }
 
-            forwardMessageToListener(message, ipAddress);
+            forwardEnvelopeToListener(envelope, ipAddress);
         }
     }
 
     @Override
     public void messageArrived(final String message, final String ipAddress, final User user) {
-        if (user.isTcpEnabled()) {
+        final MessageEnvelope envelope = parseEnvelope(message);
+
+        if (envelope != null && envelope.hasSequence()) {
+            forwardFirstCopyToListener(envelope, ipAddress);
+        }
+
+        else if (isReceivingFromTcp(user)) {
             LOG.fine("TCP message: " + message);
-            forwardMessageToListener(message, ipAddress);
+
+            if (envelope == null) {
+                forwardMessageToListener(message, ipAddress);
+            }
+
+            else {
+                forwardEnvelopeToListener(envelope, ipAddress);
+            }
         }
     }
 
-    private void forwardMessageToListener(final String message, final String ipAddress) {
-        final Matcher privateMessageMatcher = privateMessagePattern.matcher(message);
+    /**
+     * Forwards the message without the sequence, unless a copy with the same sequence from the same user
+     * has already been forwarded. Reports skipped sequences in messages to everyone.
+     */
+    private void forwardFirstCopyToListener(final MessageEnvelope envelope, final String ipAddress) {
+        final boolean privateMessage = envelope.getType() == NetworkMessageType.PRIVMSG;
+        final MessageSequenceWindow sequenceWindow =
+                getSequenceWindow(privateMessage ? privateSequenceWindows : sequenceWindows, envelope.getUserCode());
+        final long highest = sequenceWindow.getHighest();
+        final long sequence = envelope.getSequence();
 
-        if (privateMessageMatcher.matches()) {
-            if (privateChatListener != null) {
-                privateChatListener.messageArrived(message, ipAddress);
-            }
+        if (!sequenceWindow.markSeen(sequence)) {
+            LOG.fine("Duplicate message: %s", envelope);
+            return;
+        }
+
+        LOG.fine("Sequenced message: %s", envelope);
+
+        if (!privateMessage && highest >= 0 && sequence > highest + 1 && lossListener != null) {
+            lossListener.messagesMissing(envelope.getUserCode(), highest + 1, sequence - 1);
+        }
+
+        forwardEnvelopeToListener(envelope.withoutSequence(), ipAddress);
+    }
+
+    private MessageSequenceWindow getSequenceWindow(final ConcurrentMap<Integer, MessageSequenceWindow> windows,
+                                                    final int userCode) {
+        final MessageSequenceWindow sequenceWindow = windows.get(userCode);
+
+        if (sequenceWindow != null) {
+            return sequenceWindow;
+        }
+
+        final MessageSequenceWindow newSequenceWindow = new MessageSequenceWindow();
+        final MessageSequenceWindow existingSequenceWindow = windows.putIfAbsent(userCode, newSequenceWindow);
+
+        return existingSequenceWindow != null ? existingSequenceWindow : newSequenceWindow;
+    }
+
+    /**
+     * Messages from a user come either from a direct tcp connection, or through a tcp relay, or from multicast.
+     */
+    private boolean isReceivingFromTcp(final User user) {
+        return user.isTcpEnabled() || user.isTcpRelayed();
+    }
+
+    private void forwardEnvelopeToListener(final MessageEnvelope envelope, final String ipAddress) {
+        if (isForSomeoneElse(envelope)) {
+            return;
+        }
+
+        if (envelope.getType() == NetworkMessageType.PRIVMSG) {
+            forwardEnvelopeToListener(privateChatListener, envelope, ipAddress);
         }
 
         else {
-            if (mainChatListener != null) {
-                mainChatListener.messageArrived(message, ipAddress);
-            }
+            forwardEnvelopeToListener(mainChatListener, envelope, ipAddress);
+        }
+    }
+
+    private void forwardEnvelopeToListener(@Nullable final ReceiverListener listener, final MessageEnvelope envelope,
+                                           final String ipAddress) {
+        if (listener instanceof MessageEnvelopeListener) {
+            ((MessageEnvelopeListener) listener).envelopeArrived(envelope, ipAddress);
+        }
+
+        else if (listener != null) {
+            listener.messageArrived(envelope.getMessage(), ipAddress);
+        }
+    }
+
+    /**
+     * Messages that can't be parsed go to the main chat listener, which logs them.
+     */
+    private void forwardMessageToListener(final String message, final String ipAddress) {
+        if (mainChatListener != null) {
+            mainChatListener.messageArrived(message, ipAddress);
+        }
+    }
+
+    /**
+     * Checks if the message is meant for a single user, and is either my own message,
+     * or meant for a different user than me. Badly formatted recipients are let through,
+     * so they are logged by the listeners.
+     */
+    private boolean isForSomeoneElse(final MessageEnvelope envelope) {
+        if (!envelope.hasRecipient()) {
+            return false;
+        }
+
+        final int myCode = settings.getMe().getCode();
+
+        if (envelope.getUserCode() == myCode) {
+            return true;
+        }
+
+        try {
+            return envelope.getRecipientCode() != myCode;
+        }
+
+        catch (final NumberFormatException | StringIndexOutOfBoundsException e) {
+            return false;
         }
     }
 
     @Nullable
-    private User parseUserFromMessage(final String message) {
+    private MessageEnvelope parseEnvelope(final String message) {
         try {
-            final int msgCode = Integer.parseInt(message.substring(0, message.indexOf("!")));
-            return controller.getUser(msgCode);
+            return MessageEnvelope.parse(message);
         }
 
         catch (final NumberFormatException | StringIndexOutOfBoundsException e) {
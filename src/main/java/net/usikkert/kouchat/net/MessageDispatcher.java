@@ -0,0 +1,149 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.usikkert.kouchat.misc.User;
+import net.usikkert.kouchat.util.Validate;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Finds the correct {@link MessageDecoder} for a message, using the type of the message.
+ *
+ * <p>The lookup is a single hash lookup no matter how many types are registered, and the number
+ * of messages given to each decoder is counted.</p>
+ *
+ * @author Christian Ihle
+ */
+public class MessageDispatcher {
+
+    private final Map<String, Registration> registrations;
+
+    /**
+     * Constructor.
+     */
+    public MessageDispatcher() {
+        registrations = new HashMap<>();
+    }
+
+    /**
+     * Registers the decoder to use for a type of message.
+     *
+     * <p>Registration is not thread safe, and must be done before messages are dispatched.</p>
+     *
+     * @param type The message type, from {@link NetworkMessageType}.
+     * @param decoder The decoder to use for messages of that type.
+     */
+    public void register(final String type, final MessageDecoder decoder) {
+        Validate.notEmpty(type, "Type can not be empty");
+        Validate.notNull(decoder, "Decoder can not be null");
+        Validate.isTrue(!registrations.containsKey(type), "Type is already registered: " + type);
+
+        registrations.put(type, new Registration(decoder));
+    }
+
+    /**
+     * Gives the message to the decoder registered for the type of the message.
+     *
+     * @param envelope The message to dispatch.
+     * @param ipAddress The IP address of the user who sent the message.
+     * @param me The application user.
+     * @return If a decoder was registered for the type of the message.
+     */
+    public boolean dispatch(final MessageEnvelope envelope, final String ipAddress, final User me) {
+        final Registration registration = registrations.get(envelope.getType());
+
+        if (registration == null) {
+            return false;
+        }
+
+        registration.hits.incrementAndGet();
+        registration.decoder.decode(envelope, ipAddress, me);
+
+        return true;
+    }
+
+    /**
+     * Gets the number of messages given to the decoder for a type of message.
+     *
+     * @param type The message type.
+     * @return The number of messages dispatched, or 0 if no decoder is registered for the type.
+     */
+    public long getHitCount(final String type) {
+        final Registration registration = registrations.get(type);
+
+        if (registration == null) {
+            return 0;
+        }
+
+        return registration.hits.get();
+    }
+
+    /**
+     * Gets the number of messages given to each decoder, sorted by type.
+     *
+     * @return A copy of the current counts.
+     */
+    public Map<String, Long> getHitCounts() {
+        final Map<String, Long> hitCounts = new TreeMap<>();
+
+        for (final Map.Entry<String, Registration> entry : registrations.entrySet()) {
+            hitCounts.put(entry.getKey(), entry.getValue().hits.get());
+        }
+
+        return hitCounts;
+    }
+
+    /**
+     * Gets the decoder registered for a type of message.
+     *
+     * @param type The message type.
+     * @return The decoder, or <code>null</code> if none is registered.
+     */
+    @Nullable
+    public MessageDecoder getDecoder(final String type) {
+        final Registration registration = registrations.get(type);
+
+        if (registration == null) {
+            return null;
+        }
+
+        return registration.decoder;
+    }
+
+    private static final class Registration {
+
+        private final MessageDecoder decoder;
+        private final AtomicLong hits;
+
+        private Registration(final MessageDecoder decoder) {
+            this.decoder = decoder;
+            this.hits = new AtomicLong();
+        }
+    }
+}
@@ -0,0 +1,342 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import static net.usikkert.kouchat.net.NetworkMessageType.*;
+
+import net.usikkert.kouchat.util.Validate;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * The parsed header of a network message, on the format <code>code!type#nick:payload</code>,
+ * or <code>code.sequence!type#nick:payload</code> when sequenced by {@link MessageSequencer}.
+ *
+ * <p>The header is scanned once, and only offsets into the original message are kept. The user code
+ * is parsed directly from the characters, and the type is mapped to the shared constant in
+ * {@link NetworkMessageType}, so no strings are created until the nick or the payload is asked for.
+ * This makes it cheap to drop messages that are not interesting before doing any real work.</p>
+ *
+ * <p>The delimiters are found the same way the parsers have always done it, by looking for the first
+ * <code>!</code>, <code>#</code> and <code>:</code> in the message.</p>
+ *
+ * @author Christian Ihle
+ */
+public final class MessageEnvelope {
+
+    /** All the known types, to map the type in the message to a shared constant. */
+    private static final String[] KNOWN_TYPES = {
+            IDLE, WRITING, STOPPEDWRITING, MSG, PRIVMSG, CLIENT, LOGON, LOGOFF, EXPOSE, EXPOSING, AWAY, BACK,
+            NICKCRASH, GETTOPIC, TOPIC, NICK, SENDFILEACCEPT, SENDFILEABORT, SENDFILE, NACK,
+            PING, PONG
+    };
+
+    /** The sequence of messages that are not sequenced. */
+    public static final long NO_SEQUENCE = -1;
+
+    private final String message;
+    private final int exclamation;
+    private final int hash;
+    private final int colon;
+    private final int userCode;
+    private final long sequence;
+    private final String type;
+
+    @Nullable
+    private String nick;
+
+    @Nullable
+    private String payload;
+
+    private MessageEnvelope(final String message, final int exclamation, final int hash, final int colon,
+                            final int userCode, final long sequence, final String type) {
+        this.message = message;
+        this.exclamation = exclamation;
+        this.hash = hash;
+        this.colon = colon;
+        this.userCode = userCode;
+        this.sequence = sequence;
+        this.type = type;
+    }
+
+    /**
+     * Scans the header of the message.
+     *
+     * @param message The raw message to parse.
+     * @return The envelope with the parsed header.
+     * @throws StringIndexOutOfBoundsException If any of the delimiters are missing or in the wrong order.
+     * @throws NumberFormatException If the user code or the sequence is not a number.
+     */
+    public static MessageEnvelope parse(final String message) {
+        Validate.notNull(message, "Message can not be null");
+
+        final int exclamation = message.indexOf('!');
+        final int hash = message.indexOf('#');
+        final int colon = message.indexOf(':');
+
+        checkRange(message, 0, exclamation);
+        final int dot = findSequenceDelimiter(message, exclamation);
+        final int userCode = parseInt(message, 0, dot);
+        final long sequence = dot < exclamation ? parseSequence(message, dot + 1, exclamation) : NO_SEQUENCE;
+
+        checkRange(message, exclamation + 1, hash);
+        checkRange(message, hash + 1, colon);
+
+        final String type = findType(message, exclamation + 1, hash);
+
+        return new MessageEnvelope(message, exclamation, hash, colon, userCode, sequence, type);
+    }
+
+    /**
+     * Gets the complete original message.
+     *
+     * @return The message.
+     */
+    public String getMessage() {
+        return message;
+    }
+
+    /**
+     * Gets the code of the user that sent the message.
+     *
+     * @return The user code.
+     */
+    public int getUserCode() {
+        return userCode;
+    }
+
+    /**
+     * Checks if the message has a sequence from {@link MessageSequencer}.
+     *
+     * @return If the message is sequenced.
+     */
+    public boolean hasSequence() {
+        return sequence != NO_SEQUENCE;
+    }
+
+    /**
+     * Gets the sequence of the message, unique for each message from the same user.
+     *
+     * @return The sequence, or {@link #NO_SEQUENCE}.
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Gets an envelope for the same message without the sequence, as the listeners expect it.
+     *
+     * @return A new envelope without the sequence, or this envelope if the message is not sequenced.
+     */
+    public MessageEnvelope withoutSequence() {
+        if (!hasSequence()) {
+            return this;
+        }
+
+        final int dot = findSequenceDelimiter(message, exclamation);
+        final int removed = exclamation - dot;
+        final String messageWithoutSequence = message.substring(0, dot) + message.substring(exclamation);
+
+        return new MessageEnvelope(messageWithoutSequence, dot, hash - removed, colon - removed,
+                                   userCode, NO_SEQUENCE, type);
+    }
+
+    /**
+     * Gets the type of message. Known types are always the same instance as the constants in
+     * {@link NetworkMessageType}.
+     *
+     * @return The message type.
+     */
+    public String getType() {
+        return type;
+    }
+
+    /**
+     * Gets the nick name from the header. Created the first time it's asked for.
+     *
+     * @return The nick name.
+     */
+    public String getNick() {
+        if (nick == null) {
+            nick = message.substring(hash + 1, colon);
+        }
+
+        return nick;
+    }
+
+    /**
+     * Gets everything after the header. Created the first time it's asked for.
+     *
+     * @return The payload.
+     */
+    public String getPayload() {
+        if (payload == null) {
+            payload = message.substring(colon + 1);
+        }
+
+        return payload;
+    }
+
+    /**
+     * Checks if this type of message is meant for a single user, with the user code of the recipient
+     * in parentheses in the payload.
+     *
+     * @return If the message has a recipient.
+     */
+    public boolean hasRecipient() {
+        return type == PRIVMSG || type == SENDFILE || type == SENDFILEACCEPT || type == SENDFILEABORT || type == NACK
+                || type == PING || type == PONG;
+    }
+
+    /**
+     * Gets the user code of the recipient, from the first parentheses in the payload,
+     * without creating the payload.
+     *
+     * @return The user code of the recipient.
+     * @throws StringIndexOutOfBoundsException If the parentheses are missing.
+     * @throws NumberFormatException If the recipient is not a number.
+     */
+    public int getRecipientCode() {
+        final int leftPara = message.indexOf('(', colon + 1);
+        final int rightPara = message.indexOf(')', colon + 1);
+
+        checkRange(message, leftPara + 1, rightPara);
+
+        return parseInt(message, leftPara + 1, rightPara);
+    }
+
+    @Override
+    public String toString() {
+        return message;
+    }
+
+    /**
+     * Finds the dot between the user code and the sequence, without searching past the header.
+     *
+     * @return The position of the dot, or the exclamation mark if there is no sequence.
+     */
+    private static int findSequenceDelimiter(final String message, final int exclamation) {
+        for (int i = 0; i < exclamation; i++) {
+            if (message.charAt(i) == '.') {
+                return i;
+            }
+        }
+
+        return exclamation;
+    }
+
+    /**
+     * Parses a sequence, which is never negative.
+     */
+    private static long parseSequence(final String message, final int start, final int end) {
+        if (start >= end) {
+            throw numberFormatException(message, start, end);
+        }
+
+        long result = 0;
+
+        for (int index = start; index < end; index++) {
+            final int digit = Character.digit(message.charAt(index), 10);
+
+            if (digit < 0 || result > (Long.MAX_VALUE - digit) / 10) {
+                throw numberFormatException(message, start, end);
+            }
+
+            result = result * 10 + digit;
+        }
+
+        return result;
+    }
+
+    private static String findType(final String message, final int start, final int end) {
+        final int length = end - start;
+
+        for (final String knownType : KNOWN_TYPES) {
+            if (knownType.length() == length && message.regionMatches(start, knownType, 0, length)) {
+                return knownType;
+            }
+        }
+
+        return message.substring(start, end);
+    }
+
+    /**
+     * Same rules as {@link String#substring(int, int)}, to fail the same way the parsers always have.
+     */
+    private static void checkRange(final String message, final int start, final int end) {
+        if (start < 0 || end > message.length() || start > end) {
+            throw new StringIndexOutOfBoundsException("begin " + start + ", end " + end +
+                    ", length " + message.length());
+        }
+    }
+
+    /**
+     * Same rules as {@link Integer#parseInt(String)}, without creating a substring first.
+     */
+    private static int parseInt(final String message, final int start, final int end) {
+        if (start >= end) {
+            throw numberFormatException(message, start, end);
+        }
+
+        int index = start;
+        boolean negative = false;
+        final char first = message.charAt(index);
+
+        if (first == '-' || first == '+') {
+            negative = first == '-';
+            index++;
+
+            if (index == end) {
+                throw numberFormatException(message, start, end);
+            }
+        }
+
+        final int limit = negative ? Integer.MIN_VALUE : -Integer.MAX_VALUE;
+        final int multiplyLimit = limit / 10;
+        int result = 0;
+
+        while (index < end) {
+            final int digit = Character.digit(message.charAt(index), 10);
+
+            if (digit < 0 || result < multiplyLimit) {
+                throw numberFormatException(message, start, end);
+            }
+
+            result *= 10;
+
+            if (result < limit + digit) {
+                throw numberFormatException(message, start, end);
+            }
+
+            result -= digit;
+            index++;
+        }
+
+        return negative ? result : -result;
+    }
+
+    private static NumberFormatException numberFormatException(final String message, final int start,
+                                                               final int end) {
+        return new NumberFormatException("For input string: \"" + message.substring(start, end) + "\"");
+    }
+}
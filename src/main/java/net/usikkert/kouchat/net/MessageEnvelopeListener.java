@@ -0,0 +1,42 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import net.usikkert.kouchat.event.ReceiverListener;
+
+/**
+ * A {@link ReceiverListener} that can use a message where the header is already parsed,
+ * to avoid parsing the same message more than once.
+ *
+ * @author Christian Ihle
+ */
+public interface MessageEnvelopeListener extends ReceiverListener {
+
+    /**
+     * Called when a new message arrives over the network.
+     *
+     * @param envelope The message that arrived, with the header parsed.
+     * @param ipAddress The ip address of the user that sent the message.
+     */
+    void envelopeArrived(MessageEnvelope envelope, String ipAddress);
+}
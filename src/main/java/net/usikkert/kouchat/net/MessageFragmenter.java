@@ -0,0 +1,143 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.usikkert.kouchat.Constants;
+import net.usikkert.kouchat.util.Validate;
+
+/**
+ * Splits messages that are too large for a single udp packet into fragments.
+ *
+ * <p>Each fragment is a message of its own, with a header in front of a part of the original message:</p>
+ *
+ * <pre>FRAG:messageId:fragmentIndex:fragmentCount:part</pre>
+ *
+ * <p>The message is split between characters, and never inside a character, so every fragment is
+ * valid text and can be received the same way as any other message. The {@link MessageReassembler}
+ * puts the fragments back together on the receiving side.</p>
+ *
+ * <p>Messages that fit in a single packet are sent without a header, exactly as before.</p>
+ *
+ * @author Christian Ihle
+ */
+public class MessageFragmenter {
+
+    /** The start of every fragment. Regular messages start with the user code, so this never clashes. */
+    public static final String FRAGMENT_PREFIX = "FRAG:";
+
+    /** The max number of fragments a single message can be split into. */
+    public static final int MAX_FRAGMENTS = 128;
+
+    /** The number of bytes of the original message in each fragment, leaving room for the header. */
+    static final int FRAGMENT_PAYLOAD_BYTES = Constants.MESSAGE_MAX_BYTES;
+
+    /** Ids for the messages that are split, starting at random so another client on the same ip won't clash. */
+    private final AtomicInteger nextMessageId;
+
+    /**
+     * Constructor.
+     */
+    public MessageFragmenter() {
+        nextMessageId = new AtomicInteger(new Random().nextInt());
+    }
+
+    /**
+     * Splits the message into fragments, if it's too large for a single packet.
+     *
+     * @param message The message to split.
+     * @return A list with the fragments, or just the message if no split was necessary.
+     * @throws UnsupportedEncodingException If the encoding of the message is unsupported.
+     * @see Constants#NETWORK_PACKET_SIZE
+     */
+    public List<String> fragment(final String message) throws UnsupportedEncodingException {
+        Validate.notNull(message, "Message can not be null");
+
+        if (message.getBytes(Constants.MESSAGE_CHARSET).length <= Constants.NETWORK_PACKET_SIZE) {
+            return Collections.singletonList(message);
+        }
+
+        final List<String> parts = split(message);
+
+        if (parts.size() > MAX_FRAGMENTS) {
+            throw new IllegalArgumentException("Message needs " + parts.size() + " fragments. Max is " + MAX_FRAGMENTS);
+        }
+
+        final int messageId = nextMessageId.getAndIncrement() & Integer.MAX_VALUE;
+        final List<String> fragments = new ArrayList<>(parts.size());
+
+        for (int i = 0; i < parts.size(); i++) {
+            fragments.add(FRAGMENT_PREFIX + messageId + ":" + i + ":" + parts.size() + ":" + parts.get(i));
+        }
+
+        return fragments;
+    }
+
+    private List<String> split(final String message) {
+        final List<String> parts = new ArrayList<>();
+
+        int partStart = 0;
+        int partBytes = 0;
+        int index = 0;
+
+        while (index < message.length()) {
+            final int codePoint = message.codePointAt(index);
+            final int codePointBytes = getUtf8Bytes(codePoint);
+
+            if (partBytes + codePointBytes > FRAGMENT_PAYLOAD_BYTES) {
+                parts.add(message.substring(partStart, index));
+                partStart = index;
+                partBytes = 0;
+            }
+
+            partBytes += codePointBytes;
+            index += Character.charCount(codePoint);
+        }
+
+        parts.add(message.substring(partStart));
+
+        return parts;
+    }
+
+    private int getUtf8Bytes(final int codePoint) {
+        if (codePoint < 0x80) {
+            return 1;
+        }
+
+        else if (codePoint < 0x800) {
+            return 2;
+        }
+
+        else if (codePoint < 0x10000) {
+            return 3;
+        }
+
+        return 4;
+    }
+}
@@ -0,0 +1,50 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+/**
+ * Listener for lost multicast messages, and for other users asking for messages they lost.
+ *
+ * @author Christian Ihle
+ * @see ReliableMulticast
+ */
+public interface MessageLossListener {
+
+    /**
+     * Messages with a sequence between the first and the last were skipped by a message that just arrived.
+     * Some of them may still arrive later, out of order.
+     *
+     * @param userCode The code of the user that sent the messages.
+     * @param firstSequence The first missing sequence.
+     * @param lastSequence The last missing sequence.
+     */
+    void messagesMissing(int userCode, long firstSequence, long lastSequence);
+
+    /**
+     * A user asked for messages to be sent again.
+     *
+     * @param nack The message with the sequences to send again.
+     * @param ipAddress The ip address of the user.
+     */
+    void nackArrived(MessageEnvelope nack, String ipAddress);
+}
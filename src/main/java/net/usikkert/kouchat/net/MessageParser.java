@@ -24,14 +24,16 @@ package net.usikkert.kouchat.net;
 
 import static net.usikkert.kouchat.net.NetworkMessageType.*;
 
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import net.usikkert.kouchat.event.ReceiverListener;
 import net.usikkert.kouchat.misc.User;
 import net.usikkert.kouchat.settings.Settings;
 import net.usikkert.kouchat.util.Validate;
 
+import org.jetbrains.annotations.Nullable;
+
 /**
  * This class listens for multicast messages from the network,
  * and parses them into a format the {@link MessageResponder} can use.
@@ -61,7 +63,7 @@ import net.usikkert.kouchat.util.Validate;
  *
  * @author Christian Ihle
  */
-public class MessageParser implements ReceiverListener {
+public class MessageParser implements MessageEnvelopeListener {
 
     /** The logger. */
     private static final Logger LOG = Logger.getLogger(MessageParser.class.getName());
@@ -72,6 +74,13 @@ public class MessageParser implements ReceiverListener {
     /** The application settings. */
     private final Settings settings;
 
+    /** Finds the decoder to use for messages from other users. */
+    private final MessageDispatcher dispatcher;
+
+    /** Told about every message from other users. */
+    @Nullable
+    private PeerActivityListener activityListener;
+
     /** If logged on to the chat or not. */
     private boolean loggedOn;
 
@@ -87,215 +96,76 @@ public class MessageParser implements ReceiverListener {
 
         this.responder = responder;
         this.settings = settings;
+
+        dispatcher = new MessageDispatcher();
+        MessageDecoders.registerAll(dispatcher, responder);
     }
 
     /**
-     * The parser. Checks what kind of message it is,
-     * and then gives the correct data to the responder for
-     * more processing.
+     * Registers a listener for signs of life from other users. Gets every message from other users
+     * that is parsed here, except the log off, which is reported on its own.
+     *
+     * @param theListener The listener to register.
+     */
+    public void registerPeerActivityListener(final PeerActivityListener theListener) {
+        this.activityListener = theListener;
+    }
+
+    /**
+     * Parses the header of the message, and then gives it to {@link #envelopeArrived(MessageEnvelope, String)}.
      *
      * @param message The raw message to parse.
      * @param ipAddress The IP address of the user who sent the message.
      */
     @Override
     public void messageArrived(final String message, final String ipAddress) {
-        try {
-            final int exclamation = message.indexOf("!");
-            final int hash = message.indexOf("#");
-            final int colon = message.indexOf(":");
-
-            final int msgCode = Integer.parseInt(message.substring(0, exclamation));
-            final String type = message.substring(exclamation + 1, hash);
-            final String msgNick = message.substring(hash + 1, colon);
-            final String msg = message.substring(colon + 1, message.length());
-
-            final User tempme = settings.getMe();
-
-            if (msgCode != tempme.getCode() && loggedOn) {
-                if (type.equals(MSG)) {
-                    final int leftBracket = msg.indexOf("[");
-                    final int rightBracket = msg.indexOf("]");
-                    final int rgb = Integer.parseInt(msg.substring(leftBracket + 1, rightBracket));
-
-                    responder.messageArrived(msgCode, msg.substring(rightBracket + 1, msg.length()), rgb);
-                }
-
-                else if (type.equals(LOGON)) {
-                    final User newUser = new User(msgNick, msgCode);
-                    newUser.setIpAddress(ipAddress);
-                    newUser.setLastIdle(System.currentTimeMillis());
-                    newUser.setLogonTime(System.currentTimeMillis());
-
-                    responder.userLogOn(newUser);
-                }
-
-                else if (type.equals(EXPOSING)) {
-                    final User user = new User(msgNick, msgCode);
-                    user.setIpAddress(ipAddress);
-                    user.setAwayMsg(msg);
-
-                    if (msg.length() > 0) {
-                        user.setAway(true);
-                    }
-
-                    user.setLastIdle(System.currentTimeMillis());
-                    user.setLogonTime(System.currentTimeMillis());
-
-                    responder.userExposing(user);
-                }
-
-                else if (type.equals(LOGOFF)) {
-                    responder.userLogOff(msgCode);
-                }
-
-                else if (type.equals(AWAY)) {
-                    responder.awayChanged(msgCode, true, msg);
-                }
-
-                else if (type.equals(BACK)) {
-                    responder.awayChanged(msgCode, false, "");
-                }
-
-                else if (type.equals(EXPOSE)) {
-                    responder.exposeRequested();
-                }
-
-                else if (type.equals(NICKCRASH)) {
-                    if (tempme.getNick().equals(msg)) {
-                        responder.nickCrash();
-                    }
-                }
-
-                else if (type.equals(WRITING)) {
-                    responder.writingChanged(msgCode, true);
-                }
-
-                else if (type.equals(STOPPEDWRITING)) {
-                    responder.writingChanged(msgCode, false);
-                }
+        final MessageEnvelope envelope;
 
-                else if (type.equals(GETTOPIC)) {
-                    responder.topicRequested();
-                }
-
-                else if (type.equals(TOPIC)) {
-                    final int leftBracket = msg.indexOf("[");
-                    final int rightBracket = msg.indexOf("]");
-                    final int leftPara = msg.indexOf("(");
-                    final int rightPara = msg.indexOf(")");
-
-                    if (rightBracket != -1 && leftBracket != -1) {
-                        final String theNick = msg.substring(leftPara + 1, rightPara);
-                        final long theTime = Long.parseLong(msg.substring(leftBracket + 1, rightBracket));
-                        String theTopic = null;
-
-                        if (msg.length() > rightBracket + 1) {
-                            theTopic = msg.substring(rightBracket + 1, msg.length());
-                        }
-
-                        responder.topicChanged(msgCode, theTopic, theNick, theTime);
-                    }
-                }
+        try {
+            envelope = MessageEnvelope.parse(message);
+        }
 
-                else if (type.equals(NICK)) {
-                    responder.nickChanged(msgCode, msgNick);
-                }
+        // Just ignore, someone sent a badly formatted message
+        catch (final StringIndexOutOfBoundsException | NumberFormatException e) {
+            LOG.log(Level.SEVERE, "Failed to parse message. message=" + message + ", ipAddress=" + ipAddress, e);
+            return;
+        }
 
-                else if (type.equals(IDLE)) {
-                    responder.userIdle(msgCode, ipAddress);
-                }
+        envelopeArrived(envelope, ipAddress);
+    }
 
-                else if (type.equals(SENDFILEACCEPT)) {
-                    final int leftPara = msg.indexOf("(");
-                    final int rightPara = msg.indexOf(")");
-                    final int fileCode = Integer.parseInt(msg.substring(leftPara + 1, rightPara));
-
-                    if (fileCode == tempme.getCode()) {
-                        final int leftCurly = msg.indexOf("{");
-                        final int rightCurly = msg.indexOf("}");
-                        final int leftBracket = msg.indexOf("[");
-                        final int rightBracket = msg.indexOf("]");
-                        final int port = Integer.parseInt(msg.substring(leftBracket + 1, rightBracket));
-                        final int fileHash = Integer.parseInt(msg.substring(leftCurly + 1, rightCurly));
-                        final String fileName = msg.substring(rightCurly + 1, msg.length());
-
-                        responder.fileSendAccepted(msgCode, fileName, fileHash, port);
-                    }
-                }
+    /**
+     * The parser. Messages from other users are given to the decoder registered for the type
+     * of message in the {@link MessageDispatcher}, which gives the correct data to the responder for
+     * more processing. My own messages are handled here.
+     *
+     * <p>The payload is only extracted from messages that are going to be used.</p>
+     *
+     * @param envelope The message to parse, with the header already parsed.
+     * @param ipAddress The IP address of the user who sent the message.
+     */
+    @Override
+    public void envelopeArrived(final MessageEnvelope envelope, final String ipAddress) {
+        final String message = envelope.getMessage();
 
-                else if (type.equals(SENDFILEABORT)) {
-                    final int leftPara = msg.indexOf("(");
-                    final int rightPara = msg.indexOf(")");
-                    final int fileCode = Integer.parseInt(msg.substring(leftPara + 1, rightPara));
+        try {
+            final int msgCode = envelope.getUserCode();
+            final String type = envelope.getType();
 
-                    if (fileCode == tempme.getCode()) {
-                        final int leftCurly = msg.indexOf("{");
-                        final int rightCurly = msg.indexOf("}");
-                        final String fileName = msg.substring(rightCurly + 1, msg.length());
-                        final int fileHash = Integer.parseInt(msg.substring(leftCurly + 1, rightCurly));
+            final User tempme = settings.getMe();
 
-                        responder.fileSendAborted(msgCode, fileName, fileHash);
+            if (msgCode != tempme.getCode() && loggedOn) {
+                if (activityListener != null) {
+                    if (type.equals(LOGOFF)) {
+                        activityListener.userLoggedOff(msgCode);
                     }
-                }
 
-                else if (type.equals(SENDFILE)) {
-                    final int leftPara = msg.indexOf("(");
-                    final int rightPara = msg.indexOf(")");
-                    final int fileCode = Integer.parseInt(msg.substring(leftPara + 1, rightPara));
-
-                    if (fileCode == tempme.getCode()) {
-                        final int leftCurly = msg.indexOf("{");
-                        final int rightCurly = msg.indexOf("}");
-                        final int leftBracket = msg.indexOf("[");
-                        final int rightBracket = msg.indexOf("]");
-                        final long byteSize = Long.parseLong(msg.substring(leftBracket + 1, rightBracket));
-                        final String fileName = msg.substring(rightCurly + 1, msg.length());
-                        final int fileHash = Integer.parseInt(msg.substring(leftCurly + 1, rightCurly));
-
-                        responder.fileSend(msgCode, byteSize, fileName, msgNick, fileHash);
+                    else {
+                        activityListener.activityArrived(msgCode, type.equals(IDLE));
                     }
                 }
 
-                else if (type.equals(CLIENT)) {
-                    final int leftPara = msg.indexOf("(");
-                    final int rightPara = msg.indexOf(")");
-                    final int leftBracket = msg.indexOf("[");
-                    final int rightBracket = msg.indexOf("]");
-                    final int leftCurly = msg.indexOf("{");
-                    final int rightCurly = msg.indexOf("}");
-                    final int lessThan = msg.indexOf("<");
-                    final int greaterThan = msg.indexOf(">");
-                    final int slash = msg.indexOf("/");
-                    final int backslash = msg.indexOf("\\");
-
-                    final String client = msg.substring(leftPara + 1, rightPara);
-                    final long timeSinceLogon = Long.parseLong(msg.substring(leftBracket + 1, rightBracket));
-                    final String operatingSystem = msg.substring(leftCurly + 1, rightCurly);
-
-                    int privateChatPort = 0;
-
-                    try {
-                        privateChatPort = Integer.parseInt(msg.substring(lessThan + 1, greaterThan));
-                    }
-
-                    catch (final NumberFormatException e) {
-                        LOG.log(Level.WARNING, "Failed to parse private chat port. message=" + message + ", ipAddress=" + ipAddress, e);
-                    }
-
-                    int tcpChatPort = 0;
-
-                    if (slash != -1 && backslash != -1) {
-                        try {
-                            tcpChatPort = Integer.parseInt(msg.substring(slash + 1, backslash));
-                        }
-
-                        catch (final NumberFormatException e) {
-                            LOG.log(Level.WARNING, "Failed to parse tcp chat port. message=" + message + ", ipAddress=" + ipAddress, e);
-                        }
-                    }
-
-                    responder.clientInfo(msgCode, client, timeSinceLogon, operatingSystem, privateChatPort, tcpChatPort);
-                }
+                dispatcher.dispatch(envelope, ipAddress, tempme);
             }
 
             else if (msgCode == tempme.getCode() && type.equals(LOGON)) {
@@ -318,4 +188,13 @@ public class MessageParser implements ReceiverListener {
             LOG.log(Level.SEVERE, "Failed to parse message. message=" + message + ", ipAddress=" + ipAddress, e);
         }
     }
+
+    /**
+     * Gets the number of messages from other users given to the decoder for each type of message.
+     *
+     * @return A copy of the current counts, sorted by type.
+     */
+    public Map<String, Long> getMessageCounts() {
+        return dispatcher.getHitCounts();
+    }
 }
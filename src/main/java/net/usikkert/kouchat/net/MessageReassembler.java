@@ -0,0 +1,236 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.usikkert.kouchat.event.ReceiverListener;
+import net.usikkert.kouchat.util.Validate;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Puts fragments created by {@link MessageFragmenter} back together, and forwards the complete messages
+ * to the listener. Messages that are not fragments are forwarded right away.
+ *
+ * <p>Fragments are kept for a limited time. If the rest of the fragments of a message don't arrive
+ * before that, the fragments are thrown away. The number of incomplete messages kept at the same time
+ * is also limited, so lost packets can't make the buffer grow without bounds.</p>
+ *
+ * @author Christian Ihle
+ */
+public class MessageReassembler implements ReceiverListener {
+
+    /** The logger. */
+    private static final Logger LOG = Logger.getLogger(MessageReassembler.class.getName());
+
+    /** How long to wait for the rest of the fragments of a message, in milliseconds. */
+    public static final long REASSEMBLY_TIMEOUT = 10000L;
+
+    /** The max number of incomplete messages to keep at the same time. */
+    static final int MAX_INCOMPLETE_MESSAGES = 64;
+
+    private final ReceiverListener listener;
+
+    /** Incomplete messages, with the ip address and message id as key. */
+    private final Map<String, IncompleteMessage> incompleteMessages;
+
+    /**
+     * Constructor.
+     *
+     * @param listener The listener to forward complete messages to.
+     */
+    public MessageReassembler(final ReceiverListener listener) {
+        Validate.notNull(listener, "Listener can not be null");
+
+        this.listener = listener;
+        incompleteMessages = new HashMap<>();
+    }
+
+    /**
+     * Forwards the message, or keeps it until the rest of the fragments arrive if it's a fragment.
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public void messageArrived(final String message, final String ipAddress) {
+        if (!message.startsWith(MessageFragmenter.FRAGMENT_PREFIX)) {
+            listener.messageArrived(message, ipAddress);
+            return;
+        }
+
+        final String completeMessage = addFragment(message, ipAddress, System.currentTimeMillis());
+
+        if (completeMessage != null) {
+            listener.messageArrived(completeMessage, ipAddress);
+        }
+    }
+
+    /**
+     * Adds the fragment to the incomplete message it belongs to.
+     *
+     * @param fragment The fragment to add.
+     * @param ipAddress The ip address of the user that sent the fragment.
+     * @param now The current time in milliseconds.
+     * @return The complete message, if this was the last missing fragment. Else <code>null</code>.
+     */
+    @Nullable
+    synchronized String addFragment(final String fragment, final String ipAddress, final long now) {
+        removeExpiredMessages(now);
+
+        final int idEnd = fragment.indexOf(':', MessageFragmenter.FRAGMENT_PREFIX.length());
+        final int indexEnd = fragment.indexOf(':', idEnd + 1);
+        final int countEnd = fragment.indexOf(':', indexEnd + 1);
+
+        if (idEnd < 0 || indexEnd < 0 || countEnd < 0) {
+            LOG.log(Level.WARNING, "Invalid fragment from " + ipAddress + ": " + fragment);
+            return null;
+        }
+
+        final String messageId = fragment.substring(MessageFragmenter.FRAGMENT_PREFIX.length(), idEnd);
+        final int index;
+        final int count;
+
+        try {
+            index = Integer.parseInt(fragment.substring(idEnd + 1, indexEnd));
+            count = Integer.parseInt(fragment.substring(indexEnd + 1, countEnd));
+        }
+
+        catch (final NumberFormatException e) {
+            LOG.log(Level.WARNING, "Invalid fragment from " + ipAddress + ": " + fragment);
+            return null;
+        }
+
+        if (count < 1 || count > MessageFragmenter.MAX_FRAGMENTS || index < 0 || index >= count) {
+            LOG.log(Level.WARNING, "Invalid fragment " + index + " of " + count + " from " + ipAddress);
+            return null;
+        }
+
+        final String key = ipAddress + "/" + messageId;
+        IncompleteMessage incompleteMessage = incompleteMessages.get(key);
+
+        if (incompleteMessage == null) {
+            if (incompleteMessages.size() >= MAX_INCOMPLETE_MESSAGES) {
+                removeOldestMessage();
+            }
+
+            incompleteMessage = new IncompleteMessage(count, now);
+            incompleteMessages.put(key, incompleteMessage);
+        }
+
+        else if (incompleteMessage.parts.length != count) {
+            LOG.log(Level.WARNING, "Fragment count changed from " + incompleteMessage.parts.length + " to " + count +
+                    " for message " + key);
+            incompleteMessages.remove(key);
+            return null;
+        }
+
+        incompleteMessage.addPart(index, fragment.substring(countEnd + 1));
+
+        if (!incompleteMessage.isComplete()) {
+            return null;
+        }
+
+        incompleteMessages.remove(key);
+
+        return incompleteMessage.join();
+    }
+
+    /**
+     * Gets the number of messages still waiting for more fragments.
+     *
+     * @return The number of incomplete messages.
+     */
+    public synchronized int getIncompleteMessageCount() {
+        return incompleteMessages.size();
+    }
+
+    private void removeExpiredMessages(final long now) {
+        final Iterator<Map.Entry<String, IncompleteMessage>> iterator = incompleteMessages.entrySet().iterator();
+
+        while (iterator.hasNext()) {
+            final Map.Entry<String, IncompleteMessage> entry = iterator.next();
+
+            if (now - entry.getValue().created > REASSEMBLY_TIMEOUT) {
+                LOG.log(Level.FINE, "Gave up waiting for the rest of message " + entry.getKey());
+                iterator.remove();
+            }
+        }
+    }
+
+    private void removeOldestMessage() {
+        String oldestKey = null;
+        long oldestCreated = Long.MAX_VALUE;
+
+        for (final Map.Entry<String, IncompleteMessage> entry : incompleteMessages.entrySet()) {
+            if (entry.getValue().created < oldestCreated) {
+                oldestKey = entry.getKey();
+                oldestCreated = entry.getValue().created;
+            }
+        }
+
+        LOG.log(Level.FINE, "Too many incomplete messages. Removing " + oldestKey);
+        incompleteMessages.remove(oldestKey);
+    }
+
+    /**
+     * The fragments received so far of a message.
+     */
+    private static class IncompleteMessage {
+
+        private final String[] parts;
+        private final long created;
+        private int missingParts;
+
+        IncompleteMessage(final int count, final long created) {
+            this.parts = new String[count];
+            this.created = created;
+            this.missingParts = count;
+        }
+
+        void addPart(final int index, final String part) {
+            if (parts[index] == null) {
+                parts[index] = part;
+                missingParts--;
+            }
+        }
+
+        boolean isComplete() {
+            return missingParts == 0;
+        }
+
+        String join() {
+            final StringBuilder builder = new StringBuilder();
+
+            for (final String part : parts) {
+                builder.append(part);
+            }
+
+            return builder.toString();
+        }
+    }
+}
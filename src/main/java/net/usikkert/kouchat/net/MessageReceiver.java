@@ -27,8 +27,15 @@ import static net.usikkert.kouchat.net.NetworkUtils.IPTOS_RELIABILITY;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.MulticastSocket;
 import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -43,6 +50,14 @@ import org.jetbrains.annotations.Nullable;
  * This is the thread that listens for multicast messages from
  * the network, and notifies any listeners when messages arrive.
  *
+ * <p>Messages are received into buffers from a {@link ByteBufferPool}, either with a blocking
+ * {@link MulticastSocket}, or with a {@link DatagramChannel} and direct buffers when channel mode is enabled.
+ * Channel mode needs a network interface to join the multicast group on, so the socket is used as a fallback
+ * when the operating system is left to choose the network interface.</p>
+ *
+ * <p>If a {@link NetworkEventLoop} is given, the channel is registered there instead of
+ * being read by a thread of its own.</p>
+ *
  * @author Christian Ihle
  */
 public class MessageReceiver implements Runnable {
@@ -50,10 +65,33 @@ public class MessageReceiver implements Runnable {
     /** The logger. */
     private static final Logger LOG = Logger.getLogger(MessageReceiver.class.getName());
 
+    /** Number of idle buffers to keep for reuse. */
+    private static final int BUFFER_POOL_SIZE = 64;
+
     /** The multicast socket used for receiving messages. */
     @Nullable
     private MulticastSocket mcSocket;
 
+    /** The multicast channel used for receiving messages in channel mode. */
+    @Nullable
+    private DatagramChannel mcChannel;
+
+    /** Reused for every packet received with the multicast socket. */
+    private final DatagramPacket packet;
+
+    /** Heap buffers for the multicast socket. */
+    private final ByteBufferPool heapBufferPool;
+
+    /** Direct buffers for the multicast channel. */
+    private final ByteBufferPool directBufferPool;
+
+    /** If the channel should be used instead of the socket when possible. */
+    private final boolean channelMode;
+
+    /** The event loop to register the channel in, or <code>null</code> to use a thread. */
+    @Nullable
+    private final NetworkEventLoop eventLoop;
+
     /** The inetaddress object with the multicast ip address to receive messages from. */
     private InetAddress address;
 
@@ -82,6 +120,32 @@ public class MessageReceiver implements Runnable {
         this(Constants.NETWORK_IP, Constants.NETWORK_CHAT_PORT, errorHandler);
     }
 
+    /**
+     * Constructor with choice of receive mode.
+     *
+     * <p>Initializes the network with the default ip address and port.</p>
+     *
+     * @param errorHandler The error handler to use.
+     * @param channelMode If messages should be received with a {@link DatagramChannel} when possible.
+     */
+    public MessageReceiver(final ErrorHandler errorHandler, final boolean channelMode) {
+        this(Constants.NETWORK_IP, Constants.NETWORK_CHAT_PORT, errorHandler, channelMode, null);
+    }
+
+    /**
+     * Constructor with choice of receive mode, and an event loop for the channel.
+     *
+     * <p>Initializes the network with the default ip address and port.</p>
+     *
+     * @param errorHandler The error handler to use.
+     * @param channelMode If messages should be received with a {@link DatagramChannel} when possible.
+     * @param eventLoop The event loop to register the channel in, or <code>null</code> to use a thread.
+     */
+    public MessageReceiver(final ErrorHandler errorHandler, final boolean channelMode,
+                           @Nullable final NetworkEventLoop eventLoop) {
+        this(Constants.NETWORK_IP, Constants.NETWORK_CHAT_PORT, errorHandler, channelMode, eventLoop);
+    }
+
     /**
      * Alternative constructor.
      *
@@ -92,12 +156,34 @@ public class MessageReceiver implements Runnable {
      * @param errorHandler The error handler to use.
      */
     public MessageReceiver(final String ipAddress, final int port, final ErrorHandler errorHandler) {
+        this(ipAddress, port, errorHandler, false, null);
+    }
+
+    /**
+     * Alternative constructor with choice of receive mode.
+     *
+     * <p>Initializes the network with the given ip address and port.</p>
+     *
+     * @param ipAddress Multicast ip address to connect to.
+     * @param port Port to connect to.
+     * @param errorHandler The error handler to use.
+     * @param channelMode If messages should be received with a {@link DatagramChannel} when possible.
+     * @param eventLoop The event loop to register the channel in, or <code>null</code> to use a thread.
+     */
+    public MessageReceiver(final String ipAddress, final int port, final ErrorHandler errorHandler,
+                           final boolean channelMode, @Nullable final NetworkEventLoop eventLoop) {
         LOG.fine("Creating MessageReceiver on " + ipAddress + ":" + port);
 
         Validate.notEmpty(ipAddress, "IP address can not be empty");
         Validate.notNull(errorHandler, "Error handler can not be null");
 
         this.port = port;
+        this.channelMode = channelMode;
+        this.eventLoop = eventLoop;
+
+        packet = new DatagramPacket(new byte[0], 0);
+        heapBufferPool = new ByteBufferPool(BUFFER_POOL_SIZE, Constants.NETWORK_PACKET_SIZE, false);
+        directBufferPool = new ByteBufferPool(BUFFER_POOL_SIZE, Constants.NETWORK_PACKET_SIZE, true);
 
         try {
             address = InetAddress.getByName(ipAddress);
@@ -119,17 +205,11 @@ public class MessageReceiver implements Runnable {
     public void run() {
         while (connected) {
             try {
-                final DatagramPacket packet = new DatagramPacket(
-                        new byte[Constants.NETWORK_PACKET_SIZE], Constants.NETWORK_PACKET_SIZE);
-
                 if (connected) {
-                    mcSocket.receive(packet);
-                    final String ip = packet.getAddress().getHostAddress();
-                    final String message = new String(packet.getData(), Constants.MESSAGE_CHARSET).trim();
-                    LOG.log(Level.FINE, "Message arrived from " + ip + ": " + message);
+                    final ReceivedDatagram datagram = receive();
 
-                    if (listener != null) {
-                        listener.messageArrived(message, ip);
+                    if (datagram != null) {
+                        deliver(datagram);
                     }
                 }
             }
@@ -147,6 +227,91 @@ public class MessageReceiver implements Runnable {
         }
     }
 
+    private void deliver(final ReceivedDatagram datagram) {
+        if (LOG.isLoggable(Level.FINE)) {
+            LOG.log(Level.FINE, "Message arrived from " + datagram.getIpAddress() + ": " +
+                    datagram.getMessage());
+        }
+
+        if (listener != null) {
+            datagram.deliverTo(listener);
+        }
+
+        else {
+            datagram.release();
+        }
+    }
+
+    /**
+     * Blocks until the next datagram arrives, from the channel if open, or the socket otherwise.
+     *
+     * @return The datagram that arrived, or <code>null</code> if the channel is non-blocking and empty.
+     * @throws IOException If the channel or socket is closed, or the network is down.
+     */
+    @Nullable
+    private ReceivedDatagram receive() throws IOException {
+        final DatagramChannel channel = mcChannel;
+
+        if (channel != null) {
+            return receiveFromChannel(channel);
+        }
+
+        return receiveFromSocket();
+    }
+
+    /**
+     * Receives the next datagram from the channel.
+     *
+     * @param channel The channel to receive from.
+     * @return The datagram, or <code>null</code> if the channel is non-blocking and no datagram is waiting.
+     * @throws IOException If the channel is closed, or the network is down.
+     */
+    @Nullable
+    private ReceivedDatagram receiveFromChannel(final DatagramChannel channel) throws IOException {
+        final ByteBuffer buffer = directBufferPool.acquire();
+
+        try {
+            final InetSocketAddress sender = (InetSocketAddress) channel.receive(buffer);
+
+            if (sender == null) {
+                directBufferPool.release(buffer);
+                return null;
+            }
+
+            buffer.flip();
+
+            return new ReceivedDatagram(buffer, sender.getAddress().getHostAddress(), directBufferPool);
+        }
+
+        catch (final IOException e) {
+            directBufferPool.release(buffer);
+            throw e;
+        }
+    }
+
+    private ReceivedDatagram receiveFromSocket() throws IOException {
+        final MulticastSocket socket = mcSocket;
+
+        if (socket == null) {
+            throw new SocketException("Socket is closed");
+        }
+
+        final ByteBuffer buffer = heapBufferPool.acquire();
+
+        try {
+            packet.setData(buffer.array(), 0, buffer.capacity());
+            socket.receive(packet);
+            buffer.limit(packet.getLength());
+
+            return new ReceivedDatagram(buffer, packet.getAddress().getHostAddress(), heapBufferPool);
+        }
+
+        catch (final IOException e) {
+            heapBufferPool.release(buffer);
+            throw e;
+        }
+    }
+
     /**
      * Starts the thread that listens for messages.
      */
@@ -169,26 +334,61 @@ public class MessageReceiver implements Runnable {
     public synchronized boolean startReceiver(@Nullable final NetworkInterface networkInterface) {
         LOG.log(Level.FINE, "Connecting to " + address.getHostAddress() + ":" + port + " on " + networkInterface);
 
-        try {
-            if (connected) {
-                LOG.log(Level.FINE, "Already connected.");
+        if (connected) {
+            LOG.log(Level.FINE, "Already connected.");
+        }
+
+        else if (channelMode && networkInterface != null) {
+            startChannel(networkInterface);
+        }
+
+        else {
+            if (channelMode) {
+                LOG.log(Level.FINE, "No network interface to join with channel. Using socket.");
             }
 
-            else {
-                if (mcSocket == null) {
-                    mcSocket = new MulticastSocket(port);
-                }
+            startSocket(networkInterface);
+        }
 
-                if (networkInterface != null) {
-                    mcSocket.setNetworkInterface(networkInterface);
-                }
+        if (connected && eventLoop != null && mcChannel != null) {
+            registerChannel(eventLoop, mcChannel);
+        }
+
+        else if (connected && (worker == null || !worker.isAlive())) {
+            startThread();
+        }
+
+        return connected;
+    }
+
+    private void registerChannel(final NetworkEventLoop loop, final DatagramChannel channel) {
+        try {
+            loop.register(channel, SelectionKey.OP_READ, new ChannelEventHandler(channel));
+            LOG.log(Level.FINE, "Registered channel in event loop");
+        }
 
-                mcSocket.setTrafficClass(IPTOS_RELIABILITY);
+        catch (final IOException e) {
+            LOG.log(Level.SEVERE, "Could not register receiver channel: " + e.toString(), e);
+            connected = false;
+            closeChannel();
+        }
+    }
 
-                mcSocket.joinGroup(address);
-                LOG.log(Level.FINE, "Connected to " + mcSocket.getNetworkInterface());
-                connected = true;
+    private void startSocket(@Nullable final NetworkInterface networkInterface) {
+        try {
+            if (mcSocket == null) {
+                mcSocket = new MulticastSocket(port);
             }
+
+            if (networkInterface != null) {
+                mcSocket.setNetworkInterface(networkInterface);
+            }
+
+            mcSocket.setTrafficClass(IPTOS_RELIABILITY);
+
+            mcSocket.joinGroup(address);
+            LOG.log(Level.FINE, "Connected to " + mcSocket.getNetworkInterface());
+            connected = true;
         }
 
         catch (final IOException e) {
@@ -202,12 +402,39 @@ public class MessageReceiver implements Runnable {
                 mcSocket = null;
             }
         }
+    }
 
-        if (connected && (worker == null || !worker.isAlive())) {
-            startThread();
+    private void startChannel(final NetworkInterface networkInterface) {
+        try {
+            mcChannel = DatagramChannel.open(StandardProtocolFamily.INET);
+            mcChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            mcChannel.setOption(StandardSocketOptions.IP_TOS, IPTOS_RELIABILITY);
+            mcChannel.setOption(StandardSocketOptions.IP_MULTICAST_IF, networkInterface);
+            mcChannel.bind(new InetSocketAddress(port));
+
+            mcChannel.join(address, networkInterface);
+            LOG.log(Level.FINE, "Connected to " + networkInterface + " using channel");
+            connected = true;
         }
 
-        return connected;
+        catch (final IOException e) {
+            LOG.log(Level.SEVERE, "Could not start receiver channel: " + e.toString(), e);
+            closeChannel();
+        }
+    }
+
+    private void closeChannel() {
+        if (mcChannel != null) {
+            try {
+                mcChannel.close();
+            }
+
+            catch (final IOException e) {
+                LOG.log(Level.WARNING, e.toString());
+            }
+
+            mcChannel = null;
+        }
     }
 
     /**
@@ -223,32 +450,75 @@ public class MessageReceiver implements Runnable {
         else {
             connected = false;
 
-            try {
-                if (!mcSocket.isClosed()) {
-                    mcSocket.leaveGroup(address);
-                }
+            if (mcChannel != null) {
+                closeChannel();
             }
 
-            catch (final IOException e) {
-                LOG.log(Level.WARNING, e.toString());
+            else {
+                stopSocket();
             }
 
+            LOG.log(Level.FINE, "Disconnected from " + address.getHostAddress() + ":" + port);
+        }
+    }
+
+    private void stopSocket() {
+        try {
             if (!mcSocket.isClosed()) {
-                mcSocket.close();
-                mcSocket = null;
+                mcSocket.leaveGroup(address);
             }
+        }
 
-            LOG.log(Level.FINE, "Disconnected from " + address.getHostAddress() + ":" + port);
+        catch (final IOException e) {
+            LOG.log(Level.WARNING, e.toString());
+        }
+
+        if (!mcSocket.isClosed()) {
+            mcSocket.close();
+            mcSocket = null;
         }
     }
 
     /**
      * Registers as the listener to receive all the messages from
-     * the network.
+     * the network. Listeners implementing {@link DatagramReceiverListener} get the pooled datagrams.
      *
      * @param listener The listener to register.
      */
     public void registerReceiverListener(final ReceiverListener listener) {
         this.listener = listener;
     }
+
+    /**
+     * Receives every waiting datagram when the channel is ready in the event loop.
+     */
+    private final class ChannelEventHandler implements NetworkEventHandler {
+
+        private final DatagramChannel channel;
+
+        private ChannelEventHandler(final DatagramChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void ready(final SelectionKey key) throws IOException {
+            ReceivedDatagram datagram = receiveFromChannel(channel);
+
+            while (datagram != null) {
+                deliver(datagram);
+                datagram = receiveFromChannel(channel);
+            }
+        }
+
+        @Override
+        public void failed(final IOException e) {
+            if (connected) {
+                LOG.log(Level.WARNING, e.toString());
+            }
+
+            else {
+                LOG.log(Level.FINE, e.toString());
+            }
+        }
+    }
 }
@@ -22,6 +22,8 @@
 
 package net.usikkert.kouchat.net;
 
+import java.util.Set;
+
 import net.usikkert.kouchat.misc.User;
 
 /**
@@ -166,8 +168,12 @@ public interface MessageResponder {
      * @param fileName The name of the file.
      * @param fileHash The hash code of the file.
      * @param port The port to use for connecting to the other user.
+     * @param resumeOffset The number of bytes the user already has, or 0 to start from the beginning.
+     * @param resumeChecksum The CRC32 checksum of the bytes the user already has.
+     * @param streams The highest number of connections the user accepts for the file.
      */
-    void fileSendAccepted(int userCode, String fileName, int fileHash, int port);
+    void fileSendAccepted(int userCode, String fileName, int fileHash, int port,
+                          long resumeOffset, long resumeChecksum, int streams);
 
     /**
      * A user has sent information about it's client.
@@ -178,6 +184,8 @@ public interface MessageResponder {
      * @param operatingSystem The user's operating system.
      * @param privateChatPort The port to use for sending private chat messages to this user.
      * @param tcpChatPort The port to use for sending chat messages to this user using tcp.
+     * @param capabilities The optional features the client supports.
      */
-    void clientInfo(int userCode, String client, long timeSinceLogon, String operatingSystem, int privateChatPort, int tcpChatPort);
+    void clientInfo(int userCode, String client, long timeSinceLogon, String operatingSystem, int privateChatPort,
+                    int tcpChatPort, Set<String> capabilities);
 }
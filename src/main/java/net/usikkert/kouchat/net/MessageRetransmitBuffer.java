@@ -0,0 +1,145 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import net.usikkert.kouchat.util.Validate;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Keeps the latest sequenced messages sent to all users, so they can be sent again
+ * when someone lost them.
+ *
+ * <p>The messages are stored in a ring of {@link #SIZE} slots, where the slot of a sequence is given by
+ * its lowest bits, so a new message replaces the message from {@link #SIZE} sequences ago.
+ * A message is only given out for sending again once every {@link #RETRANSMIT_INTERVAL} milliseconds,
+ * since the repair is multicast, and reaches everyone that lost it at once.</p>
+ *
+ * @author Christian Ihle
+ * @see ReliableMulticast
+ */
+public class MessageRetransmitBuffer {
+
+    /** The number of messages to keep. Must be a power of 2. */
+    public static final int SIZE = 256;
+
+    /** The number of milliseconds to wait before the same message can be sent again. */
+    public static final long RETRANSMIT_INTERVAL = 200;
+
+    private static final int MASK = SIZE - 1;
+
+    private final SentMessage[] sentMessages;
+
+    public MessageRetransmitBuffer() {
+        sentMessages = new SentMessage[SIZE];
+    }
+
+    /**
+     * Keeps a message that was just sent.
+     *
+     * @param sequence The sequence of the message.
+     * @param message The message, with the sequence.
+     * @param compress If the message was compressed.
+     * @param binary If the message used the binary format.
+     * @param fragment If the message could be split into fragments.
+     */
+    public synchronized void add(final long sequence, final String message, final boolean compress,
+                                 final boolean binary, final boolean fragment) {
+        Validate.notNull(message, "Message can not be null");
+
+        sentMessages[(int) (sequence & MASK)] = new SentMessage(sequence, message, compress, binary, fragment);
+    }
+
+    /**
+     * Gets the message with the sequence, to send it again.
+     *
+     * @param sequence The sequence of the message.
+     * @param currentTime The current time in milliseconds.
+     * @return The message, or <code>null</code> if it's no longer kept, or was sent again
+     *         less than {@link #RETRANSMIT_INTERVAL} milliseconds ago.
+     */
+    @Nullable
+    public synchronized SentMessage getForRetransmit(final long sequence, final long currentTime) {
+        if (sequence < 0) {
+            return null;
+        }
+
+        final SentMessage sentMessage = sentMessages[(int) (sequence & MASK)];
+
+        if (sentMessage == null || sentMessage.getSequence() != sequence) {
+            return null;
+        }
+
+        if (sentMessage.lastRetransmit != 0 && currentTime - sentMessage.lastRetransmit < RETRANSMIT_INTERVAL) {
+            return null;
+        }
+
+        sentMessage.lastRetransmit = currentTime;
+
+        return sentMessage;
+    }
+
+    /**
+     * A message that was sent, and how it was sent.
+     */
+    public static final class SentMessage {
+
+        private final long sequence;
+        private final String message;
+        private final boolean compress;
+        private final boolean binary;
+        private final boolean fragment;
+
+        /** When the message was last sent again, or 0 if never. */
+        private long lastRetransmit;
+
+        private SentMessage(final long sequence, final String message, final boolean compress,
+                            final boolean binary, final boolean fragment) {
+            this.sequence = sequence;
+            this.message = message;
+            this.compress = compress;
+            this.binary = binary;
+            this.fragment = fragment;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+
+        public boolean isCompress() {
+            return compress;
+        }
+
+        public boolean isBinary() {
+            return binary;
+        }
+
+        public boolean isFragment() {
+            return fragment;
+        }
+    }
+}
@@ -25,10 +25,14 @@ package net.usikkert.kouchat.net;
 import static net.usikkert.kouchat.net.NetworkUtils.IPTOS_RELIABILITY;
 
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
 import java.net.MulticastSocket;
 import java.net.NetworkInterface;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -61,6 +65,15 @@ public class MessageSender {
     /** The port to send messages to. */
     private final int port;
 
+    /** Splits messages too large for a single packet. */
+    private final MessageFragmenter messageFragmenter;
+
+    /** Compresses messages for users that support it. */
+    private final MessageCompressor messageCompressor;
+
+    /** Encodes messages in the binary format for users that support it. */
+    private final BinaryMessageEncoder binaryMessageEncoder;
+
     /**
      * Default constructor.
      *
@@ -90,6 +103,9 @@ public class MessageSender {
         Validate.notNull(errorHandler, "Error handler can not be null");
 
         this.port = port;
+        messageFragmenter = new MessageFragmenter();
+        messageCompressor = new MessageCompressor();
+        binaryMessageEncoder = new BinaryMessageEncoder();
 
         try {
             address = InetAddress.getByName(ipAddress);
@@ -113,19 +129,38 @@ public class MessageSender {
      * @see Constants#MESSAGE_CHARSET
      * @see Constants#NETWORK_PACKET_SIZE
      */
-    public synchronized boolean send(final String message) {
+    public boolean send(final String message) {
+        return send(message, false, false, false);
+    }
+
+    /**
+     * Sends a multicast packet to other clients over the network, in the binary format or compressed if requested.
+     *
+     * <p>Messages too large for a single packet are split into several packets if requested. The binary format
+     * is used for the message types that support it, and compression for the rest.</p>
+     *
+     * @param message The message to send in the packet.
+     * @param compress If the packets should be compressed. Only if every user supports it.
+     * @param binary If the packets should use the binary format. Only if every user supports it.
+     * @param fragment If large messages should be split into fragments. Only if every user supports it.
+     * @return If the message was sent or not.
+     * @see MessageCompressor
+     * @see BinaryMessageEncoder
+     * @see MessageFragmenter
+     */
+    public synchronized boolean send(final String message, final boolean compress, final boolean binary,
+                                     final boolean fragment) {
         if (connected) {
             try {
-                final byte[] encodedMsg = message.getBytes(Constants.MESSAGE_CHARSET);
-                final int size = encodedMsg.length;
+                final List<String> parts =
+                        fragment ? messageFragmenter.fragment(message) : Collections.singletonList(message);
 
-                if (size > Constants.NETWORK_PACKET_SIZE) {
-                    LOG.log(Level.WARNING, "Message was " + size + " bytes, which is too large.\n" +
-                            " The receiver might not get the complete message.\n'" + message + "'");
+                for (final String part : parts) {
+                    final byte[] encodedMsg = encode(part, compress, binary);
+                    final DatagramPacket packet = new DatagramPacket(encodedMsg, encodedMsg.length, address, port);
+                    mcSocket.send(packet);
                 }
 
-                final DatagramPacket packet = new DatagramPacket(encodedMsg, size, address, port);
-                mcSocket.send(packet);
                 LOG.log(Level.FINE, "Sent message: " + message);
 
                 return true;
@@ -139,6 +174,32 @@ public class MessageSender {
         return false;
     }
 
+    /**
+     * Gets the number of bytes saved by compression so far, for each message type.
+     *
+     * @return The bytes saved for each message type.
+     */
+    public Map<String, Long> getBytesSavedByCompression() {
+        return messageCompressor.getBytesSaved();
+    }
+
+    private byte[] encode(final String message, final boolean compress, final boolean binary)
+            throws UnsupportedEncodingException {
+        if (binary) {
+            final byte[] binaryMsg = binaryMessageEncoder.encode(message);
+
+            if (binaryMsg != null) {
+                return binaryMsg;
+            }
+        }
+
+        if (compress) {
+            return messageCompressor.encode(message);
+        }
+
+        return message.getBytes(Constants.MESSAGE_CHARSET);
+    }
+
     /**
      * Connects to the network with the given network interface, or gives
      * the control to the operating system to choose if <code>null</code>
@@ -0,0 +1,133 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+/**
+ * Remembers which of the latest sequences from a single user that have been seen,
+ * so only the first copy of each message is delivered.
+ *
+ * <p>The window is a ring of {@link #SIZE} bits, stored in primitive longs, covering the sequences
+ * up to the highest one seen. Moving the window forward clears the bits it moves past.
+ * A sequence too old for the window can't be checked, and is taken as a sign that the user
+ * started counting from the beginning again, so the window starts over.</p>
+ *
+ * @author Christian Ihle
+ * @see MessageSequencer
+ */
+public class MessageSequenceWindow {
+
+    /** The number of sequences to remember. Must be a multiple of 64. */
+    static final int SIZE = 1024;
+
+    private final long[] seen;
+
+    /** The highest sequence seen, or -1 if none. */
+    private long highest;
+
+    public MessageSequenceWindow() {
+        seen = new long[SIZE / 64];
+        highest = -1;
+    }
+
+    /**
+     * Marks the sequence as seen.
+     *
+     * @param sequence The sequence of a message that arrived.
+     * @return If this is the first time the sequence is seen.
+     */
+    public synchronized boolean markSeen(final long sequence) {
+        if (sequence > highest) {
+            clear(highest + 1, sequence);
+            highest = sequence;
+        }
+
+        else if (highest - sequence >= SIZE) {
+            clear(0, SIZE - 1);
+            highest = sequence;
+        }
+
+        else if (isSet(sequence)) {
+            return false;
+        }
+
+        set(sequence);
+        return true;
+    }
+
+    /**
+     * Checks if the sequence has been seen. Sequences too old for the window count as seen,
+     * since there is no way to know.
+     *
+     * @param sequence The sequence to check.
+     * @return If the sequence has been seen.
+     */
+    public synchronized boolean isSeen(final long sequence) {
+        if (sequence > highest) {
+            return false;
+        }
+
+        return highest - sequence >= SIZE || isSet(sequence);
+    }
+
+    /**
+     * Gets the highest sequence seen.
+     *
+     * @return The highest sequence, or -1 if none.
+     */
+    public synchronized long getHighest() {
+        return highest;
+    }
+
+    /**
+     * Clears the bits from the first sequence to the last, or all of them if there are more than the window.
+     */
+    private void clear(final long first, final long last) {
+        if (last - first >= SIZE - 1) {
+            for (int i = 0; i < seen.length; i++) {
+                seen[i] = 0;
+            }
+        }
+
+        else {
+            for (long sequence = first; sequence <= last; sequence++) {
+                seen[wordIndex(sequence)] &= ~bit(sequence);
+            }
+        }
+    }
+
+    private boolean isSet(final long sequence) {
+        return (seen[wordIndex(sequence)] & bit(sequence)) != 0;
+    }
+
+    private void set(final long sequence) {
+        seen[wordIndex(sequence)] |= bit(sequence);
+    }
+
+    private static int wordIndex(final long sequence) {
+        return (int) (sequence & (SIZE - 1)) >>> 6;
+    }
+
+    private static long bit(final long sequence) {
+        return 1L << (sequence & 63);
+    }
+}
@@ -0,0 +1,68 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.usikkert.kouchat.util.Validate;
+
+/**
+ * Gives each message sent by me a sequence, so the receivers can tell the copies of a message
+ * arriving from multicast, udp, tcp and tcp relays apart from new messages.
+ *
+ * <p>The sequence is added to the header, like <code>code.sequence!type#nick:payload</code>,
+ * and counts up from 0 for every message. Private messages use a sequencer of their own, so the
+ * sequences of the messages to everyone have no gaps unless a message was lost. Older clients can't
+ * parse the header, so only messages to users that support {@link ClientCapability#SEQUENCE}
+ * can be sequenced.</p>
+ *
+ * @author Christian Ihle
+ * @see MessageSequenceWindow
+ */
+public class MessageSequencer {
+
+    private final AtomicLong nextSequence;
+
+    public MessageSequencer() {
+        nextSequence = new AtomicLong();
+    }
+
+    /**
+     * Adds the next sequence to the header of the message.
+     *
+     * @param message The message to add the sequence to.
+     * @return The sequenced message, or the same message if it has no header.
+     */
+    public String addSequence(final String message) {
+        Validate.notNull(message, "Message can not be null");
+
+        final int exclamation = message.indexOf('!');
+
+        if (exclamation < 0) {
+            return message;
+        }
+
+        return message.substring(0, exclamation) + '.' + nextSequence.getAndIncrement() +
+                message.substring(exclamation);
+    }
+}
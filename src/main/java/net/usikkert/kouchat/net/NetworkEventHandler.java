@@ -0,0 +1,52 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+
+/**
+ * Handles events for a channel registered in a {@link NetworkEventLoop}.
+ *
+ * <p>All the methods are called by the thread of the event loop, so they must never block.</p>
+ *
+ * @author Christian Ihle
+ */
+public interface NetworkEventHandler {
+
+    /**
+     * Called when the channel is ready for one or more of the operations it is registered for.
+     *
+     * @param key The selection key of the channel, with the ready operations.
+     * @throws IOException If the channel failed. The channel is closed by the event loop afterwards.
+     */
+    void ready(SelectionKey key) throws IOException;
+
+    /**
+     * Called when the channel failed, either when registering it or when handling an event.
+     * The channel is already closed when this is called.
+     *
+     * @param e The cause of the failure.
+     */
+    void failed(IOException e);
+}
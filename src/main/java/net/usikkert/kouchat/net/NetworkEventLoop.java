@@ -0,0 +1,305 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.usikkert.kouchat.util.Validate;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * A single thread multiplexing any number of non-blocking channels using a {@link Selector}.
+ *
+ * <p>Used instead of one blocking thread per socket when the startup argument <code>--nio-selector</code>
+ * is given. The multicast channel, the private udp channel, the tcp server channel, and every tcp connection
+ * are registered here, and each gets its own {@link NetworkEventHandler} that is notified when the
+ * channel is ready.</p>
+ *
+ * <p>Everything that touches the selector is done by the thread of the event loop. Other threads
+ * hand over work using {@link #execute(Runnable)}, which wakes up the selector.</p>
+ *
+ * @author Christian Ihle
+ */
+public class NetworkEventLoop implements Runnable {
+
+    /** The logger. */
+    private static final Logger LOG = Logger.getLogger(NetworkEventLoop.class.getName());
+
+    /** Work to do on the thread of the event loop, before the next select. */
+    private final Queue<Runnable> tasks;
+
+    @Nullable
+    private volatile Selector selector;
+
+    @Nullable
+    private Thread thread;
+
+    /** If the event loop should keep running. */
+    private volatile boolean running;
+
+    /**
+     * Constructor.
+     */
+    public NetworkEventLoop() {
+        tasks = new ConcurrentLinkedQueue<>();
+    }
+
+    /**
+     * Opens the selector and starts the thread of the event loop, if not already started.
+     *
+     * @throws IOException If the selector could not be opened.
+     */
+    public synchronized void start() throws IOException {
+        if (running) {
+            return;
+        }
+
+        LOG.log(Level.FINE, "Starting.");
+
+        selector = Selector.open();
+        running = true;
+
+        thread = new Thread(this, "NetworkEventLoop");
+        thread.start();
+    }
+
+    /**
+     * Stops the thread of the event loop, and closes the selector and every channel still registered.
+     */
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+
+        LOG.log(Level.FINE, "Stopping.");
+
+        running = false;
+
+        if (selector != null) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Checks if the event loop is started.
+     *
+     * @return If the event loop is running.
+     */
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Checks if the current thread is the thread of the event loop.
+     *
+     * @return If called from the event loop.
+     */
+    public boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Runs the task on the thread of the event loop, before the next select.
+     *
+     * @param task The task to run.
+     */
+    public void execute(final Runnable task) {
+        Validate.notNull(task, "Task can not be null");
+
+        tasks.add(task);
+
+        final Selector currentSelector = selector;
+
+        if (currentSelector != null) {
+            currentSelector.wakeup();
+        }
+    }
+
+    /**
+     * Registers the channel for the operations, and notifies the handler when the channel is ready.
+     * The channel is changed to non-blocking mode. Starts the event loop if necessary.
+     *
+     * @param channel The channel to register.
+     * @param ops The operations to select, from {@link SelectionKey}.
+     * @param handler The handler to notify.
+     * @throws IOException If the channel could not be changed to non-blocking mode,
+     *                     or the event loop could not be started.
+     */
+    public void register(final SelectableChannel channel, final int ops, final NetworkEventHandler handler)
+            throws IOException {
+        Validate.notNull(channel, "Channel can not be null");
+        Validate.notNull(handler, "Handler can not be null");
+
+        channel.configureBlocking(false);
+        start();
+
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    channel.register(selector, ops, handler);
+                }
+
+                catch (final ClosedChannelException e) {
+                    LOG.log(Level.FINE, "Channel closed before registration: " + e);
+                    handler.failed(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Adds operations to select for a registered channel.
+     *
+     * @param channel The registered channel.
+     * @param ops The operations to add.
+     */
+    public void addInterest(final SelectableChannel channel, final int ops) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                final SelectionKey key = channel.keyFor(selector);
+
+                if (key != null && key.isValid()) {
+                    key.interestOps(key.interestOps() | ops);
+                }
+            }
+        });
+    }
+
+    /**
+     * Waits for channels to be ready, and notifies the handlers. Runs until stopped.
+     */
+    @Override
+    public void run() {
+        final Selector currentSelector = selector;
+
+        while (running && currentSelector != null && currentSelector == selector) {
+            try {
+                currentSelector.select();
+            }
+
+            catch (final IOException e) {
+                LOG.log(Level.SEVERE, "Select failed: " + e, e);
+                break;
+            }
+
+            runTasks();
+            handleSelectedKeys(currentSelector);
+        }
+
+        closeSelector(currentSelector);
+        LOG.log(Level.FINE, "Stopped.");
+    }
+
+    private void runTasks() {
+        Runnable task = tasks.poll();
+
+        while (task != null) {
+            try {
+                task.run();
+            }
+
+            catch (final RuntimeException e) {
+                LOG.log(Level.SEVERE, "Task failed: " + e, e);
+            }
+
+            task = tasks.poll();
+        }
+    }
+
+    private void handleSelectedKeys(final Selector currentSelector) {
+        final Iterator<SelectionKey> keys = currentSelector.selectedKeys().iterator();
+
+        while (keys.hasNext()) {
+            final SelectionKey key = keys.next();
+            keys.remove();
+
+            if (!key.isValid()) {
+                continue;
+            }
+
+            final NetworkEventHandler handler = (NetworkEventHandler) key.attachment();
+
+            try {
+                handler.ready(key);
+            }
+
+            catch (final IOException e) {
+                closeChannel(key);
+                handler.failed(e);
+            }
+
+            // Don't let a bug in one handler stop the network for everyone else
+            catch (final RuntimeException e) {
+                LOG.log(Level.SEVERE, "Handler failed: " + e, e);
+            }
+        }
+    }
+
+    private void closeChannel(final SelectionKey key) {
+        key.cancel();
+
+        try {
+            key.channel().close();
+        }
+
+        catch (final IOException e) {
+            LOG.log(Level.WARNING, e.toString());
+        }
+    }
+
+    private synchronized void closeSelector(@Nullable final Selector currentSelector) {
+        if (currentSelector == null) {
+            return;
+        }
+
+        for (final SelectionKey key : currentSelector.keys()) {
+            closeChannel(key);
+        }
+
+        try {
+            currentSelector.close();
+        }
+
+        catch (final IOException e) {
+            LOG.log(Level.WARNING, e.toString());
+        }
+
+        if (selector == currentSelector) {
+            selector = null;
+            thread = null;
+            running = false;
+        }
+    }
+}
@@ -48,4 +48,7 @@ public interface NetworkMessageType {
     String SENDFILE = "SENDFILE";
     String CLIENT = "CLIENT";
     String PRIVMSG = "PRIVMSG";
+    String NACK = "NACK";
+    String PING = "PING";
+    String PONG = "PONG";
 }
@@ -271,10 +271,53 @@ public class NetworkMessages {
      */
     public void sendFileAccept(final User user, final int port,
             final int fileHash, final String fileName) throws CommandException {
+        sendFileAccept(user, port, fileHash, fileName, 0, 0, 1);
+    }
+
+    /**
+     * Sends a message to notify the file sender that you
+     * accepted the file transfer, and want to resume it from an offset, or receive it over several connections.
+     *
+     * <p>The offset, checksum and number of connections are put in front of the file name, ending with a slash,
+     * since a slash can't be part of a file name. They are left out if the offset is 0 and there is only
+     * one connection, and the number of connections is left out if there is only one. Must only be used with
+     * users that support {@link ClientCapability#RESUME}, and {@link ClientCapability#STREAMS} to ask
+     * for more than one connection.</p>
+     *
+     * <p>Note: the network will be checked, and the user notified if this fails!</p>
+     *
+     * @param user The user sending a file.
+     * @param port The port the file sender can connect to on this client
+     *             to start the file transfer.
+     * @param fileHash The unique hash code of the file.
+     * @param fileName The name of the file.
+     * @param resumeOffset The number of bytes already received, or 0 to start from the beginning.
+     * @param resumeChecksum The CRC32 checksum of the bytes already received.
+     * @param streams The highest number of connections to receive the file over.
+     * @throws CommandException If the message was not sent successfully.
+     */
+    public void sendFileAccept(final User user, final int port, final int fileHash, final String fileName,
+                               final long resumeOffset, final long resumeChecksum, final int streams)
+            throws CommandException {
+        final String resume;
+
+        if (streams > 1) {
+            resume = resumeOffset + ":" + resumeChecksum + ":" + streams + "/";
+        }
+
+        else if (resumeOffset > 0) {
+            resume = resumeOffset + ":" + resumeChecksum + "/";
+        }
+
+        else {
+            resume = "";
+        }
+
         final String msg = createMessage(SENDFILEACCEPT) +
                 "(" + user.getCode() + ")" +
                 "[" + port + "]" +
                 "{" + fileHash + "}" +
+                resume +
                 fileName;
 
         final boolean sent = networkService.sendMessageToAllUsers(msg);
@@ -318,6 +361,7 @@ public class NetworkMessages {
      *   <li>Operating system.</li>
      *   <li>Port to connect to for private chat.</li>
      *   <li>Port to connect to for tcp chat.</li>
+     *   <li>Optional features supported by the client.</li>
      * </ul>
      */
     public void sendClient() {
@@ -326,7 +370,8 @@ public class NetworkMessages {
                 "[" + (System.currentTimeMillis() - me.getLogonTime()) + "]" +
                 "{" + me.getOperatingSystem() + "}" +
                 "<" + me.getPrivateChatPort() + ">" +
-                "/" + me.getTcpChatPort() + "\\";
+                "/" + me.getTcpChatPort() + "\\" +
+                "|" + getCapabilities() + "|";
 
         networkService.sendMessageToAllUsers(msg);
     }
@@ -354,6 +399,51 @@ public class NetworkMessages {
         }
     }
 
+    /**
+     * Sends a message asking the user to send lost multicast messages again.
+     * Only sent over udp to the private chat port, where {@link ReliableMulticast} handles it.
+     *
+     * @param user The user that sent the lost messages.
+     * @param sequences The sequences of the lost messages, separated by commas.
+     */
+    public void sendNack(final User user, final String sequences) {
+        final String msg = createMessage(NACK) +
+                "(" + user.getCode() + ")" +
+                sequences;
+
+        networkService.sendUdpMessageToUser(msg, user);
+    }
+
+    /**
+     * Sends a probe asking the user to answer with a {@link NetworkMessageType#PONG}.
+     * Only sent over udp to the private chat port, where {@link PeerLinkMonitor} handles it.
+     *
+     * @param user The user to probe.
+     * @param time The time the probe was sent, from {@link System#nanoTime()}.
+     */
+    public void sendPing(final User user, final long time) {
+        final String msg = createMessage(PING) +
+                "(" + user.getCode() + ")" +
+                time;
+
+        networkService.sendUdpMessageToUser(msg, user);
+    }
+
+    /**
+     * Sends the answer to a {@link NetworkMessageType#PING} probe from the user.
+     * Only sent over udp to the private chat port, where {@link PeerLinkMonitor} handles it.
+     *
+     * @param user The user that sent the probe.
+     * @param time The time from the probe, unchanged.
+     */
+    public void sendPong(final User user, final String time) {
+        final String msg = createMessage(PONG) +
+                "(" + user.getCode() + ")" +
+                time;
+
+        networkService.sendUdpMessageToUser(msg, user);
+    }
+
     /**
      * Creates the standard part of all messages, with the specified type
      * as the message type.
@@ -377,6 +467,36 @@ public class NetworkMessages {
         return me.getCode() + "!" + type + "#" + nick + ":";
     }
 
+    /**
+     * Gets the capabilities to advertise to the other clients. The binary format is left out when disabled,
+     * so other clients keep sending text.
+     *
+     * @return The capabilities, separated by commas.
+     */
+    private String getCapabilities() {
+        final StringBuilder capabilities = new StringBuilder();
+
+        for (final String capability : ClientCapability.SUPPORTED.split(",")) {
+            if (!settings.isNoBinaryProtocol() || !capability.equals(ClientCapability.BINARY)) {
+                if (capabilities.length() > 0) {
+                    capabilities.append(',');
+                }
+
+                capabilities.append(capability);
+            }
+        }
+
+        if (settings.isTcpRelay()) {
+            capabilities.append(',').append(ClientCapability.RELAY);
+        }
+
+        if (networkService.isReliableMulticastEnabled()) {
+            capabilities.append(',').append(ClientCapability.NACK);
+        }
+
+        return capabilities.toString();
+    }
+
     /**
      * Creates a new message for sending the topic.
      *
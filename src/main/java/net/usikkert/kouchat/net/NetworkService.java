@@ -23,6 +23,12 @@
 package net.usikkert.kouchat.net;
 
 import java.net.NetworkInterface;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 import java.util.logging.Logger;
 
 import net.usikkert.kouchat.event.NetworkConnectionListener;
@@ -30,10 +36,13 @@ import net.usikkert.kouchat.event.ReceiverListener;
 import net.usikkert.kouchat.misc.Controller;
 import net.usikkert.kouchat.misc.ErrorHandler;
 import net.usikkert.kouchat.misc.User;
+import net.usikkert.kouchat.misc.UserList;
 import net.usikkert.kouchat.net.tcp.TCPNetworkService;
 import net.usikkert.kouchat.settings.Settings;
 import net.usikkert.kouchat.util.Validate;
 
+import org.jetbrains.annotations.Nullable;
+
 /**
  * This class has services for connecting to the network.
  *
@@ -62,12 +71,54 @@ public class NetworkService implements NetworkConnectionListener {
     /** The network service for tcp connections. */
     private final TCPNetworkService tcpNetworkService;
 
+    /** The event loop for all the sockets, or null to use a thread for each socket. */
+    @Nullable
+    private final NetworkEventLoop eventLoop;
+
+    /** Batches small protocol messages into fewer multicast packets. */
+    private final MessageBatcher messageBatcher;
+
     /** Proxy for deduplicating multicast and tcp messages. */
     private final MessageDeduplicator messageDeduplicator;
 
+    /** Adds sequences to the messages, for deduplicating them at the receivers. */
+    private final MessageSequencer messageSequencer;
+
+    /** Adds sequences to the private messages, so they don't leave gaps in the sequences of the other messages. */
+    private final MessageSequencer privateMessageSequencer;
+
+    /** Asks for lost multicast messages to be sent again, or null if not enabled. */
+    @Nullable
+    private final ReliableMulticast reliableMulticast;
+
+    /** Measures the paths to each user, or null if private chat is disabled. */
+    @Nullable
+    private final PeerLinkMonitor peerLinkMonitor;
+
     /** If private chat should be enabled. */
     private final boolean privateChatEnabled;
 
+    /** If udp packets should be compressed for users that support it. */
+    private final boolean compressionEnabled;
+
+    /** If udp packets should use the binary format for users that support it. */
+    private final boolean binaryProtocolEnabled;
+
+    /** The controller, to find out which users support compression and the binary format. */
+    private final Controller controller;
+
+    /** The overflow policy of the inbound queues, or null to deliver messages on the receiver threads. */
+    @Nullable
+    private final InboundMessageQueue.OverflowPolicy inboundQueuePolicy;
+
+    /** The queue between the multicast receiver and the main chat listener. */
+    @Nullable
+    private InboundMessageQueue mainChatInboundQueue;
+
+    /** The queue between the private message receiver and the private chat listener. */
+    @Nullable
+    private InboundMessageQueue privateChatInboundQueue;
+
     /**
      * Constructor.
      *
@@ -82,16 +133,25 @@ public class NetworkService implements NetworkConnectionListener {
 
         LOG.fine("Initializing network");
 
+        this.controller = controller;
         privateChatEnabled = !settings.isNoPrivateChat();
+        compressionEnabled = settings.isCompression();
+        binaryProtocolEnabled = !settings.isNoBinaryProtocol();
+        inboundQueuePolicy = getInboundQueuePolicy(settings);
+
+        eventLoop = settings.isNioSelector() ? new NetworkEventLoop() : null;
 
-        messageReceiver = new MessageReceiver(errorHandler);
+        messageReceiver = new MessageReceiver(errorHandler, settings.isNioReceiver() || eventLoop != null, eventLoop);
         messageSender = new MessageSender(errorHandler);
+        messageBatcher = new MessageBatcher(messageSender);
         connectionWorker = new ConnectionWorker(settings, errorHandler);
-        tcpNetworkService = new TCPNetworkService(controller, settings, errorHandler);
-        messageDeduplicator = new MessageDeduplicator(controller);
+        tcpNetworkService = new TCPNetworkService(controller, settings, errorHandler, eventLoop);
+        messageDeduplicator = new MessageDeduplicator(controller, settings);
+        messageSequencer = new MessageSequencer();
+        privateMessageSequencer = new MessageSequencer();
 
         if (privateChatEnabled) {
-            udpReceiver = new UDPReceiver(settings, errorHandler);
+            udpReceiver = new UDPReceiver(settings, errorHandler, eventLoop);
             udpSender = new UDPSender(errorHandler);
         }
 
@@ -101,9 +161,43 @@ public class NetworkService implements NetworkConnectionListener {
             udpSender = null;
         }
 
+        // The NACKs and the probes are sent to the private chat port
+        if (settings.isReliableMulticast() && privateChatEnabled) {
+            reliableMulticast = new ReliableMulticast(createScheduler(ReliableMulticast.class), messageSender,
+                                                      new NetworkMessages(this, settings), messageDeduplicator,
+                                                      controller, new Random());
+            messageDeduplicator.registerMessageLossListener(reliableMulticast);
+        }
+
+        else {
+            reliableMulticast = null;
+        }
+
+        if (privateChatEnabled) {
+            peerLinkMonitor = new PeerLinkMonitor(createScheduler(PeerLinkMonitor.class),
+                                                  new NetworkMessages(this, settings), tcpNetworkService, controller);
+            messageDeduplicator.registerLinkProbeListener(peerLinkMonitor);
+        }
+
+        else {
+            peerLinkMonitor = null;
+        }
+
         connectionWorker.registerNetworkConnectionListener(this);
     }
 
+    private ScheduledExecutorService createScheduler(final Class<?> owner) {
+        return Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, owner.getSimpleName());
+                thread.setDaemon(true);
+
+                return thread;
+            }
+        });
+    }
+
     /**
      * Starts the thread responsible for connecting to the network.
      */
@@ -154,15 +248,40 @@ public class NetworkService implements NetworkConnectionListener {
         connectionWorker.registerNetworkConnectionListener(listener);
     }
 
+    /**
+     * Registers a listener for users that can no longer be reached on any path.
+     * Nothing is reported when private chat is disabled, since the probes use the private chat port.
+     *
+     * @param listener The listener to register.
+     */
+    public void registerPeerLinkListener(final PeerLinkListener listener) {
+        if (peerLinkMonitor != null) {
+            peerLinkMonitor.registerPeerLinkListener(listener);
+        }
+    }
+
     /**
      * Register a listener for incoming main chat messages from the network.
      *
+     * <p>Messages split into fragments over udp are put back together, and batches are split into
+     * the original messages, before they reach the listener.</p>
+     *
      * @param listener The listener to register.
      */
     public void registerMainChatMessageReceiverListener(final ReceiverListener listener) {
         messageDeduplicator.registerMainChatReceiverListener(listener);
-        messageReceiver.registerReceiverListener(messageDeduplicator);
         tcpNetworkService.registerReceiverListener(messageDeduplicator);
+
+        if (inboundQueuePolicy != null) {
+            mainChatInboundQueue = createInboundQueue("MainChat");
+            messageReceiver.registerReceiverListener(
+                    new MessageBatchSplitter(new MessageReassembler(mainChatInboundQueue)));
+        }
+
+        else {
+            messageReceiver.registerReceiverListener(
+                    new MessageBatchSplitter(new MessageReassembler(messageDeduplicator)));
+        }
     }
 
     /**
@@ -173,31 +292,150 @@ public class NetworkService implements NetworkConnectionListener {
     public void registerPrivateChatReceiverListener(final ReceiverListener listener) {
         if (privateChatEnabled) {
             messageDeduplicator.registerPrivateChatReceiverListener(listener);
-            udpReceiver.registerReceiverListener(messageDeduplicator);
+
+            if (inboundQueuePolicy != null) {
+                privateChatInboundQueue = createInboundQueue("PrivateChat");
+                udpReceiver.registerReceiverListener(new MessageReassembler(privateChatInboundQueue));
+            }
+
+            else {
+                udpReceiver.registerReceiverListener(new MessageReassembler(messageDeduplicator));
+            }
         }
     }
 
+    /**
+     * Gets the queue between the multicast receiver and the main chat listener.
+     *
+     * @return The queue, or <code>null</code> if messages are not queued.
+     */
+    @Nullable
+    public InboundMessageQueue getMainChatInboundQueue() {
+        return mainChatInboundQueue;
+    }
+
+    /**
+     * Gets the queue between the private message receiver and the private chat listener.
+     *
+     * @return The queue, or <code>null</code> if messages are not queued.
+     */
+    @Nullable
+    public InboundMessageQueue getPrivateChatInboundQueue() {
+        return privateChatInboundQueue;
+    }
+
+    private InboundMessageQueue createInboundQueue(final String name) {
+        final InboundMessageQueue queue = new InboundMessageQueue(
+                messageDeduplicator, inboundQueuePolicy, InboundMessageQueue.DEFAULT_CAPACITY, name);
+        queue.start();
+
+        return queue;
+    }
+
+    @Nullable
+    private InboundMessageQueue.OverflowPolicy getInboundQueuePolicy(final Settings settings) {
+        final String policyName = settings.getInboundQueue();
+
+        if (policyName == null) {
+            return null;
+        }
+
+        final InboundMessageQueue.OverflowPolicy policy = InboundMessageQueue.OverflowPolicy.fromName(policyName);
+
+        if (policy == null) {
+            LOG.warning("Unknown inbound queue policy: " + policyName + ", using drop");
+            return InboundMessageQueue.OverflowPolicy.DROP;
+        }
+
+        return policy;
+    }
+
     /**
      * Send a message to all users.
      *
+     * <p>Small protocol messages may wait a few milliseconds to share a multicast packet with other messages,
+     * when all the users support it. They are always reported as sent.</p>
+     *
+     * <p>The message gets a sequence when all the users support it, so the first copy to arrive
+     * at each user is used, no matter if it came over multicast or tcp. With reliable multicast enabled,
+     * the sequenced message is also kept, to send it again to users that lost it.</p>
+     *
      * @param message The message to send.
      * @return If the message was sent or not.
+     * @see MessageBatcher
+     * @see MessageSequencer
+     * @see ReliableMulticast
      */
     public boolean sendMessageToAllUsers(final String message) {
-        tcpNetworkService.sendMessageToAll(message);
-        return messageSender.send(message);
+        final String sequencedMessage = addSequence(messageSequencer, message,
+                                                    allUsersSupport(ClientCapability.SEQUENCE));
+
+        tcpNetworkService.sendMessageToAll(sequencedMessage);
+
+        final boolean compress = compressionEnabled && allUsersSupport(ClientCapability.DEFLATE);
+        final boolean binary = binaryProtocolEnabled && allUsersSupport(ClientCapability.BINARY);
+        final boolean fragment = allUsersSupport(ClientCapability.FRAGMENT);
+
+        if (reliableMulticast != null) {
+            reliableMulticast.messageSent(sequencedMessage, compress, binary, fragment);
+        }
+
+        if (messageBatcher.isBatchable(sequencedMessage) && allUsersSupport(ClientCapability.BATCH)) {
+            return messageBatcher.add(sequencedMessage, compress);
+        }
+
+        messageBatcher.flush();
+
+        return messageSender.send(sequencedMessage, compress, binary, fragment);
     }
 
     /**
      * Send a message to a single user.
      *
+     * <p>The message is sent over both tcp and udp, unless the measurements of the paths to the user
+     * show that one of them is better. Messages sent only over tcp are reported as sent, since failures
+     * are handled by disconnecting, and falling back to udp.</p>
+     *
      * @param message The message to send.
      * @param user The user to send the message to.
      * @return If the message was sent or not.
+     * @see PeerLinkMonitor#selectPrivatePath(User)
      */
     public boolean sendMessageToUser(final String message, final User user) {
         if (privateChatEnabled) {
-            tcpNetworkService.sendMessageToUser(message, user);
+            final String sequencedMessage = addSequence(privateMessageSequencer, message,
+                                                        user.hasCapability(ClientCapability.SEQUENCE));
+            final PeerLinkMonitor.Path path = peerLinkMonitor.selectPrivatePath(user);
+
+            if (path != PeerLinkMonitor.Path.UDP) {
+                tcpNetworkService.sendMessageToUser(sequencedMessage, user);
+            }
+
+            if (path == PeerLinkMonitor.Path.TCP) {
+                return true;
+            }
+
+            return udpSender.send(sequencedMessage, user.getIpAddress(), user.getPrivateChatPort(),
+                                  compressionEnabled && user.hasCapability(ClientCapability.DEFLATE),
+                                  binaryProtocolEnabled && user.hasCapability(ClientCapability.BINARY),
+                                  user.hasCapability(ClientCapability.FRAGMENT));
+        }
+
+        else {
+            return false;
+        }
+    }
+
+    /**
+     * Send a message to a single user, only over udp to the private chat port.
+     * Used for messages that are only understood when they arrive over udp.
+     *
+     * @param message The message to send.
+     * @param user The user to send the message to.
+     * @return If the message was sent or not.
+     */
+    public boolean sendUdpMessageToUser(final String message, final User user) {
+        if (privateChatEnabled) {
             return udpSender.send(message, user.getIpAddress(), user.getPrivateChatPort());
         }
 
@@ -206,6 +444,79 @@ public class NetworkService implements NetworkConnectionListener {
         }
     }
 
+    private String addSequence(final MessageSequencer sequencer, final String message,
+                               final boolean sequenceSupported) {
+        if (sequenceSupported) {
+            return sequencer.addSequence(message);
+        }
+
+        return message;
+    }
+
+    /**
+     * Gets the number of bytes saved by compression so far, for each message type,
+     * in both the main chat and private chat.
+     *
+     * @return The bytes saved for each message type.
+     */
+    public Map<String, Long> getBytesSavedByCompression() {
+        final Map<String, Long> bytesSaved = new TreeMap<>(messageSender.getBytesSavedByCompression());
+
+        if (privateChatEnabled) {
+            for (final Map.Entry<String, Long> entry : udpSender.getBytesSavedByCompression().entrySet()) {
+                final Long mainChatBytesSaved = bytesSaved.get(entry.getKey());
+                bytesSaved.put(entry.getKey(), entry.getValue() + (mainChatBytesSaved != null ? mainChatBytesSaved : 0));
+            }
+        }
+
+        return bytesSaved;
+    }
+
+    /**
+     * Checks if lost multicast messages are kept and sent again when other users ask for them.
+     * Only when private chat is enabled as well, since the requests arrive on the private chat port.
+     *
+     * @return If reliable multicast is running.
+     */
+    public boolean isReliableMulticastEnabled() {
+        return reliableMulticast != null;
+    }
+
+    /**
+     * Checks if all the other users can put together messages split into fragments,
+     * so chat messages larger than one udp packet can be sent to all users.
+     *
+     * @return If all the other users support fragments.
+     * @see ClientCapability#FRAGMENT
+     */
+    public boolean isFragmentSupportedByAllUsers() {
+        return allUsersSupport(ClientCapability.FRAGMENT);
+    }
+
+    /**
+     * Checks if all the other users support the capability. Not when there are no other users,
+     * since users that are not known yet could be older clients.
+     */
+    private boolean allUsersSupport(final String capability) {
+        final UserList userList = controller.getUserList();
+        boolean otherUsers = false;
+
+        for (int i = 0; i < userList.size(); i++) {
+            final User user = userList.get(i);
+
+            // Null if the user list got shorter while checking
+            if (user != null && !user.isMe()) {
+                if (!user.hasCapability(capability)) {
+                    return false;
+                }
+
+                otherUsers = true;
+            }
+        }
+
+        return otherUsers;
+    }
+
     /**
      * Checks the state of the network, and tries to keep the best possible
      * network connection up.
@@ -222,13 +533,20 @@ public class NetworkService implements NetworkConnectionListener {
     @Override
     public void networkWentDown(final boolean silent) {
         if (privateChatEnabled) {
+            peerLinkMonitor.disconnect();
             udpSender.stopSender();
             udpReceiver.stopReceiver();
         }
 
+        messageBatcher.flush();
         messageSender.stopSender();
         messageReceiver.stopReceiver();
         tcpNetworkService.stopService();
+
+        // Started again by the first socket registered when the network comes back up
+        if (eventLoop != null) {
+            eventLoop.stop();
+        }
     }
 
     @Override
@@ -246,6 +564,7 @@ public class NetworkService implements NetworkConnectionListener {
         if (privateChatEnabled) {
             udpSender.startSender();
             udpReceiver.startReceiver();
+            peerLinkMonitor.connect();
         }
 
         final NetworkInterface currentNetworkInterface = connectionWorker.getCurrentNetworkInterface();
@@ -0,0 +1,47 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+/**
+ * Listener for signs of life from other users.
+ *
+ * @author Christian Ihle
+ * @see MessageParser
+ */
+public interface PeerActivityListener {
+
+    /**
+     * A message arrived from the user.
+     *
+     * @param userCode The code of the user that sent the message.
+     * @param heartbeat If the message is an idle message, which are sent at a steady pace.
+     */
+    void activityArrived(int userCode, boolean heartbeat);
+
+    /**
+     * The user logged off, so there will be no more messages from the user.
+     *
+     * @param userCode The code of the user that logged off.
+     */
+    void userLoggedOff(int userCode);
+}
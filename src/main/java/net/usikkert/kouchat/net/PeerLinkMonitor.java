@@ -0,0 +1,295 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import net.usikkert.kouchat.misc.Controller;
+import net.usikkert.kouchat.misc.User;
+import net.usikkert.kouchat.misc.UserList;
+import net.usikkert.kouchat.net.tcp.TCPNetworkService;
+import net.usikkert.kouchat.util.Logger;
+import net.usikkert.kouchat.util.Validate;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Keeps track of how healthy the paths to each user are, and picks the best path for private messages.
+ *
+ * <p>Every {@link LinkQuality#PROBE_INTERVAL} ms, users that support {@link ClientCapability#PING} get a probe
+ * on their private chat port, like <code>code!PING#nick:(userCode)time</code>, and answer with a
+ * {@link NetworkMessageType#PONG} with the same time. The tcp connections are pinged the same way by
+ * {@link net.usikkert.kouchat.net.tcp.TCPConnectionHandler}, and disconnected when they stop answering.</p>
+ *
+ * <p>A user that used to answer the probes, but stopped, and has no working tcp connection either,
+ * is reported to the {@link PeerLinkListener} as unreachable.</p>
+ *
+ * @author Christian Ihle
+ */
+public class PeerLinkMonitor implements LinkProbeListener, Runnable {
+
+    private static final Logger LOG = Logger.getLogger(PeerLinkMonitor.class);
+
+    /** The paths a private message can take to a user. */
+    public enum Path {
+
+        /** Only the tcp connection. */
+        TCP,
+
+        /** Only udp to the private chat port. */
+        UDP,
+
+        /** Both, and the user keeps the first copy to arrive. */
+        BOTH
+    }
+
+    private final NetworkMessages networkMessages;
+    private final TCPNetworkService tcpNetworkService;
+    private final Controller controller;
+
+    /** The udp path to each user, by user code. */
+    private final ConcurrentMap<Integer, LinkQuality> udpLinks;
+
+    /** Codes of the users already reported as unreachable. */
+    private final Set<Integer> unreachableUsers;
+
+    @Nullable
+    private PeerLinkListener listener;
+
+    private volatile boolean connected;
+
+    /**
+     * Constructor. Starts probing on the scheduler, but nothing is sent until {@link #connect()}.
+     *
+     * @param scheduler Runs the probes.
+     * @param networkMessages For sending the probes.
+     * @param tcpNetworkService To check the tcp connections.
+     * @param controller To find the users.
+     */
+    public PeerLinkMonitor(final ScheduledExecutorService scheduler, final NetworkMessages networkMessages,
+                           final TCPNetworkService tcpNetworkService, final Controller controller) {
+        Validate.notNull(scheduler, "Scheduler can not be null");
+        Validate.notNull(networkMessages, "Network messages can not be null");
+        Validate.notNull(tcpNetworkService, "TCP network service can not be null");
+        Validate.notNull(controller, "Controller can not be null");
+
+        this.networkMessages = networkMessages;
+        this.tcpNetworkService = tcpNetworkService;
+        this.controller = controller;
+        this.udpLinks = new ConcurrentHashMap<>();
+        this.unreachableUsers = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+
+        scheduler.scheduleWithFixedDelay(this, LinkQuality.PROBE_INTERVAL, LinkQuality.PROBE_INTERVAL,
+                                         TimeUnit.MILLISECONDS);
+    }
+
+    public void registerPeerLinkListener(final PeerLinkListener theListener) {
+        this.listener = theListener;
+    }
+
+    public void connect() {
+        connected = true;
+    }
+
+    /**
+     * Stops probing, and forgets the measurements, since they are not valid on the next network.
+     */
+    public void disconnect() {
+        connected = false;
+        udpLinks.clear();
+        unreachableUsers.clear();
+    }
+
+    /**
+     * Picks the path for a private message to the user.
+     *
+     * <p>Both paths are used until both have been measured, or if neither is healthy. Messages without a sequence
+     * always use both, since the user only reads them from tcp while tcp is up. When both are healthy, tcp is
+     * preferred, unless it's much slower than udp, like when the tcp queue is backed up.</p>
+     *
+     * @param user The user to send the private message to.
+     * @return The path to use.
+     */
+    public Path selectPrivatePath(final User user) {
+        if (!user.isTcpEnabled() || !user.hasCapability(ClientCapability.SEQUENCE)) {
+            return Path.BOTH;
+        }
+
+        final LinkQuality tcpLink = tcpNetworkService.getLinkQuality(user);
+        final LinkQuality udpLink = udpLinks.get(user.getCode());
+
+        if (tcpLink == null || udpLink == null || !tcpLink.hasSamples() || !udpLink.hasSamples()) {
+            return Path.BOTH;
+        }
+
+        final boolean tcpHealthy = tcpLink.isHealthy();
+        final boolean udpHealthy = udpLink.isHealthy();
+
+        if (tcpHealthy && udpHealthy) {
+            return udpLink.getSmoothedRtt() * 2 < tcpLink.getSmoothedRtt() ? Path.UDP : Path.TCP;
+        }
+
+        if (tcpHealthy) {
+            return Path.TCP;
+        }
+
+        if (udpHealthy) {
+            return Path.UDP;
+        }
+
+        return Path.BOTH;
+    }
+
+    /**
+     * Gets the round trip time and loss of the udp path to the user.
+     *
+     * @param user The user to get the link quality for.
+     * @return The link quality, or <code>null</code> if the user has not been probed.
+     */
+    @Nullable
+    public LinkQuality getUdpLinkQuality(final User user) {
+        return udpLinks.get(user.getCode());
+    }
+
+    /**
+     * Answers probes, and measures the answers to my probes.
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public void probeArrived(final MessageEnvelope probe, final String ipAddress) {
+        final User user = controller.getUser(probe.getUserCode());
+
+        if (user == null) {
+            return;
+        }
+
+        final String payload = probe.getPayload();
+        final String time = payload.substring(payload.indexOf(')') + 1);
+
+        if (probe.getType() == NetworkMessageType.PING) {
+            if (user.getPrivateChatPort() > 0) {
+                networkMessages.sendPong(user, time);
+            }
+        }
+
+        else {
+            pongArrived(user, time);
+        }
+    }
+
+    private void pongArrived(final User user, final String time) {
+        try {
+            final long rtt = System.nanoTime() - Long.parseLong(time);
+            getUdpLink(user.getCode()).answered(rtt);
+            unreachableUsers.remove(user.getCode());
+        }
+
+        catch (final NumberFormatException e) {
+            LOG.warning("Invalid pong from %s: %s", user.getNick(), time);
+        }
+    }
+
+    /**
+     * Probes all the users that support it. Runs on the scheduler every {@link LinkQuality#PROBE_INTERVAL} ms.
+     */
+    @Override
+    public void run() {
+        if (!connected) {
+            return;
+        }
+
+        try {
+            forgetRemovedUsers();
+
+            final UserList userList = controller.getUserList();
+
+            for (int i = 0; i < userList.size(); i++) {
+                final User user = userList.get(i);
+
+                // Null if the user list got shorter while probing
+                if (user != null && !user.isMe() && user.hasCapability(ClientCapability.PING)
+                        && user.getPrivateChatPort() > 0) {
+                    probe(user);
+                }
+            }
+        }
+
+        catch (final RuntimeException e) {
+            // An exception would stop all further probes
+            LOG.severe(e, e.toString());
+        }
+    }
+
+    private void probe(final User user) {
+        final LinkQuality udpLink = getUdpLink(user.getCode());
+
+        if (udpLink.hasSamples() && udpLink.isDead() && !isTcpAlive(user) && unreachableUsers.add(user.getCode())) {
+            LOG.warning("User %s stopped answering probes. Link: %s", user.getNick(), udpLink);
+
+            if (listener != null) {
+                listener.peerUnreachable(user);
+            }
+        }
+
+        udpLink.probeSent();
+        networkMessages.sendPing(user, System.nanoTime());
+    }
+
+    private boolean isTcpAlive(final User user) {
+        if (!user.isTcpEnabled()) {
+            return false;
+        }
+
+        final LinkQuality tcpLink = tcpNetworkService.getLinkQuality(user);
+
+        return tcpLink == null || !tcpLink.isDead();
+    }
+
+    private void forgetRemovedUsers() {
+        for (final Integer userCode : udpLinks.keySet()) {
+            if (controller.getUser(userCode) == null) {
+                udpLinks.remove(userCode);
+                unreachableUsers.remove(userCode);
+            }
+        }
+    }
+
+    private LinkQuality getUdpLink(final int userCode) {
+        final LinkQuality udpLink = udpLinks.get(userCode);
+
+        if (udpLink != null) {
+            return udpLink;
+        }
+
+        final LinkQuality newUdpLink = new LinkQuality();
+        final LinkQuality existingUdpLink = udpLinks.putIfAbsent(userCode, newUdpLink);
+
+        return existingUdpLink != null ? existingUdpLink : newUdpLink;
+    }
+}
@@ -27,7 +27,6 @@ import static net.usikkert.kouchat.net.NetworkMessageType.*;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import net.usikkert.kouchat.event.ReceiverListener;
 import net.usikkert.kouchat.misc.User;
 import net.usikkert.kouchat.settings.Settings;
 import net.usikkert.kouchat.util.Validate;
@@ -44,7 +43,7 @@ import net.usikkert.kouchat.util.Validate;
  *
  * @author Christian Ihle
  */
-public class PrivateMessageParser implements ReceiverListener {
+public class PrivateMessageParser implements MessageEnvelopeListener {
 
     /** The logger. */
     private static final Logger LOG = Logger.getLogger(PrivateMessageParser.class.getName());
@@ -67,31 +66,48 @@ public class PrivateMessageParser implements ReceiverListener {
     }
 
     /**
-     * Parses raw udp messages from the network, and gives
-     * the result to the message responder.
+     * Parses the header of raw udp messages from the network, and then gives
+     * them to {@link #envelopeArrived(MessageEnvelope, String)}.
      *
      * {@inheritDoc}
      */
     @Override
     public void messageArrived(final String message, final String ipAddress) {
+        final MessageEnvelope envelope;
+
         try {
-            final int exclamation = message.indexOf("!");
-            final int hash = message.indexOf("#");
-            final int colon = message.indexOf(":");
+            envelope = MessageEnvelope.parse(message);
+        }
 
-            final int fromCode = Integer.parseInt(message.substring(0, exclamation));
+        // Just ignore, someone sent a badly formatted message
+        catch (final StringIndexOutOfBoundsException | NumberFormatException e) {
+            LOG.log(Level.SEVERE, "Failed to parse message. message=" + message + ", ipAddress=" + ipAddress, e);
+            return;
+        }
 
-            final String type = message.substring(exclamation + 1, hash);
-            final String msg = message.substring(colon + 1, message.length());
+        envelopeArrived(envelope, ipAddress);
+    }
 
-            final int leftPara = msg.indexOf("(");
-            final int rightPara = msg.indexOf(")");
-            final int toCode = Integer.parseInt(msg.substring(leftPara + 1, rightPara));
+    /**
+     * Parses messages with the header already parsed, and gives
+     * the result to the message responder.
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public void envelopeArrived(final MessageEnvelope envelope, final String ipAddress) {
+        final String message = envelope.getMessage();
+
+        try {
+            final int fromCode = envelope.getUserCode();
+            final String type = envelope.getType();
+            final int toCode = envelope.getRecipientCode();
 
             final User tempme = settings.getMe();
 
             if (fromCode != tempme.getCode() && toCode == tempme.getCode()) {
                 if (type.equals(PRIVMSG)) {
+                    final String msg = envelope.getPayload();
                     final int leftBracket = msg.indexOf("[");
                     final int rightBracket = msg.indexOf("]");
                     final int rgb = Integer.parseInt(msg.substring(leftBracket + 1, rightBracket));
@@ -0,0 +1,229 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+
+import net.usikkert.kouchat.Constants;
+import net.usikkert.kouchat.event.ReceiverListener;
+import net.usikkert.kouchat.util.Validate;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * A datagram received from the network, backed by a buffer from a {@link ByteBufferPool}.
+ *
+ * <p>Only the bytes actually received are decoded, and only when the message is asked for.
+ * The buffer must be released back to the pool with {@link #release()} when the datagram
+ * is no longer needed.</p>
+ *
+ * @author Christian Ihle
+ */
+public class ReceivedDatagram {
+
+    private static final Charset CHARSET = Charset.forName(Constants.MESSAGE_CHARSET);
+
+    /** Decoder and output buffer for direct buffers, one per thread to avoid garbage for each message. */
+    private static final ThreadLocal<DecoderState> DECODER_STATE = new ThreadLocal<DecoderState>() {
+        @Override
+        protected DecoderState initialValue() {
+            return new DecoderState();
+        }
+    };
+
+    private final String ipAddress;
+    private final ByteBufferPool bufferPool;
+
+    @Nullable
+    private ByteBuffer buffer;
+
+    @Nullable
+    private String message;
+
+    /**
+     * Constructor.
+     *
+     * @param buffer The buffer with the received bytes, between position and limit.
+     * @param ipAddress The ip address of the user that sent the datagram.
+     * @param bufferPool The pool to return the buffer to when released.
+     */
+    public ReceivedDatagram(final ByteBuffer buffer, final String ipAddress, final ByteBufferPool bufferPool) {
+        Validate.notNull(buffer, "Buffer can not be null");
+        Validate.notNull(ipAddress, "IP address can not be null");
+        Validate.notNull(bufferPool, "Buffer pool can not be null");
+
+        this.buffer = buffer;
+        this.ipAddress = ipAddress;
+        this.bufferPool = bufferPool;
+    }
+
+    /**
+     * Gets the ip address of the user that sent the datagram.
+     *
+     * @return The ip address.
+     */
+    public String getIpAddress() {
+        return ipAddress;
+    }
+
+    /**
+     * Gets the number of bytes in the datagram.
+     *
+     * @return The number of bytes received.
+     */
+    public int getLength() {
+        return getBuffer().remaining();
+    }
+
+    /**
+     * Gets a read only view of the received bytes. The view is only valid until the datagram is released.
+     *
+     * @return A view of the received bytes.
+     */
+    public ByteBuffer getBuffer() {
+        if (buffer == null) {
+            throw new IllegalStateException("Datagram is already released");
+        }
+
+        return buffer.asReadOnlyBuffer();
+    }
+
+    /**
+     * Gets the message in the datagram, decoded using {@link Constants#MESSAGE_CHARSET}.
+     * Surrounding whitespace is removed, like in the original blocking receivers.
+     * Fragments from {@link MessageFragmenter} only have NUL padding removed, since whitespace
+     * at the end of a fragment is part of the message being reassembled.
+     * Datagrams compressed by {@link MessageCompressor} are decompressed first, and datagrams
+     * in the binary format are decoded by {@link BinaryMessageDecoder}.
+     *
+     * <p>The message is decoded the first time this method is called, and then cached.</p>
+     *
+     * @return The decoded message.
+     */
+    public String getMessage() {
+        if (message == null) {
+            if (buffer == null) {
+                throw new IllegalStateException("Datagram is already released");
+            }
+
+            message = stripPadding(decode(buffer));
+        }
+
+        return message;
+    }
+
+    private String stripPadding(final String decodedMessage) {
+        if (!decodedMessage.startsWith(MessageFragmenter.FRAGMENT_PREFIX)) {
+            return decodedMessage.trim();
+        }
+
+        int end = decodedMessage.length();
+
+        while (end > 0 && decodedMessage.charAt(end - 1) == '\0') {
+            end--;
+        }
+
+        return decodedMessage.substring(0, end);
+    }
+
+    /**
+     * Returns the buffer to the pool. The datagram can not be used after this,
+     * except for getting an already decoded message.
+     */
+    public void release() {
+        if (buffer != null) {
+            bufferPool.release(buffer);
+            buffer = null;
+        }
+    }
+
+    /**
+     * Gives this datagram to the listener. Listeners implementing {@link DatagramReceiverListener} take
+     * ownership of the datagram, while other listeners get the decoded message and the datagram is released.
+     *
+     * @param listener The listener to give the datagram to.
+     */
+    public void deliverTo(final ReceiverListener listener) {
+        if (listener instanceof DatagramReceiverListener) {
+            ((DatagramReceiverListener) listener).datagramArrived(this);
+        }
+
+        else {
+            try {
+                listener.messageArrived(getMessage(), ipAddress);
+            }
+
+            finally {
+                release();
+            }
+        }
+    }
+
+    private static String decode(final ByteBuffer bytes) {
+        if (MessageCompressor.isCompressed(bytes)) {
+            return MessageCompressor.decompress(bytes);
+        }
+
+        if (BinaryMessageDecoder.isBinary(bytes)) {
+            return BinaryMessageDecoder.decode(bytes);
+        }
+
+        if (bytes.hasArray()) {
+            return new String(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining(), CHARSET);
+        }
+
+        return DECODER_STATE.get().decode(bytes.duplicate());
+    }
+
+    /**
+     * Reusable decoder for buffers without a backing array.
+     */
+    private static final class DecoderState {
+
+        private final CharsetDecoder decoder = CHARSET.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+        private CharBuffer chars = CharBuffer.allocate(Constants.NETWORK_PACKET_SIZE);
+
+        String decode(final ByteBuffer bytes) {
+            final int maxChars = (int) (bytes.remaining() * (double) decoder.maxCharsPerByte());
+
+            if (chars.capacity() < maxChars) {
+                chars = CharBuffer.allocate(maxChars);
+            }
+
+            chars.clear();
+            decoder.reset();
+            decoder.decode(bytes, chars, true);
+            decoder.flush(chars);
+            chars.flip();
+
+            return chars.toString();
+        }
+    }
+}
@@ -0,0 +1,110 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Keeps track of the byte ranges of a file received so far, when the file arrives as blocks
+ * over several connections, in any order.
+ *
+ * <p>Ranges that touch or overlap are merged, so there are never more ranges than blocks being received
+ * at the same time. The ranges from the start of the file are merged into the complete prefix,
+ * which is what a {@link FileCheckpoint} can resume from.</p>
+ *
+ * <p>Not thread safe.</p>
+ *
+ * @author Christian Ihle
+ */
+class ReceivedRanges {
+
+    /** The ranges received after the complete prefix, from the start to the end of each range. */
+    private final TreeMap<Long, Long> ranges;
+
+    /** The number of bytes from the start of the file where every byte has been received. */
+    private long completePrefix;
+
+    /**
+     * Constructor.
+     *
+     * @param start The number of bytes already received from the start of the file.
+     */
+    ReceivedRanges(final long start) {
+        completePrefix = start;
+        ranges = new TreeMap<>();
+    }
+
+    /**
+     * Adds a range of received bytes.
+     *
+     * @param start The offset of the first byte received.
+     * @param end The offset after the last byte received.
+     */
+    public void add(final long start, final long end) {
+        long rangeStart = start;
+        long rangeEnd = end;
+
+        final Map.Entry<Long, Long> before = ranges.floorEntry(start);
+
+        if (before != null && before.getValue() >= start) {
+            rangeStart = before.getKey();
+            rangeEnd = Math.max(rangeEnd, before.getValue());
+            ranges.remove(before.getKey());
+        }
+
+        Map.Entry<Long, Long> after = ranges.ceilingEntry(rangeStart);
+
+        while (after != null && after.getKey() <= rangeEnd) {
+            rangeEnd = Math.max(rangeEnd, after.getValue());
+            ranges.remove(after.getKey());
+            after = ranges.ceilingEntry(rangeStart);
+        }
+
+        if (rangeStart <= completePrefix) {
+            completePrefix = Math.max(completePrefix, rangeEnd);
+        }
+
+        else {
+            ranges.put(rangeStart, rangeEnd);
+        }
+    }
+
+    /**
+     * Gets the number of bytes from the start of the file where every byte has been received.
+     *
+     * @return The size of the complete prefix.
+     */
+    public long getCompletePrefix() {
+        return completePrefix;
+    }
+
+    /**
+     * Gets the number of ranges received after the complete prefix, with gaps between them.
+     *
+     * @return The number of separate ranges.
+     */
+    public int getGaps() {
+        return ranges.size();
+    }
+}
@@ -0,0 +1,324 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import java.util.Iterator;
+import java.util.Random;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import net.usikkert.kouchat.misc.Controller;
+import net.usikkert.kouchat.misc.User;
+import net.usikkert.kouchat.util.Logger;
+import net.usikkert.kouchat.util.Validate;
+
+/**
+ * Asks for lost multicast messages to be sent again, and sends them again when others ask.
+ *
+ * <p>Receivers notice a lost message when the sequence from {@link MessageSequencer} skips ahead.
+ * They wait a random {@link #MIN_NACK_DELAY} to {@link #MAX_NACK_DELAY} ms, in case the message was just
+ * reordered, and then send a negative acknowledgement (NACK) directly to the private chat port
+ * of the sender, like <code>code!NACK#nick:(senderCode)4,5,9</code>. The sender multicasts the
+ * messages again from its {@link MessageRetransmitBuffer}, so every receiver that lost them gets them
+ * from the same repair, and the NACKs still waiting at other receivers are never sent. Receivers that
+ * are still missing messages ask again with a longer delay, up to {@link #MAX_NACK_ATTEMPTS} times.</p>
+ *
+ * <p>Only used with users that support {@link ClientCapability#NACK}.</p>
+ *
+ * @author Christian Ihle
+ */
+public class ReliableMulticast implements MessageLossListener {
+
+    private static final Logger LOG = Logger.getLogger(ReliableMulticast.class);
+
+    /** Min milliseconds to wait before asking for lost messages. */
+    static final long MIN_NACK_DELAY = 20;
+
+    /** Max milliseconds to wait before asking for lost messages. */
+    static final long MAX_NACK_DELAY = 60;
+
+    /** Milliseconds to wait for the messages to arrive, before asking again. Doubled for every attempt. */
+    static final long NACK_RETRY_DELAY = 250;
+
+    /** Max number of times to ask for the same lost messages. */
+    static final int MAX_NACK_ATTEMPTS = 3;
+
+    /** Max number of sequences to ask for in one message. */
+    static final int MAX_SEQUENCES_PER_NACK = 64;
+
+    private final ScheduledExecutorService scheduler;
+    private final MessageSender messageSender;
+    private final NetworkMessages networkMessages;
+    private final MessageDeduplicator messageDeduplicator;
+    private final Controller controller;
+    private final Random random;
+    private final MessageRetransmitBuffer retransmitBuffer;
+
+    /** The lost messages of each user, by user code. Kept for the next time messages are lost. */
+    private final ConcurrentMap<Integer, LostMessages> lostMessages;
+
+    /**
+     * Constructor.
+     *
+     * @param scheduler Schedules the NACKs.
+     * @param messageSender For sending lost messages again.
+     * @param networkMessages For sending the NACKs.
+     * @param messageDeduplicator To find out which messages have arrived.
+     * @param controller To find the users.
+     * @param random For the delay before sending the NACKs.
+     */
+    public ReliableMulticast(final ScheduledExecutorService scheduler, final MessageSender messageSender,
+                             final NetworkMessages networkMessages, final MessageDeduplicator messageDeduplicator,
+                             final Controller controller, final Random random) {
+        Validate.notNull(scheduler, "Scheduler can not be null");
+        Validate.notNull(messageSender, "Message sender can not be null");
+        Validate.notNull(networkMessages, "Network messages can not be null");
+        Validate.notNull(messageDeduplicator, "Message deduplicator can not be null");
+        Validate.notNull(controller, "Controller can not be null");
+        Validate.notNull(random, "Random can not be null");
+
+        this.scheduler = scheduler;
+        this.messageSender = messageSender;
+        this.networkMessages = networkMessages;
+        this.messageDeduplicator = messageDeduplicator;
+        this.controller = controller;
+        this.random = random;
+        this.retransmitBuffer = new MessageRetransmitBuffer();
+        this.lostMessages = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Keeps a message that was sent to all users, so it can be sent again if someone lost it.
+     * Messages without a sequence are ignored.
+     *
+     * @param message The message that was sent.
+     * @param compress If the message was compressed.
+     * @param binary If the message used the binary format.
+     * @param fragment If the message could be split into fragments.
+     */
+    public void messageSent(final String message, final boolean compress, final boolean binary,
+                            final boolean fragment) {
+        Validate.notNull(message, "Message can not be null");
+
+        final MessageEnvelope envelope = MessageEnvelope.parse(message);
+
+        if (envelope.hasSequence()) {
+            retransmitBuffer.add(envelope.getSequence(), message, compress, binary, fragment);
+        }
+    }
+
+    /**
+     * Sends the messages in the NACK again, using multicast.
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public void nackArrived(final MessageEnvelope nack, final String ipAddress) {
+        final String payload = nack.getPayload();
+        final int rightPara = payload.indexOf(')');
+        final long currentTime = System.currentTimeMillis();
+
+        try {
+            for (final String sequence : payload.substring(rightPara + 1).split(",", MAX_SEQUENCES_PER_NACK + 1)) {
+                final MessageRetransmitBuffer.SentMessage sentMessage =
+                        retransmitBuffer.getForRetransmit(Long.parseLong(sequence), currentTime);
+
+                if (sentMessage != null) {
+                    LOG.fine("Sending again to user=%s: %s", nack.getNick(), sentMessage.getMessage());
+                    messageSender.send(sentMessage.getMessage(), sentMessage.isCompress(), sentMessage.isBinary(),
+                                       sentMessage.isFragment());
+                }
+            }
+        }
+
+        catch (final NumberFormatException e) {
+            LOG.warning("Failed to parse NACK from %s: %s", ipAddress, nack);
+        }
+    }
+
+    /**
+     * Schedules a NACK for the missing messages, if the user can send them again.
+     * Only the last {@link MessageRetransmitBuffer#SIZE} messages are asked for.
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public void messagesMissing(final int userCode, final long firstSequence, final long lastSequence) {
+        final User user = controller.getUser(userCode);
+
+        if (user == null || user.isMe() || !canAskForMessages(user)) {
+            return;
+        }
+
+        final LostMessages lost = getLostMessages(userCode);
+        final boolean schedule;
+
+        synchronized (lost) {
+            final long first = Math.max(firstSequence, lastSequence - MessageRetransmitBuffer.SIZE + 1);
+
+            for (long sequence = first; sequence <= lastSequence; sequence++) {
+                lost.sequences.add(sequence);
+            }
+
+            schedule = !lost.scheduled;
+            lost.scheduled = true;
+        }
+
+        if (schedule) {
+            scheduleNack(lost, MIN_NACK_DELAY + (long) (random.nextDouble() * (MAX_NACK_DELAY - MIN_NACK_DELAY)));
+        }
+    }
+
+    /**
+     * Checks if the user has messages that are lost and not given up on yet.
+     *
+     * @param userCode The code of the user.
+     * @return If there are lost messages.
+     */
+    public boolean hasLostMessages(final int userCode) {
+        final LostMessages lost = lostMessages.get(userCode);
+
+        if (lost == null) {
+            return false;
+        }
+
+        synchronized (lost) {
+            return !lost.sequences.isEmpty();
+        }
+    }
+
+    private boolean canAskForMessages(final User user) {
+        return user.hasCapability(ClientCapability.NACK) && user.getPrivateChatPort() > 0;
+    }
+
+    private LostMessages getLostMessages(final int userCode) {
+        final LostMessages lost = lostMessages.get(userCode);
+
+        if (lost != null) {
+            return lost;
+        }
+
+        final LostMessages newLost = new LostMessages(userCode);
+        final LostMessages existingLost = lostMessages.putIfAbsent(userCode, newLost);
+
+        return existingLost != null ? existingLost : newLost;
+    }
+
+    private void scheduleNack(final LostMessages lost, final long delay) {
+        try {
+            scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    sendNack(lost);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+
+        catch (final RejectedExecutionException e) {
+            synchronized (lost) {
+                lost.reset();
+            }
+        }
+    }
+
+    /**
+     * Runs on the scheduler. Forgets the messages that arrived while waiting, and asks for the rest.
+     */
+    private void sendNack(final LostMessages lost) {
+        final User user = controller.getUser(lost.userCode);
+        final StringBuilder sequences = new StringBuilder();
+        final int attempts;
+
+        synchronized (lost) {
+            final Iterator<Long> iterator = lost.sequences.iterator();
+            int count = 0;
+
+            while (iterator.hasNext()) {
+                final Long sequence = iterator.next();
+
+                if (messageDeduplicator.isSeen(lost.userCode, sequence)) {
+                    iterator.remove();
+                }
+
+                else if (count < MAX_SEQUENCES_PER_NACK) {
+                    sequences.append(count == 0 ? "" : ",").append(sequence);
+                    count++;
+                }
+            }
+
+            if (user == null || !canAskForMessages(user) || lost.sequences.isEmpty()
+                    || lost.attempts >= MAX_NACK_ATTEMPTS) {
+                if (!lost.sequences.isEmpty()) {
+                    LOG.fine("Giving up on %d lost messages from user=%d", lost.sequences.size(), lost.userCode);
+                }
+
+                lost.reset();
+                return;
+            }
+
+            lost.attempts++;
+            attempts = lost.attempts;
+        }
+
+        LOG.fine("Asking user=%s for lost messages: %s", user.getNick(), sequences);
+        networkMessages.sendNack(user, sequences.toString());
+
+        scheduleNack(lost, NACK_RETRY_DELAY << (attempts - 1));
+    }
+
+    /**
+     * The lost messages of one user.
+     */
+    private static final class LostMessages {
+
+        private final int userCode;
+
+        /** The sequences of the lost messages. */
+        private final SortedSet<Long> sequences;
+
+        /** Number of NACKs sent for the lost messages. */
+        private int attempts;
+
+        /** If a NACK is scheduled. */
+        private boolean scheduled;
+
+        private LostMessages(final int userCode) {
+            this.userCode = userCode;
+            this.sequences = new TreeSet<>();
+        }
+
+        /**
+         * Forgets the lost messages, so the next lost message starts from scratch.
+         */
+        private void reset() {
+            sequences.clear();
+            attempts = 0;
+            scheduled = false;
+        }
+    }
+}
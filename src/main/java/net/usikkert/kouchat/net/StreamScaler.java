@@ -0,0 +1,105 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+/**
+ * Decides how many connections to send a file over, from the speed measured with the connections
+ * already in use.
+ *
+ * <p>The transfer starts with one connection. After each measurement, another connection is added
+ * if the speed went up by at least {@link #MIN_SPEEDUP} since the last connection was added, since a single
+ * connection may be limited by latency or packet loss instead of the capacity of the network. When adding
+ * a connection no longer helps, the number of connections stays where it is for the rest of the transfer.</p>
+ *
+ * <p>Not thread safe.</p>
+ *
+ * @author Christian Ihle
+ */
+class StreamScaler {
+
+    /** How much faster the transfer must get to keep adding connections. */
+    static final double MIN_SPEEDUP = 1.1;
+
+    /** The highest number of connections to use. */
+    private final int maxStreams;
+
+    /** The number of connections to use now. */
+    private int streams;
+
+    /** The best speed measured so far, in bytes per second. */
+    private long bestSpeed;
+
+    /** If adding a connection didn't help, so there is no point in trying again. */
+    private boolean done;
+
+    /**
+     * Constructor.
+     *
+     * @param maxStreams The highest number of connections to use.
+     */
+    StreamScaler(final int maxStreams) {
+        this.maxStreams = maxStreams;
+        this.streams = 1;
+    }
+
+    /**
+     * Updates the number of connections to use, from the speed measured since the last update.
+     *
+     * @param speed The speed with the current number of connections, in bytes per second.
+     * @return The number of connections to use.
+     */
+    public int update(final long speed) {
+        if (done || streams >= maxStreams) {
+            return streams;
+        }
+
+        if (speed > bestSpeed * MIN_SPEEDUP) {
+            bestSpeed = speed;
+            streams++;
+        }
+
+        else {
+            done = true;
+        }
+
+        return streams;
+    }
+
+    /**
+     * Gets the number of connections to use.
+     *
+     * @return The number of connections.
+     */
+    public int getStreams() {
+        return streams;
+    }
+
+    /**
+     * Checks if the number of connections has stopped changing.
+     *
+     * @return If done adding connections.
+     */
+    public boolean isDone() {
+        return done || streams >= maxStreams;
+    }
+}
@@ -43,6 +43,9 @@ public class TransferList {
     /** The list of all the file receivers. */
     private final List<FileReceiver> receivers;
 
+    /** If the file transfers should use virtual threads, when supported. */
+    private final boolean virtualThreads;
+
     /** Counter for unique file transfer id's. */
     private int fileTransferIdCounter;
 
@@ -50,6 +53,17 @@ public class TransferList {
      * Constructor.
      */
     public TransferList() {
+        this(false);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param virtualThreads If the file transfers should use virtual threads, when supported.
+     */
+    public TransferList(final boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+
         senders = new ArrayList<>();
         receivers = new ArrayList<>();
     }
@@ -62,7 +76,7 @@ public class TransferList {
      * @return The file sender object that was added to the transfer list.
      */
     public FileSender addFileSender(final User user, final FileToSend file) {
-        final FileSender fileSender = new FileSender(user, file, ++fileTransferIdCounter);
+        final FileSender fileSender = new FileSender(user, file, ++fileTransferIdCounter, virtualThreads);
         senders.add(fileSender);
 
         return fileSender;
@@ -180,7 +194,7 @@ public class TransferList {
      * @return The file receiver object that was added to the transfer list.
      */
     public FileReceiver addFileReceiver(final User user, final File file, final long size) {
-        final FileReceiver fileReceiver = new FileReceiver(user, file, size, ++fileTransferIdCounter);
+        final FileReceiver fileReceiver = new FileReceiver(user, file, size, ++fileTransferIdCounter, virtualThreads);
         receivers.add(fileReceiver);
 
         return fileReceiver;
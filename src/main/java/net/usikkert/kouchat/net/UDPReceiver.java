@@ -27,6 +27,12 @@ import static net.usikkert.kouchat.net.NetworkUtils.IPTOS_RELIABILITY;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -37,10 +43,18 @@ import net.usikkert.kouchat.misc.User;
 import net.usikkert.kouchat.settings.Settings;
 import net.usikkert.kouchat.util.Validate;
 
+import org.jetbrains.annotations.Nullable;
+
 /**
  * Receives UDP packets sent directly to the IP address
  * of this machine.
  *
+ * <p>Messages are received into buffers from a {@link ByteBufferPool}, either with a blocking
+ * {@link DatagramSocket}, or with a {@link DatagramChannel} and direct buffers when channel mode is enabled.</p>
+ *
+ * <p>If a {@link NetworkEventLoop} is given, the channel is registered there instead of
+ * being read by a thread of its own.</p>
+ *
  * @author Christian Ihle
  */
 public class UDPReceiver implements Runnable {
@@ -48,9 +62,30 @@ public class UDPReceiver implements Runnable {
     /** The logger. */
     private static final Logger LOG = Logger.getLogger(UDPReceiver.class.getName());
 
+    /** Number of idle buffers to keep for reuse. */
+    private static final int BUFFER_POOL_SIZE = 16;
+
     /** The datagram socket used for receiving messages. */
+    @Nullable
     private DatagramSocket udpSocket;
 
+    /** The datagram channel used for receiving messages in channel mode. */
+    @Nullable
+    private DatagramChannel udpChannel;
+
+    /** Reused for every packet received with the datagram socket. */
+    private final DatagramPacket packet;
+
+    /** Buffers for the socket or channel, depending on the mode. */
+    private final ByteBufferPool bufferPool;
+
+    /** If the channel should be used instead of the socket. */
+    private final boolean channelMode;
+
+    /** The event loop to register the channel in, or <code>null</code> to use a thread. */
+    @Nullable
+    private final NetworkEventLoop eventLoop;
+
     /** The listener getting all the messages received here. */
     private ReceiverListener listener;
 
@@ -70,11 +105,28 @@ public class UDPReceiver implements Runnable {
      * @param errorHandler The error handler to use.
      */
     public UDPReceiver(final Settings settings, final ErrorHandler errorHandler) {
+        this(settings, errorHandler, null);
+    }
+
+    /**
+     * Constructor with an event loop for the channel. Channel mode is always used with an event loop.
+     *
+     * @param settings The settings to use.
+     * @param errorHandler The error handler to use.
+     * @param eventLoop The event loop to register the channel in, or <code>null</code> to use a thread.
+     */
+    public UDPReceiver(final Settings settings, final ErrorHandler errorHandler,
+                       @Nullable final NetworkEventLoop eventLoop) {
         Validate.notNull(settings, "Settings can not be null");
         Validate.notNull(errorHandler, "Error handler can not be null");
 
         this.errorHandler = errorHandler;
+        this.eventLoop = eventLoop;
         me = settings.getMe();
+        channelMode = settings.isNioReceiver() || eventLoop != null;
+
+        packet = new DatagramPacket(new byte[0], 0);
+        bufferPool = new ByteBufferPool(BUFFER_POOL_SIZE, Constants.NETWORK_PACKET_SIZE, channelMode);
     }
 
     /**
@@ -84,16 +136,10 @@ public class UDPReceiver implements Runnable {
     public void run() {
         while (connected) {
             try {
-                final DatagramPacket packet = new DatagramPacket(
-                        new byte[Constants.NETWORK_PACKET_SIZE], Constants.NETWORK_PACKET_SIZE);
-
-                udpSocket.receive(packet);
-                final String ip = packet.getAddress().getHostAddress();
-                final String message = new String(packet.getData(), Constants.MESSAGE_CHARSET).trim();
-                LOG.log(Level.FINE, "Message arrived from " + ip + ": " + message);
+                final ReceivedDatagram datagram = receive();
 
-                if (listener != null) {
-                    listener.messageArrived(message, ip);
+                if (datagram != null) {
+                    deliver(datagram);
                 }
             }
 
@@ -110,6 +156,67 @@ public class UDPReceiver implements Runnable {
         }
     }
 
+    private void deliver(final ReceivedDatagram datagram) {
+        if (LOG.isLoggable(Level.FINE)) {
+            LOG.log(Level.FINE, "Message arrived from " + datagram.getIpAddress() + ": " +
+                    datagram.getMessage());
+        }
+
+        if (listener != null) {
+            datagram.deliverTo(listener);
+        }
+
+        else {
+            datagram.release();
+        }
+    }
+
+    /**
+     * Blocks until the next datagram arrives, from the channel if open, or the socket otherwise.
+     * In non-blocking mode, returns <code>null</code> if no datagram is waiting.
+     *
+     * @return The datagram that arrived.
+     * @throws IOException If the channel or socket is closed, or the network is down.
+     */
+    @Nullable
+    private ReceivedDatagram receive() throws IOException {
+        final ByteBuffer buffer = bufferPool.acquire();
+
+        try {
+            final DatagramChannel channel = udpChannel;
+
+            if (channel != null) {
+                final InetSocketAddress sender = (InetSocketAddress) channel.receive(buffer);
+
+                if (sender == null) {
+                    bufferPool.release(buffer);
+                    return null;
+                }
+
+                buffer.flip();
+
+                return new ReceivedDatagram(buffer, sender.getAddress().getHostAddress(), bufferPool);
+            }
+
+            final DatagramSocket socket = udpSocket;
+
+            if (socket == null) {
+                throw new SocketException("Socket is closed");
+            }
+
+            packet.setData(buffer.array(), 0, buffer.capacity());
+            socket.receive(packet);
+            buffer.limit(packet.getLength());
+
+            return new ReceivedDatagram(buffer, packet.getAddress().getHostAddress(), bufferPool);
+        }
+
+        catch (final IOException e) {
+            bufferPool.release(buffer);
+            throw e;
+        }
+    }
+
     /**
      * Creates a new UDP socket, and starts a thread listening
      * on the UDP port. If the UDP port is in use, a new port will be
@@ -128,14 +235,27 @@ public class UDPReceiver implements Runnable {
 
             while (counter < 50 && !connected) {
                 try {
-                    udpSocket = new DatagramSocket(port);
-                    udpSocket.setTrafficClass(IPTOS_RELIABILITY);
+                    if (channelMode) {
+                        openChannel(port);
+                    }
+
+                    else {
+                        udpSocket = new DatagramSocket(port);
+                        udpSocket.setTrafficClass(IPTOS_RELIABILITY);
+                    }
+
+                    if (eventLoop != null && udpChannel != null) {
+                        eventLoop.register(udpChannel, SelectionKey.OP_READ, new ChannelEventHandler());
+                        connected = true;
+                    }
 
-                    connected = true;
+                    else {
+                        connected = true;
 
-                    // The background thread watching for messages from the network.
-                    final Thread worker = new Thread(this, "UDPReceiverWorker");
-                    worker.start();
+                        // The background thread watching for messages from the network.
+                        final Thread worker = new Thread(this, "UDPReceiverWorker");
+                        worker.start();
+                    }
 
                     me.setPrivateChatPort(port);
                     LOG.log(Level.FINE, "Connected to port " + port);
@@ -143,6 +263,7 @@ public class UDPReceiver implements Runnable {
 
                 catch (final IOException e) {
                     LOG.log(Level.SEVERE, e.toString() + " " + port);
+                    closeChannel();
 
                     counter++;
                     port++;
@@ -162,6 +283,26 @@ public class UDPReceiver implements Runnable {
         }
     }
 
+    private void openChannel(final int port) throws IOException {
+        udpChannel = DatagramChannel.open();
+        udpChannel.setOption(StandardSocketOptions.IP_TOS, IPTOS_RELIABILITY);
+        udpChannel.bind(new InetSocketAddress(port));
+    }
+
+    private void closeChannel() {
+        if (udpChannel != null) {
+            try {
+                udpChannel.close();
+            }
+
+            catch (final IOException e) {
+                LOG.log(Level.WARNING, e.toString());
+            }
+
+            udpChannel = null;
+        }
+    }
+
     /**
      * Closes the UDP socket, and stops the thread.
      */
@@ -174,6 +315,7 @@ public class UDPReceiver implements Runnable {
 
         else {
             connected = false;
+            closeChannel();
 
             if (udpSocket != null && !udpSocket.isClosed()) {
                 udpSocket.close();
@@ -185,11 +327,38 @@ public class UDPReceiver implements Runnable {
 
     /**
      * Sets the listener who will receive all the messages
-     * from the UDP packets.
+     * from the UDP packets. Listeners implementing {@link DatagramReceiverListener} get the pooled datagrams.
      *
      * @param listener The object to register as a listener.
      */
     public void registerReceiverListener(final ReceiverListener listener) {
         this.listener = listener;
     }
+
+    /**
+     * Receives every waiting datagram when the channel is ready in the event loop.
+     */
+    private final class ChannelEventHandler implements NetworkEventHandler {
+
+        @Override
+        public void ready(final SelectionKey key) throws IOException {
+            ReceivedDatagram datagram = receive();
+
+            while (datagram != null) {
+                deliver(datagram);
+                datagram = receive();
+            }
+        }
+
+        @Override
+        public void failed(final IOException e) {
+            if (connected) {
+                LOG.log(Level.WARNING, e.toString());
+            }
+
+            else {
+                LOG.log(Level.FINE, e.toString());
+            }
+        }
+    }
 }
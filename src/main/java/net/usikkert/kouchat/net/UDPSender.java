@@ -25,9 +25,13 @@ package net.usikkert.kouchat.net;
 import static net.usikkert.kouchat.net.NetworkUtils.IPTOS_RELIABILITY;
 
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -55,6 +59,15 @@ public class UDPSender {
     /** The error handler for registering important messages. */
     private final ErrorHandler errorHandler;
 
+    /** Splits messages too large for a single packet. */
+    private final MessageFragmenter messageFragmenter;
+
+    /** Compresses messages for users that support it. */
+    private final MessageCompressor messageCompressor;
+
+    /** Encodes messages in the binary format for users that support it. */
+    private final BinaryMessageEncoder binaryMessageEncoder;
+
     /**
      * Default constructor.
      *
@@ -64,6 +77,9 @@ public class UDPSender {
         Validate.notNull(errorHandler, "Error handler can not be null");
 
         this.errorHandler = errorHandler;
+        messageFragmenter = new MessageFragmenter();
+        messageCompressor = new MessageCompressor();
+        binaryMessageEncoder = new BinaryMessageEncoder();
     }
 
     /**
@@ -75,19 +91,40 @@ public class UDPSender {
      * @return If the message was sent or not.
      */
     public boolean send(final String message, final String ip, final int port) {
+        return send(message, ip, port, false, false, false);
+    }
+
+    /**
+     * Sends a packet with a message to a user, in the binary format or compressed if requested.
+     *
+     * <p>Messages too large for a single packet are split into several packets if requested. The binary format
+     * is used for the message types that support it, and compression for the rest.</p>
+     *
+     * @param message The message to send.
+     * @param ip The ip address of the user.
+     * @param port The port to send the message to.
+     * @param compress If the packets should be compressed. Only if the user supports it.
+     * @param binary If the packets should use the binary format. Only if the user supports it.
+     * @param fragment If large messages should be split into fragments. Only if the user supports it.
+     * @return If the message was sent or not.
+     * @see MessageCompressor
+     * @see BinaryMessageEncoder
+     * @see MessageFragmenter
+     */
+    public boolean send(final String message, final String ip, final int port,
+                        final boolean compress, final boolean binary, final boolean fragment) {
         if (connected) {
             try {
                 final InetAddress address = InetAddress.getByName(ip);
-                final byte[] encodedMsg = message.getBytes(Constants.MESSAGE_CHARSET);
-                final int size = encodedMsg.length;
+                final List<String> parts =
+                        fragment ? messageFragmenter.fragment(message) : Collections.singletonList(message);
 
-                if (size > Constants.NETWORK_PACKET_SIZE) {
-                    LOG.log(Level.WARNING, "Message was " + size + " bytes, which is too large.\n" +
-                            " The receiver might not get the complete message.\n'" + message + "'");
+                for (final String part : parts) {
+                    final byte[] encodedMsg = encode(part, compress, binary);
+                    final DatagramPacket packet = new DatagramPacket(encodedMsg, encodedMsg.length, address, port);
+                    udpSocket.send(packet);
                 }
 
-                final DatagramPacket packet = new DatagramPacket(encodedMsg, size, address, port);
-                udpSocket.send(packet);
                 LOG.log(Level.FINE, "Sent message: " + message + " to " + ip + ":" + port);
 
                 return true;
@@ -101,6 +138,32 @@ public class UDPSender {
         return false;
     }
 
+    /**
+     * Gets the number of bytes saved by compression so far, for each message type.
+     *
+     * @return The bytes saved for each message type.
+     */
+    public Map<String, Long> getBytesSavedByCompression() {
+        return messageCompressor.getBytesSaved();
+    }
+
+    private byte[] encode(final String message, final boolean compress, final boolean binary)
+            throws UnsupportedEncodingException {
+        if (binary) {
+            final byte[] binaryMsg = binaryMessageEncoder.encode(message);
+
+            if (binaryMsg != null) {
+                return binaryMsg;
+            }
+        }
+
+        if (compress) {
+            return messageCompressor.encode(message);
+        }
+
+        return message.getBytes(Constants.MESSAGE_CHARSET);
+    }
+
     /**
      * Creates a new UDP socket.
      */
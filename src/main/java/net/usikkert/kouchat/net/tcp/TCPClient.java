@@ -22,11 +22,31 @@
 
 package net.usikkert.kouchat.net.tcp;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.Socket;
-
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.usikkert.kouchat.Constants;
+import net.usikkert.kouchat.net.LinkQuality;
+import net.usikkert.kouchat.net.NetworkEventHandler;
+import net.usikkert.kouchat.net.NetworkEventLoop;
 import net.usikkert.kouchat.util.Logger;
 import net.usikkert.kouchat.util.Validate;
 
@@ -35,41 +55,144 @@ import org.jetbrains.annotations.Nullable;
 /**
  * Client for communicating over a tcp socket.
  *
+ * <p>Uses a thread of its own blocking on the socket, unless it's given a {@link NetworkEventLoop} and the socket
+ * has a channel. Then the channel is non-blocking and registered in the event loop instead. Both modes use
+ * the same framing, so they can talk to each other.</p>
+ *
+ * <p>Messages are framed exactly like {@link DataInputStream#readUTF()} and {@link DataOutputStream#writeUTF(String)}
+ * at first, which limits them to 64 KB of modified UTF-8. {@link #offerLengthPrefixedFraming()} asks the peer to
+ * switch to a framing that is simple to implement outside of Java as well: a 4 byte big-endian length, followed
+ * by that many bytes of standard UTF-8, up to {@link #MAX_FRAME_BYTES}. A peer that understands the offer
+ * answers with {@value #FRAMING_SWITCH} using the old framing, and uses the new framing for everything it writes
+ * after that. Each direction switches on its own, and the offer is only sent to users that advertise
+ * {@link net.usikkert.kouchat.net.ClientCapability#FRAMING}.</p>
+ *
+ * <p>Sending never blocks. Messages are put in a bounded queue, and written by a thread of its own, or by the
+ * event loop. A peer that stops reading fills up the queue, and is disconnected when the queue overflows,
+ * instead of blocking the sender. Dropping single messages is not an option, since the peer ignores the
+ * multicast copies while the tcp connection is up. After the disconnect the peer gets them over multicast
+ * again, until the connection is reestablished.</p>
+ *
+ * <p>Messages queued close together are written in one go, through a buffered stream in blocking mode,
+ * and as a gathering write on the channel in event loop mode.</p>
+ *
+ * <p>{@link #ping()} sends {@value #PING} with the current time, and the peer answers with {@value #PONG}
+ * and the same time, to measure the round trip time through the queues and the socket. The result is kept
+ * in the {@link LinkQuality} of the client. Only peers that support pings should be pinged, since older
+ * peers don't answer.</p>
+ *
  * @author Christian Ihle
  */
-public class TCPClient implements Runnable {
+public class TCPClient implements Runnable, NetworkEventHandler {
 
     private static final Logger LOG = Logger.getLogger(TCPClient.class);
 
+    /** Size of the length before each message, with the framing of {@link DataOutputStream#writeUTF(String)}. */
+    private static final int LEGACY_LENGTH_SIZE = 2;
+
+    /** Size of the length before each message, with the length-prefixed framing. */
+    private static final int FRAME_LENGTH_SIZE = 4;
+
+    /** Max number of bytes in a single message, with the length-prefixed framing. */
+    public static final int MAX_FRAME_BYTES = 16 * 1024 * 1024;
+
+    /** Asks the peer to switch to the length-prefixed framing. */
+    static final String FRAMING_OFFER = "SYS-FRAMING-OFFER:2";
+
+    /** Tells the peer that every message after this one uses the length-prefixed framing. */
+    static final String FRAMING_SWITCH = "SYS-FRAMING-SWITCH:2";
+
+    /** Asks the peer to answer with {@link #PONG}. Followed by the time the ping was sent. */
+    static final String PING = "SYS-PING:";
+
+    /** The answer to {@link #PING}, with the time from the ping. */
+    static final String PONG = "SYS-PONG:";
+
+    private static final Charset CHARSET = Charset.forName(Constants.MESSAGE_CHARSET);
+
+    /** Max number of queued messages to write in one go. */
+    private static final int MAX_BATCH_MESSAGES = 64;
+
+    /** Size of the output buffer in blocking mode. */
+    private static final int WRITE_BUFFER_SIZE = 8192;
+
+    /** Initial size of the read buffer in event loop mode. Grows if a larger message arrives. */
+    private static final int READ_BUFFER_SIZE = 4096;
+
+    /** Max number of messages waiting to be written before the client is disconnected. */
+    public static final int MAX_QUEUED_MESSAGES = 256;
+
     private final Socket socket;
 
+    @Nullable
+    private final NetworkEventLoop eventLoop;
+
+    /** Messages waiting to be written to the socket. */
+    private final BlockingQueue<OutboundMessage> writeQueue;
+
+    /** Number of times the queue has overflowed. */
+    private final AtomicLong overflowCount;
+
+    /** The round trip time and loss measured with pings. */
+    private final LinkQuality linkQuality;
+
+    /** Makes sure messages are queued in the same order as the framing they are encoded with. */
+    private final Object sendLock;
+
+    /** Reused by the gathering writes in event loop mode. */
+    private final ByteBuffer[] writeBatch;
+
+    /** Partial messages read from the channel in event loop mode. */
+    private ByteBuffer readBuffer;
+
     @Nullable
     private DataInputStream inputStream;
 
     @Nullable
-    private DataOutputStream outputStream; // TODO how is this outside of Java?
+    private OutputStream outputStream;
 
     @Nullable
     private TCPClientListener clientListener;
 
+    /** The thread writing queued messages in blocking mode. */
+    @Nullable
+    private Thread writerThread;
+
     private boolean connected;
     private boolean disconnecting;
 
+    /** If messages from the peer use the length-prefixed framing. */
+    private volatile boolean readLengthPrefixed;
+
+    /** If messages to the peer use the length-prefixed framing. */
+    private volatile boolean writeLengthPrefixed;
+
+    /** If any message has arrived from the peer. */
+    private volatile boolean answered;
+
     public TCPClient(final Socket socket) {
+        this(socket, null);
+    }
+
+    public TCPClient(final Socket socket, @Nullable final NetworkEventLoop eventLoop) {
         Validate.notNull(socket, "Socket can not be null");
+
         this.socket = socket;
+        this.eventLoop = eventLoop;
+        this.writeQueue = new LinkedBlockingQueue<>(MAX_QUEUED_MESSAGES);
+        this.overflowCount = new AtomicLong();
+        this.linkQuality = new LinkQuality();
+        this.sendLock = new Object();
+        this.writeBatch = new ByteBuffer[MAX_BATCH_MESSAGES];
+        this.readBuffer = ByteBuffer.allocate(0);
     }
 
     @Override
     public void run() {
         try {
             while (connected && inputStream != null) {
-                final String message = inputStream.readUTF();
-                LOG.fine("Message arrived from %s: %s", getIPAddress(), message);
-
-                if (clientListener != null) {
-                    clientListener.messageArrived(message, this);
-                }
+                final String message = readLengthPrefixed ? readFrame(inputStream) : inputStream.readUTF();
+                messageArrived(message);
             }
         }
 
@@ -80,39 +203,152 @@ public class TCPClient implements Runnable {
             if (clientListener != null) {
                 clientListener.disconnected(this);
             }
+
+            if (writerThread != null) {
+                writerThread.interrupt();
+            }
         }
     }
 
     public void send(final String message) {
-        if (!connected || outputStream == null) {
+        send(message, null);
+    }
+
+    /**
+     * Queues the message for sending, and returns right away.
+     *
+     * @param message The message to send.
+     * @param sendListener Listener to notify when the message is sent or fails, or <code>null</code>.
+     */
+    public void send(final String message, @Nullable final TCPSendListener sendListener) {
+        if (!connected || (!isEventLoopMode() && outputStream == null)) {
+            notifyNotSent(message, sendListener);
             return;
         }
 
-        try {
-            outputStream.writeUTF(message);
-            LOG.fine("Sent message: %s", message);
-        }
+        final boolean queued;
 
-        catch (final IOException e) {
-            LOG.severe(e.toString());
-            connected = false;
+        synchronized (sendLock) {
+            final ByteBuffer bytes = encode(message);
 
-            if (clientListener != null) {
-                clientListener.disconnected(this);
+            if (bytes == null) {
+                notifyNotSent(message, sendListener);
+                return;
             }
+
+            queued = writeQueue.offer(new OutboundMessage(message, bytes, sendListener));
         }
+
+        if (!queued) {
+            overflowCount.incrementAndGet();
+            LOG.warning("Send queue for %s is full with %d messages. Disconnecting.",
+                        getIPAddress(), MAX_QUEUED_MESSAGES);
+            notifyNotSent(message, sendListener);
+            disconnect();
+            return;
+        }
+
+        if (!connected) {
+            failQueuedMessages(); // Disconnected while queueing, so nobody will write it
+            return;
+        }
+
+        if (isEventLoopMode()) {
+            eventLoop.addInterest(socket.getChannel(), SelectionKey.OP_WRITE);
+        }
+
+        LOG.fine("Queued message: %s", message);
+    }
+
+    /**
+     * Asks the peer to switch to the length-prefixed framing for the messages it sends here.
+     *
+     * <p>Must not be the first message on a new connection, since that is used to identify the user.</p>
+     */
+    public void offerLengthPrefixedFraming() {
+        send(FRAMING_OFFER);
+    }
+
+    /**
+     * Sends a ping to the peer, to measure the round trip time. Counts the last ping as lost
+     * if it was never answered.
+     */
+    public void ping() {
+        linkQuality.probeSent();
+        send(PING + System.nanoTime());
+    }
+
+    /**
+     * Gets the round trip time and loss measured with {@link #ping()}.
+     *
+     * @return The link quality.
+     */
+    public LinkQuality getLinkQuality() {
+        return linkQuality;
+    }
+
+    /**
+     * Checks if any message has arrived from the peer, meaning it has accepted the connection.
+     *
+     * @return If the peer has answered.
+     */
+    public boolean isAnswered() {
+        return answered;
+    }
+
+    /**
+     * Checks if messages from the peer use the length-prefixed framing.
+     *
+     * @return If the peer has switched to the length-prefixed framing.
+     */
+    public boolean isReadingLengthPrefixed() {
+        return readLengthPrefixed;
+    }
+
+    /**
+     * Checks if messages to the peer use the length-prefixed framing.
+     *
+     * @return If this client has switched to the length-prefixed framing.
+     */
+    public boolean isWritingLengthPrefixed() {
+        return writeLengthPrefixed;
+    }
+
+    /**
+     * Gets the number of messages waiting to be written to the socket.
+     *
+     * @return The number of queued messages.
+     */
+    public int getQueueDepth() {
+        return writeQueue.size();
+    }
+
+    /**
+     * Gets the number of times the queue overflowed.
+     *
+     * @return The number of overflows.
+     */
+    public long getOverflowCount() {
+        return overflowCount.get();
     }
 
     public boolean connect() {
+        if (isEventLoopMode()) {
+            return connectToEventLoop();
+        }
+
         try {
-            inputStream = new DataInputStream(socket.getInputStream());
-            outputStream = new DataOutputStream(socket.getOutputStream());
+            inputStream = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            outputStream = new BufferedOutputStream(socket.getOutputStream(), WRITE_BUFFER_SIZE);
 
             LOG.fine("Connected to %s:%s", getIPAddress(), socket.getPort());
 
             connected = true;
             new Thread(this, getClass().getSimpleName()).start();
 
+            writerThread = new Thread(new QueueWriter(), getClass().getSimpleName() + "Writer");
+            writerThread.start();
+
             return true;
         }
 
@@ -122,6 +358,355 @@ public class TCPClient implements Runnable {
         }
     }
 
+    private boolean connectToEventLoop() {
+        try {
+            readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+            connected = true;
+            eventLoop.register(socket.getChannel(), SelectionKey.OP_READ, this);
+
+            LOG.fine("Connected to %s:%s using event loop", getIPAddress(), socket.getPort());
+
+            return true;
+        }
+
+        catch (final IOException e) {
+            LOG.severe(e.getMessage());
+            connected = false;
+            return false;
+        }
+    }
+
+    private boolean isEventLoopMode() {
+        return eventLoop != null && socket.getChannel() != null;
+    }
+
+    /**
+     * Encodes the message with the framing currently used for writing.
+     *
+     * @return The encoded message, or <code>null</code> if the message is too large.
+     */
+    @Nullable
+    private ByteBuffer encode(final String message) {
+        if (writeLengthPrefixed) {
+            return encodeFrame(message);
+        }
+
+        return encodeLegacy(message);
+    }
+
+    @Nullable
+    private ByteBuffer encodeFrame(final String message) {
+        final byte[] messageBytes = message.getBytes(CHARSET);
+
+        if (messageBytes.length > MAX_FRAME_BYTES) {
+            LOG.severe("Message too large to send: %d bytes", messageBytes.length);
+            return null;
+        }
+
+        final ByteBuffer bytes = ByteBuffer.allocate(FRAME_LENGTH_SIZE + messageBytes.length);
+        bytes.putInt(messageBytes.length);
+        bytes.put(messageBytes);
+        bytes.flip();
+
+        return bytes;
+    }
+
+    /**
+     * Encodes the message the same way as {@link DataOutputStream#writeUTF(String)}.
+     */
+    @Nullable
+    private ByteBuffer encodeLegacy(final String message) {
+        try {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream(message.length() + LEGACY_LENGTH_SIZE);
+            new DataOutputStream(bytes).writeUTF(message);
+
+            return ByteBuffer.wrap(bytes.toByteArray());
+        }
+
+        catch (final IOException e) {
+            LOG.severe(e.toString());
+            return null;
+        }
+    }
+
+    private String readFrame(final DataInputStream input) throws IOException {
+        final int messageLength = input.readInt();
+        validateFrameLength(messageLength);
+
+        final byte[] messageBytes = new byte[messageLength];
+        input.readFully(messageBytes);
+
+        return new String(messageBytes, CHARSET);
+    }
+
+    private void validateFrameLength(final int messageLength) throws IOException {
+        if (messageLength < 0 || messageLength > MAX_FRAME_BYTES) {
+            throw new IOException("Invalid frame length " + messageLength + " from " + getIPAddress());
+        }
+    }
+
+    private void messageArrived(final String message) {
+        LOG.fine("Message arrived from %s: %s", getIPAddress(), message);
+
+        if (!answered) {
+            answered = true;
+
+            if (clientListener != null) {
+                clientListener.answered(this);
+            }
+        }
+
+        if (message.equals(FRAMING_OFFER)) {
+            switchWriteFraming();
+        }
+
+        else if (message.equals(FRAMING_SWITCH)) {
+            LOG.fine("%s switched to length-prefixed framing", getIPAddress());
+            readLengthPrefixed = true;
+        }
+
+        else if (message.startsWith(PING)) {
+            send(PONG + message.substring(PING.length()));
+        }
+
+        else if (message.startsWith(PONG)) {
+            pongArrived(message);
+        }
+
+        else if (clientListener != null) {
+            clientListener.messageArrived(message, this);
+        }
+    }
+
+    private void pongArrived(final String message) {
+        try {
+            final long pingTime = Long.parseLong(message.substring(PONG.length()));
+            linkQuality.answered(System.nanoTime() - pingTime);
+        }
+
+        catch (final NumberFormatException e) {
+            LOG.warning("Invalid pong from %s: %s", getIPAddress(), message);
+        }
+    }
+
+    /**
+     * Queues the switch message with the old framing, and everything after it with the new framing.
+     */
+    private void switchWriteFraming() {
+        synchronized (sendLock) {
+            if (writeLengthPrefixed) {
+                return;
+            }
+
+            send(FRAMING_SWITCH);
+            writeLengthPrefixed = true;
+        }
+
+        LOG.fine("Switched to length-prefixed framing for %s", getIPAddress());
+    }
+
+    /**
+     * Reads and writes in event loop mode. Called by the thread of the event loop.
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public void ready(final SelectionKey key) throws IOException {
+        final SocketChannel channel = (SocketChannel) key.channel();
+
+        if (key.isReadable()) {
+            readMessages(channel);
+        }
+
+        if (key.isValid() && key.isWritable()) {
+            writeMessages(key, channel);
+        }
+    }
+
+    /**
+     * Same as when the blocking thread fails.
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public void failed(final IOException e) {
+        if (disconnecting && !connected) {
+            LOG.fine(e.toString());
+            return;
+        }
+
+        LOG.severe(e.toString());
+        connected = false;
+
+        if (clientListener != null) {
+            clientListener.disconnected(this);
+        }
+
+        failQueuedMessages();
+    }
+
+    private void readMessages(final SocketChannel channel) throws IOException {
+        if (channel.read(readBuffer) < 0) {
+            throw new EOFException("Connection closed by " + getIPAddress());
+        }
+
+        readBuffer.flip();
+
+        while (connected) {
+            // Checked for each message, since the framing changes right after the switch message
+            final boolean lengthPrefixed = readLengthPrefixed;
+            final int lengthSize = lengthPrefixed ? FRAME_LENGTH_SIZE : LEGACY_LENGTH_SIZE;
+
+            if (readBuffer.remaining() < lengthSize) {
+                break;
+            }
+
+            final int messageLength;
+
+            if (lengthPrefixed) {
+                messageLength = readBuffer.getInt(readBuffer.position());
+                validateFrameLength(messageLength);
+            }
+
+            else {
+                messageLength = readBuffer.getShort(readBuffer.position()) & 0xFFFF;
+            }
+
+            final int frameLength = lengthSize + messageLength;
+
+            if (readBuffer.remaining() < frameLength) {
+                if (readBuffer.capacity() < frameLength) {
+                    final ByteBuffer largerBuffer = ByteBuffer.allocate(frameLength);
+                    largerBuffer.put(readBuffer);
+                    readBuffer = largerBuffer;
+                    return;
+                }
+
+                break;
+            }
+
+            final String message;
+            final int offset = readBuffer.arrayOffset() + readBuffer.position();
+
+            if (lengthPrefixed) {
+                message = new String(readBuffer.array(), offset + lengthSize, messageLength, CHARSET);
+            }
+
+            else {
+                message = new DataInputStream(new ByteArrayInputStream(
+                        readBuffer.array(), offset, frameLength)).readUTF();
+            }
+
+            readBuffer.position(readBuffer.position() + frameLength);
+            messageArrived(message);
+        }
+
+        readBuffer.compact();
+
+        // Don't keep the memory from a large message around
+        if (readBuffer.position() == 0 && readBuffer.capacity() > READ_BUFFER_SIZE) {
+            readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        }
+    }
+
+    private void writeMessages(final SelectionKey key, final SocketChannel channel) throws IOException {
+        while (true) {
+            int batchSize = 0;
+
+            for (final OutboundMessage outboundMessage : writeQueue) {
+                if (batchSize == MAX_BATCH_MESSAGES) {
+                    break;
+                }
+
+                writeBatch[batchSize++] = outboundMessage.bytes;
+            }
+
+            if (batchSize == 0) {
+                key.interestOps(SelectionKey.OP_READ);
+                return;
+            }
+
+            channel.write(writeBatch, 0, batchSize);
+            final boolean socketFull = writeBatch[batchSize - 1].hasRemaining();
+            Arrays.fill(writeBatch, 0, batchSize, null);
+
+            OutboundMessage outboundMessage = writeQueue.peek();
+
+            while (outboundMessage != null && !outboundMessage.bytes.hasRemaining()) {
+                writeQueue.poll();
+                outboundMessage.sent();
+                outboundMessage = writeQueue.peek();
+            }
+
+            if (socketFull) {
+                return; // Try again when writable.
+            }
+        }
+    }
+
+    /**
+     * Writes the queued messages in blocking mode, until disconnected.
+     */
+    private void writeQueuedMessages() {
+        final List<OutboundMessage> batch = new ArrayList<>(MAX_BATCH_MESSAGES);
+
+        try {
+            while (connected && outputStream != null) {
+                batch.add(writeQueue.take());
+                writeQueue.drainTo(batch, MAX_BATCH_MESSAGES - 1);
+
+                for (final OutboundMessage outboundMessage : batch) {
+                    final ByteBuffer bytes = outboundMessage.bytes;
+                    outputStream.write(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+                }
+
+                outputStream.flush();
+
+                for (final OutboundMessage outboundMessage : batch) {
+                    outboundMessage.sent();
+                }
+
+                batch.clear();
+            }
+        }
+
+        catch (final InterruptedException e) {
+            LOG.fine("Writer interrupted for %s", getIPAddress());
+        }
+
+        catch (final IOException e) {
+            LOG.severe(e.toString());
+            connected = false;
+
+            if (clientListener != null) {
+                clientListener.disconnected(this);
+            }
+        }
+
+        for (final OutboundMessage outboundMessage : batch) {
+            notifyNotSent(outboundMessage.message, outboundMessage.sendListener);
+        }
+
+        failQueuedMessages();
+    }
+
+    private void failQueuedMessages() {
+        OutboundMessage outboundMessage = writeQueue.poll();
+
+        while (outboundMessage != null) {
+            notifyNotSent(outboundMessage.message, outboundMessage.sendListener);
+            outboundMessage = writeQueue.poll();
+        }
+    }
+
+    private void notifyNotSent(final String message, @Nullable final TCPSendListener sendListener) {
+        LOG.fine("Message not sent: %s", message);
+
+        if (sendListener != null) {
+            sendListener.messageNotSent(message);
+        }
+    }
+
     public void disconnect() {
         try {
             LOG.fine("Disconnected from %s:%s", getIPAddress(), socket.getPort());
@@ -138,6 +723,14 @@ public class TCPClient implements Runnable {
         catch (final IOException e) {
             LOG.warning(e.getMessage());
         }
+
+        if (writerThread != null) {
+            writerThread.interrupt();
+        }
+
+        else {
+            failQueuedMessages();
+        }
     }
 
     public String getIPAddress() {
@@ -159,4 +752,41 @@ public class TCPClient implements Runnable {
     public boolean isConnected() {
         return connected;
     }
+
+    /**
+     * Writes queued messages in blocking mode.
+     */
+    private final class QueueWriter implements Runnable {
+
+        @Override
+        public void run() {
+            writeQueuedMessages();
+        }
+    }
+
+    /**
+     * A message waiting to be written.
+     */
+    private static final class OutboundMessage {
+
+        private final String message;
+        private final ByteBuffer bytes;
+
+        @Nullable
+        private final TCPSendListener sendListener;
+
+        OutboundMessage(final String message, final ByteBuffer bytes, @Nullable final TCPSendListener sendListener) {
+            this.message = message;
+            this.bytes = bytes;
+            this.sendListener = sendListener;
+        }
+
+        void sent() {
+            LOG.fine("Sent message: %s", message);
+
+            if (sendListener != null) {
+                sendListener.messageSent(message);
+            }
+        }
+    }
 }
@@ -31,6 +31,14 @@ public interface TCPClientListener {
 
     void messageArrived(String message, TCPClient client);
 
+    /**
+     * Called once, when the first message arrives from the peer. Including the messages used internally
+     * by the client, so this tells that the peer has accepted the connection.
+     *
+     * @param client The client that got an answer.
+     */
+    void answered(TCPClient client);
+
     void disconnected(TCPClient client);
 
 }
@@ -23,16 +23,27 @@
 package net.usikkert.kouchat.net.tcp;
 
 import java.net.Socket;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import net.usikkert.kouchat.misc.Controller;
 import net.usikkert.kouchat.misc.User;
+import net.usikkert.kouchat.misc.UserList;
+import net.usikkert.kouchat.net.ClientCapability;
+import net.usikkert.kouchat.net.LinkQuality;
+import net.usikkert.kouchat.net.NetworkEventLoop;
 import net.usikkert.kouchat.settings.Settings;
 import net.usikkert.kouchat.util.Logger;
-import net.usikkert.kouchat.util.Tools;
+import net.usikkert.kouchat.util.TaskExecutors;
 import net.usikkert.kouchat.util.Validate;
 
 import org.jetbrains.annotations.Nullable;
@@ -42,30 +53,74 @@ import org.jetbrains.annotations.Nullable;
  *
  * @author Christian Ihle
  */
-public class TCPConnectionHandler implements TCPConnectionListener, TCPReceiverListener, Runnable {
+public class TCPConnectionHandler implements TCPConnectionListener, TCPReceiverListener, TCPReconnectListener,
+        TCPUserClientListener, Runnable {
 
     private static final Logger LOG = Logger.getLogger(TCPConnectionHandler.class);
 
+    /** Seconds between each check of the tcp connections. */
+    private static final long MAINTENANCE_DELAY = 15;
+
+    /**
+     * The failed attempts to start the backoff at when waiting for a user with a lower code to connect,
+     * giving it 2 to 4 seconds before connecting to the user instead.
+     */
+    static final int WAIT_FOR_CONNECT_ATTEMPTS = 3;
+
     private final Controller controller;
     private final Settings settings;
     private final ExecutorService executorService;
+    private final ScheduledExecutorService scheduler;
+    private final TCPReconnectScheduler reconnectScheduler;
     private final Map<User, TCPUserClient> userClients;
 
+    /** Users to connect to as soon as their client info with the tcp port arrives. */
+    private final Set<User> usersWaitingForPort;
+
+    private final TCPRelayTopology relayTopology;
+
+    @Nullable
+    private final NetworkEventLoop eventLoop;
+
     @Nullable
     private TCPReceiverListener listener;
 
     private boolean connected;
 
     public TCPConnectionHandler(final Controller controller, final Settings settings) {
+        this(controller, settings, null);
+    }
+
+    public TCPConnectionHandler(final Controller controller, final Settings settings,
+                                @Nullable final NetworkEventLoop eventLoop) {
         Validate.notNull(controller, "Controller can not be null");
         Validate.notNull(settings, "Settings can not be null");
 
         this.controller = controller;
         this.settings = settings;
-        this.executorService = Executors.newCachedThreadPool();
-        this.userClients = new HashMap<>();
+        this.eventLoop = eventLoop;
+        this.executorService = TaskExecutors.newTaskExecutor(settings.isVirtualThreads());
+        this.userClients = new ConcurrentHashMap<>();
+        this.usersWaitingForPort = Collections.newSetFromMap(new ConcurrentHashMap<User, Boolean>());
+        this.relayTopology = new TCPRelayTopology(controller, settings);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, TCPConnectionHandler.class.getSimpleName());
+                thread.setDaemon(true);
 
-        new Thread(this, TCPConnectionHandler.class.getSimpleName()).start();
+                return thread;
+            }
+        });
+        this.reconnectScheduler = new TCPReconnectScheduler(scheduler, executorService, this, new Random());
+
+        scheduler.scheduleWithFixedDelay(this, MAINTENANCE_DELAY, MAINTENANCE_DELAY, TimeUnit.SECONDS);
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                pingUsers();
+            }
+        }, LinkQuality.PROBE_INTERVAL, LinkQuality.PROBE_INTERVAL, TimeUnit.MILLISECONDS);
     }
 
     @Override
@@ -75,7 +130,7 @@ public class TCPConnectionHandler implements TCPConnectionListener, TCPReceiverL
             public void run() {
                 LOG.fine("Add socket start");
 
-                final TCPClient client = new TCPClient(socket);
+                final TCPClient client = new TCPClient(socket, eventLoop);
                 final TCPUserIdentifier userIdentifier = new TCPUserIdentifier(controller, settings, client);
 
                 if (!client.connect()) {
@@ -92,7 +147,20 @@ public class TCPConnectionHandler implements TCPConnectionListener, TCPReceiverL
                     return;
                 }
 
-                addClient(user, client);
+                if (!relayTopology.shouldConnectTo(user)) {
+                    LOG.fine("Add socket done. Neither of us is a relay. user=%s", user.getNick());
+                    client.disconnect();
+                    return;
+                }
+
+                if (!addClient(user, client)) {
+                    LOG.fine("Add socket done. Already connected to user=%s", user.getNick());
+                    client.disconnect();
+                    return;
+                }
+
+                offerLengthPrefixedFraming(user, client);
+                announceRoutes(user); // The user has connected to me, so it will send me everything
 
                 LOG.fine("Add socket done. user=%s", user.getNick());
             }
@@ -100,6 +168,31 @@ public class TCPConnectionHandler implements TCPConnectionListener, TCPReceiverL
     }
 
     public void userAdded(final User user) {
+        if (user.getTcpChatPort() <= 0) {
+            usersWaitingForPort.add(user);
+
+            // Checking again in case the port arrived before the user was added to the waiting list
+            if (user.getTcpChatPort() <= 0 || !usersWaitingForPort.remove(user)) {
+                LOG.fine("Add user waiting for tcp port. user=%s", user.getNick());
+                return;
+            }
+        }
+
+        if (relayTopology.isEnabled()) {
+            disconnectUnneededUsers(); // The new user may have changed the relays
+        }
+
+        if (!relayTopology.shouldConnectTo(user)) {
+            LOG.fine("Add user skipped. Neither of us is a relay. user=%s", user.getNick());
+            return;
+        }
+
+        if (!isInitiator(user)) {
+            LOG.fine("Add user waiting for user=%s to connect", user.getNick());
+            reconnectScheduler.schedule(user); // In case the user is unable to connect to me
+            return;
+        }
+
         executorService.submit(new Runnable() {
             @Override
             public void run() {
@@ -110,36 +203,173 @@ public class TCPConnectionHandler implements TCPConnectionListener, TCPReceiverL
                     return;
                 }
 
-                final TCPConnector tcpConnector = new TCPConnector(user);
-                final Socket socket = tcpConnector.connect();
-
-                if (socket == null) {
-                    LOG.warning("Add user done. Unable to connect using tcp. Giving up."); // Never tries again
+                if (!relayTopology.shouldConnectTo(user)) {
+                    LOG.fine("Add user done. The relays changed. user=%s", user.getNick());
                     return;
                 }
 
-                final TCPClient client = new TCPClient(socket);
-
-                if (!client.connect()) {
-                    LOG.warning("Add user done. Connection failed. Giving up."); // Never tries again
-                    client.disconnect();
-                    return;
+                if (connectTo(user)) {
+                    LOG.fine("Add user done for user=%s", user.getNick());
+                } else {
+                    LOG.warning("Add user done. Unable to connect using tcp. Trying again later. user=%s",
+                                user.getNick());
+                    reconnectScheduler.schedule(user);
                 }
-
-                addClient(user, client);
-                client.send("SYS-IDENTIFY:" + settings.getMe().getCode() + ":" + user.getCode());
-
-                LOG.fine("Add user done for user=%s", user.getNick());
             }
         });
     }
 
+    /**
+     * Tries to connect to the user again, unless there is no longer any need for a connection.
+     *
+     * <p>Runs on the executor, scheduled by the {@link TCPReconnectScheduler}.</p>
+     *
+     * @param user The user to connect to.
+     * @return If the user is connected, or no longer needs a connection.
+     */
+    @Override
+    public boolean reconnect(final User user) {
+        if (!connected || controller.getUser(user.getCode()) == null || !relayTopology.shouldConnectTo(user)) {
+            LOG.fine("Reconnect done. No longer needed. user=%s", user.getNick());
+            return true;
+        }
+
+        if (userAddedAndConnected(user)) {
+            LOG.fine("Reconnect done. Already connected. user=%s", user.getNick());
+            return true;
+        }
+
+        final boolean reconnected = connectTo(user);
+        LOG.fine("Reconnect done. reconnected=%s, user=%s", reconnected, user.getNick());
+
+        return reconnected;
+    }
+
+    @Override
+    public int getInitialAttempts(final User user) {
+        if (isInitiator(user)) {
+            return 0;
+        }
+
+        return WAIT_FOR_CONNECT_ATTEMPTS;
+    }
+
+    /**
+     * Announces the routes when a user I connected to answers, since the user is then known to send me everything.
+     *
+     * @param user The user that answered.
+     */
+    @Override
+    public void userAnswered(final User user) {
+        announceRoutes(user);
+    }
+
+    @Override
+    public void userDisconnected(final User user) {
+        reconnectScheduler.schedule(user);
+    }
+
+    /**
+     * Checks if I should connect to the user, or wait for the user to connect to me.
+     *
+     * <p>To avoid both connecting at the same time, only the user with the lowest code connects.
+     * Older clients always connect, so I connect to them as well.</p>
+     *
+     * @param user The user to connect to.
+     * @return If I should connect to the user.
+     */
+    private boolean isInitiator(final User user) {
+        return !user.hasCapability(ClientCapability.TCP_TIE_BREAK) || settings.getMe().getCode() < user.getCode();
+    }
+
+    private boolean connectTo(final User user) {
+        final TCPConnector tcpConnector = new TCPConnector(user, eventLoop != null);
+        final Socket socket = tcpConnector.connect();
+
+        if (socket == null) {
+            return false;
+        }
+
+        final TCPClient client = new TCPClient(socket, eventLoop);
+
+        if (!client.connect()) {
+            client.disconnect();
+            return false;
+        }
+
+        if (!addClient(user, client)) {
+            LOG.fine("Connect done. Already connected to user=%s", user.getNick());
+            client.disconnect();
+            return true;
+        }
+
+        client.send("SYS-IDENTIFY:" + settings.getMe().getCode() + ":" + user.getCode());
+        offerLengthPrefixedFraming(user, client); // Must come after the identification
+
+        return true;
+    }
+
+    /**
+     * Offers the length-prefixed framing on the connection, if the user supports it.
+     * Older clients would not understand the offer.
+     */
+    private void offerLengthPrefixedFraming(final User user, final TCPClient client) {
+        if (user.hasCapability(ClientCapability.FRAMING)) {
+            client.offerLengthPrefixedFraming();
+        }
+    }
+
+    /**
+     * Connects to the user if the user was waiting for a tcp port, and the port is now known.
+     *
+     * @param user The user that changed.
+     */
+    public void userChanged(final User user) {
+        if (user.getTcpChatPort() > 0 && usersWaitingForPort.remove(user)) {
+            LOG.fine("Got tcp port for waiting user=%s", user.getNick());
+            userAdded(user);
+        }
+    }
+
     public void userRemoved(final User user) {
+        usersWaitingForPort.remove(user);
+        reconnectScheduler.cancel(user);
+        relayTopology.userRemoved(user);
         final TCPUserClient userClient = userClients.remove(user);
 
         if (userClient != null) {
             userClient.disconnect();
         }
+
+        if (relayTopology.isEnabled()) {
+            connectToNewRelays(); // In case the user was a relay
+        }
+    }
+
+    /**
+     * Disconnects users that were connected while one of us was a relay, but no longer are.
+     */
+    private void disconnectUnneededUsers() {
+        for (final Map.Entry<User, TCPUserClient> entry : userClients.entrySet()) {
+            if (!relayTopology.shouldConnectTo(entry.getKey())) {
+                LOG.fine("Disconnecting user=%s. Neither of us is a relay any more.", entry.getKey().getNick());
+                userClients.remove(entry.getKey());
+                entry.getValue().disconnect();
+            }
+        }
+    }
+
+    private void connectToNewRelays() {
+        final UserList userList = controller.getUserList();
+
+        for (int i = 0; i < userList.size(); i++) {
+            final User user = userList.get(i);
+
+            if (!user.isMe() && user.getTcpChatPort() > 0 && !userAddedAndConnected(user)
+                    && relayTopology.shouldConnectTo(user)) {
+                userAdded(user);
+            }
+        }
     }
 
     public void connect() {
@@ -148,6 +378,9 @@ public class TCPConnectionHandler implements TCPConnectionListener, TCPReceiverL
 
     public void disconnect() {
         connected = false;
+        usersWaitingForPort.clear();
+        reconnectScheduler.cancelAll();
+        relayTopology.clear();
 
         for (final TCPUserClient userClient : userClients.values()) {
             userClient.disconnect();
@@ -156,13 +389,63 @@ public class TCPConnectionHandler implements TCPConnectionListener, TCPReceiverL
         userClients.clear();
     }
 
-    private void addClient(final User user, final TCPClient client) {
+    /**
+     * Adds a new connection to the user, unless it's a duplicate.
+     *
+     * <p>If we both connected at the same time, like when I fall back to connecting while the user
+     * connects to me, the user with the lowest code decides by keeping the first connection.
+     * The other user keeps whatever connection survives. Duplicates to older clients are closed
+     * later by {@link TCPUserClient#disconnectAdditionalClients()}.</p>
+     *
+     * @param user The user the client is connected to.
+     * @param client The new connection.
+     * @return If the client was added. If not, it must be disconnected.
+     */
+    private synchronized boolean addClient(final User user, final TCPClient client) {
         final TCPUserClient userClient = userClients.get(user);
 
         if (userClient == null) {
-            userClients.put(user, new TCPUserClient(client, user, this));
-        } else {
-            userClient.add(client);
+            userClients.put(user, new TCPUserClient(client, user, this, relayTopology, this));
+            return true;
+        }
+
+        if (userClient.getClientCount() > 0 && user.hasCapability(ClientCapability.TCP_TIE_BREAK)
+                && isInitiator(user)) {
+            return false;
+        }
+
+        userClient.add(client);
+        return true;
+    }
+
+    /**
+     * Tells the other users connected to me as their relay that I forward the messages from the user,
+     * and tells the user the same about the other users.
+     *
+     * <p>Must only be done when the user is known to have a connection to me, either because it connected
+     * to me, or sent me a message. Otherwise the other users would ignore the multicast messages from the user,
+     * without getting them from me instead.</p>
+     *
+     * @param user The user that is connected to me.
+     */
+    private void announceRoutes(final User user) {
+        final TCPUserClient userClient = userClients.get(user);
+
+        if (userClient == null || userClient.isRoutesAnnounced() || !relayTopology.shouldReceiveForwarded(user)
+                || !relayTopology.isRelay() || !userClient.markRoutesAnnounced()) {
+            return;
+        }
+
+        final String routeToUser = relayTopology.createRouteMessage(user);
+
+        for (final Map.Entry<User, TCPUserClient> entry : userClients.entrySet()) {
+            final User otherUser = entry.getKey();
+            final TCPUserClient otherUserClient = entry.getValue();
+
+            if (!otherUser.equals(user) && otherUserClient.isRoutesAnnounced()) {
+                otherUserClient.send(routeToUser);
+                userClient.send(relayTopology.createRouteMessage(otherUser));
+            }
         }
     }
 
@@ -180,45 +463,148 @@ public class TCPConnectionHandler implements TCPConnectionListener, TCPReceiverL
         }
     }
 
+    /**
+     * Gets the number of messages waiting to be written to each user with a tcp connection.
+     *
+     * @return The number of queued messages for each user.
+     */
+    public Map<User, Integer> getQueueDepths() {
+        final Map<User, Integer> queueDepths = new HashMap<>();
+
+        for (final Map.Entry<User, TCPUserClient> entry : userClients.entrySet()) {
+            queueDepths.put(entry.getKey(), entry.getValue().getQueueDepth());
+        }
+
+        return queueDepths;
+    }
+
+    /**
+     * Gets the round trip time and loss of the tcp connection to the user, measured with pings.
+     *
+     * @param user The user to get the link quality for.
+     * @return The link quality, or <code>null</code> if the user has no tcp connection.
+     */
+    @Nullable
+    public LinkQuality getLinkQuality(final User user) {
+        final TCPUserClient userClient = userClients.get(user);
+
+        if (userClient == null) {
+            return null;
+        }
+
+        return userClient.getLinkQuality();
+    }
+
     public void registerReceiverListener(final TCPReceiverListener theListener) {
         this.listener = theListener;
     }
 
     @Override
     public void messageArrived(final String message, final String ipAddress, final User user) {
+        if (relayTopology.isForwardedMessage(message)) {
+            forwardedMessageArrived(relayTopology.getOriginalMessage(message), user);
+            return;
+        }
+
+        if (relayTopology.isRouteMessage(message)) {
+            relayTopology.acceptRoute(message, user);
+            return;
+        }
+
+        if (relayTopology.shouldForward(message, user)) {
+            announceRoutes(user);
+            forwardMessage(message, user);
+        }
+
         if (listener != null) {
             listener.messageArrived(message, ipAddress, user);
         }
     }
 
+    private void forwardedMessageArrived(final String message, final User relay) {
+        final User sender = relayTopology.acceptForwardedMessage(message, relay);
+
+        if (sender != null && listener != null) {
+            listener.messageArrived(message, sender.getIpAddress(), sender);
+        }
+    }
+
+    /**
+     * Sends a message from one user to all the other users connected to me as their relay.
+     */
+    private void forwardMessage(final String message, final User sender) {
+        final String forwardedMessage = relayTopology.createForwardedMessage(message);
+
+        for (final Map.Entry<User, TCPUserClient> entry : userClients.entrySet()) {
+            if (!entry.getKey().equals(sender) && relayTopology.shouldReceiveForwarded(entry.getKey())) {
+                entry.getValue().send(forwardedMessage);
+            }
+        }
+    }
+
     private boolean userAddedAndConnected(final User user) {
         final TCPUserClient userClient = userClients.get(user);
 
         return userClient != null && userClient.getClientCount() > 0;
     }
 
-    @Override
-    public void run() {
-        while (true) {
-            Tools.sleep(15_000);
+    /**
+     * Pings the users with a tcp connection. Runs on the scheduler every {@link LinkQuality#PROBE_INTERVAL} ms.
+     */
+    private void pingUsers() {
+        if (!connected) {
+            return;
+        }
 
-            if (!connected) {
-                continue;
+        try {
+            for (final TCPUserClient userClient : userClients.values()) {
+                userClient.ping();
             }
+        }
+
+        catch (final RuntimeException e) {
+            // An exception would stop all further pings
+            LOG.severe(e, e.toString());
+        }
+    }
+
+    /**
+     * Checks the tcp connections to all the users. Runs on the scheduler every {@link #MAINTENANCE_DELAY} seconds.
+     */
+    @Override
+    public void run() {
+        if (!connected) {
+            return;
+        }
 
-            for (final User user : userClients.keySet()) {
-                final TCPUserClient userClient = userClients.get(user);
+        try {
+            for (final Map.Entry<User, TCPUserClient> entry : userClients.entrySet()) {
+                final User user = entry.getKey();
+                final TCPUserClient userClient = entry.getValue();
                 final int clientCount = userClient.getClientCount();
 
-                if (clientCount == 0) {
+                if (clientCount == 0 && !relayTopology.shouldConnectTo(user)) {
+                    LOG.fine("User %s has lost all tcp connections, and is no longer needed.", user.getNick());
+                    userClients.remove(user, userClient);
+                } else if (clientCount == 0 && !reconnectScheduler.isScheduled(user)) {
                     LOG.warning("User %s has lost all tcp connections. Trying to reconnect.", user.getNick());
-                    userAdded(user);
+                    reconnectScheduler.schedule(user);
                 } else if (clientCount > 1) {
                     LOG.warning("User %s has too many (%d) tcp connections. Trying to close.",
                                 user.getNick(), clientCount);
                     userClient.disconnectAdditionalClients();
                 }
             }
+
+            if (relayTopology.isEnabled()) {
+                disconnectUnneededUsers();
+                connectToNewRelays();
+            }
+        }
+
+        catch (final RuntimeException e) {
+            // An exception would stop all further checks
+            LOG.severe(e, e.toString());
         }
     }
 }
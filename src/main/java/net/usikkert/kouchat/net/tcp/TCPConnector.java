@@ -27,10 +27,10 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketAddress;
+import java.nio.channels.SocketChannel;
 
 import net.usikkert.kouchat.misc.User;
 import net.usikkert.kouchat.util.Logger;
-import net.usikkert.kouchat.util.Sleeper;
 import net.usikkert.kouchat.util.Validate;
 
 import org.jetbrains.annotations.Nullable;
@@ -38,6 +38,9 @@ import org.jetbrains.annotations.Nullable;
 /**
  * Creates a tcp connection to a user.
  *
+ * <p>The user must have a tcp port. {@link TCPConnectionHandler} waits for the client info
+ * with the port before creating a connector.</p>
+ *
  * @author Christian Ihle
  */
 public class TCPConnector {
@@ -46,21 +49,23 @@ public class TCPConnector {
     private static final int SOCKET_CONNECT_TIMEOUT = 10_000;
 
     private final User user;
-    private final Sleeper sleeper;
+    private final boolean useChannel;
 
     public TCPConnector(final User user) {
+        this(user, false);
+    }
+
+    public TCPConnector(final User user, final boolean useChannel) {
         Validate.notNull(user, "User can not be null");
 
         this.user = user;
-        this.sleeper = new Sleeper();
+        this.useChannel = useChannel;
     }
 
     @Nullable
     public Socket connect() {
         LOG.fine("Connecting to user=%s", user.getNick());
 
-        waitForPort();
-
         if (user.getTcpChatPort() <= 0) {
             LOG.warning("User has no tcp port. Giving up.");
             return null;
@@ -68,7 +73,7 @@ public class TCPConnector {
 
         try {
             LOG.fine("Connecting to: %s@%s:%s", user.getNick(), user.getIpAddress(), user.getTcpChatPort());
-            final Socket socket = new Socket();
+            final Socket socket = createSocket();
             final SocketAddress address = new InetSocketAddress(InetAddress.getByName(user.getIpAddress()), user.getTcpChatPort());
             socket.connect(address, SOCKET_CONNECT_TIMEOUT);
             LOG.fine("Connected to: %s@%s:%s", user.getNick(), socket.getInetAddress().getHostAddress(), socket.getPort());
@@ -83,12 +88,11 @@ public class TCPConnector {
         return null;
     }
 
-    private void waitForPort() {
-        int tries = 0;
-
-        while (user.getTcpChatPort() <= 0 && tries < 50) {
-            sleeper.sleep(50);
-            tries++;
+    private Socket createSocket() throws IOException {
+        if (useChannel) {
+            return SocketChannel.open().socket();
         }
+
+        return new Socket();
     }
 }
@@ -22,13 +22,19 @@
 
 package net.usikkert.kouchat.net.tcp;
 
+import java.util.Map;
+
 import net.usikkert.kouchat.event.UserListListener;
 import net.usikkert.kouchat.misc.Controller;
 import net.usikkert.kouchat.misc.ErrorHandler;
 import net.usikkert.kouchat.misc.User;
+import net.usikkert.kouchat.net.LinkQuality;
+import net.usikkert.kouchat.net.NetworkEventLoop;
 import net.usikkert.kouchat.settings.Settings;
 import net.usikkert.kouchat.util.Validate;
 
+import org.jetbrains.annotations.Nullable;
+
 /**
  * Network service for administration of tcp communication.
  *
@@ -42,12 +48,19 @@ public class TCPNetworkService implements UserListListener {
     public TCPNetworkService(final Controller controller,
                              final Settings settings,
                              final ErrorHandler errorHandler) {
+        this(controller, settings, errorHandler, null);
+    }
+
+    public TCPNetworkService(final Controller controller,
+                             final Settings settings,
+                             final ErrorHandler errorHandler,
+                             @Nullable final NetworkEventLoop eventLoop) {
         Validate.notNull(controller, "Controller can not be null");
         Validate.notNull(settings, "Settings can not be null");
         Validate.notNull(errorHandler, "Error handler can not be null");
 
-        this.tcpConnectionHandler = new TCPConnectionHandler(controller, settings);
-        this.tcpServer = new TCPServer(settings, errorHandler, tcpConnectionHandler);
+        this.tcpConnectionHandler = new TCPConnectionHandler(controller, settings, eventLoop);
+        this.tcpServer = new TCPServer(settings, errorHandler, tcpConnectionHandler, eventLoop);
 
         controller.getUserList().addUserListListener(this);
     }
@@ -69,7 +82,7 @@ public class TCPNetworkService implements UserListListener {
 
     @Override
     public void userChanged(final int pos, final User user) {
-
+        tcpConnectionHandler.userChanged(user);
     }
 
     @Override
@@ -85,6 +98,26 @@ public class TCPNetworkService implements UserListListener {
         tcpConnectionHandler.sendMessageToUser(message, user);
     }
 
+    /**
+     * Gets the number of messages waiting to be written to each user with a tcp connection.
+     *
+     * @return The number of queued messages for each user.
+     */
+    public Map<User, Integer> getQueueDepths() {
+        return tcpConnectionHandler.getQueueDepths();
+    }
+
+    /**
+     * Gets the round trip time and loss of the tcp connection to the user, measured with pings.
+     *
+     * @param user The user to get the link quality for.
+     * @return The link quality, or <code>null</code> if the user has no tcp connection.
+     */
+    @Nullable
+    public LinkQuality getLinkQuality(final User user) {
+        return tcpConnectionHandler.getLinkQuality(user);
+    }
+
     public void registerReceiverListener(final TCPReceiverListener listener) {
         tcpConnectionHandler.registerReceiverListener(listener);
     }
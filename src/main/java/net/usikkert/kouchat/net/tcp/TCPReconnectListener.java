@@ -0,0 +1,50 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net.tcp;
+
+import net.usikkert.kouchat.misc.User;
+
+/**
+ * Listener for reconnects scheduled by {@link TCPReconnectScheduler}.
+ *
+ * @author Christian Ihle
+ */
+public interface TCPReconnectListener {
+
+    /**
+     * Tries to connect to the user again.
+     *
+     * @param user The user to connect to.
+     * @return If the user is connected, or no longer needs a connection. If not, another reconnect is scheduled.
+     */
+    boolean reconnect(User user);
+
+    /**
+     * Gets the number of failed attempts to start the backoff at, to wait longer before the first reconnect
+     * to users that are expected to connect by themselves.
+     *
+     * @param user The user to reconnect to.
+     * @return The number of failed attempts to pretend have already happened.
+     */
+    int getInitialAttempts(User user);
+}
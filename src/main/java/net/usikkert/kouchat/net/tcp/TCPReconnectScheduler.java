@@ -0,0 +1,252 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net.tcp;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import net.usikkert.kouchat.misc.User;
+import net.usikkert.kouchat.util.Logger;
+import net.usikkert.kouchat.util.Validate;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Schedules reconnects to users after a tcp connection failed or was lost.
+ *
+ * <p>Each user gets an exponential backoff, starting at {@link #INITIAL_DELAY} ms and doubling for every
+ * failed attempt, up to {@link #MAX_DELAY} ms. The delay is picked at random between half and all of the
+ * backoff, so users that lost their connections at the same time, like when a switch reboots, don't all
+ * reconnect at the same time. At most {@link #MAX_PARALLEL_CONNECTS} connects run at once, and the rest
+ * wait a little and try again, without increasing their backoff.</p>
+ *
+ * @author Christian Ihle
+ */
+public class TCPReconnectScheduler {
+
+    private static final Logger LOG = Logger.getLogger(TCPReconnectScheduler.class);
+
+    /** Milliseconds to wait before the first reconnect. */
+    static final long INITIAL_DELAY = 500;
+
+    /** Max milliseconds to wait between reconnects. */
+    static final long MAX_DELAY = 60_000;
+
+    /** Max number of connects running at the same time. */
+    static final int MAX_PARALLEL_CONNECTS = 4;
+
+    private final ScheduledExecutorService scheduler;
+    private final ExecutorService executorService;
+    private final TCPReconnectListener listener;
+    private final Random random;
+    private final Semaphore connectPermits;
+
+    /** The scheduled reconnect of each user. */
+    private final Map<User, Reconnect> reconnects;
+
+    /**
+     * Constructor.
+     *
+     * @param scheduler Schedules the reconnects.
+     * @param executorService Runs the connects, since they block.
+     * @param listener The listener doing the connects.
+     * @param random For the jitter.
+     */
+    public TCPReconnectScheduler(final ScheduledExecutorService scheduler, final ExecutorService executorService,
+                                 final TCPReconnectListener listener, final Random random) {
+        Validate.notNull(scheduler, "Scheduler can not be null");
+        Validate.notNull(executorService, "Executor service can not be null");
+        Validate.notNull(listener, "Reconnect listener can not be null");
+        Validate.notNull(random, "Random can not be null");
+
+        this.scheduler = scheduler;
+        this.executorService = executorService;
+        this.listener = listener;
+        this.random = random;
+        this.connectPermits = new Semaphore(MAX_PARALLEL_CONNECTS);
+        this.reconnects = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Schedules a reconnect to the user, unless one is already scheduled.
+     * Each reconnect without a successful connect in between waits longer than the last,
+     * starting at the initial attempts from the listener.
+     *
+     * @param user The user to reconnect to.
+     */
+    public void schedule(final User user) {
+        Validate.notNull(user, "User can not be null");
+
+        final Reconnect reconnect = new Reconnect(user, listener.getInitialAttempts(user));
+
+        if (reconnects.putIfAbsent(user, reconnect) == null) {
+            scheduleAttempt(reconnect, getDelay(reconnect.attempts));
+        }
+    }
+
+    /**
+     * Cancels the scheduled reconnect to the user, and forgets the backoff.
+     *
+     * @param user The user to stop reconnecting to.
+     */
+    public void cancel(final User user) {
+        final Reconnect reconnect = reconnects.remove(user);
+
+        if (reconnect != null) {
+            LOG.fine("Cancelled reconnect to user=%s", user.getNick());
+            reconnect.cancel();
+        }
+    }
+
+    /**
+     * Cancels all the scheduled reconnects.
+     */
+    public void cancelAll() {
+        for (final User user : reconnects.keySet()) {
+            cancel(user);
+        }
+    }
+
+    public boolean isScheduled(final User user) {
+        return reconnects.containsKey(user);
+    }
+
+    /**
+     * Gets a random delay between half and all of the backoff for the number of failed attempts.
+     *
+     * @param attempts The number of failed attempts.
+     * @return The delay in milliseconds.
+     */
+    long getDelay(final int attempts) {
+        final long backoff = Math.min(MAX_DELAY, INITIAL_DELAY << Math.min(attempts, 20));
+        final long halfBackoff = backoff / 2;
+
+        return halfBackoff + (long) (random.nextDouble() * (backoff - halfBackoff));
+    }
+
+    private void scheduleAttempt(final Reconnect reconnect, final long delay) {
+        LOG.fine("Reconnecting to user=%s in %d ms, after %d failed attempts",
+                 reconnect.user.getNick(), delay, reconnect.attempts);
+
+        try {
+            reconnect.setFuture(scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    startAttempt(reconnect);
+                }
+            }, delay, TimeUnit.MILLISECONDS));
+        }
+
+        catch (final RejectedExecutionException e) {
+            reconnects.remove(reconnect.user, reconnect);
+        }
+    }
+
+    /**
+     * Runs on the scheduler. Hands the connect over to the executor if there are free permits,
+     * so the scheduler is never blocked by a slow connect.
+     */
+    private void startAttempt(final Reconnect reconnect) {
+        if (!isCurrent(reconnect)) {
+            return;
+        }
+
+        if (!connectPermits.tryAcquire()) {
+            scheduleAttempt(reconnect, getDelay(0));
+            return;
+        }
+
+        try {
+            executorService.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        attempt(reconnect);
+                    }
+
+                    finally {
+                        connectPermits.release();
+                    }
+                }
+            });
+        }
+
+        catch (final RejectedExecutionException e) {
+            connectPermits.release();
+            reconnects.remove(reconnect.user, reconnect);
+        }
+    }
+
+    private void attempt(final Reconnect reconnect) {
+        final boolean done = listener.reconnect(reconnect.user);
+
+        if (done) {
+            reconnects.remove(reconnect.user, reconnect);
+        }
+
+        else if (isCurrent(reconnect)) {
+            reconnect.attempts++;
+            scheduleAttempt(reconnect, getDelay(reconnect.attempts));
+        }
+    }
+
+    private boolean isCurrent(final Reconnect reconnect) {
+        return reconnects.get(reconnect.user) == reconnect;
+    }
+
+    /**
+     * The state of the reconnects to one user.
+     */
+    private static final class Reconnect {
+
+        private final User user;
+
+        /** Number of failed attempts. Only changed by the thread running the attempt. */
+        private volatile int attempts;
+
+        @Nullable
+        private ScheduledFuture<?> future;
+
+        private Reconnect(final User user, final int attempts) {
+            this.user = user;
+            this.attempts = attempts;
+        }
+
+        private synchronized void setFuture(final ScheduledFuture<?> theFuture) {
+            future = theFuture;
+        }
+
+        private synchronized void cancel() {
+            if (future != null) {
+                future.cancel(false);
+            }
+        }
+    }
+}
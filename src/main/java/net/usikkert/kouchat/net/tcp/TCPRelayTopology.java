@@ -0,0 +1,373 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net.tcp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import net.usikkert.kouchat.misc.Controller;
+import net.usikkert.kouchat.misc.User;
+import net.usikkert.kouchat.misc.UserList;
+import net.usikkert.kouchat.net.ClientCapability;
+import net.usikkert.kouchat.net.MessageEnvelope;
+import net.usikkert.kouchat.settings.Settings;
+import net.usikkert.kouchat.util.Logger;
+import net.usikkert.kouchat.util.Validate;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Decides which users to connect to using tcp, and which messages to relay, when the relay topology is enabled.
+ *
+ * <p>Without relays every user connects to every other user, so a network of N users holds about N^2 connections.
+ * With relays, the {@link #RELAY_COUNT} users with the lowest user codes among the users advertising
+ * {@link ClientCapability#RELAY} are elected as relays. Every relay user connects to the relays only, and the
+ * relays forward messages from one user to all the others. Users without the capability, like older clients,
+ * still get a direct connection from everyone.</p>
+ *
+ * <p>Relays only forward messages to all users, sent directly by the user in the message. Forwarded messages
+ * get the prefix {@value #RELAY_PREFIX}, and are never forwarded again. Each user gets a copy from every relay,
+ * so the first relay to announce a route to a user, using {@value #ROUTE_PREFIX}, or to deliver a message
+ * from the user, is used for that user until the relay disconnects. The user is then marked as
+ * {@link User#isTcpRelayed()}, and the multicast copies are ignored, just like with a direct connection.</p>
+ *
+ * @author Christian Ihle
+ */
+public class TCPRelayTopology {
+
+    private static final Logger LOG = Logger.getLogger(TCPRelayTopology.class);
+
+    /** Number of relays to elect. More than one, so there is a relay left while a new one is elected. */
+    public static final int RELAY_COUNT = 2;
+
+    /** Prefix for messages forwarded by a relay. */
+    static final String RELAY_PREFIX = "SYS-RELAY:";
+
+    /** Prefix for messages from a relay telling that messages from a user will be forwarded. */
+    static final String ROUTE_PREFIX = "SYS-RELAY-ROUTE:";
+
+    private final Controller controller;
+    private final Settings settings;
+
+    /** The relay used for messages from each user. */
+    private final ConcurrentMap<User, User> routes;
+
+    /**
+     * Constructor.
+     *
+     * @param controller The controller, to get the users to elect relays from.
+     * @param settings The settings, to check if the relay topology is enabled.
+     */
+    public TCPRelayTopology(final Controller controller, final Settings settings) {
+        Validate.notNull(controller, "Controller can not be null");
+        Validate.notNull(settings, "Settings can not be null");
+
+        this.controller = controller;
+        this.settings = settings;
+        this.routes = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Checks if the relay topology is enabled in the settings.
+     *
+     * @return If relays are used.
+     */
+    public boolean isEnabled() {
+        return settings.isTcpRelay();
+    }
+
+    /**
+     * Checks if a tcp connection should be made to the user.
+     *
+     * @param user The user to check.
+     * @return If the relay topology is disabled, or a connection is needed to or from a relay.
+     */
+    public boolean shouldConnectTo(final User user) {
+        if (!isEnabled() || !user.hasCapability(ClientCapability.RELAY)) {
+            return true;
+        }
+
+        final List<Integer> relayCodes = getRelayCodes();
+
+        return relayCodes.contains(settings.getMe().getCode()) || relayCodes.contains(user.getCode());
+    }
+
+    /**
+     * Gets the user codes of the elected relays, including me, sorted from lowest to highest.
+     *
+     * @return The user codes of the relays.
+     */
+    public List<Integer> getRelayCodes() {
+        final List<Integer> candidates = new ArrayList<>();
+
+        if (!isEnabled()) {
+            return candidates;
+        }
+
+        candidates.add(settings.getMe().getCode());
+        final UserList userList = controller.getUserList();
+
+        for (int i = 0; i < userList.size(); i++) {
+            final User user = userList.get(i);
+
+            // Null if the user list got shorter while electing
+            if (user != null && !user.isMe() && user.hasCapability(ClientCapability.RELAY)
+                    && user.getTcpChatPort() > 0) {
+                candidates.add(user.getCode());
+            }
+        }
+
+        Collections.sort(candidates);
+
+        return candidates.subList(0, Math.min(RELAY_COUNT, candidates.size()));
+    }
+
+    /**
+     * Checks if I'm one of the elected relays.
+     *
+     * @return If the relay topology is enabled, and I'm a relay.
+     */
+    public boolean isRelay() {
+        return isEnabled() && getRelayCodes().contains(settings.getMe().getCode());
+    }
+
+    /**
+     * Checks if a message that arrived directly from a user should be forwarded to the other relay users.
+     *
+     * @param message The message that arrived.
+     * @param user The user the message arrived from.
+     * @return If I'm a relay, and the message is from the user, and meant for everyone.
+     */
+    public boolean shouldForward(final String message, final User user) {
+        if (!isEnabled() || !user.hasCapability(ClientCapability.RELAY) || message.startsWith(RELAY_PREFIX)) {
+            return false;
+        }
+
+        if (!isRelay()) {
+            return false;
+        }
+
+        final MessageEnvelope envelope = parseEnvelope(message);
+
+        return envelope != null && envelope.getUserCode() == user.getCode() && !envelope.hasRecipient();
+    }
+
+    /**
+     * Checks if the user should get messages forwarded by me.
+     *
+     * @param user The user to check.
+     * @return If the user uses the relay topology.
+     */
+    public boolean shouldReceiveForwarded(final User user) {
+        return user.hasCapability(ClientCapability.RELAY);
+    }
+
+    /**
+     * Creates the message to forward from a relay.
+     *
+     * @param message The original message.
+     * @return The message with the relay prefix.
+     */
+    public String createForwardedMessage(final String message) {
+        return RELAY_PREFIX + message;
+    }
+
+    /**
+     * Checks if the message was forwarded by a relay.
+     *
+     * @param message The message to check.
+     * @return If the message has the relay prefix.
+     */
+    public boolean isForwardedMessage(final String message) {
+        return message.startsWith(RELAY_PREFIX);
+    }
+
+    /**
+     * Removes the relay prefix from a forwarded message.
+     *
+     * @param message The forwarded message.
+     * @return The original message.
+     */
+    public String getOriginalMessage(final String message) {
+        return message.substring(RELAY_PREFIX.length());
+    }
+
+    /**
+     * Creates the message a relay sends to tell that it forwards the messages from a user.
+     *
+     * @param user The user connected to the relay.
+     * @return The route message.
+     */
+    public String createRouteMessage(final User user) {
+        return ROUTE_PREFIX + user.getCode();
+    }
+
+    /**
+     * Checks if the message is a relay telling that it forwards the messages from a user.
+     *
+     * @param message The message to check.
+     * @return If the message has the route prefix.
+     */
+    public boolean isRouteMessage(final String message) {
+        return message.startsWith(ROUTE_PREFIX);
+    }
+
+    /**
+     * Uses the relay for messages from the user in the route message, unless a different relay is already used.
+     *
+     * <p>The relay only announces the route when the user is known to be connected to it, so every new message
+     * from the user will be forwarded. The announcement usually arrives before the user sends anything, so the
+     * first messages don't race with their multicast copies, like when the route is found from the first
+     * forwarded message.</p>
+     *
+     * @param message The route message.
+     * @param relay The relay that sent the route message.
+     */
+    public void acceptRoute(final String message, final User relay) {
+        final int userCode;
+
+        try {
+            userCode = Integer.parseInt(message.substring(ROUTE_PREFIX.length()));
+        }
+
+        catch (final NumberFormatException e) {
+            LOG.warning("Failed to parse relay route: %s", message);
+            return;
+        }
+
+        final User user = controller.getUser(userCode);
+
+        if (user != null && !user.isMe() && !user.equals(relay)) {
+            useRelay(user, relay);
+        }
+    }
+
+    /**
+     * Finds the user who sent a message forwarded by a relay, if the message should be used.
+     *
+     * <p>Messages from users with a direct connection, or that are already using a different relay, are ignored.
+     * The relay is still remembered for users with a direct connection, so there is no gap where the multicast
+     * copies are used if the direct connection is closed because neither of us is a relay any more.</p>
+     *
+     * @param message The original message, without the relay prefix.
+     * @param relay The relay that forwarded the message.
+     * @return The user who sent the message, or <code>null</code> if the message should be ignored.
+     */
+    @Nullable
+    public User acceptForwardedMessage(final String message, final User relay) {
+        final MessageEnvelope envelope = parseEnvelope(message);
+
+        if (envelope == null) {
+            return null;
+        }
+
+        final User user = controller.getUser(envelope.getUserCode());
+
+        if (user == null || user.isMe()) {
+            return null;
+        }
+
+        final User route = useRelay(user, relay);
+
+        if (user.isTcpEnabled() || !route.equals(relay)) {
+            return null;
+        }
+
+        return user;
+    }
+
+    /**
+     * Uses the relay for messages from the user, unless the user already has a relay.
+     *
+     * @return The relay used for the user.
+     */
+    private User useRelay(final User user, final User relay) {
+        // Both relays may deliver messages at the same time, so only one of them can win
+        final User route = routes.putIfAbsent(user, relay);
+
+        if (route != null) {
+            return route;
+        }
+
+        LOG.fine("Using relay %s for messages from %s", relay.getNick(), user.getNick());
+        user.setTcpRelayed(true);
+
+        return relay;
+    }
+
+    /**
+     * Stops using the relay for all the users it forwarded messages from, so their multicast messages are used
+     * until another relay forwards a message from them.
+     *
+     * @param relay The relay that disconnected.
+     */
+    public void relayDisconnected(final User relay) {
+        for (final Map.Entry<User, User> route : routes.entrySet()) {
+            if (route.getValue().equals(relay) && routes.remove(route.getKey(), relay)) {
+                LOG.fine("Relay %s gone for messages from %s", relay.getNick(), route.getKey().getNick());
+                route.getKey().setTcpRelayed(false);
+            }
+        }
+    }
+
+    /**
+     * Removes the routes of a user that logged off.
+     *
+     * @param user The user that was removed.
+     */
+    public void userRemoved(final User user) {
+        if (routes.remove(user) != null) {
+            user.setTcpRelayed(false);
+        }
+
+        relayDisconnected(user);
+    }
+
+    /**
+     * Removes all the routes, so messages from every user are taken from multicast again.
+     * Used when disconnecting from the network.
+     */
+    public void clear() {
+        for (final User user : routes.keySet()) {
+            user.setTcpRelayed(false);
+        }
+
+        routes.clear();
+    }
+
+    @Nullable
+    private MessageEnvelope parseEnvelope(final String message) {
+        try {
+            return MessageEnvelope.parse(message);
+        }
+
+        catch (final NumberFormatException | StringIndexOutOfBoundsException e) {
+            LOG.warning("Failed to parse relayed message: %s", e.getMessage());
+            return null;
+        }
+    }
+}
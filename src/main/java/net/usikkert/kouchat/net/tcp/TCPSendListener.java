@@ -0,0 +1,49 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net.tcp;
+
+/**
+ * Listener for the result of sending a single message with a {@link TCPClient}.
+ *
+ * <p>Called from the thread that writes to the socket, or from the thread that tried to send the message
+ * if it was never queued. Must return quickly.</p>
+ *
+ * @author Christian Ihle
+ */
+public interface TCPSendListener {
+
+    /**
+     * The message was written to the socket.
+     *
+     * @param message The message that was sent.
+     */
+    void messageSent(String message);
+
+    /**
+     * The message was not sent, because the client is not connected, the queue was full,
+     * or writing to the socket failed.
+     *
+     * @param message The message that was not sent.
+     */
+    void messageNotSent(String message);
+}
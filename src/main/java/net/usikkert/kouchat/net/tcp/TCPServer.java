@@ -23,11 +23,17 @@
 package net.usikkert.kouchat.net.tcp;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 
 import net.usikkert.kouchat.Constants;
 import net.usikkert.kouchat.misc.ErrorHandler;
 import net.usikkert.kouchat.misc.User;
+import net.usikkert.kouchat.net.NetworkEventHandler;
+import net.usikkert.kouchat.net.NetworkEventLoop;
 import net.usikkert.kouchat.settings.Settings;
 import net.usikkert.kouchat.util.Logger;
 import net.usikkert.kouchat.util.Validate;
@@ -37,6 +43,9 @@ import org.jetbrains.annotations.Nullable;
 /**
  * Server listening for tcp connections from users.
  *
+ * <p>Uses a thread of its own blocking on accept, unless it's given a {@link NetworkEventLoop}.
+ * Then a non-blocking server channel is registered in the event loop instead.</p>
+ *
  * @author Christian Ihle
  */
 public class TCPServer implements Runnable {
@@ -49,6 +58,9 @@ public class TCPServer implements Runnable {
     private final ErrorHandler errorHandler;
     private final TCPConnectionListener tcpConnectionListener;
 
+    @Nullable
+    private final NetworkEventLoop eventLoop;
+
     private boolean connected;
 
     @Nullable
@@ -56,6 +68,12 @@ public class TCPServer implements Runnable {
 
     public TCPServer(final Settings settings, final ErrorHandler errorHandler,
                      final TCPConnectionListener tcpConnectionListener) {
+        this(settings, errorHandler, tcpConnectionListener, null);
+    }
+
+    public TCPServer(final Settings settings, final ErrorHandler errorHandler,
+                     final TCPConnectionListener tcpConnectionListener,
+                     @Nullable final NetworkEventLoop eventLoop) {
         Validate.notNull(settings, "Settings can not be null");
         Validate.notNull(errorHandler, "Error handler can not be null");
         Validate.notNull(tcpConnectionListener, "TCP connection listener can not be null");
@@ -63,6 +81,7 @@ public class TCPServer implements Runnable {
         this.me = settings.getMe();
         this.errorHandler = errorHandler;
         this.tcpConnectionListener = tcpConnectionListener;
+        this.eventLoop = eventLoop;
     }
 
     @Override
@@ -98,12 +117,18 @@ public class TCPServer implements Runnable {
 
         while (portAttempt < MAX_PORT_ATTEMPTS && !connected) {
             try {
-                serverSocket = new ServerSocket(port);
-                connected = true;
+                if (eventLoop != null) {
+                    startServerChannel(eventLoop, port);
+                }
 
-                // The background thread watching for connections from the network.
-                final Thread worker = new Thread(this, getClass().getSimpleName());
-                worker.start();
+                else {
+                    serverSocket = new ServerSocket(port);
+                    connected = true;
+
+                    // The background thread watching for connections from the network.
+                    final Thread worker = new Thread(this, getClass().getSimpleName());
+                    worker.start();
+                }
 
                 me.setTcpChatPort(port);
                 LOG.fine("Connected to port: %s", port);
@@ -129,6 +154,23 @@ public class TCPServer implements Runnable {
         }
     }
 
+    private void startServerChannel(final NetworkEventLoop loop, final int port) throws IOException {
+        final ServerSocketChannel serverChannel = ServerSocketChannel.open();
+
+        try {
+            serverChannel.bind(new InetSocketAddress(port));
+            loop.register(serverChannel, SelectionKey.OP_ACCEPT, new AcceptHandler());
+        }
+
+        catch (final IOException e) {
+            serverChannel.close();
+            throw e;
+        }
+
+        serverSocket = serverChannel.socket();
+        connected = true;
+    }
+
     public void stopServer() {
         LOG.fine("Disconnecting...");
 
@@ -149,4 +191,33 @@ public class TCPServer implements Runnable {
 
         LOG.fine("Disconnected.");
     }
+
+    /**
+     * Accepts every waiting connection when the server channel is ready in the event loop.
+     */
+    private final class AcceptHandler implements NetworkEventHandler {
+
+        @Override
+        public void ready(final SelectionKey key) throws IOException {
+            final ServerSocketChannel serverChannel = (ServerSocketChannel) key.channel();
+            SocketChannel channel = serverChannel.accept();
+
+            while (channel != null) {
+                tcpConnectionListener.socketAdded(channel.socket());
+                channel = serverChannel.accept();
+            }
+        }
+
+        // Happens when server channel is closed, or network is down
+        @Override
+        public void failed(final IOException e) {
+            if (connected) {
+                LOG.warning(e.toString());
+            }
+
+            else {
+                LOG.fine(e.toString());
+            }
+        }
+    }
 }
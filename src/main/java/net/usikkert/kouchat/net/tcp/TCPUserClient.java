@@ -22,14 +22,20 @@
 
 package net.usikkert.kouchat.net.tcp;
 
-import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import net.usikkert.kouchat.misc.User;
+import net.usikkert.kouchat.net.ClientCapability;
+import net.usikkert.kouchat.net.LinkQuality;
 import net.usikkert.kouchat.util.Logger;
-import net.usikkert.kouchat.util.Tools;
 import net.usikkert.kouchat.util.Validate;
 
+import org.jetbrains.annotations.Nullable;
+
 /**
  * Maps one or more tcp clients to a user.
  *
@@ -40,30 +46,70 @@ public class TCPUserClient implements TCPClientListener {
     private static final Logger LOG = Logger.getLogger(TCPUserClient.class);
     private static final String MESSAGE_DISCONNECT_ADDITIONAL = "SYS-DISCONNECT-ADDITIONAL";
 
+    /** Milliseconds to wait for the other side to disconnect an additional client. */
+    private static final long DISCONNECT_ADDITIONAL_TIMEOUT = 2500;
+
     private final List<TCPClient> clients;
     private final User user;
     private final TCPReceiverListener listener;
 
+    @Nullable
+    private final TCPRelayTopology relayTopology;
+
+    @Nullable
+    private final TCPUserClientListener userClientListener;
+
+    /** The client the other side has been asked to disconnect. */
+    @Nullable
+    private volatile TCPClient additionalClient;
+
+    /** Counted down when the additional client is disconnected. */
+    private volatile CountDownLatch additionalClientDisconnected;
+
+    /** If the relay routes to and from this user have been announced. */
+    private final AtomicBoolean routesAnnounced;
+
     public TCPUserClient(final TCPClient client, final User user, final TCPReceiverListener listener) {
+        this(client, user, listener, null, null);
+    }
+
+    public TCPUserClient(final TCPClient client, final User user, final TCPReceiverListener listener,
+                         @Nullable final TCPRelayTopology relayTopology,
+                         @Nullable final TCPUserClientListener userClientListener) {
         Validate.notNull(client, "Client can not be null");
         Validate.notNull(user, "User can not be null");
         Validate.notNull(listener, "TCP message listener can not be null");
 
-        this.clients = new ArrayList<>();
+        this.clients = new CopyOnWriteArrayList<>(); // Clients can disconnect themselves while sending
         this.user = user;
         this.listener = listener;
+        this.relayTopology = relayTopology;
+        this.userClientListener = userClientListener;
+        this.additionalClientDisconnected = new CountDownLatch(0);
+        this.routesAnnounced = new AtomicBoolean();
 
         add(client);
     }
 
+    /**
+     * Adds a client to the user. Tcp is enabled for the user when the client has been answered by the other side.
+     * Until then the other side may not know about me yet, and reject the connection, so the multicast messages
+     * from the user must still be used.
+     *
+     * @param client The client to add.
+     */
     public void add(final TCPClient client) {
         clients.add(client);
         client.registerClientListener(this);
-        user.setTcpEnabled(true);
+
+        if (client.isAnswered()) {
+            user.setTcpEnabled(true);
+        }
     }
 
     public void disconnect() {
         user.setTcpEnabled(false);
+        notifyRelayDisconnected();
 
         for (final TCPClient client : clients) {
             client.registerClientListener(null);
@@ -73,6 +119,17 @@ public class TCPUserClient implements TCPClientListener {
         clients.clear();
     }
 
+    @Override
+    public void answered(final TCPClient client) {
+        if (clients.contains(client)) {
+            user.setTcpEnabled(true);
+
+            if (userClientListener != null) {
+                userClientListener.userAnswered(user);
+            }
+        }
+    }
+
     @Override
     public void disconnected(final TCPClient client) {
         client.registerClientListener(null);
@@ -80,6 +137,15 @@ public class TCPUserClient implements TCPClientListener {
 
         if (clients.isEmpty()) {
             user.setTcpEnabled(false);
+            notifyRelayDisconnected();
+
+            if (userClientListener != null) {
+                userClientListener.userDisconnected(user);
+            }
+        }
+
+        if (client == additionalClient) {
+            additionalClientDisconnected.countDown();
         }
     }
 
@@ -108,6 +174,12 @@ public class TCPUserClient implements TCPClientListener {
         }
     }
 
+    private void notifyRelayDisconnected() {
+        if (relayTopology != null) {
+            relayTopology.relayDisconnected(user);
+        }
+    }
+
     public void send(final String message) {
         for (final TCPClient client : clients) {
             if (!client.isDisconnecting()) {
@@ -121,6 +193,72 @@ public class TCPUserClient implements TCPClientListener {
         return clients.size();
     }
 
+    /**
+     * Pings the clients that have been answered, if the user supports it. Clients that have stopped
+     * answering the pings are disconnected, so the user falls back to udp in seconds instead of when
+     * a write finally fails.
+     */
+    public void ping() {
+        if (!user.hasCapability(ClientCapability.PING)) {
+            return;
+        }
+
+        for (final TCPClient client : clients) {
+            if (client.getLinkQuality().isDead()) {
+                LOG.warning("Client for %s stopped answering pings. Disconnecting.", user.getNick());
+                client.disconnect();
+            }
+
+            else if (client.isAnswered() && !client.isDisconnecting()) {
+                client.ping();
+            }
+        }
+    }
+
+    /**
+     * Gets the round trip time and loss of the client used for sending.
+     *
+     * @return The link quality, or <code>null</code> if there are no clients.
+     */
+    @Nullable
+    public LinkQuality getLinkQuality() {
+        for (final TCPClient client : clients) {
+            if (!client.isDisconnecting()) {
+                return client.getLinkQuality();
+            }
+        }
+
+        return null;
+    }
+
+    public boolean isRoutesAnnounced() {
+        return routesAnnounced.get();
+    }
+
+    /**
+     * Marks the relay routes to and from this user as announced.
+     *
+     * @return If this was the first time, and the routes should be announced now.
+     */
+    public boolean markRoutesAnnounced() {
+        return routesAnnounced.compareAndSet(false, true);
+    }
+
+    /**
+     * Gets the number of messages waiting to be written to this user, in all the clients.
+     *
+     * @return The number of queued messages.
+     */
+    public int getQueueDepth() {
+        int queueDepth = 0;
+
+        for (final TCPClient client : clients) {
+            queueDepth += client.getQueueDepth();
+        }
+
+        return queueDepth;
+    }
+
     /**
      * Using a two step process to try to avoid a situation where clients on both side disconnect
      * different sockets at the same time.
@@ -143,17 +281,26 @@ public class TCPUserClient implements TCPClientListener {
         }
 
         final TCPClient client = clients.get(0);
+        final CountDownLatch disconnected = new CountDownLatch(1);
+        additionalClientDisconnected = disconnected;
+        additionalClient = client;
         client.setDisconnecting(true);
         client.send(MESSAGE_DISCONNECT_ADDITIONAL);
 
-        for (int i = 0; i < 50; i++) {
-            Tools.sleep(50);
-
-            if (!client.isConnected()) {
+        try {
+            if (disconnected.await(DISCONNECT_ADDITIONAL_TIMEOUT, TimeUnit.MILLISECONDS) || !client.isConnected()) {
                 return;
             }
         }
 
+        catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        finally {
+            additionalClient = null;
+        }
+
         LOG.warning("Client for %s didn't disconnect as expected", user.getNick());
         client.setDisconnecting(false);
     }
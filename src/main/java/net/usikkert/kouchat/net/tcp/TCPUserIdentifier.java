@@ -22,6 +22,8 @@
 
 package net.usikkert.kouchat.net.tcp;
 
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -29,7 +31,6 @@ import net.usikkert.kouchat.misc.Controller;
 import net.usikkert.kouchat.misc.User;
 import net.usikkert.kouchat.settings.Settings;
 import net.usikkert.kouchat.util.Logger;
-import net.usikkert.kouchat.util.Sleeper;
 import net.usikkert.kouchat.util.Validate;
 
 import org.jetbrains.annotations.Nullable;
@@ -44,6 +45,9 @@ public class TCPUserIdentifier implements TCPClientListener {
 
     private static final Logger LOG = Logger.getLogger(TCPUserIdentifier.class);
 
+    /** Milliseconds to wait for the identification message before giving up. */
+    static final long IDENTIFY_TIMEOUT = 2500;
+
     /**
      * Identification format consisting of both the user sending the message and the user expected
      * to receive the message. This is to avoid issues where client is restarted but one side hasn't
@@ -54,10 +58,10 @@ public class TCPUserIdentifier implements TCPClientListener {
     private final Controller controller;
     private final Settings settings;
     private final TCPClient client;
-    private final Sleeper sleeper;
+    private final CountDownLatch messageArrived;
 
     @Nullable
-    private String message;
+    private volatile String message;
 
     public TCPUserIdentifier(final Controller controller, final Settings settings, final TCPClient client) {
         Validate.notNull(controller, "Controller can not be null");
@@ -67,7 +71,7 @@ public class TCPUserIdentifier implements TCPClientListener {
         this.controller = controller;
         this.settings = settings;
         this.client = client;
-        this.sleeper = new Sleeper();
+        this.messageArrived = new CountDownLatch(1);
 
         client.registerClientListener(this);
     }
@@ -78,13 +82,25 @@ public class TCPUserIdentifier implements TCPClientListener {
         LOG.fine("Received message: %s", theMessage);
 
         this.message = theMessage;
+        messageArrived.countDown();
     }
 
     @Override
-    public void disconnected(final TCPClient theClient) {
+    public void answered(final TCPClient theClient) {
+
+    }
 
+    @Override
+    public void disconnected(final TCPClient theClient) {
+        messageArrived.countDown(); // No reason to keep waiting
     }
 
+    /**
+     * Waits for the identification message, and returns as soon as it arrives, the client disconnects,
+     * or the timeout is reached.
+     *
+     * @return The identified user, or <code>null</code> if the user could not be identified.
+     */
     @Nullable
     public User waitForUser() {
         waitForMessage();
@@ -101,11 +117,15 @@ public class TCPUserIdentifier implements TCPClientListener {
     }
 
     private void waitForMessage() {
-        int tries = 0;
+        try {
+            if (!messageArrived.await(IDENTIFY_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                LOG.warning("No identification after %d ms. clientIP=%s", IDENTIFY_TIMEOUT, client.getIPAddress());
+            }
+        }
 
-        while (message == null && tries < 50) {
-            sleeper.sleep(50);
-            tries++;
+        catch (final InterruptedException e) {
+            LOG.warning("Interrupted while waiting for identification. clientIP=%s", client.getIPAddress());
+            Thread.currentThread().interrupt();
         }
     }
 
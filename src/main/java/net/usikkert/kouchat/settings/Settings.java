@@ -31,6 +31,7 @@ import net.usikkert.kouchat.misc.User;
 import net.usikkert.kouchat.util.Tools;
 
 import org.jetbrains.annotations.NonNls;
+import org.jetbrains.annotations.Nullable;
 
 /**
  * This class contains all the application settings.
@@ -88,6 +89,31 @@ public class Settings {
     /** The location to store logs. */
     private String logLocation;
 
+    /** If udp messages should be received with nio channels. */
+    private boolean nioReceiver;
+
+    /** If all the network sockets should use a single nio selector. */
+    private boolean nioSelector;
+
+    /** If blocking network and file transfer tasks should run on virtual threads. */
+    private boolean virtualThreads;
+
+    /** The overflow policy of the queue between the receivers and the parsers, or null to parse on the receiver. */
+    @Nullable
+    private String inboundQueue;
+
+    /** If udp packets should be compressed for users that support it. */
+    private boolean compression;
+
+    /** If the binary protocol should be disabled, even with users that support it. */
+    private boolean noBinaryProtocol;
+
+    /** If tcp should go through a few relay users, instead of connecting to every user. */
+    private boolean tcpRelay;
+
+    /** If lost multicast messages should be asked for again. */
+    private boolean reliableMulticast;
+
     /**
      * Constructor.
      *
@@ -351,6 +377,154 @@ public class Settings {
         this.logLocation = logLocation;
     }
 
+    /**
+     * If udp messages should be received with nio channels and pooled direct buffers,
+     * instead of blocking sockets.
+     *
+     * @return If udp messages should be received with nio channels.
+     */
+    public boolean isNioReceiver() {
+        return nioReceiver;
+    }
+
+    /**
+     * Sets if udp messages should be received with nio channels.
+     *
+     * @param nioReceiver If udp messages should be received with nio channels.
+     */
+    public void setNioReceiver(final boolean nioReceiver) {
+        this.nioReceiver = nioReceiver;
+    }
+
+    /**
+     * If the multicast, private udp and tcp sockets should all be non-blocking channels
+     * handled by a single thread with a nio selector, instead of a thread for each socket.
+     *
+     * @return If all the network sockets should use a single nio selector.
+     */
+    public boolean isNioSelector() {
+        return nioSelector;
+    }
+
+    /**
+     * Sets if all the network sockets should use a single nio selector.
+     *
+     * @param nioSelector If all the network sockets should use a single nio selector.
+     */
+    public void setNioSelector(final boolean nioSelector) {
+        this.nioSelector = nioSelector;
+    }
+
+    /**
+     * If blocking network and file transfer tasks should run on virtual threads, instead of
+     * a pool of platform threads. Only used if the Java runtime supports virtual threads.
+     *
+     * @return If blocking tasks should run on virtual threads.
+     */
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /**
+     * Sets if blocking network and file transfer tasks should run on virtual threads.
+     *
+     * @param virtualThreads If blocking tasks should run on virtual threads.
+     */
+    public void setVirtualThreads(final boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+    }
+
+    /**
+     * Gets the overflow policy of the queue between the receivers and the parsers of messages.
+     *
+     * @return The name of the overflow policy, or <code>null</code> if messages are not queued.
+     */
+    @Nullable
+    public String getInboundQueue() {
+        return inboundQueue;
+    }
+
+    /**
+     * Sets the overflow policy of the queue between the receivers and the parsers of messages.
+     *
+     * @param inboundQueue The name of the overflow policy, or <code>null</code> to not queue messages.
+     */
+    public void setInboundQueue(@Nullable final String inboundQueue) {
+        this.inboundQueue = inboundQueue;
+    }
+
+    /**
+     * If udp packets should be compressed for users that support it.
+     *
+     * @return If compression is enabled.
+     */
+    public boolean isCompression() {
+        return compression;
+    }
+
+    /**
+     * Sets if udp packets should be compressed for users that support it.
+     *
+     * @param compression If compression is enabled.
+     */
+    public void setCompression(final boolean compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * If the binary protocol is disabled, so only the text protocol is used with other users.
+     *
+     * @return If the binary protocol is disabled.
+     */
+    public boolean isNoBinaryProtocol() {
+        return noBinaryProtocol;
+    }
+
+    /**
+     * Sets if the binary protocol is disabled, so only the text protocol is used with other users.
+     *
+     * @param noBinaryProtocol If the binary protocol is disabled.
+     */
+    public void setNoBinaryProtocol(final boolean noBinaryProtocol) {
+        this.noBinaryProtocol = noBinaryProtocol;
+    }
+
+    /**
+     * If tcp goes through a few relay users, instead of connecting to every user.
+     *
+     * @return If the relay topology is enabled.
+     */
+    public boolean isTcpRelay() {
+        return tcpRelay;
+    }
+
+    /**
+     * Sets if tcp goes through a few relay users, instead of connecting to every user.
+     *
+     * @param tcpRelay If the relay topology is enabled.
+     */
+    public void setTcpRelay(final boolean tcpRelay) {
+        this.tcpRelay = tcpRelay;
+    }
+
+    /**
+     * If lost multicast messages are asked for again, and the latest messages are kept for others that ask.
+     *
+     * @return If reliable multicast is enabled.
+     */
+    public boolean isReliableMulticast() {
+        return reliableMulticast;
+    }
+
+    /**
+     * Sets if lost multicast messages are asked for again, and the latest messages are kept for others that ask.
+     *
+     * @param reliableMulticast If reliable multicast is enabled.
+     */
+    public void setReliableMulticast(final boolean reliableMulticast) {
+        this.reliableMulticast = reliableMulticast;
+    }
+
     /**
      * If balloon notifications are enabled.
      *
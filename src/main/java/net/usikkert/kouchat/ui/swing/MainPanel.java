@@ -132,7 +132,7 @@ public class MainPanel extends JPanel implements ActionListener, CaretListener,
                 new HashSet<AWTKeyStroke>());
 
         final AbstractDocument msgDoc = (AbstractDocument) msgTF.getDocument();
-        msgDoc.setDocumentFilter(new SizeDocumentFilter(Constants.MESSAGE_MAX_BYTES));
+        msgDoc.setDocumentFilter(new SizeDocumentFilter(Constants.CHAT_MESSAGE_MAX_BYTES));
 
         add(chatSP, BorderLayout.CENTER);
         add(sideP, BorderLayout.EAST);
@@ -158,7 +158,7 @@ public class PrivateChatFrame extends JFrame implements ActionListener, KeyListe
         msgTF.addKeyListener(this);
 
         final AbstractDocument msgDoc = (AbstractDocument) msgTF.getDocument();
-        msgDoc.setDocumentFilter(new SizeDocumentFilter(Constants.MESSAGE_MAX_BYTES));
+        msgDoc.setDocumentFilter(new SizeDocumentFilter(Constants.CHAT_MESSAGE_MAX_BYTES));
 
         final JPanel backP = new JPanel();
         backP.setBorder(BorderFactory.createEmptyBorder(5, 5, 5, 5));
@@ -0,0 +1,116 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.util;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Creates executors for tasks that spend most of their time blocking, like waiting for users
+ * to identify, connecting to users, and transferring files.
+ *
+ * <p>By default a cached thread pool is used, with one platform thread for each running task.
+ * With virtual threads enabled, each task runs on a virtual thread instead, if the Java runtime supports it.
+ * The virtual thread executor is looked up at runtime, so the application still builds and runs on
+ * older versions of Java, and falls back to the cached thread pool there.</p>
+ *
+ * @author Christian Ihle
+ */
+public final class TaskExecutors {
+
+    private static final Logger LOG = Logger.getLogger(TaskExecutors.class.getName());
+
+    /** <code>Executors.newVirtualThreadPerTaskExecutor()</code>, or <code>null</code> if not supported. */
+    @Nullable
+    private static final Method VIRTUAL_THREAD_EXECUTOR = findVirtualThreadExecutor();
+
+    /**
+     * Private constructor. Only static methods here.
+     */
+    private TaskExecutors() {
+
+    }
+
+    /**
+     * Checks if the Java runtime supports virtual threads.
+     *
+     * @return If virtual threads are supported.
+     */
+    public static boolean isVirtualThreadsSupported() {
+        return VIRTUAL_THREAD_EXECUTOR != null;
+    }
+
+    /**
+     * Creates a new executor for blocking tasks.
+     *
+     * @param virtualThreads If tasks should run on virtual threads, when supported.
+     * @return A virtual thread per task executor, or a cached thread pool.
+     */
+    public static ExecutorService newTaskExecutor(final boolean virtualThreads) {
+        if (virtualThreads) {
+            final ExecutorService virtualThreadExecutor = newVirtualThreadExecutor();
+
+            if (virtualThreadExecutor != null) {
+                return virtualThreadExecutor;
+            }
+
+            LOG.log(Level.WARNING, "Virtual threads are not supported by this version of Java. " +
+                    "Using a thread pool instead.");
+        }
+
+        return Executors.newCachedThreadPool();
+    }
+
+    @Nullable
+    private static ExecutorService newVirtualThreadExecutor() {
+        if (VIRTUAL_THREAD_EXECUTOR == null) {
+            return null;
+        }
+
+        try {
+            return (ExecutorService) VIRTUAL_THREAD_EXECUTOR.invoke(null);
+        }
+
+        catch (final IllegalAccessException | InvocationTargetException e) {
+            LOG.log(Level.WARNING, "Failed to create virtual thread executor: " + e, e);
+            return null;
+        }
+    }
+
+    @Nullable
+    private static Method findVirtualThreadExecutor() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        }
+
+        catch (final NoSuchMethodException e) {
+            return null;
+        }
+    }
+}
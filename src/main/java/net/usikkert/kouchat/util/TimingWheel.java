@@ -0,0 +1,230 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A hashed timing wheel, for keeping track of a deadline for each of many items.
+ *
+ * <p>Time is split into ticks of equal duration, and each tick maps to one of the slots
+ * in the wheel. An item is placed in the slot of the tick its deadline falls in, with the number
+ * of full laps around the wheel left before it expires. Scheduling and cancelling are constant time,
+ * and advancing the wheel only looks at the slots of the ticks that have passed, so the cost
+ * follows the number of items that are close to expiring instead of the total number of items.</p>
+ *
+ * <p>Deadlines are rounded up to the end of their tick. This class is not thread safe.</p>
+ *
+ * @param <T> The type of item to keep deadlines for.
+ * @author Christian Ihle
+ */
+public class TimingWheel<T> {
+
+    private final long tickDuration;
+    private final long startTime;
+    private final List<Set<Entry<T>>> slots;
+    private final Map<T, Entry<T>> entries;
+
+    /** The number of the next tick to process. */
+    private long nextTick;
+
+    /**
+     * Constructor.
+     *
+     * @param tickDuration The number of milliseconds in each tick.
+     * @param wheelSize The number of slots in the wheel.
+     * @param startTime The current time, in milliseconds.
+     */
+    public TimingWheel(final long tickDuration, final int wheelSize, final long startTime) {
+        Validate.isTrue(tickDuration > 0, "Tick duration must be positive");
+        Validate.isTrue(wheelSize > 0, "Wheel size must be positive");
+
+        this.tickDuration = tickDuration;
+        this.startTime = startTime;
+
+        slots = new ArrayList<>(wheelSize);
+        entries = new HashMap<>();
+
+        for (int i = 0; i < wheelSize; i++) {
+            slots.add(new LinkedHashSet<Entry<T>>());
+        }
+
+        nextTick = 1;
+    }
+
+    /**
+     * Sets the deadline of the item, replacing any deadline it already had.
+     * A deadline that has already passed expires on the next tick.
+     *
+     * @param item The item to schedule.
+     * @param deadline The time the item expires, in milliseconds.
+     */
+    public void schedule(final T item, final long deadline) {
+        Validate.notNull(item, "Item can not be null");
+
+        cancel(item);
+
+        final long deadlineTick = (deadline - startTime + tickDuration - 1) / tickDuration;
+        final long tick = Math.max(deadlineTick, nextTick);
+        final Entry<T> entry = new Entry<>(item, slotOf(tick), (tick - nextTick) / slots.size());
+
+        slots.get(entry.slot).add(entry);
+        entries.put(item, entry);
+    }
+
+    /**
+     * Removes the deadline of the item, if it has one.
+     *
+     * @param item The item to cancel.
+     * @return If the item had a deadline.
+     */
+    public boolean cancel(final T item) {
+        final Entry<T> entry = entries.remove(item);
+
+        if (entry == null) {
+            return false;
+        }
+
+        slots.get(entry.slot).remove(entry);
+        return true;
+    }
+
+    /**
+     * Moves the wheel forward to the current time, and removes the items with a deadline
+     * in one of the ticks that passed.
+     *
+     * @param currentTime The current time, in milliseconds.
+     * @return The items that expired, in the order of their deadlines.
+     */
+    public List<T> advance(final long currentTime) {
+        final List<T> expired = new ArrayList<>();
+
+        while (!entries.isEmpty() && getTickTime(nextTick) <= currentTime) {
+            final Iterator<Entry<T>> iterator = slots.get(slotOf(nextTick)).iterator();
+
+            while (iterator.hasNext()) {
+                final Entry<T> entry = iterator.next();
+
+                if (entry.rounds == 0) {
+                    iterator.remove();
+                    entries.remove(entry.item);
+                    expired.add(entry.item);
+                }
+
+                else {
+                    entry.rounds--;
+                }
+            }
+
+            nextTick++;
+        }
+
+        if (entries.isEmpty() && getTickTime(nextTick) <= currentTime) {
+            nextTick = (currentTime - startTime) / tickDuration + 1;
+        }
+
+        return expired;
+    }
+
+    /**
+     * Gets the end of the first tick with an item that expires in it, which is the earliest time
+     * {@link #advance(long)} can find expired items.
+     *
+     * <p>Only one lap of the wheel is searched. If every item is more than a lap away,
+     * the time at the end of the lap is returned instead, and the search continues from there.</p>
+     *
+     * @return The time of the next deadline, in milliseconds, or -1 if the wheel is empty.
+     */
+    public long getNextDeadlineTime() {
+        if (entries.isEmpty()) {
+            return -1;
+        }
+
+        for (long tick = nextTick; tick < nextTick + slots.size(); tick++) {
+            for (final Entry<T> entry : slots.get(slotOf(tick))) {
+                if (entry.rounds == 0) {
+                    return getTickTime(tick);
+                }
+            }
+        }
+
+        return getTickTime(nextTick + slots.size());
+    }
+
+    /**
+     * Checks if the item has a deadline.
+     *
+     * @param item The item to check.
+     * @return If the item is scheduled.
+     */
+    public boolean isScheduled(final T item) {
+        return entries.containsKey(item);
+    }
+
+    /**
+     * Gets the number of items with a deadline.
+     *
+     * @return The number of scheduled items.
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Checks if no items have a deadline.
+     *
+     * @return If the wheel is empty.
+     */
+    public boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    private long getTickTime(final long tick) {
+        return startTime + tick * tickDuration;
+    }
+
+    private int slotOf(final long tick) {
+        return (int) (tick % slots.size());
+    }
+
+    private static final class Entry<T> {
+
+        private final T item;
+        private final int slot;
+
+        /** The number of times the slot must pass before the item expires. */
+        private long rounds;
+
+        private Entry(final T item, final int slot, final long rounds) {
+            this.item = item;
+            this.slot = slot;
+            this.rounds = rounds;
+        }
+    }
+}
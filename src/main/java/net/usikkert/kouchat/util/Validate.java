@@ -63,4 +63,17 @@ public final class Validate {
             throw new IllegalArgumentException(errorMsg);
         }
     }
+
+    /**
+     * Checks if <code>expression</code> is <code>false</code>, and throws
+     * an {@link IllegalArgumentException} if that is true.
+     *
+     * @param expression The expression to check.
+     * @param errorMsg The error message to use in the exception.
+     */
+    public static void isTrue(final boolean expression, @NonNls final String errorMsg) {
+        if (!expression) {
+            throw new IllegalArgumentException(errorMsg);
+        }
+    }
 }
@@ -57,6 +57,14 @@ public class ArgumentSettingsLoaderTest {
 
         assertFalse(settings.isAlwaysLog());
         assertFalse(settings.isNoPrivateChat());
+        assertFalse(settings.isNioReceiver());
+        assertFalse(settings.isNioSelector());
+        assertFalse(settings.isVirtualThreads());
+        assertNull(settings.getInboundQueue());
+        assertFalse(settings.isCompression());
+        assertFalse(settings.isNoBinaryProtocol());
+        assertFalse(settings.isTcpRelay());
+        assertFalse(settings.isReliableMulticast());
         assertEquals(Constants.APP_LOG_FOLDER, settings.getLogLocation());
     }
 
@@ -99,6 +107,118 @@ public class ArgumentSettingsLoaderTest {
         assertEquals(Constants.APP_LOG_FOLDER, settings.getLogLocation());
     }
 
+    @Test
+    public void loadSettingsWithNioReceiverArgumentShouldSetNioReceiverInTheSettings() {
+        final ArgumentParser argumentParser = argumentParserWithArguments(
+                Argument.NIO_RECEIVER.getFullArgumentName());
+
+        loader.loadSettings(argumentParser, settings);
+
+        assertFalse(settings.isAlwaysLog());
+        assertFalse(settings.isNoPrivateChat());
+        assertTrue(settings.isNioReceiver());
+        assertEquals(Constants.APP_LOG_FOLDER, settings.getLogLocation());
+    }
+
+    @Test
+    public void loadSettingsWithNioSelectorArgumentShouldSetNioSelectorInTheSettings() {
+        final ArgumentParser argumentParser = argumentParserWithArguments(
+                Argument.NIO_SELECTOR.getFullArgumentName(),
+                Argument.VIRTUAL_THREADS.getFullArgumentName());
+
+        loader.loadSettings(argumentParser, settings);
+
+        assertFalse(settings.isAlwaysLog());
+        assertFalse(settings.isNoPrivateChat());
+        assertFalse(settings.isNioReceiver());
+        assertTrue(settings.isNioSelector());
+        assertEquals(Constants.APP_LOG_FOLDER, settings.getLogLocation());
+    }
+
+    @Test
+    public void loadSettingsWithVirtualThreadsArgumentShouldSetVirtualThreadsInTheSettings() {
+        final ArgumentParser argumentParser = argumentParserWithArguments(
+                Argument.VIRTUAL_THREADS.getFullArgumentName());
+
+        loader.loadSettings(argumentParser, settings);
+
+        assertFalse(settings.isAlwaysLog());
+        assertFalse(settings.isNoPrivateChat());
+        assertFalse(settings.isNioSelector());
+        assertTrue(settings.isVirtualThreads());
+        assertEquals(Constants.APP_LOG_FOLDER, settings.getLogLocation());
+    }
+
+    @Test
+    public void loadSettingsWithInboundQueueArgumentShouldSetInboundQueueInTheSettings() {
+        final ArgumentParser argumentParser = argumentParserWithArguments(
+                Argument.INBOUND_QUEUE.getFullArgumentName() + "=block");
+
+        loader.loadSettings(argumentParser, settings);
+
+        assertFalse(settings.isAlwaysLog());
+        assertFalse(settings.isNoPrivateChat());
+        assertFalse(settings.isVirtualThreads());
+        assertEquals("block", settings.getInboundQueue());
+        assertEquals(Constants.APP_LOG_FOLDER, settings.getLogLocation());
+    }
+
+    @Test
+    public void loadSettingsWithCompressionArgumentShouldSetCompressionInTheSettings() {
+        final ArgumentParser argumentParser = argumentParserWithArguments(
+                Argument.COMPRESSION.getFullArgumentName());
+
+        loader.loadSettings(argumentParser, settings);
+
+        assertFalse(settings.isAlwaysLog());
+        assertFalse(settings.isNoPrivateChat());
+        assertNull(settings.getInboundQueue());
+        assertTrue(settings.isCompression());
+        assertEquals(Constants.APP_LOG_FOLDER, settings.getLogLocation());
+    }
+
+    @Test
+    public void loadSettingsWithNoBinaryProtocolArgumentShouldSetNoBinaryProtocolInTheSettings() {
+        final ArgumentParser argumentParser = argumentParserWithArguments(
+                Argument.NO_BINARY_PROTOCOL.getFullArgumentName());
+
+        loader.loadSettings(argumentParser, settings);
+
+        assertFalse(settings.isAlwaysLog());
+        assertFalse(settings.isNoPrivateChat());
+        assertFalse(settings.isCompression());
+        assertTrue(settings.isNoBinaryProtocol());
+        assertEquals(Constants.APP_LOG_FOLDER, settings.getLogLocation());
+    }
+
+    @Test
+    public void loadSettingsWithTcpRelayArgumentShouldSetTcpRelayInTheSettings() {
+        final ArgumentParser argumentParser = argumentParserWithArguments(
+                Argument.TCP_RELAY.getFullArgumentName());
+
+        loader.loadSettings(argumentParser, settings);
+
+        assertFalse(settings.isAlwaysLog());
+        assertFalse(settings.isNoPrivateChat());
+        assertFalse(settings.isNoBinaryProtocol());
+        assertTrue(settings.isTcpRelay());
+        assertEquals(Constants.APP_LOG_FOLDER, settings.getLogLocation());
+    }
+
+    @Test
+    public void loadSettingsWithReliableMulticastArgumentShouldSetReliableMulticastInTheSettings() {
+        final ArgumentParser argumentParser = argumentParserWithArguments(
+                Argument.RELIABLE_MULTICAST.getFullArgumentName());
+
+        loader.loadSettings(argumentParser, settings);
+
+        assertFalse(settings.isAlwaysLog());
+        assertFalse(settings.isNoPrivateChat());
+        assertFalse(settings.isTcpRelay());
+        assertTrue(settings.isReliableMulticast());
+        assertEquals(Constants.APP_LOG_FOLDER, settings.getLogLocation());
+    }
+
     @Test
     public void loadSettingsWithLogLocationArgumentShouldSetLogLocationInTheSettings() {
         final ArgumentParser argumentParser = argumentParserWithArguments(
@@ -118,12 +238,28 @@ public class ArgumentSettingsLoaderTest {
         final ArgumentParser argumentParser = argumentParserWithArguments(
                 Argument.ALWAYS_LOG.getFullArgumentName(),
                 Argument.NO_PRIVATE_CHAT.getFullArgumentName(),
-                Argument.LOG_LOCATION.getFullArgumentName() + "=/home/user/logs");
+                Argument.LOG_LOCATION.getFullArgumentName() + "=/home/user/logs",
+                Argument.NIO_RECEIVER.getFullArgumentName(),
+                Argument.NIO_SELECTOR.getFullArgumentName(),
+                Argument.VIRTUAL_THREADS.getFullArgumentName(),
+                Argument.INBOUND_QUEUE.getFullArgumentName() + "=drop",
+                Argument.COMPRESSION.getFullArgumentName(),
+                Argument.NO_BINARY_PROTOCOL.getFullArgumentName(),
+                Argument.TCP_RELAY.getFullArgumentName(),
+                Argument.RELIABLE_MULTICAST.getFullArgumentName());
 
         loader.loadSettings(argumentParser, settings);
 
         assertTrue(settings.isAlwaysLog());
         assertTrue(settings.isNoPrivateChat());
+        assertTrue(settings.isNioReceiver());
+        assertTrue(settings.isNioSelector());
+        assertTrue(settings.isVirtualThreads());
+        assertEquals("drop", settings.getInboundQueue());
+        assertTrue(settings.isCompression());
+        assertTrue(settings.isNoBinaryProtocol());
+        assertTrue(settings.isTcpRelay());
+        assertTrue(settings.isReliableMulticast());
         assertEquals("/home/user/logs" + File.separator, settings.getLogLocation());
     }
 
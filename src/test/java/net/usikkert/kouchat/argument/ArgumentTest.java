@@ -37,7 +37,7 @@ public class ArgumentTest {
     public void getValidArgumentsShouldReturnAllArgumentsExceptUnknown() {
         final Argument[] validArguments = Argument.getValidArguments();
 
-        assertEquals(8, validArguments.length);
+        assertEquals(16, validArguments.length);
 
         assertEquals(Argument.CONSOLE, validArguments[0]);
         assertEquals(Argument.MINIMIZED, validArguments[1]);
@@ -47,6 +47,14 @@ public class ArgumentTest {
         assertEquals(Argument.NO_PRIVATE_CHAT, validArguments[5]);
         assertEquals(Argument.ALWAYS_LOG, validArguments[6]);
         assertEquals(Argument.LOG_LOCATION, validArguments[7]);
+        assertEquals(Argument.NIO_RECEIVER, validArguments[8]);
+        assertEquals(Argument.NIO_SELECTOR, validArguments[9]);
+        assertEquals(Argument.VIRTUAL_THREADS, validArguments[10]);
+        assertEquals(Argument.INBOUND_QUEUE, validArguments[11]);
+        assertEquals(Argument.COMPRESSION, validArguments[12]);
+        assertEquals(Argument.NO_BINARY_PROTOCOL, validArguments[13]);
+        assertEquals(Argument.TCP_RELAY, validArguments[14]);
+        assertEquals(Argument.RELIABLE_MULTICAST, validArguments[15]);
     }
 
     @Test
@@ -59,6 +67,14 @@ public class ArgumentTest {
         assertEquals("--no-private-chat", Argument.NO_PRIVATE_CHAT.getFullArgumentName());
         assertEquals("--always-log", Argument.ALWAYS_LOG.getFullArgumentName());
         assertEquals("--log-location", Argument.LOG_LOCATION.getFullArgumentName());
+        assertEquals("--nio-receiver", Argument.NIO_RECEIVER.getFullArgumentName());
+        assertEquals("--nio-selector", Argument.NIO_SELECTOR.getFullArgumentName());
+        assertEquals("--virtual-threads", Argument.VIRTUAL_THREADS.getFullArgumentName());
+        assertEquals("--inbound-queue", Argument.INBOUND_QUEUE.getFullArgumentName());
+        assertEquals("--compression", Argument.COMPRESSION.getFullArgumentName());
+        assertEquals("--no-binary-protocol", Argument.NO_BINARY_PROTOCOL.getFullArgumentName());
+        assertEquals("--tcp-relay", Argument.TCP_RELAY.getFullArgumentName());
+        assertEquals("--reliable-multicast", Argument.RELIABLE_MULTICAST.getFullArgumentName());
     }
 
     @Test
@@ -73,7 +89,15 @@ public class ArgumentTest {
                 " --version (-v)          Shows version information.\n" +
                 " --no-private-chat       Disables private chat.\n" +
                 " --always-log            Enables logging, without option to disable.\n" +
-                " --log-location=<value>  Location to store log files.";
+                " --log-location=<value>  Location to store log files.\n" +
+                " --nio-receiver          Receives messages using nio channels.\n" +
+                " --nio-selector          Uses a single thread for all network sockets.\n" +
+                " --virtual-threads       Runs blocking network tasks on virtual threads.\n" +
+                " --inbound-queue=<value> Queues received messages. Value is drop or block when full.\n" +
+                " --compression           Compresses messages to users that support it.\n" +
+                " --no-binary-protocol    Uses only the text protocol with other users.\n" +
+                " --tcp-relay             Connects to a few relay users instead of everyone.\n" +
+                " --reliable-multicast    Asks for lost multicast messages to be sent again.";
 
         assertEquals(expected, argumentsAsString);
     }
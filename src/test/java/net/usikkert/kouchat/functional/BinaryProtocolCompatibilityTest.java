@@ -0,0 +1,119 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.functional;
+
+import static org.junit.Assert.*;
+
+import net.usikkert.kouchat.misc.User;
+import net.usikkert.kouchat.net.ClientCapability;
+import net.usikkert.kouchat.testclient.TestClient;
+import net.usikkert.kouchat.util.Tools;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test that clients using the binary protocol can still chat with clients that only use the text protocol.
+ *
+ * @author Christian Ihle
+ */
+@SuppressWarnings("HardCodedStringLiteral")
+public class BinaryProtocolCompatibilityTest {
+
+    private TestClient newClient1;
+    private TestClient newClient2;
+    private TestClient oldClient;
+
+    @Before
+    public void setUp() {
+        newClient1 = new TestClient("New1", 0, 0, false);
+        newClient1.logon();
+
+        newClient2 = new TestClient("New2", 0, 0, false);
+        newClient2.logon();
+
+        oldClient = new TestClient("Old", 0, 0, true);
+        oldClient.logon();
+
+        // Wait for the client information to be exchanged
+        Tools.sleep(1000);
+    }
+
+    @After
+    public void tearDown() {
+        newClient1.logoff();
+        newClient2.logoff();
+        oldClient.logoff();
+    }
+
+    @Test
+    public void clientsShouldOnlyAdvertiseBinaryProtocolWhenEnabled() {
+        assertTrue(newClient1.getUser("New2").hasCapability(ClientCapability.BINARY));
+        assertTrue(newClient2.getUser("New1").hasCapability(ClientCapability.BINARY));
+        assertFalse(newClient1.getUser("Old").hasCapability(ClientCapability.BINARY));
+        assertTrue(oldClient.getUser("New1").hasCapability(ClientCapability.BINARY));
+    }
+
+    @Test
+    public void mainChatMessagesShouldArriveAtAllClients() {
+        newClient1.sendChatMessage("Hello from new");
+        oldClient.sendChatMessage("Hello from old");
+        Tools.sleep(500);
+
+        final User new1 = newClient2.getUser("New1");
+        final User old = newClient2.getUser("Old");
+
+        assertTrue(newClient2.gotMessage(new1, "Hello from new"));
+        assertTrue(oldClient.gotMessage(oldClient.getUser("New1"), "Hello from new"));
+        assertTrue(newClient2.gotMessage(old, "Hello from old"));
+        assertTrue(newClient1.gotMessage(newClient1.getUser("Old"), "Hello from old"));
+    }
+
+    @Test
+    public void privateMessagesShouldArriveBetweenNewClients() {
+        newClient1.sendPrivateChatMessage("Binary hello", newClient1.getUser("New2"));
+        Tools.sleep(500);
+
+        assertTrue(newClient2.gotPrivateMessage(newClient2.getUser("New1"), "Binary hello"));
+    }
+
+    @Test
+    public void privateMessagesShouldArriveBetweenNewAndOldClients() {
+        newClient1.sendPrivateChatMessage("Text hello", newClient1.getUser("Old"));
+        oldClient.sendPrivateChatMessage("Text reply", oldClient.getUser("New1"));
+        Tools.sleep(500);
+
+        assertTrue(oldClient.gotPrivateMessage(oldClient.getUser("New1"), "Text hello"));
+        assertTrue(newClient1.gotPrivateMessage(newClient1.getUser("Old"), "Text reply"));
+    }
+
+    @Test
+    public void nickNameChangesShouldArriveAtAllClients() {
+        newClient1.changeNickName("Renamed");
+        Tools.sleep(500);
+
+        assertNotNull(newClient2.getUser("Renamed"));
+        assertNotNull(oldClient.getUser("Renamed"));
+    }
+}
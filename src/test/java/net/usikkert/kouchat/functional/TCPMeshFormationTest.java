@@ -0,0 +1,110 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.functional;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.usikkert.kouchat.testclient.TestClient;
+import net.usikkert.kouchat.util.Tools;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test that a group of clients connect to each other using tcp within {@link #MAX_FORMING_TIME} ms.
+ *
+ * @author Christian Ihle
+ */
+@SuppressWarnings("HardCodedStringLiteral")
+public class TCPMeshFormationTest {
+
+    private static final int CLIENTS = 4;
+
+    /** Milliseconds to wait for the mesh, after the last logon started. */
+    private static final long MAX_FORMING_TIME = 10_000;
+
+    private List<TestClient> clients;
+
+    @Before
+    public void setUp() {
+        clients = new ArrayList<>();
+
+        for (int i = 0; i < CLIENTS; i++) {
+            clients.add(new TestClient("Mesh" + i, 0));
+        }
+    }
+
+    @After
+    public void tearDown() {
+        for (final TestClient client : clients) {
+            client.logoff();
+        }
+    }
+
+    @Test
+    public void allClientsShouldConnectToEachOtherUsingTcp() throws InterruptedException {
+        for (int i = 0; i < CLIENTS - 1; i++) {
+            clients.get(i).logon();
+        }
+
+        // Logon waits a while before returning, so the mesh is watched from a thread of its own
+        final long start = System.currentTimeMillis();
+        final AtomicLong formed = new AtomicLong();
+        final Thread watcher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!meshFormed() && System.currentTimeMillis() - start < MAX_FORMING_TIME) {
+                    Tools.sleep(5);
+                }
+
+                formed.set(System.currentTimeMillis());
+            }
+        });
+
+        watcher.start();
+        clients.get(CLIENTS - 1).logon();
+        watcher.join();
+
+        final long time = formed.get() - start;
+
+        assertTrue("Tcp mesh with " + CLIENTS + " clients not formed " + time + " ms after the last logon started",
+                   meshFormed());
+    }
+
+    private boolean meshFormed() {
+        for (int i = 0; i < CLIENTS; i++) {
+            for (int j = 0; j < CLIENTS; j++) {
+                if (i != j && !clients.get(i).hasTcpConnectionTo("Mesh" + j)) {
+                    return false;
+                }
+            }
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,147 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.functional;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import net.usikkert.kouchat.testclient.TestClient;
+import net.usikkert.kouchat.util.Tools;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test of the tcp relay topology, with the 2 users with the lowest user codes as relays,
+ * and 2 users connecting only to them.
+ *
+ * @author Christian Ihle
+ */
+@SuppressWarnings("HardCodedStringLiteral")
+public class TCPRelayTest {
+
+    private List<TestClient> clients;
+
+    private TestClient relay1;
+    private TestClient relay2;
+    private TestClient user1;
+    private TestClient user2;
+
+    @Before
+    public void setUp() {
+        clients = new ArrayList<>();
+
+        for (int i = 1; i <= 4; i++) {
+            clients.add(new TestClient("Relay" + i, 0, 0, false, true));
+        }
+
+        for (final TestClient client : clients) {
+            client.logon();
+        }
+
+        // Wait for the client information to be exchanged, and the connections to be made
+        Tools.sleep(1000);
+
+        final List<TestClient> sortedClients = new ArrayList<>(clients);
+
+        Collections.sort(sortedClients, new Comparator<TestClient>() {
+            @Override
+            public int compare(final TestClient client1, final TestClient client2) {
+                return Integer.compare(client1.getUserCode(), client2.getUserCode());
+            }
+        });
+
+        relay1 = sortedClients.get(0);
+        relay2 = sortedClients.get(1);
+        user1 = sortedClients.get(2);
+        user2 = sortedClients.get(3);
+
+        waitForRelays();
+    }
+
+    /**
+     * Users logging on early may connect to each other before the final relays are known,
+     * so give them some time to settle on the relays.
+     */
+    private void waitForRelays() {
+        for (int i = 0; i < 100 && !relaysConnected(); i++) {
+            Tools.sleep(100);
+        }
+    }
+
+    private boolean relaysConnected() {
+        return user1.hasTcpConnectionTo(relay1.getNickName()) && user1.hasTcpConnectionTo(relay2.getNickName())
+                && user2.hasTcpConnectionTo(relay1.getNickName()) && user2.hasTcpConnectionTo(relay2.getNickName())
+                && relay1.hasTcpConnectionTo(relay2.getNickName())
+                && !user1.hasTcpConnectionTo(user2.getNickName()) && !user2.hasTcpConnectionTo(user1.getNickName());
+    }
+
+    @After
+    public void tearDown() {
+        for (final TestClient client : clients) {
+            client.logoff();
+        }
+    }
+
+    @Test
+    public void usersShouldOnlyConnectToRelays() {
+        assertTrue(user1.hasTcpConnectionTo(relay1.getNickName()));
+        assertTrue(user1.hasTcpConnectionTo(relay2.getNickName()));
+        assertTrue(user2.hasTcpConnectionTo(relay1.getNickName()));
+        assertTrue(user2.hasTcpConnectionTo(relay2.getNickName()));
+        assertTrue(relay1.hasTcpConnectionTo(relay2.getNickName()));
+
+        assertFalse(user1.hasTcpConnectionTo(user2.getNickName()));
+        assertFalse(user2.hasTcpConnectionTo(user1.getNickName()));
+    }
+
+    @Test
+    public void messagesFromUsersShouldArriveExactlyOnceThroughTheRelays() {
+        user1.sendChatMessage("Hello through the relays");
+        Tools.sleep(500);
+
+        assertTrue(user2.hasTcpRelayTo(user1.getNickName()));
+        assertEquals(1, countMessages(user2, user1, "Hello through the relays"));
+        assertEquals(1, countMessages(relay1, user1, "Hello through the relays"));
+        assertEquals(1, countMessages(relay2, user1, "Hello through the relays"));
+    }
+
+    @Test
+    public void messagesFromRelaysShouldArriveExactlyOnce() {
+        relay2.sendChatMessage("Hello from a relay");
+        Tools.sleep(500);
+
+        assertEquals(1, countMessages(relay1, relay2, "Hello from a relay"));
+        assertEquals(1, countMessages(user1, relay2, "Hello from a relay"));
+        assertEquals(1, countMessages(user2, relay2, "Hello from a relay"));
+    }
+
+    private int countMessages(final TestClient receiver, final TestClient sender, final String message) {
+        return receiver.countMessages(receiver.getUser(sender.getNickName()), message);
+    }
+}
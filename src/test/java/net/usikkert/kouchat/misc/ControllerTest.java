@@ -26,11 +26,13 @@ import static org.junit.Assert.*;
 import static org.mockito.Mockito.*;
 
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 
 import net.usikkert.kouchat.event.NetworkConnectionListener;
 import net.usikkert.kouchat.junit.ExpectedException;
 import net.usikkert.kouchat.message.CoreMessages;
+import net.usikkert.kouchat.net.ClientCapability;
 import net.usikkert.kouchat.net.FileReceiver;
 import net.usikkert.kouchat.net.FileSender;
 import net.usikkert.kouchat.net.FileToSend;
@@ -674,9 +676,22 @@ public class ControllerTest {
     @Test
     public void sendChatMessageShouldThrowExceptionIfMessageIsTooLong() throws CommandException {
         expectedException.expect(CommandException.class);
+        expectedException.expectMessage("You can not send a chat message with more than 30000 bytes");
+
+        doReturn(true).when(controller).isConnected();
+        when(networkService.isFragmentSupportedByAllUsers()).thenReturn(true);
+
+        controller.sendChatMessage(createStringOfSize(30001));
+    }
+
+    @Test
+    public void sendChatMessageShouldThrowExceptionIfMessageIsTooLongForUsersWithoutFragments()
+            throws CommandException {
+        expectedException.expect(CommandException.class);
         expectedException.expectMessage("You can not send a chat message with more than 450 bytes");
 
         doReturn(true).when(controller).isConnected();
+        when(networkService.isFragmentSupportedByAllUsers()).thenReturn(false);
 
         controller.sendChatMessage(createStringOfSize(451));
     }
@@ -777,6 +792,18 @@ public class ControllerTest {
     @Test
     public void sendPrivateMessageShouldThrowExceptionIfMessageIsTooLong() throws CommandException {
         expectedException.expect(CommandException.class);
+        expectedException.expectMessage("You can not send a private chat message with more than 30000 bytes");
+
+        doReturn(true).when(controller).isConnected();
+        otherUser.setCapabilities(Collections.singleton(ClientCapability.FRAGMENT));
+
+        controller.sendPrivateMessage(createStringOfSize(30001), otherUser);
+    }
+
+    @Test
+    public void sendPrivateMessageShouldThrowExceptionIfMessageIsTooLongForUserWithoutFragments()
+            throws CommandException {
+        expectedException.expect(CommandException.class);
         expectedException.expectMessage("You can not send a private chat message with more than 450 bytes");
 
         doReturn(true).when(controller).isConnected();
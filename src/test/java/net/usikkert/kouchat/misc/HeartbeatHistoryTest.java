@@ -0,0 +1,89 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.misc;
+
+import static org.junit.Assert.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test of {@link HeartbeatHistory}.
+ *
+ * @author Christian Ihle
+ */
+public class HeartbeatHistoryTest {
+
+    private HeartbeatHistory history;
+
+    @Before
+    public void setUp() {
+        history = new HeartbeatHistory();
+    }
+
+    @Test
+    public void emptyHistoryShouldHaveNoMeanOrDeviation() {
+        assertEquals(0, history.size());
+        assertEquals(0, history.getMean(), 0);
+        assertEquals(0, history.getStdDeviation(), 0);
+    }
+
+    @Test
+    public void shouldCalculateMeanAndStdDeviation() {
+        history.add(2);
+        history.add(4);
+        history.add(4);
+        history.add(4);
+        history.add(5);
+        history.add(5);
+        history.add(7);
+        history.add(9);
+
+        assertEquals(8, history.size());
+        assertEquals(5, history.getMean(), 0.0001);
+        assertEquals(2, history.getStdDeviation(), 0.0001);
+    }
+
+    @Test
+    public void steadyIntervalsShouldHaveNoDeviation() {
+        for (int i = 0; i < 10; i++) {
+            history.add(15000);
+        }
+
+        assertEquals(15000, history.getMean(), 0.0001);
+        assertEquals(0, history.getStdDeviation(), 0.0001);
+    }
+
+    @Test
+    public void shouldForgetTheOldestIntervalWhenFull() {
+        history.add(100000);
+
+        for (int i = 0; i < HeartbeatHistory.MAX_SAMPLES; i++) {
+            history.add(15000);
+        }
+
+        assertEquals(HeartbeatHistory.MAX_SAMPLES, history.size());
+        assertEquals(15000, history.getMean(), 0.0001);
+        assertEquals(0, history.getStdDeviation(), 0.0001);
+    }
+}
@@ -0,0 +1,167 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.misc;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import net.usikkert.kouchat.settings.Settings;
+import net.usikkert.kouchat.ui.UserInterface;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test of {@link IdleThread}.
+ *
+ * @author Christian Ihle
+ */
+@SuppressWarnings("HardCodedStringLiteral")
+public class IdleThreadTest {
+
+    private static final long TICK = PresenceDetector.TICK_DURATION;
+
+    private IdleThread idleThread;
+
+    private Controller controller;
+    private MessageController msgController;
+    private UserList userList;
+    private User me;
+    private User user;
+
+    @Before
+    public void setUp() {
+        controller = mock(Controller.class);
+        msgController = mock(MessageController.class);
+        userList = new SortedUserList();
+
+        me = new User("Me", 100);
+        me.setMe(true);
+        user = new User("Other", 200);
+
+        userList.add(me);
+        userList.add(user);
+
+        when(controller.getUserList()).thenReturn(userList);
+        when(controller.getUser(200)).thenReturn(user);
+
+        final UserInterface ui = mock(UserInterface.class);
+        when(ui.getMessageController()).thenReturn(msgController);
+
+        final Settings settings = mock(Settings.class);
+        when(settings.getMe()).thenReturn(me);
+
+        idleThread = new IdleThread(controller, ui, settings);
+    }
+
+    @Test
+    public void checkUsersShouldSendIdleMessageEveryIdleTime() {
+        final long now = IdleThread.currentTime();
+
+        assertEquals(now + IdleThread.IDLE_TIME, idleThread.checkUsers(now));
+        assertEquals(now + IdleThread.IDLE_TIME, idleThread.checkUsers(now + 1000));
+        verify(controller, times(1)).sendIdleMessage();
+
+        assertEquals(now + 2 * IdleThread.IDLE_TIME, idleThread.checkUsers(now + IdleThread.IDLE_TIME));
+        verify(controller, times(2)).sendIdleMessage();
+    }
+
+    @Test
+    public void checkUsersShouldNotWakeUpEveryTickWhileUsersAreActive() {
+        final long heartbeat = IdleThread.currentTime();
+        idleThread.activityArrived(200, true);
+
+        final long now = heartbeat + PresenceDetector.MAX_TIMEOUT - IdleThread.IDLE_TIME / 2;
+        final long nextWakeUp = idleThread.checkUsers(now);
+
+        assertTrue(nextWakeUp > now + TICK);
+        assertTrue(nextWakeUp >= heartbeat + PresenceDetector.MAX_TIMEOUT);
+        assertTrue(nextWakeUp <= heartbeat + PresenceDetector.MAX_TIMEOUT + 2 * TICK);
+        assertTrue(nextWakeUp < now + IdleThread.IDLE_TIME);
+    }
+
+    @Test
+    public void checkUsersShouldRemoveUserThatTimedOut() {
+        final long heartbeat = IdleThread.currentTime();
+        idleThread.activityArrived(200, true);
+
+        final long beforeTimeout = heartbeat + PresenceDetector.MAX_TIMEOUT - 2 * TICK;
+        idleThread.checkUsers(beforeTimeout);
+        verify(controller, never()).removeUser(any(User.class), anyString());
+
+        final long afterTimeout = heartbeat + PresenceDetector.MAX_TIMEOUT + 2 * TICK;
+        assertEquals(beforeTimeout + IdleThread.IDLE_TIME, idleThread.checkUsers(afterTimeout));
+
+        verify(controller).removeUser(user, "Other timed out");
+        verify(msgController).showSystemMessage("Other timed out");
+        verify(controller).updateAfterTimeout();
+    }
+
+    @Test
+    public void checkUsersShouldNotRemoveUserThatLoggedOff() {
+        final long heartbeat = IdleThread.currentTime();
+        idleThread.activityArrived(200, true);
+        idleThread.userLoggedOff(200);
+
+        idleThread.checkUsers(heartbeat + PresenceDetector.MAX_TIMEOUT + 2 * TICK);
+
+        verify(controller, never()).removeUser(any(User.class), anyString());
+        verify(controller, never()).updateAfterTimeout();
+    }
+
+    @Test
+    public void checkUsersShouldRemoveUnreachableUserRightAway() {
+        idleThread.activityArrived(200, true);
+        idleThread.peerUnreachable(user);
+
+        final long now = IdleThread.currentTime();
+        idleThread.checkUsers(now);
+
+        verify(controller).removeUser(user, "Other timed out");
+        verify(msgController).showSystemMessage("Other timed out");
+        verify(controller).updateAfterTimeout();
+
+        assertEquals(now + IdleThread.IDLE_TIME, idleThread.checkUsers(now + 1));
+        verify(controller, times(1)).removeUser(any(User.class), anyString());
+    }
+
+    @Test
+    public void checkUsersShouldNotRemoveUnreachableUserThatIsNoLongerInTheUserList() {
+        userList.remove(user);
+        idleThread.peerUnreachable(user);
+
+        idleThread.checkUsers(IdleThread.currentTime());
+
+        verify(controller, never()).removeUser(any(User.class), anyString());
+        verify(controller, never()).updateAfterTimeout();
+    }
+
+    @Test
+    public void checkUsersShouldNeverRemoveMe() {
+        idleThread.peerUnreachable(me);
+
+        idleThread.checkUsers(IdleThread.currentTime());
+
+        verify(controller, never()).removeUser(any(User.class), anyString());
+    }
+}
@@ -0,0 +1,177 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.misc;
+
+import static org.junit.Assert.*;
+
+import java.util.Collections;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test of {@link PresenceDetector}.
+ *
+ * @author Christian Ihle
+ */
+public class PresenceDetectorTest {
+
+    private static final long START = 1000000;
+    private static final long IDLE_TIME = 15000;
+    private static final long TICK = PresenceDetector.TICK_DURATION;
+
+    private PresenceDetector detector;
+
+    @Before
+    public void setUp() {
+        detector = new PresenceDetector(START);
+    }
+
+    @Test
+    public void phiShouldGrowWithTheNumberOfDeviations() {
+        assertEquals(0.3, PresenceDetector.phi(0), 0.01);
+        assertTrue(PresenceDetector.phi(1) > PresenceDetector.phi(0));
+        assertTrue(PresenceDetector.phi(3) > PresenceDetector.phi(2));
+        assertTrue(PresenceDetector.phi(-1) < PresenceDetector.phi(0));
+    }
+
+    @Test
+    public void findDeviationsShouldReturnWherePhiReachesTheThreshold() {
+        final double deviations = PresenceDetector.findDeviations(PresenceDetector.THRESHOLD);
+
+        assertTrue(PresenceDetector.phi(deviations) >= PresenceDetector.THRESHOLD);
+        assertTrue(PresenceDetector.phi(deviations - 0.001) < PresenceDetector.THRESHOLD);
+    }
+
+    @Test
+    public void unknownUserShouldNotBeSuspected() {
+        assertEquals(0, detector.getPhi(100, START + 500000), 0);
+        assertEquals(-1, detector.getTimeout(100));
+        assertEquals(-1, detector.getNextCheckTime());
+    }
+
+    @Test
+    public void newUserShouldUseMaxTimeout() {
+        detector.heartbeatArrived(100, START);
+
+        assertEquals(PresenceDetector.MAX_TIMEOUT, detector.getTimeout(100));
+        assertEquals(0, detector.getPhi(100, START + 100000), 0);
+
+        assertEquals(Collections.emptyList(), detector.expire(START + PresenceDetector.MAX_TIMEOUT - 1));
+        assertEquals(Collections.singletonList(100), detector.expire(START + PresenceDetector.MAX_TIMEOUT));
+        assertEquals(-1, detector.getTimeout(100));
+    }
+
+    @Test
+    public void steadyUserShouldTimeOutSoonerThanMaxTimeout() {
+        final long lastHeartbeat = sendHeartbeats(100, 10, IDLE_TIME, 0);
+        final long timeout = detector.getTimeout(100);
+
+        assertTrue(timeout < PresenceDetector.MAX_TIMEOUT);
+        assertTrue(timeout > IDLE_TIME * (1 + PresenceDetector.ACCEPTABLE_MISSED_HEARTBEATS));
+
+        assertTrue(detector.getPhi(100, lastHeartbeat + timeout - 2000) < PresenceDetector.THRESHOLD);
+        assertTrue(detector.getPhi(100, lastHeartbeat + timeout) >= PresenceDetector.THRESHOLD);
+
+        assertEquals(Collections.emptyList(), detector.expire(lastHeartbeat + timeout - 1));
+        assertEquals(Collections.singletonList(100), detector.expire(lastHeartbeat + timeout + TICK));
+    }
+
+    @Test
+    public void jitteryUserShouldGetLongerTimeoutThanSteadyUser() {
+        sendHeartbeats(100, 20, IDLE_TIME, 0);
+        sendHeartbeats(200, 20, IDLE_TIME, 3000);
+
+        assertTrue(detector.getTimeout(200) > detector.getTimeout(100));
+    }
+
+    @Test
+    public void timeoutShouldNeverBeLongerThanMaxTimeout() {
+        sendHeartbeats(100, 20, IDLE_TIME * 3, 0);
+
+        assertEquals(PresenceDetector.MAX_TIMEOUT, detector.getTimeout(100));
+    }
+
+    @Test
+    public void otherActivityShouldPostponeTheDeadline() {
+        final long lastHeartbeat = sendHeartbeats(100, 10, IDLE_TIME, 0);
+        final long timeout = detector.getTimeout(100);
+
+        detector.activityArrived(100, lastHeartbeat + 10000);
+
+        assertEquals(timeout, detector.getTimeout(100));
+        assertEquals(Collections.emptyList(), detector.expire(lastHeartbeat + timeout + TICK));
+        assertEquals(Collections.singletonList(100), detector.expire(lastHeartbeat + 10000 + timeout + TICK));
+    }
+
+    @Test
+    public void expireShouldOnlyReturnUsersPastTheirDeadline() {
+        final long lastHeartbeat = sendHeartbeats(100, 10, IDLE_TIME, 0);
+        detector.heartbeatArrived(200, lastHeartbeat);
+
+        final long timeout = detector.getTimeout(100);
+
+        assertEquals(Collections.singletonList(100), detector.expire(lastHeartbeat + timeout + TICK));
+        assertEquals(PresenceDetector.MAX_TIMEOUT, detector.getTimeout(200));
+        assertEquals(Collections.singletonList(200), detector.expire(lastHeartbeat + PresenceDetector.MAX_TIMEOUT));
+    }
+
+    @Test
+    public void forgetShouldStopTrackingTheUser() {
+        detector.heartbeatArrived(100, START);
+        detector.forget(100);
+
+        assertEquals(-1, detector.getTimeout(100));
+        assertEquals(-1, detector.getNextCheckTime());
+        assertEquals(Collections.emptyList(), detector.expire(START + PresenceDetector.MAX_TIMEOUT));
+    }
+
+    @Test
+    public void getNextCheckTimeShouldBeTheTickOfTheFirstDeadline() {
+        detector.heartbeatArrived(100, START + 500);
+        detector.heartbeatArrived(200, START + 5500);
+
+        assertEquals(START + PresenceDetector.MAX_TIMEOUT + TICK, detector.getNextCheckTime());
+
+        assertEquals(Collections.singletonList(100), detector.expire(START + PresenceDetector.MAX_TIMEOUT + TICK));
+
+        assertEquals(START + PresenceDetector.MAX_TIMEOUT + 6 * TICK, detector.getNextCheckTime());
+    }
+
+    /**
+     * Sends heartbeats from the user every interval, alternating between being late and early by the jitter.
+     *
+     * @return The time of the last heartbeat.
+     */
+    private long sendHeartbeats(final int userCode, final int count, final long interval, final long jitter) {
+        long time = START;
+        detector.heartbeatArrived(userCode, time);
+
+        for (int i = 1; i < count; i++) {
+            time += interval + (i % 2 == 0 ? jitter : -jitter);
+            detector.heartbeatArrived(userCode, time);
+        }
+
+        return time;
+    }
+}
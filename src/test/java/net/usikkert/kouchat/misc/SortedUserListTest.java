@@ -25,11 +25,20 @@ package net.usikkert.kouchat.misc;
 import static org.junit.Assert.*;
 import static org.mockito.Mockito.*;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import net.usikkert.kouchat.event.UserListListener;
 import net.usikkert.kouchat.junit.ExpectedException;
 
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
@@ -53,6 +62,8 @@ public class SortedUserListTest {
     private User lenny;
     private User annie;
 
+    private ExecutorService executor;
+
     @Before
     public void setUp() {
         userList = new SortedUserList();
@@ -64,6 +75,13 @@ public class SortedUserListTest {
         john = new User("John", 2);
         lenny = new User("Lenny", 3);
         annie = new User("Annie", 4);
+
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
     }
 
     @Test
@@ -312,6 +330,95 @@ public class SortedUserListTest {
         assertTrue(listeners3.contains(listener2));
     }
 
+    @Test
+    public void addAndRemoveFromSeveralThreadsShouldKeepTheListSortedAndComplete() throws Exception {
+        userList.removeUserListListener(listener);
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Future<?>> futures = new ArrayList<>();
+
+        for (int thread = 0; thread < 4; thread++) {
+            final int firstCode = thread * 1000;
+
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws InterruptedException {
+                    start.await();
+
+                    for (int i = 0; i < 500; i++) {
+                        final User user = new User("User" + (firstCode + i), firstCode + i);
+                        assertTrue(userList.add(user));
+                        assertNotNull(userList.get(userList.indexOf(user)));
+
+                        // Removes every other user again
+                        if (i % 2 == 1) {
+                            assertTrue(userList.remove(user));
+                        }
+                    }
+
+                    return null;
+                }
+            }));
+        }
+
+        start.countDown();
+
+        for (final Future<?> future : futures) {
+            future.get(10, TimeUnit.SECONDS);
+        }
+
+        assertEquals(1000, userList.size());
+
+        for (int i = 1; i < userList.size(); i++) {
+            assertTrue(userList.get(i - 1).compareTo(userList.get(i)) < 0);
+        }
+    }
+
+    @Test
+    public void listenersShouldBeNotifiedWithoutHoldingTheLock() throws Exception {
+        final List<Integer> sizes = new ArrayList<>();
+
+        // Asks for the size from another thread, which would wait forever if the list was still locked
+        userList.addUserListListener(new UserListListener() {
+            @Override
+            public void userAdded(final int pos, final User user) {
+                sizes.add(sizeFromAnotherThread());
+            }
+
+            @Override
+            public void userChanged(final int pos, final User user) {
+                sizes.add(sizeFromAnotherThread());
+            }
+
+            @Override
+            public void userRemoved(final int pos, final User user) {
+                sizes.add(sizeFromAnotherThread());
+            }
+        });
+
+        userList.add(niles);
+        userList.add(john);
+        userList.set(0, lenny);
+        userList.remove(lenny);
+
+        assertEquals(Arrays.asList(1, 2, 2, 1), sizes);
+    }
+
+    private int sizeFromAnotherThread() {
+        try {
+            return executor.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    return userList.size();
+                }
+            }).get(5, TimeUnit.SECONDS);
+        }
+
+        catch (final Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     private void addAllUsers() {
         userList.add(niles);
         userList.add(john);
@@ -0,0 +1,78 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.misc;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import net.usikkert.kouchat.event.UserListListener;
+import net.usikkert.kouchat.settings.Settings;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test of {@link UserListController}.
+ *
+ * @author Christian Ihle
+ */
+@SuppressWarnings("HardCodedStringLiteral")
+public class UserListControllerTest {
+
+    private UserListController userListController;
+
+    private User user;
+    private UserListListener listener;
+
+    @Before
+    public void setUp() {
+        final Settings settings = mock(Settings.class);
+        final User me = new User("Me", 100);
+        me.setMe(true);
+        when(settings.getMe()).thenReturn(me);
+
+        userListController = new UserListController(settings);
+
+        user = new User("User", 200);
+        userListController.getUserList().add(user);
+
+        listener = mock(UserListListener.class);
+        userListController.getUserList().addUserListListener(listener);
+    }
+
+    @Test
+    public void changeTcpChatPortShouldSetThePortAndNotifyListeners() {
+        userListController.changeTcpChatPort(200, 5000);
+
+        assertEquals(5000, user.getTcpChatPort());
+        verify(listener).userChanged(userListController.getUserList().indexOf(user), user);
+    }
+
+    @Test
+    public void changeTcpChatPortShouldDoNothingForUnknownUser() {
+        userListController.changeTcpChatPort(300, 5000);
+
+        assertEquals(0, user.getTcpChatPort());
+        verifyZeroInteractions(listener);
+    }
+}
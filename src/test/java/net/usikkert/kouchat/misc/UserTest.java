@@ -24,6 +24,8 @@ package net.usikkert.kouchat.misc;
 
 import static org.junit.Assert.*;
 
+import java.util.Collections;
+
 import org.junit.Test;
 
 /**
@@ -63,4 +65,26 @@ public class UserTest {
         assertFalse(test1.equals(null));
         assertFalse(test1.equals("No user"));
     }
+
+    @Test
+    public void hasCapabilityShouldBeFalseUntilCapabilitiesAreSet() {
+        final User user = new User("Test", 123);
+
+        assertFalse(user.hasCapability("deflate"));
+
+        user.setCapabilities(Collections.singleton("deflate"));
+
+        assertTrue(user.hasCapability("deflate"));
+        assertFalse(user.hasCapability("other"));
+    }
+
+    @Test
+    public void resetShouldRemoveCapabilities() {
+        final User user = new User("Test", 123);
+        user.setCapabilities(Collections.singleton("deflate"));
+
+        user.reset();
+
+        assertTrue(user.getCapabilities().isEmpty());
+    }
 }
@@ -24,6 +24,7 @@ package net.usikkert.kouchat.net;
 
 import static org.mockito.Mockito.*;
 
+import java.util.Collections;
 import java.util.concurrent.ExecutorService;
 
 import net.usikkert.kouchat.junit.ExpectedException;
@@ -315,7 +316,7 @@ public class AsyncMessageResponderWrapperTest {
 
     @Test
     public void fileSendAcceptedShouldPassThroughUsingExecutor() {
-        wrapper.fileSendAccepted(100, "fileName", 98765, 1050);
+        wrapper.fileSendAccepted(100, "fileName", 98765, 1050, 2048, 12345, 4);
 
         final ArgumentCaptor<Runnable> runnableCaptor = ArgumentCaptor.forClass(Runnable.class);
 
@@ -324,16 +325,16 @@ public class AsyncMessageResponderWrapperTest {
         verify(executorService).execute(runnableCaptor.capture());
         runnableCaptor.getValue().run();
 
-        verify(messageResponder).fileSendAccepted(100, "fileName", 98765, 1050);
+        verify(messageResponder).fileSendAccepted(100, "fileName", 98765, 1050, 2048, 12345, 4);
     }
 
     @Test
     public void clientInfoShouldPassThrough() {
         wrapper.clientInfo(100, "client", 70000, "os",
-                           4500, 6000);
+                           4500, 6000, Collections.singleton("deflate"));
 
         verify(messageResponder).clientInfo(100, "client", 70000, "os",
-                                            4500, 6000);
+                                            4500, 6000, Collections.singleton("deflate"));
     }
 
     @Test
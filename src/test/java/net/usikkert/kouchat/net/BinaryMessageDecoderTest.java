@@ -0,0 +1,102 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+/**
+ * Test of {@link BinaryMessageDecoder}.
+ *
+ * @author Christian Ihle
+ */
+@SuppressWarnings("HardCodedStringLiteral")
+public class BinaryMessageDecoderTest {
+
+    private static final byte MARKER = BinaryMessageEncoder.BINARY_MARKER;
+
+    @Test
+    public void isBinaryShouldBeTrueForPacketStartingWithMarker() {
+        assertTrue(BinaryMessageDecoder.isBinary(ByteBuffer.wrap(new byte[] {MARKER, 2})));
+    }
+
+    @Test
+    public void isBinaryShouldBeFalseForTextAndCompressedAndEmptyPackets() {
+        assertFalse(BinaryMessageDecoder.isBinary(ByteBuffer.wrap("1234!IDLE#Nick:".getBytes())));
+        assertFalse(BinaryMessageDecoder.isBinary(ByteBuffer.wrap(new byte[] {MessageCompressor.COMPRESSED_MARKER})));
+        assertFalse(BinaryMessageDecoder.isBinary(ByteBuffer.allocate(0)));
+    }
+
+    @Test
+    public void isBinaryShouldNotChangePosition() {
+        final ByteBuffer buffer = ByteBuffer.wrap(new byte[] {'x', MARKER, 2});
+        buffer.position(1);
+
+        assertTrue(BinaryMessageDecoder.isBinary(buffer));
+        assertEquals(1, buffer.position());
+    }
+
+    @Test
+    public void decodeShouldHandleDirectBuffer() {
+        final byte[] encoded = new BinaryMessageEncoder().encode("300!AWAY#Niles:Lunch");
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(encoded.length);
+        buffer.put(encoded);
+        buffer.flip();
+
+        assertEquals("300!AWAY#:Lunch", BinaryMessageDecoder.decode(buffer));
+        assertEquals(0, buffer.position());
+    }
+
+    @Test
+    public void decodeShouldReturnEmptyStringForUnsupportedVersion() {
+        assertEquals("", BinaryMessageDecoder.decode(ByteBuffer.wrap(new byte[] {MARKER, 3, 3, 0, 1})));
+    }
+
+    @Test
+    public void decodeShouldReturnEmptyStringForUnknownType() {
+        assertEquals("", BinaryMessageDecoder.decode(ByteBuffer.wrap(new byte[] {MARKER, 2, 0, 0, 1})));
+        assertEquals("", BinaryMessageDecoder.decode(ByteBuffer.wrap(new byte[] {MARKER, 2, 15, 0, 1})));
+    }
+
+    @Test
+    public void decodeShouldReturnEmptyStringForTruncatedPacket() {
+        assertEquals("", BinaryMessageDecoder.decode(ByteBuffer.wrap(new byte[] {MARKER, 2, 1})));
+        assertEquals("", BinaryMessageDecoder.decode(ByteBuffer.wrap(new byte[] {MARKER, 2, 1, 0, (byte) 0xAC})));
+        assertEquals("", BinaryMessageDecoder.decode(ByteBuffer.wrap(new byte[] {MARKER, 2, 1, 0, 1})));
+    }
+
+    @Test
+    public void decodeShouldReturnEmptyStringForNickLongerThanPacket() {
+        assertEquals("", BinaryMessageDecoder.decode(ByteBuffer.wrap(new byte[] {MARKER, 2, 10, 1, 1, 5, 'N'})));
+    }
+
+    @Test
+    public void decodeShouldReturnEmptyStringForTooLongVarint() {
+        final byte[] packet = {MARKER, 2, 3, 0, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, 1};
+
+        assertEquals("", BinaryMessageDecoder.decode(ByteBuffer.wrap(packet)));
+    }
+}
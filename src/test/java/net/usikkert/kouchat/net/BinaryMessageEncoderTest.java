@@ -0,0 +1,192 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+
+import net.usikkert.kouchat.Constants;
+import net.usikkert.kouchat.junit.ExpectedException;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Test of {@link BinaryMessageEncoder}.
+ *
+ * @author Christian Ihle
+ */
+@SuppressWarnings("HardCodedStringLiteral")
+public class BinaryMessageEncoderTest {
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    private BinaryMessageEncoder encoder;
+
+    @Before
+    public void setUp() {
+        encoder = new BinaryMessageEncoder();
+    }
+
+    @Test
+    public void encodeShouldThrowExceptionIfMessageIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Message can not be null");
+
+        encoder.encode(null);
+    }
+
+    @Test
+    public void encodeShouldWriteHeader() {
+        final byte[] encoded = encoder.encode("300!IDLE#Niles:");
+
+        assertArrayEquals(new byte[] {BinaryMessageEncoder.BINARY_MARKER, 2, 3, 0, (byte) 0xAC, 0x02}, encoded);
+    }
+
+    @Test
+    public void encodeShouldWriteFieldsAsVarints() {
+        final byte[] encoded = encoder.encode("300!MSG#Niles:[-1]Hi");
+
+        assertArrayEquals(new byte[] {BinaryMessageEncoder.BINARY_MARKER, 2, 1, 0, (byte) 0xAC, 0x02, 1, 'H', 'i'},
+                          encoded);
+    }
+
+    @Test
+    public void encodeShouldMakeMessagesSmaller() {
+        assertSmaller("10066122!IDLE#Christian:");
+        assertSmaller("10066122!STOPPEDWRITING#Christian:");
+        assertSmaller("10066122!MSG#Christian:[-15987646]Hello, anyone up for lunch?");
+        assertSmaller("10066122!PRIVMSG#Christian:(16320462)[-15987646]Did you see the build failure?");
+        assertSmaller("10066122!TOPIC#Christian:(Christian)[1446390300000]Release on Friday");
+        assertSmaller("10066122!SENDFILE#Christian:(16320462)[1048576]{-1830291047}kouchat.jar");
+    }
+
+    @Test
+    public void encodeShouldNotSupportMessagesUsedToFindOtherClients() {
+        assertNull(encoder.encode("10066122!LOGON#Christian:"));
+        assertNull(encoder.encode("10066122!EXPOSING#Christian:Lunch"));
+        assertNull(encoder.encode("10066122!EXPOSE#Christian:"));
+        assertNull(encoder.encode("10066122!NICKCRASH#Christian:Niles"));
+        assertNull(encoder.encode(
+                "10066122!CLIENT#Christian:(KouChat v1.5.0 Swing)[1753]{Linux}<40656>/40657\\|deflate,binary2|"));
+    }
+
+    @Test
+    public void encodeShouldNotSupportFragments() {
+        assertNull(encoder.encode(MessageFragmenter.FRAGMENT_PREFIX + "5:0:2:10066122!MSG#Christian:[-1]Hi"));
+    }
+
+    @Test
+    public void encodeShouldNotSupportInvalidMessages() {
+        assertNull(encoder.encode("Hello"));
+        assertNull(encoder.encode("abc!MSG#Christian:[-1]Hi"));
+        assertNull(encoder.encode("10066122!UNKNOWN#Christian:"));
+    }
+
+    @Test
+    public void encodeShouldNotSupportMessagesThatDoNotFollowTheLayout() {
+        assertNull(encoder.encode("10066122!MSG#Christian:Hi"));
+        assertNull(encoder.encode("10066122!MSG#Christian:[-1"));
+        assertNull(encoder.encode("10066122!MSG#Christian:[blue]Hi"));
+        assertNull(encoder.encode("10066122!MSG#Christian:[007]Hi"));
+        assertNull(encoder.encode("10066122!MSG#Christian:[+7]Hi"));
+        assertNull(encoder.encode("10066122!PRIVMSG#Christian:[-1](16320462)Hi"));
+    }
+
+    @Test
+    public void encodeShouldNotSupportMessagesLargerThanAPacket() {
+        final StringBuilder message = new StringBuilder("10066122!MSG#Christian:[-1]");
+
+        while (message.length() <= Constants.NETWORK_PACKET_SIZE + 100) {
+            message.append("Hello ");
+        }
+
+        assertNull(encoder.encode(message.toString()));
+    }
+
+    @Test
+    public void encodedMessagesShouldDecodeToTheSameMessageWithoutUnusedNickName() {
+        assertRoundTrip("10066122!IDLE#Christian:", "10066122!IDLE#:");
+        assertRoundTrip("10066122!WRITING#Christian:", "10066122!WRITING#:");
+        assertRoundTrip("10066122!STOPPEDWRITING#Christian:", "10066122!STOPPEDWRITING#:");
+        assertRoundTrip("10066122!AWAY#Christian:Lunch", "10066122!AWAY#:Lunch");
+        assertRoundTrip("10066122!BACK#Christian:", "10066122!BACK#:");
+        assertRoundTrip("10066122!GETTOPIC#Christian:", "10066122!GETTOPIC#:");
+        assertRoundTrip("10066122!LOGOFF#Christian:", "10066122!LOGOFF#:");
+        assertRoundTrip("10066122!MSG#Christian:[-15987646]Hei på deg [ok] (:", "10066122!MSG#:[-15987646]Hei på deg [ok] (:");
+        assertRoundTrip("10066122!PRIVMSG#Christian:(16320462)[0]Hi", "10066122!PRIVMSG#:(16320462)[0]Hi");
+        assertRoundTrip("10066122!TOPIC#Christian:(Niles)[1446390300000]Release on Friday",
+                        "10066122!TOPIC#:(Niles)[1446390300000]Release on Friday");
+        assertRoundTrip("10066122!TOPIC#Christian:()[0]", "10066122!TOPIC#:()[0]");
+        assertRoundTrip("10066122!SENDFILEACCEPT#Christian:(16320462)[45000]{-1830291047}kouchat.jar",
+                        "10066122!SENDFILEACCEPT#:(16320462)[45000]{-1830291047}kouchat.jar");
+        assertRoundTrip("10066122!SENDFILEABORT#Christian:(16320462){-1830291047}kouchat.jar",
+                        "10066122!SENDFILEABORT#:(16320462){-1830291047}kouchat.jar");
+    }
+
+    @Test
+    public void encodedMessagesShouldKeepNickNameWhenNeeded() {
+        assertRoundTrip("10066122!NICK#Christiån:", "10066122!NICK#Christiån:");
+        assertRoundTrip("10066122!SENDFILE#Christian:(16320462)[1048576]{123}kouchat.jar",
+                        "10066122!SENDFILE#Christian:(16320462)[1048576]{123}kouchat.jar");
+    }
+
+    @Test
+    public void encodedMessagesShouldKeepExtremeNumbers() {
+        assertRoundTrip("-5!PRIVMSG#Christian:(" + Integer.MAX_VALUE + ")[" + Long.MIN_VALUE + "]Hi",
+                        "-5!PRIVMSG#:(" + Integer.MAX_VALUE + ")[" + Long.MIN_VALUE + "]Hi");
+        assertRoundTrip("0!MSG#Christian:[" + Long.MAX_VALUE + "]", "0!MSG#:[" + Long.MAX_VALUE + "]");
+    }
+
+    @Test
+    public void encodeShouldWriteSequenceAfterUserCode() {
+        final byte[] encoded = encoder.encode("300.2!IDLE#Niles:");
+
+        assertArrayEquals(new byte[] {BinaryMessageEncoder.BINARY_MARKER, 2, 3, 2, (byte) 0xAC, 0x02, 2}, encoded);
+    }
+
+    @Test
+    public void encodedMessagesShouldKeepSequence() {
+        assertRoundTrip("10066122.0!IDLE#Christian:", "10066122.0!IDLE#:");
+        assertRoundTrip("10066122.300!MSG#Christian:[-15987646]Hello", "10066122.300!MSG#:[-15987646]Hello");
+        assertRoundTrip("10066122." + Long.MAX_VALUE + "!NICK#Christian:",
+                        "10066122." + Long.MAX_VALUE + "!NICK#Christian:");
+    }
+
+    private void assertSmaller(final String message) {
+        final byte[] encoded = encoder.encode(message);
+
+        assertNotNull(message, encoded);
+        assertTrue(message, encoded.length < message.length());
+    }
+
+    private void assertRoundTrip(final String message, final String expected) {
+        final byte[] encoded = encoder.encode(message);
+
+        assertNotNull(message, encoded);
+        assertEquals(expected, BinaryMessageDecoder.decode(ByteBuffer.wrap(encoded)));
+    }
+}
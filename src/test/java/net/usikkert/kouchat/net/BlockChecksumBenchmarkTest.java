@@ -0,0 +1,194 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import net.usikkert.kouchat.event.FileTransferListener;
+import net.usikkert.kouchat.misc.User;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Benchmark of the overhead from checking each block with a {@link BlockChecksum}, over loopback.
+ *
+ * <p>Compares a transfer from {@link FileSender} to {@link FileReceiver} over a single connection without
+ * checksums, with a transfer as blocks with checksums. Also measures the time spent on the checksums alone,
+ * the way the sender and the receiver update them, as a percentage of the time of the block transfer.
+ * The difference between the two transfers also includes copying through the application instead of
+ * using transferTo, which is not part of the checksum cost.</p>
+ *
+ * Does not really assert anything. Run manually and compare the numbers.
+ *
+ * @author Christian Ihle
+ */
+@Ignore
+@SuppressWarnings("HardCodedStringLiteral")
+public class BlockChecksumBenchmarkTest {
+
+    private static final int FILE_SIZE = 512 * 1024 * 1024;
+    private static final int ROUNDS = 5;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private ExecutorService executor;
+    private User user;
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        executor = Executors.newSingleThreadExecutor();
+
+        user = new User("Sender", 1234);
+        user.setIpAddress(InetAddress.getLoopbackAddress().getHostAddress());
+
+        file = temporaryFolder.newFile("benchmark.bin");
+
+        try (final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            final byte[] bytes = new byte[1024 * 1024];
+            new Random(42).nextBytes(bytes);
+
+            for (int i = 0; i < FILE_SIZE / bytes.length; i++) {
+                randomAccessFile.write(bytes);
+            }
+        }
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void compareTransfers() throws Exception {
+        for (int i = 1; i <= ROUNDS; i++) {
+            final long plainTime = benchmarkTransfer(false);
+            final long blockTime = benchmarkTransfer(true);
+            final long senderChecksumTime = benchmarkSenderChecksum();
+            final long receiverChecksumTime = benchmarkReceiverChecksum();
+
+            System.out.printf("Round %d: single stream %d ms (%d MB/s), blocks with checksums %d ms (%d MB/s), " +
+                                      "%+.1f%%%n",
+                              i, plainTime, megabytesPerSecond(plainTime), blockTime, megabytesPerSecond(blockTime),
+                              (blockTime - plainTime) * 100.0 / plainTime);
+            System.out.printf("Round %d: checksums alone, sender %d ms (%.1f%%), receiver %d ms (%.1f%%)%n",
+                              i, senderChecksumTime, senderChecksumTime * 100.0 / blockTime,
+                              receiverChecksumTime, receiverChecksumTime * 100.0 / blockTime);
+        }
+    }
+
+    private long benchmarkTransfer(final boolean blocks) throws Exception {
+        final File receivedFile = new File(temporaryFolder.getRoot(), "received.bin");
+        final FileReceiver fileReceiver = new FileReceiver(user, receivedFile, FILE_SIZE, 1);
+        fileReceiver.registerListener(mock(FileTransferListener.class));
+
+        // A single connection for the blocks, as long as the transfer is faster than the first measurement
+        final int streams = fileReceiver.prepareStreams(blocks);
+        final int port = fileReceiver.startServer();
+
+        final FileSender fileSender = new FileSender(user, new FileToSend(file), 2);
+        fileSender.registerListener(mock(FileTransferListener.class));
+
+        final long start = System.nanoTime();
+
+        final Future<Boolean> sent = executor.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return fileSender.transfer(port, 0, 0, streams);
+            }
+        });
+
+        assertTrue(fileReceiver.transfer());
+        assertTrue(sent.get(60, TimeUnit.SECONDS));
+
+        final long time = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue(receivedFile.delete());
+
+        return time;
+    }
+
+    /**
+     * Reads the file in chunks into a direct buffer and updates the checksum, like the sender.
+     * Only the time spent updating the checksum is counted, not the reads.
+     */
+    private long benchmarkSenderChecksum() throws IOException {
+        final BlockChecksum checksum = new BlockChecksum();
+        final ByteBuffer chunk = ByteBuffer.allocateDirect((int) FileSender.TRANSFER_CHUNK_SIZE);
+        long time = 0;
+
+        try (final FileChannel fileChannel = new RandomAccessFile(file, "r").getChannel()) {
+            long position = 0;
+
+            while (position < FILE_SIZE) {
+                chunk.clear();
+                position += fileChannel.read(chunk, position);
+                chunk.flip();
+
+                final long start = System.nanoTime();
+                checksum.update(chunk);
+                time += System.nanoTime() - start;
+            }
+        }
+
+        return TimeUnit.NANOSECONDS.toMillis(time);
+    }
+
+    /**
+     * Updates the checksum from a direct buffer of the same size as the receiver uses.
+     */
+    private long benchmarkReceiverChecksum() {
+        final BlockChecksum checksum = new BlockChecksum();
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(FileReceiver.BUFFER_SIZE);
+        final long start = System.nanoTime();
+
+        for (int i = 0; i < FILE_SIZE / FileReceiver.BUFFER_SIZE; i++) {
+            checksum.update(buffer);
+        }
+
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    private long megabytesPerSecond(final long millis) {
+        return (long) FILE_SIZE * 1000 / Math.max(1, millis) / (1024 * 1024);
+    }
+}
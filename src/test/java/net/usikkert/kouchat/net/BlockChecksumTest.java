@@ -0,0 +1,119 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test of {@link BlockChecksum}.
+ *
+ * @author Christian Ihle
+ */
+public class BlockChecksumTest {
+
+    private byte[] bytes;
+    private int expected;
+
+    @Before
+    public void setUp() {
+        // Larger than the copy array, and not a multiple of it
+        bytes = new byte[BlockChecksum.COPY_SIZE * 3 + 123];
+        new Random(42).nextBytes(bytes);
+
+        final CRC32 crc = new CRC32();
+        crc.update(bytes);
+        expected = (int) crc.getValue();
+    }
+
+    @Test
+    public void updateWithArrayShouldGiveCRC32() {
+        final BlockChecksum checksum = new BlockChecksum();
+
+        checksum.update(bytes, 0, 1000);
+        checksum.update(bytes, 1000, bytes.length - 1000);
+
+        assertEquals(expected, checksum.getValue());
+    }
+
+    @Test
+    public void updateWithHeapBufferShouldGiveCRC32AndNotMoveThePosition() {
+        final BlockChecksum checksum = new BlockChecksum();
+        final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+
+        checksum.update(buffer);
+
+        assertEquals(expected, checksum.getValue());
+        assertEquals(0, buffer.position());
+    }
+
+    @Test
+    public void updateWithSlicedHeapBufferShouldUseTheRightPartOfTheArray() {
+        final BlockChecksum checksum = new BlockChecksum();
+        final byte[] padded = new byte[bytes.length + 20];
+        System.arraycopy(bytes, 0, padded, 10, bytes.length);
+
+        final ByteBuffer buffer = ByteBuffer.wrap(padded);
+        buffer.position(5);
+        final ByteBuffer slice = buffer.slice();
+        slice.position(5);
+        slice.limit(5 + bytes.length);
+
+        checksum.update(slice);
+
+        assertEquals(expected, checksum.getValue());
+    }
+
+    @Test
+    public void updateWithDirectBufferShouldGiveCRC32AndNotMoveThePosition() {
+        final BlockChecksum checksum = new BlockChecksum();
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length + 10);
+        buffer.put(new byte[10]);
+        buffer.put(bytes);
+        buffer.flip();
+        buffer.position(10);
+
+        checksum.update(buffer);
+
+        assertEquals(expected, checksum.getValue());
+        assertEquals(10, buffer.position());
+        assertEquals(bytes.length + 10, buffer.limit());
+    }
+
+    @Test
+    public void resetShouldStartOver() {
+        final BlockChecksum checksum = new BlockChecksum();
+
+        checksum.update(bytes, 0, 100);
+        checksum.reset();
+        checksum.update(bytes, 0, bytes.length);
+
+        assertEquals(expected, checksum.getValue());
+    }
+}
@@ -0,0 +1,119 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+
+import net.usikkert.kouchat.junit.ExpectedException;
+
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Test of {@link ByteBufferPool}.
+ *
+ * @author Christian Ihle
+ */
+public class ByteBufferPoolTest {
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    @Test
+    public void constructorShouldThrowExceptionIfPoolSizeIsZero() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Pool size must be positive");
+
+        new ByteBufferPool(0, 512, true);
+    }
+
+    @Test
+    public void constructorShouldThrowExceptionIfBufferSizeIsZero() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Buffer size must be positive");
+
+        new ByteBufferPool(10, 0, true);
+    }
+
+    @Test
+    public void acquireShouldAllocateDirectBufferWhenPoolIsEmpty() {
+        final ByteBufferPool pool = new ByteBufferPool(10, 512, true);
+
+        final ByteBuffer buffer = pool.acquire();
+
+        assertTrue(buffer.isDirect());
+        assertEquals(512, buffer.capacity());
+        assertEquals(0, pool.getAvailable());
+    }
+
+    @Test
+    public void acquireShouldAllocateHeapBufferWhenPoolIsEmpty() {
+        final ByteBufferPool pool = new ByteBufferPool(10, 256, false);
+
+        final ByteBuffer buffer = pool.acquire();
+
+        assertFalse(buffer.isDirect());
+        assertTrue(buffer.hasArray());
+        assertEquals(256, buffer.capacity());
+    }
+
+    @Test
+    public void acquireShouldReuseReleasedBufferAndClearIt() {
+        final ByteBufferPool pool = new ByteBufferPool(10, 512, true);
+        final ByteBuffer buffer = pool.acquire();
+        buffer.put((byte) 1).flip();
+
+        pool.release(buffer);
+        assertEquals(1, pool.getAvailable());
+
+        final ByteBuffer reused = pool.acquire();
+
+        assertSame(buffer, reused);
+        assertEquals(0, reused.position());
+        assertEquals(512, reused.limit());
+        assertEquals(0, pool.getAvailable());
+    }
+
+    @Test
+    public void releaseShouldNotKeepMoreBuffersThanPoolSize() {
+        final ByteBufferPool pool = new ByteBufferPool(2, 512, true);
+
+        pool.release(pool.acquire());
+        pool.release(ByteBuffer.allocateDirect(512));
+        pool.release(ByteBuffer.allocateDirect(512));
+
+        assertEquals(2, pool.getAvailable());
+    }
+
+    @Test
+    public void releaseShouldIgnoreBuffersWithWrongSizeOrType() {
+        final ByteBufferPool pool = new ByteBufferPool(10, 512, true);
+
+        pool.release(ByteBuffer.allocateDirect(100));
+        pool.release(ByteBuffer.allocate(512));
+
+        assertEquals(0, pool.getAvailable());
+    }
+}
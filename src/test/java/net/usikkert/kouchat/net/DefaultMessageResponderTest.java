@@ -25,6 +25,8 @@ package net.usikkert.kouchat.net;
 import static org.junit.Assert.*;
 import static org.mockito.Mockito.*;
 
+import java.util.Collections;
+
 import net.usikkert.kouchat.junit.ExpectedException;
 import net.usikkert.kouchat.message.CoreMessages;
 import net.usikkert.kouchat.misc.ChatState;
@@ -361,7 +363,7 @@ public class DefaultMessageResponderTest {
         setUpExistingUser();
 
         responder.clientInfo(100, "swing", 150, "linux",
-                             4000, 5000);
+                             4000, 5000, Collections.singleton("deflate"));
 
         final long logonTime = System.currentTimeMillis() - 150;
         // Allow some slack to avoid flaky test
@@ -370,7 +372,8 @@ public class DefaultMessageResponderTest {
         assertEquals("swing", user.getClient());
         assertEquals("linux", user.getOperatingSystem());
         assertEquals(4000, user.getPrivateChatPort());
-        assertEquals(5000, user.getTcpChatPort());
+        assertTrue(user.hasCapability("deflate"));
+        verify(controller).changeTcpChatPort(100, 5000);
     }
 
     @Test
@@ -378,13 +381,15 @@ public class DefaultMessageResponderTest {
         setUpUnknownUser();
 
         responder.clientInfo(100, "swing", 150, "linux",
-                             4000, 5000);
+                             4000, 5000, Collections.singleton("deflate"));
 
         assertEquals(0, user.getLogonTime());
         assertEquals("<unknown>", user.getClient());
         assertEquals("<unknown>", user.getOperatingSystem());
         assertEquals(0, user.getPrivateChatPort());
         assertEquals(0, user.getTcpChatPort());
+        assertFalse(user.hasCapability("deflate"));
+        verify(controller, never()).changeTcpChatPort(anyInt(), anyInt());
     }
 
     private void verifyTopic(final Topic topic, final String expectedTopic, final String expectedNick,
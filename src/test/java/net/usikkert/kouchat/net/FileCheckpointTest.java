@@ -0,0 +1,151 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Test of {@link FileCheckpoint}.
+ *
+ * @author Christian Ihle
+ */
+@SuppressWarnings("HardCodedStringLiteral")
+public class FileCheckpointTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private File partFile;
+    private byte[] content;
+
+    @Before
+    public void setUp() throws IOException {
+        content = new byte[200000];
+        new Random(42).nextBytes(content);
+
+        partFile = temporaryFolder.newFile("file.bin.part");
+
+        try (final FileOutputStream outputStream = new FileOutputStream(partFile)) {
+            outputStream.write(content);
+        }
+    }
+
+    @Test
+    public void saveAndLoadShouldKeepAllTheValues() throws IOException {
+        new FileCheckpoint(200000, -55, 100000, 3735928559L).save(partFile);
+
+        assertTrue(new File(partFile.getPath() + ".checkpoint").exists());
+
+        final FileCheckpoint checkpoint = FileCheckpoint.load(partFile);
+
+        assertNotNull(checkpoint);
+        assertEquals(200000, checkpoint.getSize());
+        assertEquals(-55, checkpoint.getFileHash());
+        assertEquals(100000, checkpoint.getTransferred());
+        assertEquals(3735928559L, checkpoint.getChecksum());
+    }
+
+    @Test
+    public void loadShouldReturnNullIfThereIsNoCheckpoint() {
+        assertNull(FileCheckpoint.load(partFile));
+    }
+
+    @Test
+    public void loadShouldReturnNullIfTheCheckpointIsBroken() throws IOException {
+        try (final FileWriter writer = new FileWriter(partFile.getPath() + ".checkpoint")) {
+            writer.write("size=lots\n");
+        }
+
+        assertNull(FileCheckpoint.load(partFile));
+    }
+
+    @Test
+    public void deleteShouldRemoveTheCheckpoint() throws IOException {
+        new FileCheckpoint(200000, 55, 100000, 1).save(partFile);
+
+        FileCheckpoint.delete(partFile);
+
+        assertNull(FileCheckpoint.load(partFile));
+        assertTrue(partFile.exists());
+    }
+
+    @Test
+    public void canResumeShouldOnlyAcceptTheSameFileWithPartOfItReceived() {
+        assertTrue(new FileCheckpoint(200000, 55, 100000, 1).canResume(partFile, 200000, 55));
+
+        assertFalse(new FileCheckpoint(200000, 55, 100000, 1).canResume(partFile, 300000, 55));
+        assertFalse(new FileCheckpoint(200000, 55, 100000, 1).canResume(partFile, 200000, 56));
+        assertFalse(new FileCheckpoint(200000, 55, 0, 1).canResume(partFile, 200000, 55));
+        assertFalse(new FileCheckpoint(200000, 55, 200000, 1).canResume(partFile, 200000, 55));
+        assertFalse(new FileCheckpoint(400000, 55, 300000, 1).canResume(partFile, 400000, 55));
+    }
+
+    @Test
+    public void createShouldUseTheChecksumOfTheStartOfThePartFile() throws IOException {
+        final FileCheckpoint checkpoint = FileCheckpoint.create(partFile, 200000, 55, 150000);
+
+        assertEquals(200000, checkpoint.getSize());
+        assertEquals(55, checkpoint.getFileHash());
+        assertEquals(150000, checkpoint.getTransferred());
+        assertEquals(crc(Arrays.copyOf(content, 150000)), checkpoint.getChecksum());
+    }
+
+    @Test
+    public void checksumShouldOnlyReadTheGivenNumberOfBytes() throws IOException {
+        final ByteArrayInputStream inputStream = new ByteArrayInputStream(content);
+
+        assertEquals(crc(Arrays.copyOf(content, 100001)), FileCheckpoint.checksum(inputStream, 100001));
+        assertEquals(content.length - 100001, inputStream.available());
+    }
+
+    @Test
+    public void checksumShouldBeMinusOneIfTheStreamIsTooShort() throws IOException {
+        assertEquals(-1, FileCheckpoint.checksum(new ByteArrayInputStream(content), content.length + 1));
+    }
+
+    @Test
+    public void checksumOfNothingShouldBeZero() throws IOException {
+        assertEquals(0, FileCheckpoint.checksum(new ByteArrayInputStream(content), 0));
+    }
+
+    private long crc(final byte[] bytes) {
+        final CRC32 crc = new CRC32();
+        crc.update(bytes);
+
+        return crc.getValue();
+    }
+}
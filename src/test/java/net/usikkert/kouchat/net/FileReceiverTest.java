@@ -23,20 +23,67 @@
 package net.usikkert.kouchat.net;
 
 import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
 
+import net.usikkert.kouchat.event.FileTransferListener;
 import net.usikkert.kouchat.misc.User;
 
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 /**
  * Test of {@link FileReceiver}.
  *
  * @author Christian Ihle
  */
+@SuppressWarnings("HardCodedStringLiteral")
 public class FileReceiverTest {
 
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private ExecutorService executor;
+    private FileTransferListener listener;
+    private byte[] content;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newFixedThreadPool(2);
+        listener = mock(FileTransferListener.class);
+
+        // Not a multiple of the buffer size, to get a partial last read
+        content = new byte[FileReceiver.BUFFER_SIZE * 5 + 12345];
+        new Random(42).nextBytes(content);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
     @Test
     public void getOriginalFileNameShouldReturnTheNameOfTheFileFromTheConstructorEvenAfterChange() {
         final FileReceiver fileReceiver = new FileReceiver(new User("Test", 123), new File("cows.gif"), 100, 1);
@@ -51,4 +98,623 @@ public class FileReceiverTest {
         assertEquals("chickens.jpg", fileReceiver.getFileName());
         assertEquals("chickens.jpg", fileReceiver.getFile().getName());
     }
+
+    @Test
+    public void getPartFileShouldBeNextToTheChosenFile() {
+        final File file = new File(temporaryFolder.getRoot(), "cows.gif");
+        final FileReceiver fileReceiver = new FileReceiver(new User("Test", 123), file, 100, 1);
+
+        assertEquals(new File(temporaryFolder.getRoot(), "cows.gif.part"), fileReceiver.getPartFile());
+
+        fileReceiver.setFile(new File(temporaryFolder.getRoot(), "chickens.jpg"));
+
+        assertEquals(new File(temporaryFolder.getRoot(), "chickens.jpg.part"), fileReceiver.getPartFile());
+    }
+
+    @Test
+    public void transferShouldReceiveFileAndRenameThePartFileWhenComplete() throws Exception {
+        final File file = new File(temporaryFolder.getRoot(), "received.bin");
+        final FileReceiver fileReceiver = createFileReceiver(file);
+        final int port = fileReceiver.startServer();
+
+        final Future<?> sent = send(port, content.length, null);
+
+        assertTrue(fileReceiver.transfer());
+        sent.get(10, TimeUnit.SECONDS);
+
+        assertArrayEquals(content, Files.readAllBytes(file.toPath()));
+        assertFalse(fileReceiver.getPartFile().exists());
+        assertEquals(content.length, fileReceiver.getTransferred());
+        assertEquals(100, fileReceiver.getPercent());
+        assertTrue(fileReceiver.isTransferred());
+
+        verify(listener).statusConnecting();
+        verify(listener).statusTransferring();
+        verify(listener, atLeast(2)).transferUpdate();
+        verify(listener).statusCompleted();
+        verify(listener, never()).statusFailed();
+    }
+
+    @Test
+    public void transferShouldReplaceExistingFileWhenComplete() throws Exception {
+        final File file = temporaryFolder.newFile("existing.bin");
+
+        try (final FileOutputStream outputStream = new FileOutputStream(file)) {
+            outputStream.write(new byte[] {1, 2, 3});
+        }
+
+        final FileReceiver fileReceiver = createFileReceiver(file);
+        final Future<?> sent = send(fileReceiver.startServer(), content.length, null);
+
+        assertTrue(fileReceiver.transfer());
+        sent.get(10, TimeUnit.SECONDS);
+
+        assertArrayEquals(content, Files.readAllBytes(file.toPath()));
+    }
+
+    @Test
+    public void transferShouldReceiveEmptyFile() throws Exception {
+        final File file = new File(temporaryFolder.getRoot(), "empty.bin");
+        final FileReceiver fileReceiver = new FileReceiver(new User("Test", 123), file, 0, 1);
+        fileReceiver.registerListener(listener);
+
+        final Future<?> sent = send(fileReceiver.startServer(), 0, null);
+
+        assertTrue(fileReceiver.transfer());
+        sent.get(10, TimeUnit.SECONDS);
+
+        assertTrue(file.exists());
+        assertEquals(0, file.length());
+        assertFalse(fileReceiver.getPartFile().exists());
+    }
+
+    @Test
+    public void transferShouldPreallocateThePartFileAndNotTouchTheChosenFileBeforeComplete() throws Exception {
+        final File file = new File(temporaryFolder.getRoot(), "received.bin");
+        final FileReceiver fileReceiver = createFileReceiver(file);
+        final CountDownLatch halfSent = new CountDownLatch(1);
+        final CountDownLatch checked = new CountDownLatch(1);
+
+        final Future<?> sent = send(fileReceiver.startServer(), content.length / 2, new Runnable() {
+            @Override
+            public void run() {
+                halfSent.countDown();
+
+                try {
+                    assertTrue(checked.await(10, TimeUnit.SECONDS));
+                }
+
+                catch (final InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+
+        final Future<Boolean> transferred = executor.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return fileReceiver.transfer();
+            }
+        });
+
+        assertTrue(halfSent.await(10, TimeUnit.SECONDS));
+
+        for (int i = 0; i < 1000 && fileReceiver.getTransferred() < content.length / 2; i++) {
+            Thread.sleep(10);
+        }
+
+        assertEquals(content.length / 2, fileReceiver.getTransferred());
+        assertTrue(fileReceiver.getPartFile().exists());
+        assertEquals(content.length, fileReceiver.getPartFile().length());
+        assertFalse(file.exists());
+
+        checked.countDown();
+
+        // The sender stopped at half the file
+        assertFalse(transferred.get(10, TimeUnit.SECONDS));
+        sent.get(10, TimeUnit.SECONDS);
+
+        assertFalse(file.exists());
+        assertFalse(fileReceiver.getPartFile().exists());
+
+        verify(listener).statusFailed();
+        verify(listener, never()).statusCompleted();
+    }
+
+    @Test
+    public void cancelShouldDeleteThePartFileAndNotTouchTheChosenFile() throws Exception {
+        final File file = temporaryFolder.newFile("existing.bin");
+        final FileReceiver fileReceiver = createFileReceiver(file);
+        fileReceiver.prepareResume(55, true);
+        final CountDownLatch canceled = new CountDownLatch(1);
+
+        send(fileReceiver.startServer(), content.length / 2, new Runnable() {
+            @Override
+            public void run() {
+                fileReceiver.cancel();
+                canceled.countDown();
+            }
+        });
+
+        assertFalse(fileReceiver.transfer());
+        assertTrue(canceled.await(10, TimeUnit.SECONDS));
+
+        assertTrue(file.exists());
+        assertEquals(0, file.length());
+        assertFalse(fileReceiver.getPartFile().exists());
+        assertNull(FileCheckpoint.load(fileReceiver.getPartFile()));
+    }
+
+    @Test
+    public void transferShouldKeepThePartFileWithCheckpointIfTheSenderCanResume() throws Exception {
+        final File file = new File(temporaryFolder.getRoot(), "received.bin");
+        final FileReceiver fileReceiver = failHalfway(file);
+
+        assertFalse(file.exists());
+        assertTrue(fileReceiver.getPartFile().exists());
+
+        final FileCheckpoint checkpoint = FileCheckpoint.load(fileReceiver.getPartFile());
+
+        assertNotNull(checkpoint);
+        assertEquals(content.length, checkpoint.getSize());
+        assertEquals(55, checkpoint.getFileHash());
+        assertEquals(content.length / 2, checkpoint.getTransferred());
+        assertEquals(crc(Arrays.copyOf(content, content.length / 2)), checkpoint.getChecksum());
+    }
+
+    @Test
+    public void prepareResumeShouldNotResumeIfTheSenderCantResume() throws Exception {
+        final File file = new File(temporaryFolder.getRoot(), "received.bin");
+        failHalfway(file);
+
+        assertEquals(0, createFileReceiver(file).prepareResume(55, false));
+    }
+
+    @Test
+    public void prepareResumeShouldNotResumeADifferentFile() throws Exception {
+        final File file = new File(temporaryFolder.getRoot(), "received.bin");
+        failHalfway(file);
+
+        assertEquals(0, createFileReceiver(file).prepareResume(56, true));
+    }
+
+    @Test
+    public void transferShouldResumeFromTheCheckpoint() throws Exception {
+        final File file = new File(temporaryFolder.getRoot(), "received.bin");
+        failHalfway(file);
+
+        final FileReceiver fileReceiver = createFileReceiver(file);
+        final int half = content.length / 2;
+
+        assertEquals(half, fileReceiver.prepareResume(55, true));
+        assertEquals(crc(Arrays.copyOf(content, half)), fileReceiver.getResumeChecksum());
+
+        final Future<?> sent = sendBytes(fileReceiver.startServer(),
+                                         withStart(half, Arrays.copyOfRange(content, half, content.length)), null);
+
+        assertTrue(fileReceiver.transfer());
+        sent.get(10, TimeUnit.SECONDS);
+
+        assertArrayEquals(content, Files.readAllBytes(file.toPath()));
+        assertFalse(fileReceiver.getPartFile().exists());
+        assertNull(FileCheckpoint.load(fileReceiver.getPartFile()));
+        assertEquals(content.length, fileReceiver.getTransferred());
+    }
+
+    @Test
+    public void transferShouldStartOverIfTheSenderSendsFromTheBeginning() throws Exception {
+        final File file = new File(temporaryFolder.getRoot(), "received.bin");
+        failHalfway(file);
+
+        final FileReceiver fileReceiver = createFileReceiver(file);
+        assertEquals(content.length / 2, fileReceiver.prepareResume(55, true));
+
+        final Future<?> sent = sendBytes(fileReceiver.startServer(), withStart(0, content), null);
+
+        assertTrue(fileReceiver.transfer());
+        sent.get(10, TimeUnit.SECONDS);
+
+        assertArrayEquals(content, Files.readAllBytes(file.toPath()));
+    }
+
+    @Test
+    public void transferShouldFailIfTheSenderSendsFromAnotherOffset() throws Exception {
+        final File file = new File(temporaryFolder.getRoot(), "received.bin");
+        failHalfway(file);
+
+        final FileReceiver fileReceiver = createFileReceiver(file);
+        fileReceiver.prepareResume(55, true);
+
+        final Future<?> sent = sendBytes(fileReceiver.startServer(),
+                                         withStart(100, Arrays.copyOfRange(content, 100, content.length)), null);
+
+        assertFalse(fileReceiver.transfer());
+        sent.get(10, TimeUnit.SECONDS);
+
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void transferShouldResumeWithFileSender() throws Exception {
+        final File sourceFile = temporaryFolder.newFile("source.bin");
+
+        try (final FileOutputStream outputStream = new FileOutputStream(sourceFile)) {
+            outputStream.write(content);
+        }
+
+        final FileToSend fileToSend = new FileToSend(sourceFile);
+        final File file = new File(temporaryFolder.getRoot(), "received.bin");
+
+        final FileReceiver firstReceiver = createFileReceiver(file);
+        firstReceiver.prepareResume(fileToSend.hashCode(), true);
+        final Future<?> sent = send(firstReceiver.startServer(), content.length / 3, null);
+
+        assertFalse(firstReceiver.transfer());
+        sent.get(10, TimeUnit.SECONDS);
+
+        final FileReceiver fileReceiver = createFileReceiver(file);
+        final long resumeOffset = fileReceiver.prepareResume(fileToSend.hashCode(), true);
+        assertEquals(content.length / 3, resumeOffset);
+
+        final int port = fileReceiver.startServer();
+        final User user = new User("Sender", 124);
+        user.setIpAddress(InetAddress.getLoopbackAddress().getHostAddress());
+        final FileSender fileSender = new FileSender(user, fileToSend, 2);
+        fileSender.registerListener(mock(FileTransferListener.class));
+
+        final Future<Boolean> senderResult = executor.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return fileSender.transfer(port, resumeOffset, fileReceiver.getResumeChecksum());
+            }
+        });
+
+        assertTrue(fileReceiver.transfer());
+        assertTrue(senderResult.get(10, TimeUnit.SECONDS));
+
+        assertArrayEquals(content, Files.readAllBytes(file.toPath()));
+    }
+
+    @Test
+    public void transferShouldCheckTheChecksumAfterTheFileIfTheSenderSupportsIt() throws Exception {
+        final File file = new File(temporaryFolder.getRoot(), "received.bin");
+        final FileReceiver fileReceiver = createFileReceiver(file, createSenderWithFileChecksum());
+
+        final byte[] withChecksum = ByteBuffer.allocate(content.length + FileSender.BLOCK_TRAILER_SIZE)
+                .put(content)
+                .putInt((int) crc(content))
+                .array();
+
+        final Future<?> sent = sendBytes(fileReceiver.startServer(), withChecksum, null);
+
+        assertTrue(fileReceiver.transfer());
+        sent.get(10, TimeUnit.SECONDS);
+
+        assertArrayEquals(content, Files.readAllBytes(file.toPath()));
+        verify(listener).statusCompleted();
+    }
+
+    @Test
+    public void transferShouldFailIfTheChecksumAfterTheFileIsMissing() throws Exception {
+        final File file = new File(temporaryFolder.getRoot(), "received.bin");
+        final FileReceiver fileReceiver = createFileReceiver(file, createSenderWithFileChecksum());
+
+        final Future<?> sent = send(fileReceiver.startServer(), content.length, null);
+
+        assertFalse(fileReceiver.transfer());
+        sent.get(10, TimeUnit.SECONDS);
+
+        assertFalse(file.exists());
+        verify(listener).statusFailed();
+    }
+
+    @Test
+    public void transferShouldOnlyKeepTheResumedStartWhenTheChecksumAfterTheFileDoesNotMatch() throws Exception {
+        final File file = new File(temporaryFolder.getRoot(), "received.bin");
+        failHalfway(file);
+
+        final FileReceiver fileReceiver = createFileReceiver(file, createSenderWithFileChecksum());
+        final int half = content.length / 2;
+        assertEquals(half, fileReceiver.prepareResume(55, true));
+
+        final byte[] rest = Arrays.copyOfRange(content, half, content.length);
+        final byte[] corruptRest = ByteBuffer.allocate(rest.length + FileSender.BLOCK_TRAILER_SIZE)
+                .put(rest)
+                .putInt((int) crc(rest))
+                .array();
+        corruptRest[100]++;
+
+        final Future<?> sent = sendBytes(fileReceiver.startServer(), withStart(half, corruptRest), null);
+
+        assertFalse(fileReceiver.transfer());
+        sent.get(10, TimeUnit.SECONDS);
+
+        assertFalse(file.exists());
+        verify(listener, times(2)).statusFailed();
+        verify(listener, never()).statusCompleted();
+
+        final FileCheckpoint checkpoint = FileCheckpoint.load(fileReceiver.getPartFile());
+
+        assertNotNull(checkpoint);
+        assertEquals(half, checkpoint.getTransferred());
+    }
+
+    @Test
+    public void transferShouldCheckTheChecksumFromFileSender() throws Exception {
+        final File sourceFile = temporaryFolder.newFile("source.bin");
+
+        try (final FileOutputStream outputStream = new FileOutputStream(sourceFile)) {
+            outputStream.write(content);
+        }
+
+        final File file = new File(temporaryFolder.getRoot(), "received.bin");
+        final FileReceiver fileReceiver = createFileReceiver(file, createSenderWithFileChecksum());
+        final int port = fileReceiver.startServer();
+
+        // The sender checks the capability of the receiving user
+        final FileSender fileSender = new FileSender(createSenderWithFileChecksum(), new FileToSend(sourceFile), 2);
+        fileSender.registerListener(mock(FileTransferListener.class));
+
+        final Future<Boolean> senderResult = executor.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return fileSender.transfer(port);
+            }
+        });
+
+        assertTrue(fileReceiver.transfer());
+        assertTrue(senderResult.get(10, TimeUnit.SECONDS));
+
+        assertArrayEquals(content, Files.readAllBytes(file.toPath()));
+    }
+
+    @Test
+    public void prepareStreamsShouldOnlyAllowSeveralConnectionsIfTheSenderSupportsIt() {
+        final FileReceiver fileReceiver = createFileReceiver(new File(temporaryFolder.getRoot(), "received.bin"));
+
+        assertEquals(1, fileReceiver.prepareStreams(false));
+        assertEquals(FileReceiver.MAX_STREAMS, fileReceiver.prepareStreams(true));
+    }
+
+    @Test
+    public void transferShouldReceiveBlocksOverSeveralConnections() throws Exception {
+        final File file = new File(temporaryFolder.getRoot(), "received.bin");
+        final FileReceiver fileReceiver = createFileReceiver(file);
+        fileReceiver.prepareStreams(true);
+
+        final int port = fileReceiver.startServer();
+        final int half = content.length / 2;
+
+        // The end of the file first, and one connection with several blocks
+        final Future<?> end = sendBytes(port, block(half, content.length), null);
+        final Future<?> start = sendBytes(port, concat(block(0, 1000), block(1000, half)), null);
+
+        assertTrue(fileReceiver.transfer());
+        end.get(10, TimeUnit.SECONDS);
+        start.get(10, TimeUnit.SECONDS);
+
+        assertArrayEquals(content, Files.readAllBytes(file.toPath()));
+        assertEquals(content.length, fileReceiver.getTransferred());
+        assertEquals(100, fileReceiver.getPercent());
+        assertFalse(fileReceiver.getPartFile().exists());
+
+        verify(listener).statusCompleted();
+        verify(listener, never()).statusFailed();
+    }
+
+    @Test
+    public void transferShouldKeepTheCompleteStartOfTheFileWhenABlockFails() throws Exception {
+        final File file = new File(temporaryFolder.getRoot(), "received.bin");
+        final FileReceiver fileReceiver = createFileReceiver(file);
+        fileReceiver.prepareResume(55, true);
+        fileReceiver.prepareStreams(true);
+
+        final int quarter = content.length / 4;
+        final byte[] brokenBlock = Arrays.copyOf(block(quarter * 2, content.length), 5000);
+
+        final Future<?> sent = sendBytes(fileReceiver.startServer(),
+                                         concat(block(0, quarter), block(quarter * 3, content.length), brokenBlock),
+                                         null);
+
+        assertFalse(fileReceiver.transfer());
+        sent.get(10, TimeUnit.SECONDS);
+
+        assertFalse(file.exists());
+
+        final FileCheckpoint checkpoint = FileCheckpoint.load(fileReceiver.getPartFile());
+
+        assertNotNull(checkpoint);
+        assertEquals(quarter, checkpoint.getTransferred());
+        assertEquals(crc(Arrays.copyOf(content, quarter)), checkpoint.getChecksum());
+    }
+
+    @Test
+    public void transferShouldFailWhenTheChecksumOfABlockDoesNotMatch() throws Exception {
+        final File file = new File(temporaryFolder.getRoot(), "received.bin");
+        final FileReceiver fileReceiver = createFileReceiver(file);
+        fileReceiver.prepareResume(55, true);
+        fileReceiver.prepareStreams(true);
+
+        final int quarter = content.length / 4;
+        final byte[] corruptBlock = block(quarter, content.length);
+        corruptBlock[FileSender.BLOCK_HEADER_SIZE + 100]++;
+
+        final Future<?> sent = sendBytes(fileReceiver.startServer(), concat(block(0, quarter), corruptBlock), null);
+
+        assertFalse(fileReceiver.transfer());
+        sent.get(10, TimeUnit.SECONDS);
+
+        assertFalse(file.exists());
+        verify(listener).statusFailed();
+        verify(listener, never()).statusCompleted();
+
+        // The corrupt block must not be resumed from
+        final FileCheckpoint checkpoint = FileCheckpoint.load(fileReceiver.getPartFile());
+
+        assertNotNull(checkpoint);
+        assertEquals(quarter, checkpoint.getTransferred());
+    }
+
+    @Test
+    public void transferShouldFailIfAllTheConnectionsCloseBeforeTheFileIsComplete() throws Exception {
+        final File file = new File(temporaryFolder.getRoot(), "received.bin");
+        final FileReceiver fileReceiver = createFileReceiver(file);
+        fileReceiver.prepareStreams(true);
+
+        final Future<?> sent = sendBytes(fileReceiver.startServer(), block(0, content.length / 2), null);
+
+        assertFalse(fileReceiver.transfer());
+        sent.get(10, TimeUnit.SECONDS);
+
+        assertFalse(file.exists());
+        assertFalse(fileReceiver.getPartFile().exists());
+    }
+
+    @Test
+    public void transferShouldRejectBlocksOutsideTheFile() throws Exception {
+        final File file = new File(temporaryFolder.getRoot(), "received.bin");
+        final FileReceiver fileReceiver = createFileReceiver(file);
+        fileReceiver.prepareStreams(true);
+
+        final byte[] tooLong = ByteBuffer.allocate(FileSender.BLOCK_HEADER_SIZE + 10)
+                .putLong(content.length - 5)
+                .putInt(10)
+                .array();
+
+        final Future<?> sent = sendBytes(fileReceiver.startServer(), tooLong, null);
+
+        assertFalse(fileReceiver.transfer());
+        sent.get(10, TimeUnit.SECONDS);
+
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void transferShouldReceiveBlocksFromFileSender() throws Exception {
+        final File sourceFile = temporaryFolder.newFile("source.bin");
+
+        try (final FileOutputStream outputStream = new FileOutputStream(sourceFile)) {
+            outputStream.write(content);
+        }
+
+        final File file = new File(temporaryFolder.getRoot(), "received.bin");
+        final FileReceiver fileReceiver = createFileReceiver(file);
+        final int streams = fileReceiver.prepareStreams(true);
+        final int port = fileReceiver.startServer();
+
+        final User user = new User("Sender", 124);
+        user.setIpAddress(InetAddress.getLoopbackAddress().getHostAddress());
+        final FileSender fileSender = new FileSender(user, new FileToSend(sourceFile), 2);
+        fileSender.registerListener(mock(FileTransferListener.class));
+
+        final Future<Boolean> senderResult = executor.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return fileSender.transfer(port, 0, 0, streams);
+            }
+        });
+
+        assertTrue(fileReceiver.transfer());
+        assertTrue(senderResult.get(10, TimeUnit.SECONDS));
+
+        assertArrayEquals(content, Files.readAllBytes(file.toPath()));
+    }
+
+    /**
+     * Receives half the file, with a sender that can resume, before the connection is lost.
+     */
+    private FileReceiver failHalfway(final File file) throws Exception {
+        final FileReceiver fileReceiver = createFileReceiver(file);
+        assertEquals(0, fileReceiver.prepareResume(55, true));
+
+        final Future<?> sent = send(fileReceiver.startServer(), content.length / 2, null);
+
+        assertFalse(fileReceiver.transfer());
+        sent.get(10, TimeUnit.SECONDS);
+
+        return fileReceiver;
+    }
+
+    /**
+     * Creates a block of the content from start to end, with the header in front and the checksum after.
+     */
+    private byte[] block(final int start, final int end) {
+        return ByteBuffer.allocate(FileSender.BLOCK_HEADER_SIZE + end - start + FileSender.BLOCK_TRAILER_SIZE)
+                .putLong(start)
+                .putInt(end - start)
+                .put(content, start, end - start)
+                .putInt((int) crc(Arrays.copyOfRange(content, start, end)))
+                .array();
+    }
+
+    private byte[] concat(final byte[]... arrays) {
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+
+        for (final byte[] array : arrays) {
+            outputStream.write(array, 0, array.length);
+        }
+
+        return outputStream.toByteArray();
+    }
+
+    private byte[] withStart(final long start, final byte[] bytes) {
+        return ByteBuffer.allocate(8 + bytes.length).putLong(start).put(bytes).array();
+    }
+
+    private long crc(final byte[] bytes) {
+        final CRC32 crc = new CRC32();
+        crc.update(bytes);
+
+        return crc.getValue();
+    }
+
+    private FileReceiver createFileReceiver(final File file) {
+        return createFileReceiver(file, new User("Test", 123));
+    }
+
+    private FileReceiver createFileReceiver(final File file, final User sender) {
+        final FileReceiver fileReceiver = new FileReceiver(sender, file, content.length, 1);
+        fileReceiver.registerListener(listener);
+
+        return fileReceiver;
+    }
+
+    private User createSenderWithFileChecksum() {
+        final User sender = new User("Sender", 124);
+        sender.setIpAddress(InetAddress.getLoopbackAddress().getHostAddress());
+        sender.setCapabilities(Collections.singleton(ClientCapability.FILE_CHECKSUM));
+
+        return sender;
+    }
+
+    /**
+     * Connects to the receiver and sends the first bytes of the content.
+     * Runs the task, if any, after sending and before closing the connection.
+     */
+    private Future<?> send(final int port, final int length, final Runnable beforeClose) {
+        return sendBytes(port, Arrays.copyOf(content, length), beforeClose);
+    }
+
+    /**
+     * Connects to the receiver and sends the bytes.
+     * Runs the task, if any, after sending and before closing the connection.
+     */
+    private Future<?> sendBytes(final int port, final byte[] bytes, final Runnable beforeClose) {
+        return executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                try (final Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+                    final OutputStream outputStream = socket.getOutputStream();
+                    outputStream.write(bytes);
+                    outputStream.flush();
+
+                    if (beforeClose != null) {
+                        beforeClose.run();
+                    }
+                }
+
+                return null;
+            }
+        });
+    }
 }
@@ -0,0 +1,155 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import net.usikkert.kouchat.event.FileTransferListener;
+import net.usikkert.kouchat.misc.User;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Benchmark of sending a file through the input stream of {@link FileToSend}
+ * against sending it with {@link java.nio.channels.FileChannel#transferTo(long, long,
+ * java.nio.channels.WritableByteChannel)} in {@link FileSender}, over loopback.
+ *
+ * Does not really assert anything. Run manually and compare the numbers.
+ *
+ * @author Christian Ihle
+ */
+@Ignore
+@SuppressWarnings("HardCodedStringLiteral")
+public class FileSenderBenchmarkTest {
+
+    private static final long FILE_SIZE = 512L * 1024 * 1024;
+    private static final int ROUNDS = 3;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private ServerSocket serverSocket;
+    private ExecutorService executor;
+    private User user;
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        executor = Executors.newSingleThreadExecutor();
+
+        user = new User("Receiver", 1234);
+        user.setIpAddress(InetAddress.getLoopbackAddress().getHostAddress());
+
+        file = temporaryFolder.newFile("benchmark.bin");
+
+        try (final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            randomAccessFile.setLength(FILE_SIZE);
+        }
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        executor.shutdownNow();
+        serverSocket.close();
+    }
+
+    @Test
+    public void compareSending() throws Exception {
+        final FileToSend streamFile = new FileToSend(new FileToSend.InputStreamOpener() {
+            @Override
+            public InputStream open() throws FileNotFoundException {
+                return new FileInputStream(file);
+            }
+        }, file.getName(), file.length());
+
+        final FileToSend realFile = new FileToSend(file);
+
+        for (int i = 1; i <= ROUNDS; i++) {
+            final long streamTime = benchmark(streamFile);
+            final long transferToTime = benchmark(realFile);
+
+            System.out.printf("Round %d: input stream %d ms (%d MB/s), transferTo %d ms (%d MB/s)%n",
+                              i, streamTime, megabytesPerSecond(streamTime),
+                              transferToTime, megabytesPerSecond(transferToTime));
+        }
+    }
+
+    private long benchmark(final FileToSend fileToSend) throws Exception {
+        final FileSender fileSender = new FileSender(user, fileToSend, 1);
+        fileSender.registerListener(mock(FileTransferListener.class));
+
+        final Future<Long> received = receive();
+        final long start = System.nanoTime();
+
+        assertTrue(fileSender.transfer(serverSocket.getLocalPort()));
+        assertEquals(Long.valueOf(FILE_SIZE), received.get(60, TimeUnit.SECONDS));
+
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    private long megabytesPerSecond(final long millis) {
+        return FILE_SIZE * 1000 / Math.max(1, millis) / (1024 * 1024);
+    }
+
+    private Future<Long> receive() {
+        return executor.submit(new Callable<Long>() {
+            @Override
+            public Long call() throws Exception {
+                try (final Socket socket = serverSocket.accept()) {
+                    final InputStream inputStream = socket.getInputStream();
+                    final byte[] buffer = new byte[64 * 1024];
+                    long total = 0;
+                    int read;
+
+                    while ((read = inputStream.read(buffer)) != -1) {
+                        total += read;
+                    }
+
+                    return total;
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,509 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.usikkert.kouchat.event.FileTransferListener;
+import net.usikkert.kouchat.misc.User;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Test of {@link FileSender}.
+ *
+ * @author Christian Ihle
+ */
+@SuppressWarnings("HardCodedStringLiteral")
+public class FileSenderTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private ServerSocket serverSocket;
+    private ExecutorService executor;
+    private FileTransferListener listener;
+    private User user;
+    private byte[] content;
+
+    @Before
+    public void setUp() throws IOException {
+        serverSocket = new ServerSocket(0, 10, InetAddress.getLoopbackAddress());
+        executor = Executors.newSingleThreadExecutor();
+        listener = mock(FileTransferListener.class);
+
+        user = new User("Receiver", 1234);
+        user.setIpAddress(InetAddress.getLoopbackAddress().getHostAddress());
+
+        // Not a multiple of the chunk size, to get a partial last chunk
+        content = new byte[(int) (FileSender.TRANSFER_CHUNK_SIZE * 3 + 12345)];
+        new Random(42).nextBytes(content);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        executor.shutdownNow();
+        serverSocket.close();
+    }
+
+    @Test
+    public void transferShouldSendRealFile() throws Exception {
+        final FileToSend fileToSend = new FileToSend(createFile());
+        assertNotNull(fileToSend.getFile());
+
+        final FileSender fileSender = createFileSender(fileToSend);
+        final Future<byte[]> received = receive();
+
+        assertTrue(fileSender.transfer(serverSocket.getLocalPort()));
+
+        assertArrayEquals(content, received.get(10, TimeUnit.SECONDS));
+        assertEquals(content.length, fileSender.getTransferred());
+        assertEquals(100, fileSender.getPercent());
+        assertTrue(fileSender.isTransferred());
+
+        verify(listener).statusConnecting();
+        verify(listener).statusTransferring();
+        verify(listener, times(4)).transferUpdate();
+        verify(listener).statusCompleted();
+        verify(listener, never()).statusFailed();
+    }
+
+    @Test
+    public void transferShouldSendInputStream() throws Exception {
+        final FileToSend fileToSend = new FileToSend(new FileToSend.InputStreamOpener() {
+            @Override
+            public InputStream open() throws FileNotFoundException {
+                return new ByteArrayInputStream(content);
+            }
+        }, "stream.bin", content.length);
+
+        assertNull(fileToSend.getFile());
+
+        final FileSender fileSender = createFileSender(fileToSend);
+        final Future<byte[]> received = receive();
+
+        assertTrue(fileSender.transfer(serverSocket.getLocalPort()));
+
+        assertArrayEquals(content, received.get(10, TimeUnit.SECONDS));
+        assertEquals(content.length, fileSender.getTransferred());
+        assertEquals(100, fileSender.getPercent());
+
+        verify(listener).statusCompleted();
+        verify(listener, never()).statusFailed();
+    }
+
+    @Test
+    public void transferShouldFailIfRealFileGotShorter() throws Exception {
+        final File file = createFile();
+        final FileToSend fileToSend = new FileToSend(file);
+
+        try (final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            randomAccessFile.setLength(1000);
+        }
+
+        final FileSender fileSender = createFileSender(fileToSend);
+        final Future<byte[]> received = receive();
+
+        assertFalse(fileSender.transfer(serverSocket.getLocalPort()));
+
+        assertEquals(1000, received.get(10, TimeUnit.SECONDS).length);
+        assertEquals(1000, fileSender.getTransferred());
+        assertFalse(fileSender.isTransferred());
+
+        verify(listener).statusFailed();
+        verify(listener, never()).statusCompleted();
+    }
+
+    @Test
+    public void transferShouldResumeRealFileFromOffsetWhenTheChecksumMatches() throws Exception {
+        checkResume(new FileToSend(createFile()));
+    }
+
+    @Test
+    public void transferShouldResumeInputStreamFromOffsetWhenTheChecksumMatches() throws Exception {
+        checkResume(new FileToSend(new FileToSend.InputStreamOpener() {
+            @Override
+            public InputStream open() throws FileNotFoundException {
+                return new ByteArrayInputStream(content);
+            }
+        }, "stream.bin", content.length));
+    }
+
+    @Test
+    public void transferShouldSendFromTheBeginningWhenTheChecksumDoesNotMatch() throws Exception {
+        final FileSender fileSender = createFileSender(new FileToSend(createFile()));
+        final Future<byte[]> received = receive();
+
+        assertTrue(fileSender.transfer(serverSocket.getLocalPort(), 1000, 12345));
+
+        final ByteBuffer bytes = ByteBuffer.wrap(received.get(10, TimeUnit.SECONDS));
+
+        assertEquals(0, bytes.getLong());
+        assertArrayEquals(content, Arrays.copyOfRange(bytes.array(), 8, bytes.capacity()));
+        assertEquals(content.length, fileSender.getTransferred());
+    }
+
+    @Test
+    public void transferShouldSendChecksumAfterRealFileIfTheUserSupportsIt() throws Exception {
+        user.setCapabilities(Collections.singleton(ClientCapability.FILE_CHECKSUM));
+
+        final FileSender fileSender = createFileSender(new FileToSend(createFile()));
+        final Future<byte[]> received = receive();
+
+        assertTrue(fileSender.transfer(serverSocket.getLocalPort()));
+
+        final ByteBuffer bytes = ByteBuffer.wrap(received.get(10, TimeUnit.SECONDS));
+
+        assertArrayEquals(content, Arrays.copyOfRange(bytes.array(), 0, content.length));
+        bytes.position(content.length);
+        assertEquals(crc(content, 0, content.length), bytes.getInt());
+        assertFalse(bytes.hasRemaining());
+
+        assertEquals(content.length, fileSender.getTransferred());
+        verify(listener).statusCompleted();
+    }
+
+    @Test
+    public void transferShouldSendChecksumFromTheResumeOffsetAfterInputStreamIfTheUserSupportsIt() throws Exception {
+        user.setCapabilities(Collections.singleton(ClientCapability.FILE_CHECKSUM));
+
+        final int offset = 54321;
+        final long checksum = FileCheckpoint.checksum(new ByteArrayInputStream(content), offset);
+
+        final FileSender fileSender = createFileSender(new FileToSend(new FileToSend.InputStreamOpener() {
+            @Override
+            public InputStream open() throws FileNotFoundException {
+                return new ByteArrayInputStream(content);
+            }
+        }, "stream.bin", content.length));
+
+        final Future<byte[]> received = receive();
+
+        assertTrue(fileSender.transfer(serverSocket.getLocalPort(), offset, checksum));
+
+        final ByteBuffer bytes = ByteBuffer.wrap(received.get(10, TimeUnit.SECONDS));
+        final int end = 8 + content.length - offset;
+
+        assertEquals(offset, bytes.getLong());
+        assertArrayEquals(Arrays.copyOfRange(content, offset, content.length),
+                          Arrays.copyOfRange(bytes.array(), 8, end));
+
+        bytes.position(end);
+        assertEquals(crc(content, offset, content.length), bytes.getInt());
+        assertFalse(bytes.hasRemaining());
+    }
+
+    @Test
+    public void transferShouldNotSendChecksumAfterRealFileThatGotShorter() throws Exception {
+        user.setCapabilities(Collections.singleton(ClientCapability.FILE_CHECKSUM));
+
+        final File file = createFile();
+        final FileToSend fileToSend = new FileToSend(file);
+
+        try (final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            randomAccessFile.setLength(1000);
+        }
+
+        final FileSender fileSender = createFileSender(fileToSend);
+        final Future<byte[]> received = receive();
+
+        assertFalse(fileSender.transfer(serverSocket.getLocalPort()));
+
+        assertEquals(1000, received.get(10, TimeUnit.SECONDS).length);
+        verify(listener).statusFailed();
+    }
+
+    @Test
+    public void transferShouldSendRealFileAsBlocksWhenSeveralConnectionsAreAllowed() throws Exception {
+        final FileSender fileSender = createFileSender(new FileToSend(createFile()));
+        final Future<byte[]> received = receive();
+
+        assertTrue(fileSender.transfer(serverSocket.getLocalPort(), 0, 0, 4));
+
+        // Too small to open more than one connection
+        final ByteBuffer bytes = ByteBuffer.wrap(received.get(10, TimeUnit.SECONDS));
+
+        assertEquals(0, bytes.getLong());
+        assertEquals(content.length, bytes.getInt());
+        assertArrayEquals(content, Arrays.copyOfRange(bytes.array(), FileSender.BLOCK_HEADER_SIZE,
+                                                      FileSender.BLOCK_HEADER_SIZE + content.length));
+
+        bytes.position(FileSender.BLOCK_HEADER_SIZE + content.length);
+        assertEquals(crc(content, 0, content.length), bytes.getInt());
+        assertFalse(bytes.hasRemaining());
+
+        assertEquals(content.length, fileSender.getTransferred());
+        assertEquals(100, fileSender.getPercent());
+
+        verify(listener).statusCompleted();
+    }
+
+    @Test
+    public void transferShouldSendInputStreamAsOneBlockFromTheResumeOffset() throws Exception {
+        final int offset = 54321;
+        final long checksum = FileCheckpoint.checksum(new ByteArrayInputStream(content), offset);
+
+        final FileSender fileSender = createFileSender(new FileToSend(new FileToSend.InputStreamOpener() {
+            @Override
+            public InputStream open() throws FileNotFoundException {
+                return new ByteArrayInputStream(content);
+            }
+        }, "stream.bin", content.length));
+
+        final Future<byte[]> received = receive();
+
+        assertTrue(fileSender.transfer(serverSocket.getLocalPort(), offset, checksum, 4));
+
+        final ByteBuffer bytes = ByteBuffer.wrap(received.get(10, TimeUnit.SECONDS));
+
+        assertEquals(offset, bytes.getLong());
+        assertEquals(offset, bytes.getLong());
+        assertEquals(content.length - offset, bytes.getInt());
+
+        final int blockStart = 8 + FileSender.BLOCK_HEADER_SIZE;
+        final int blockEnd = blockStart + content.length - offset;
+
+        assertArrayEquals(Arrays.copyOfRange(content, offset, content.length),
+                          Arrays.copyOfRange(bytes.array(), blockStart, blockEnd));
+
+        bytes.position(blockEnd);
+        assertEquals(crc(content, offset, content.length), bytes.getInt());
+        assertFalse(bytes.hasRemaining());
+    }
+
+    @Test
+    public void transferShouldSendLargeInputStreamAsSeveralBlocks() throws Exception {
+        content = new byte[FileSender.BLOCK_SIZE * 2 + 12345];
+        new Random(44).nextBytes(content);
+
+        final FileSender fileSender = createFileSender(new FileToSend(new FileToSend.InputStreamOpener() {
+            @Override
+            public InputStream open() throws FileNotFoundException {
+                return new ByteArrayInputStream(content);
+            }
+        }, "stream.bin", content.length));
+
+        final Future<byte[]> received = receive();
+
+        assertTrue(fileSender.transfer(serverSocket.getLocalPort(), 0, 0, 4));
+
+        final ByteBuffer bytes = ByteBuffer.wrap(received.get(10, TimeUnit.SECONDS));
+
+        for (int offset = 0; offset < content.length; offset += FileSender.BLOCK_SIZE) {
+            final int length = Math.min(FileSender.BLOCK_SIZE, content.length - offset);
+
+            assertEquals(offset, bytes.getLong());
+            assertEquals(length, bytes.getInt());
+
+            final byte[] block = new byte[length];
+            bytes.get(block);
+
+            assertArrayEquals(Arrays.copyOfRange(content, offset, offset + length), block);
+            assertEquals(crc(content, offset, offset + length), bytes.getInt());
+        }
+
+        assertFalse(bytes.hasRemaining());
+        assertEquals(content.length, fileSender.getTransferred());
+
+        verify(listener).statusCompleted();
+    }
+
+    @Test
+    public void transferShouldOpenMoreConnectionsWhenTheTransferTakesLonger() throws Exception {
+        content = new byte[FileSender.BLOCK_SIZE * 6 + 12345];
+        new Random(43).nextBytes(content);
+
+        final FileSender fileSender = createFileSender(new FileToSend(createFile()));
+        final byte[] received = new byte[content.length];
+        final AtomicInteger connections = new AtomicInteger();
+        final ExecutorService readers = Executors.newCachedThreadPool();
+
+        executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                while (!serverSocket.isClosed()) {
+                    final Socket socket = serverSocket.accept();
+                    connections.incrementAndGet();
+                    readers.submit(new SlowBlockReader(socket, received));
+                }
+
+                return null;
+            }
+        });
+
+        try {
+            assertTrue(fileSender.transfer(serverSocket.getLocalPort(), 0, 0, 4));
+        }
+
+        finally {
+            readers.shutdown();
+            assertTrue(readers.awaitTermination(10, TimeUnit.SECONDS));
+        }
+
+        assertTrue("Connections: " + connections.get(), connections.get() >= 2);
+        assertArrayEquals(content, received);
+        assertEquals(content.length, fileSender.getTransferred());
+
+        verify(listener).statusCompleted();
+        verify(listener, never()).statusFailed();
+    }
+
+    private void checkResume(final FileToSend fileToSend) throws Exception {
+        final int offset = content.length - 54321;
+        final long checksum = FileCheckpoint.checksum(new ByteArrayInputStream(content), offset);
+
+        final FileSender fileSender = createFileSender(fileToSend);
+        final Future<byte[]> received = receive();
+
+        assertTrue(fileSender.transfer(serverSocket.getLocalPort(), offset, checksum));
+
+        final ByteBuffer bytes = ByteBuffer.wrap(received.get(10, TimeUnit.SECONDS));
+
+        assertEquals(offset, bytes.getLong());
+        assertArrayEquals(Arrays.copyOfRange(content, offset, content.length),
+                          Arrays.copyOfRange(bytes.array(), 8, bytes.capacity()));
+        assertEquals(content.length, fileSender.getTransferred());
+        assertEquals(100, fileSender.getPercent());
+
+        verify(listener).statusCompleted();
+    }
+
+    private int crc(final byte[] bytes, final int start, final int end) {
+        final BlockChecksum checksum = new BlockChecksum();
+        checksum.update(bytes, start, end - start);
+
+        return checksum.getValue();
+    }
+
+    private File createFile() throws IOException {
+        final File file = temporaryFolder.newFile("file.bin");
+
+        try (final FileOutputStream outputStream = new FileOutputStream(file)) {
+            outputStream.write(content);
+        }
+
+        return file;
+    }
+
+    private FileSender createFileSender(final FileToSend fileToSend) {
+        final FileSender fileSender = new FileSender(user, fileToSend, 1);
+        fileSender.registerListener(listener);
+
+        return fileSender;
+    }
+
+    private Future<byte[]> receive() {
+        return executor.submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws Exception {
+                try (final Socket socket = serverSocket.accept()) {
+                    final InputStream inputStream = socket.getInputStream();
+                    final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+                    final byte[] buffer = new byte[8192];
+                    int read;
+
+                    while ((read = inputStream.read(buffer)) != -1) {
+                        outputStream.write(buffer, 0, read);
+                    }
+
+                    return outputStream.toByteArray();
+                }
+            }
+        });
+    }
+
+    /**
+     * Reads blocks into the array at their offset, at about 4 MB per second, and checks the checksums.
+     */
+    private static class SlowBlockReader implements Callable<Void> {
+
+        private final Socket socket;
+        private final byte[] received;
+
+        SlowBlockReader(final Socket socket, final byte[] received) {
+            this.socket = socket;
+            this.received = received;
+        }
+
+        @Override
+        public Void call() throws Exception {
+            try (final DataInputStream inputStream = new DataInputStream(socket.getInputStream())) {
+                while (true) {
+                    final long offset;
+
+                    try {
+                        offset = inputStream.readLong();
+                    }
+
+                    catch (final EOFException e) {
+                        return null;
+                    }
+
+                    final int length = inputStream.readInt();
+                    int position = 0;
+
+                    while (position < length) {
+                        final int read = inputStream.read(received, (int) offset + position,
+                                                          Math.min(64 * 1024, length - position));
+                        assertTrue(read > 0);
+                        position += read;
+                        Thread.sleep(16);
+                    }
+
+                    final BlockChecksum checksum = new BlockChecksum();
+                    checksum.update(received, (int) offset, length);
+                    assertEquals(checksum.getValue(), inputStream.readInt());
+                }
+            }
+        }
+    }
+}
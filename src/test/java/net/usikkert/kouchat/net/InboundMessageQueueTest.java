@@ -0,0 +1,243 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import net.usikkert.kouchat.event.ReceiverListener;
+import net.usikkert.kouchat.junit.ExpectedException;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Test of {@link InboundMessageQueue}.
+ *
+ * @author Christian Ihle
+ */
+@SuppressWarnings("HardCodedStringLiteral")
+public class InboundMessageQueueTest {
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    private InboundMessageQueue queue;
+
+    @After
+    public void tearDown() {
+        if (queue != null) {
+            queue.stop();
+        }
+    }
+
+    @Test
+    public void constructorShouldThrowExceptionIfListenerIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Listener can not be null");
+
+        new InboundMessageQueue(null, InboundMessageQueue.OverflowPolicy.DROP, 16, "Test");
+    }
+
+    @Test
+    public void constructorShouldThrowExceptionIfOverflowPolicyIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Overflow policy can not be null");
+
+        new InboundMessageQueue(mock(ReceiverListener.class), null, 16, "Test");
+    }
+
+    @Test
+    public void constructorShouldThrowExceptionIfCapacityIsTooSmall() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Capacity must be larger than 1");
+
+        new InboundMessageQueue(mock(ReceiverListener.class), InboundMessageQueue.OverflowPolicy.DROP, 1, "Test");
+    }
+
+    @Test
+    public void constructorShouldRoundCapacityUpToPowerOfTwo() {
+        assertEquals(16, createQueue(mock(ReceiverListener.class), 16).getCapacity());
+        assertEquals(16, createQueue(mock(ReceiverListener.class), 10).getCapacity());
+        assertEquals(1024, createQueue(mock(ReceiverListener.class), 1000).getCapacity());
+    }
+
+    @Test
+    public void fromNameShouldIgnoreCase() {
+        assertEquals(InboundMessageQueue.OverflowPolicy.DROP, InboundMessageQueue.OverflowPolicy.fromName("drop"));
+        assertEquals(InboundMessageQueue.OverflowPolicy.BLOCK, InboundMessageQueue.OverflowPolicy.fromName("Block"));
+        assertNull(InboundMessageQueue.OverflowPolicy.fromName("wait"));
+        assertNull(InboundMessageQueue.OverflowPolicy.fromName(null));
+    }
+
+    @Test
+    public void messageArrivedShouldQueueMessagesUntilStarted() {
+        final ReceiverListener listener = mock(ReceiverListener.class);
+        queue = createQueue(listener, 16);
+
+        queue.messageArrived("12345!MSG#Tester:[255]Hello", "192.168.1.2");
+        queue.messageArrived("12345!MSG#Tester:[255]World", "192.168.1.2");
+
+        assertEquals(2, queue.getDepth());
+        verifyZeroInteractions(listener);
+    }
+
+    @Test
+    public void messageArrivedShouldDropStatusMessagesAboveHighWaterMark() {
+        queue = createQueue(mock(ReceiverListener.class), 8);
+
+        for (int i = 0; i < 6; i++) {
+            queue.messageArrived("12345!MSG#Tester:[255]Message " + i, "192.168.1.2");
+        }
+
+        queue.messageArrived("12345!IDLE#Tester:(1)[4]{0}", "192.168.1.2");
+        queue.messageArrived("12345!WRITING#Tester:", "192.168.1.2");
+        queue.messageArrived("12345!STOPPEDWRITING#Tester:", "192.168.1.2");
+
+        assertEquals(6, queue.getDepth());
+        assertEquals(3, queue.getDroppedCount());
+        assertEquals(3, queue.getDroppedLowPriorityCount());
+
+        queue.messageArrived("12345!MSG#Tester:[255]Message 6", "192.168.1.2");
+        queue.messageArrived("12345!MSG#Tester:[255]Message 7", "192.168.1.2");
+
+        assertEquals(8, queue.getDepth());
+        assertEquals(3, queue.getDroppedCount());
+    }
+
+    @Test
+    public void messageArrivedShouldDropMessagesWhenFullWithDropPolicy() {
+        queue = createQueue(mock(ReceiverListener.class), 4);
+
+        for (int i = 0; i < 6; i++) {
+            queue.messageArrived("12345!MSG#Tester:[255]Message " + i, "192.168.1.2");
+        }
+
+        assertEquals(4, queue.getDepth());
+        assertEquals(2, queue.getDroppedCount());
+        assertEquals(0, queue.getDroppedLowPriorityCount());
+    }
+
+    @Test
+    public void messageArrivedShouldNotTreatUnparseableMessagesAsStatusMessages() {
+        queue = createQueue(mock(ReceiverListener.class), 4);
+
+        for (int i = 0; i < 4; i++) {
+            queue.messageArrived("IDLE#Tester:" + i, "192.168.1.2");
+        }
+
+        assertEquals(4, queue.getDepth());
+        assertEquals(0, queue.getDroppedCount());
+    }
+
+    @Test
+    public void startShouldDeliverMessagesInOrder() throws InterruptedException {
+        final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch latch = new CountDownLatch(100);
+
+        queue = createQueue(new ReceiverListener() {
+            @Override
+            public void messageArrived(final String message, final String ipAddress) {
+                received.add(message + "@" + ipAddress);
+                latch.countDown();
+            }
+        }, 128);
+
+        queue.start();
+        assertTrue(queue.isRunning());
+
+        for (int i = 0; i < 100; i++) {
+            queue.messageArrived("12345!MSG#Tester:[255]Message " + i, "192.168.1." + i);
+        }
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+
+        assertEquals(100, received.size());
+
+        for (int i = 0; i < 100; i++) {
+            assertEquals("12345!MSG#Tester:[255]Message " + i + "@192.168.1." + i, received.get(i));
+        }
+    }
+
+    @Test
+    public void blockPolicyShouldWaitForRoomInsteadOfDropping() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1000);
+
+        queue = new InboundMessageQueue(new ReceiverListener() {
+            @Override
+            public void messageArrived(final String message, final String ipAddress) {
+                latch.countDown();
+            }
+        }, InboundMessageQueue.OverflowPolicy.BLOCK, 4, "Test");
+
+        queue.start();
+
+        for (int i = 0; i < 1000; i++) {
+            queue.messageArrived("12345!MSG#Tester:[255]Message " + i, "192.168.1.2");
+        }
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertEquals(0, queue.getDroppedCount());
+    }
+
+    @Test
+    public void startShouldKeepDeliveringWhenListenerFails() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(2);
+
+        queue = createQueue(new ReceiverListener() {
+            @Override
+            public void messageArrived(final String message, final String ipAddress) {
+                latch.countDown();
+                throw new RuntimeException("Failed");
+            }
+        }, 16);
+
+        queue.start();
+
+        queue.messageArrived("12345!MSG#Tester:[255]Message 1", "192.168.1.2");
+        queue.messageArrived("12345!MSG#Tester:[255]Message 2", "192.168.1.2");
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void stopShouldStopTheQueue() {
+        queue = createQueue(mock(ReceiverListener.class), 16);
+
+        queue.start();
+        queue.stop();
+
+        assertFalse(queue.isRunning());
+    }
+
+    private InboundMessageQueue createQueue(final ReceiverListener listener, final int capacity) {
+        return new InboundMessageQueue(listener, InboundMessageQueue.OverflowPolicy.DROP, capacity, "Test");
+    }
+}
@@ -0,0 +1,127 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import static org.junit.Assert.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test of {@link LinkQuality}.
+ *
+ * @author Christian Ihle
+ */
+public class LinkQualityTest {
+
+    private LinkQuality linkQuality;
+
+    @Before
+    public void setUp() {
+        linkQuality = new LinkQuality();
+    }
+
+    @Test
+    public void newLinkShouldHaveNoSamplesAndNotBeHealthyOrDead() {
+        assertFalse(linkQuality.hasSamples());
+        assertFalse(linkQuality.isHealthy());
+        assertFalse(linkQuality.isDead());
+        assertEquals(0, linkQuality.getSmoothedRtt());
+        assertEquals(0.0, linkQuality.getLoss(), 0.0);
+    }
+
+    @Test
+    public void firstAnswerShouldSetRoundTripTimeAndHalfAsVariation() {
+        linkQuality.probeSent();
+        linkQuality.answered(800);
+
+        assertTrue(linkQuality.hasSamples());
+        assertTrue(linkQuality.isHealthy());
+        assertEquals(800, linkQuality.getSmoothedRtt());
+        assertEquals(400, linkQuality.getRttVariation());
+    }
+
+    @Test
+    public void laterAnswersShouldBeSmoothed() {
+        linkQuality.answered(800);
+        linkQuality.answered(1600);
+
+        // 7/8 * 800 + 1/8 * 1600, and 3/4 * 400 + 1/4 * |800 - 1600|
+        assertEquals(900, linkQuality.getSmoothedRtt());
+        assertEquals(500, linkQuality.getRttVariation());
+    }
+
+    @Test
+    public void negativeRoundTripTimeShouldBeIgnored() {
+        linkQuality.answered(-5);
+
+        assertFalse(linkQuality.hasSamples());
+    }
+
+    @Test
+    public void unansweredProbeShouldCountAsLostWhenTheNextIsSent() {
+        linkQuality.probeSent();
+        assertEquals(0.0, linkQuality.getLoss(), 0.0);
+
+        linkQuality.probeSent();
+        assertEquals(0.125, linkQuality.getLoss(), 0.0001);
+
+        linkQuality.answered(100);
+        assertEquals(0.109375, linkQuality.getLoss(), 0.0001);
+    }
+
+    @Test
+    public void linkShouldBeDeadAfterTooManyMissesInARowAndComeAliveWithTheNextAnswer() {
+        linkQuality.probeSent();
+        linkQuality.answered(100);
+
+        for (int i = 0; i < LinkQuality.DEAD_AFTER_MISSES; i++) {
+            assertFalse(linkQuality.isDead());
+            linkQuality.probeSent();
+        }
+
+        assertFalse(linkQuality.isDead());
+        linkQuality.probeSent();
+        assertTrue(linkQuality.isDead());
+        assertFalse(linkQuality.isHealthy());
+
+        linkQuality.answered(100);
+        assertFalse(linkQuality.isDead());
+    }
+
+    @Test
+    public void linkShouldNotBeHealthyWithTooMuchLoss() {
+        linkQuality.answered(100);
+
+        // Every other probe lost
+        for (int i = 0; i < 20; i++) {
+            linkQuality.probeSent();
+            linkQuality.probeSent();
+            linkQuality.answered(100);
+        }
+
+        assertTrue(linkQuality.getLoss() > LinkQuality.MAX_HEALTHY_LOSS);
+        assertFalse(linkQuality.isDead());
+        assertFalse(linkQuality.isHealthy());
+    }
+}
@@ -0,0 +1,115 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.util.Arrays;
+
+import net.usikkert.kouchat.event.ReceiverListener;
+import net.usikkert.kouchat.junit.ExpectedException;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.InOrder;
+
+/**
+ * Test of {@link MessageBatchSplitter}.
+ *
+ * @author Christian Ihle
+ */
+@SuppressWarnings("HardCodedStringLiteral")
+public class MessageBatchSplitterTest {
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    private ReceiverListener listener;
+    private MessageBatchSplitter splitter;
+
+    @Before
+    public void setUp() {
+        listener = mock(ReceiverListener.class);
+        splitter = new MessageBatchSplitter(listener);
+    }
+
+    @Test
+    public void constructorShouldThrowExceptionIfListenerIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Listener can not be null");
+
+        new MessageBatchSplitter(null);
+    }
+
+    @Test
+    public void messageArrivedShouldForwardRegularMessagesUnchanged() {
+        splitter.messageArrived("123!LOGON#Nick:", "192.168.1.2");
+
+        verify(listener).messageArrived("123!LOGON#Nick:", "192.168.1.2");
+    }
+
+    @Test
+    public void messageArrivedShouldForwardEachMessageInBatchInOrder() {
+        splitter.messageArrived("BATCH:3:15:123!LOGON#Nick:16:123!EXPOSE#Nick:18:123!GETTOPIC#Nick:", "192.168.1.2");
+
+        final InOrder inOrder = inOrder(listener);
+        inOrder.verify(listener).messageArrived("123!LOGON#Nick:", "192.168.1.2");
+        inOrder.verify(listener).messageArrived("123!EXPOSE#Nick:", "192.168.1.2");
+        inOrder.verify(listener).messageArrived("123!GETTOPIC#Nick:", "192.168.1.2");
+        verifyNoMoreInteractions(listener);
+    }
+
+    @Test
+    public void messageArrivedShouldDropInvalidBatch() {
+        splitter.messageArrived("BATCH:3:15:123!LOGON#Nick:", "192.168.1.2");
+
+        verifyZeroInteractions(listener);
+    }
+
+    @Test
+    public void splitShouldHandleMessagesWithSeparatorsAndMultibyteCharacters() {
+        final String batch = MessageBatcher.createBatch(Arrays.asList("1!EXPOSING#å:Gone: 5:3", "1!TOPIC#å:(å)[5]BATCH:1:"));
+
+        assertEquals(Arrays.asList("1!EXPOSING#å:Gone: 5:3", "1!TOPIC#å:(å)[5]BATCH:1:"),
+                     MessageBatchSplitter.split(batch));
+    }
+
+    @Test
+    public void splitShouldTrimMessagesLikeSinglePackets() {
+        assertEquals(Arrays.asList("1!EXPOSING#Nick:Away", "1!EXPOSING#Nick:Gone"),
+                     MessageBatchSplitter.split("BATCH:2:22:1!EXPOSING#Nick:Away  22:1!EXPOSING#Nick:Gone"));
+    }
+
+    @Test
+    public void splitShouldReturnNullForInvalidBatches() {
+        assertNull(MessageBatchSplitter.split("BATCH:"));
+        assertNull(MessageBatchSplitter.split("BATCH:x:"));
+        assertNull(MessageBatchSplitter.split("BATCH:0:"));
+        assertNull(MessageBatchSplitter.split("BATCH:2:8:1!BACK#:"));
+        assertNull(MessageBatchSplitter.split("BATCH:1:-1:1!BACK#:"));
+        assertNull(MessageBatchSplitter.split("BATCH:1:3:1!BACK#:"));
+        assertNull(MessageBatchSplitter.split("BATCH:1:x:1!BACK#:"));
+    }
+}
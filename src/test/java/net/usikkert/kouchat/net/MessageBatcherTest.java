@@ -0,0 +1,183 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.util.Arrays;
+
+import net.usikkert.kouchat.Constants;
+import net.usikkert.kouchat.junit.ExpectedException;
+import net.usikkert.kouchat.util.Tools;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Test of {@link MessageBatcher}.
+ *
+ * @author Christian Ihle
+ */
+@SuppressWarnings("HardCodedStringLiteral")
+public class MessageBatcherTest {
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    private MessageSender messageSender;
+    private MessageBatcher batcher;
+
+    @Before
+    public void setUp() {
+        messageSender = mock(MessageSender.class);
+        batcher = new MessageBatcher(messageSender);
+    }
+
+    @Test
+    public void constructorShouldThrowExceptionIfMessageSenderIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Message sender can not be null");
+
+        new MessageBatcher(null);
+    }
+
+    @Test
+    public void isBatchableShouldBeTrueForProtocolMessagesSentInBursts() {
+        assertTrue(batcher.isBatchable("123!LOGON#Nick:"));
+        assertTrue(batcher.isBatchable("123!CLIENT#Nick:(KouChat)[5]{Linux}<1>/2\\|batch|"));
+        assertTrue(batcher.isBatchable("123!EXPOSE#Nick:"));
+        assertTrue(batcher.isBatchable("123!EXPOSING#Nick:"));
+        assertTrue(batcher.isBatchable("123!GETTOPIC#Nick:"));
+        assertTrue(batcher.isBatchable("123!TOPIC#Nick:(Nick)[5]Topic"));
+    }
+
+    @Test
+    public void isBatchableShouldBeFalseForOtherMessages() {
+        assertFalse(batcher.isBatchable("123!MSG#Nick:[-1]Hello"));
+        assertFalse(batcher.isBatchable("123!IDLE#Nick:"));
+        assertFalse(batcher.isBatchable("123!LOGOFF#Nick:"));
+        assertFalse(batcher.isBatchable("123!NICK#Nick:"));
+        assertFalse(batcher.isBatchable("Hello"));
+        assertFalse(batcher.isBatchable("Hello#there!"));
+    }
+
+    @Test
+    public void addShouldWaitForMoreMessages() {
+        assertTrue(batcher.add("123!LOGON#Nick:", false));
+
+        assertEquals(1, batcher.getWaitingMessages());
+        verifyZeroInteractions(messageSender);
+    }
+
+    @Test
+    public void flushShouldSendSingleMessageWithoutBatch() {
+        batcher.add("123!LOGON#Nick:", true);
+        batcher.flush();
+
+        verify(messageSender).send("123!LOGON#Nick:", true, false, false);
+        assertEquals(0, batcher.getWaitingMessages());
+    }
+
+    @Test
+    public void flushShouldSendSeveralMessagesInOneBatch() {
+        batcher.add("123!LOGON#Nick:", true);
+        batcher.add("123!EXPOSE#Nick:", true);
+        batcher.add("123!GETTOPIC#Nick:", true);
+        batcher.flush();
+
+        verify(messageSender).send("BATCH:3:15:123!LOGON#Nick:16:123!EXPOSE#Nick:18:123!GETTOPIC#Nick:",
+                                   true, false, false);
+        verifyNoMoreInteractions(messageSender);
+    }
+
+    @Test
+    public void flushShouldOnlyCompressIfAllMessagesCanBeCompressed() {
+        batcher.add("123!LOGON#Nick:", true);
+        batcher.add("123!EXPOSE#Nick:", false);
+        batcher.flush();
+
+        verify(messageSender).send("BATCH:2:15:123!LOGON#Nick:16:123!EXPOSE#Nick:", false, false, false);
+    }
+
+    @Test
+    public void flushShouldDoNothingWithoutWaitingMessages() {
+        batcher.flush();
+
+        verifyZeroInteractions(messageSender);
+    }
+
+    @Test
+    public void batchShouldBeSentAutomaticallyAfterFlushWindow() {
+        batcher.add("123!LOGON#Nick:", false);
+        batcher.add("123!EXPOSE#Nick:", false);
+
+        Tools.sleep(MessageBatcher.FLUSH_WINDOW * 10);
+
+        verify(messageSender).send("BATCH:2:15:123!LOGON#Nick:16:123!EXPOSE#Nick:", false, false, false);
+        assertEquals(0, batcher.getWaitingMessages());
+    }
+
+    @Test
+    public void addShouldSendWaitingMessagesFirstIfBatchWouldBeTooLarge() {
+        final String topic = createTopicMessage(Constants.NETWORK_PACKET_SIZE - 40);
+
+        batcher.add("123!LOGON#Nick:", false);
+        batcher.add(topic, false);
+        batcher.add("123!EXPOSE#Nick:", false);
+
+        verify(messageSender).send("BATCH:2:15:123!LOGON#Nick:" + topic.length() + ":" + topic, false, false, false);
+        assertEquals(1, batcher.getWaitingMessages());
+    }
+
+    @Test
+    public void addShouldSendMessageTooLargeForBatchRightAway() {
+        final String topic = createTopicMessage(Constants.NETWORK_PACKET_SIZE);
+        when(messageSender.send(topic, false, false, false)).thenReturn(true);
+
+        batcher.add("123!LOGON#Nick:", false);
+
+        assertTrue(batcher.add(topic, false));
+
+        verify(messageSender).send("123!LOGON#Nick:", false, false, false);
+        verify(messageSender).send(topic, false, false, false);
+        assertEquals(0, batcher.getWaitingMessages());
+    }
+
+    @Test
+    public void createBatchShouldUseLengthInCharacters() {
+        assertEquals("BATCH:2:9:1!AWAY#:å8:1!BACK#:",
+                     MessageBatcher.createBatch(Arrays.asList("1!AWAY#:å", "1!BACK#:")));
+    }
+
+    private String createTopicMessage(final int size) {
+        final StringBuilder message = new StringBuilder("123!TOPIC#Nick:(Nick)[5]");
+
+        while (message.length() < size) {
+            message.append('x');
+        }
+
+        return message.toString();
+    }
+}
@@ -0,0 +1,183 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import static org.junit.Assert.*;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+import net.usikkert.kouchat.Constants;
+import net.usikkert.kouchat.junit.ExpectedException;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Test of {@link MessageCompressor}.
+ *
+ * @author Christian Ihle
+ */
+@SuppressWarnings("HardCodedStringLiteral")
+public class MessageCompressorTest {
+
+    /** Messages recorded from a chat session, with the types in the same proportions as real traffic. */
+    private static final String[] RECORDED_TRAFFIC = {
+            "10066122!IDLE#Christian:",
+            "16320462!IDLE#Niles:",
+            "10066122!WRITING#Christian:",
+            "10066122!STOPPEDWRITING#Christian:",
+            "10066122!MSG#Christian:[-15987646]Hello, anyone up for lunch?",
+            "16320462!WRITING#Niles:",
+            "16320462!STOPPEDWRITING#Niles:",
+            "16320462!MSG#Niles:[-16777216]Sure, give me five minutes",
+            "10066122!IDLE#Christian:",
+            "16320462!IDLE#Niles:",
+            "10066122!PRIVMSG#Christian:(16320462)[-15987646]Did you see the build failure?",
+            "16320462!PRIVMSG#Niles:(10066122)[-16777216]Yes, fixing it now",
+            "10066122!CLIENT#Christian:(KouChat v1.5.0 Swing)[1753]{Linux}<40656>/40657\\|deflate|",
+            "16320462!CLIENT#Niles:(KouChat v1.5.0 Swing)[2688]{Windows 10}<40656>/40657\\|deflate|",
+            "10066122!TOPIC#Christian:(Christian)[1446390300000]Release on Friday",
+            "16320462!AWAY#Niles:Lunch",
+            "16320462!BACK#Niles:",
+            "10066122!LOGON#Christian:",
+            "10066122!LOGOFF#Christian:"
+    };
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    private MessageCompressor compressor;
+
+    @Before
+    public void setUp() {
+        compressor = new MessageCompressor();
+    }
+
+    @Test
+    public void encodeShouldThrowExceptionIfMessageIsNull() throws UnsupportedEncodingException {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Message can not be null");
+
+        compressor.encode(null);
+    }
+
+    @Test
+    public void encodeShouldCompressRecordedTrafficSoItCanBeDecompressed() throws UnsupportedEncodingException {
+        for (final String message : RECORDED_TRAFFIC) {
+            final byte[] encoded = compressor.encode(message);
+            final ByteBuffer buffer = ByteBuffer.wrap(encoded);
+
+            assertTrue(message, encoded.length <= message.getBytes(Constants.MESSAGE_CHARSET).length);
+
+            if (MessageCompressor.isCompressed(buffer)) {
+                assertEquals(message, MessageCompressor.decompress(buffer));
+            }
+
+            else {
+                assertEquals(message, new String(encoded, Constants.MESSAGE_CHARSET));
+            }
+        }
+    }
+
+    @Test
+    public void encodeShouldCompressClientMessagesToAboutHalf() throws UnsupportedEncodingException {
+        final String message = RECORDED_TRAFFIC[12];
+        final byte[] encoded = compressor.encode(message);
+
+        assertEquals(MessageCompressor.COMPRESSED_MARKER, encoded[0]);
+        assertTrue(encoded.length * 2 < message.length() + 10);
+        assertEquals(message, MessageCompressor.decompress(ByteBuffer.wrap(encoded)));
+    }
+
+    @Test
+    public void encodeShouldKeepPlainTextIfCompressionDoesNotHelp() throws UnsupportedEncodingException {
+        final String message = "x9Q!";
+
+        final byte[] encoded = compressor.encode(message);
+
+        assertArrayEquals(message.getBytes(Constants.MESSAGE_CHARSET), encoded);
+        assertFalse(MessageCompressor.isCompressed(ByteBuffer.wrap(encoded)));
+    }
+
+    @Test
+    public void encodeShouldHandleFragmentsOfLargeMessages() throws UnsupportedEncodingException {
+        final StringBuilder largeMessage = new StringBuilder("10066122!MSG#Christian:[-15987646]");
+
+        for (int i = 0; i < 100; i++) {
+            largeMessage.append("at net.usikkert.kouchat.net.MessageParser.messageArrived(MessageParser.java:")
+                    .append(i).append(")\n");
+        }
+
+        for (final String fragment : new MessageFragmenter().fragment(largeMessage.toString())) {
+            final byte[] encoded = compressor.encode(fragment);
+
+            assertTrue(encoded.length <= Constants.NETWORK_PACKET_SIZE);
+            assertEquals(fragment, MessageCompressor.decompress(ByteBuffer.wrap(encoded)));
+        }
+
+        assertTrue(compressor.getBytesSaved().get("FRAG") > 0);
+    }
+
+    @Test
+    public void getBytesSavedShouldMeasureSavingsForEachMessageType() throws UnsupportedEncodingException {
+        for (final String message : RECORDED_TRAFFIC) {
+            compressor.encode(message);
+        }
+
+        final Map<String, Long> bytesSaved = compressor.getBytesSaved();
+
+        assertEquals(11, bytesSaved.size());
+
+        // Measured on the recorded traffic with the current dictionary, to notice if a change makes it worse.
+        // Short messages with mostly user code and nick, like IDLE, are sent as plain text and save nothing.
+        assertEquals(0, bytesSaved.get("IDLE").longValue());
+        assertTrue(bytesSaved.get("CLIENT") >= 2 * 40);
+        assertTrue(bytesSaved.get("STOPPEDWRITING") >= 2 * 10);
+        assertTrue(bytesSaved.get("TOPIC") >= 10);
+        assertTrue(bytesSaved.get("WRITING") >= 2 * 3);
+        assertTrue(bytesSaved.get("MSG") > 0);
+        assertTrue(bytesSaved.get("PRIVMSG") > 0);
+
+        for (final Map.Entry<String, Long> entry : bytesSaved.entrySet()) {
+            assertTrue(entry.getKey(), entry.getValue() >= 0);
+        }
+    }
+
+    @Test
+    public void isCompressedShouldCheckFirstByte() {
+        assertTrue(MessageCompressor.isCompressed(ByteBuffer.wrap(new byte[] {MessageCompressor.COMPRESSED_MARKER, 1})));
+        assertFalse(MessageCompressor.isCompressed(ByteBuffer.wrap(new byte[] {'1', '2'})));
+        assertFalse(MessageCompressor.isCompressed(ByteBuffer.allocate(0)));
+    }
+
+    @Test
+    public void decompressShouldReturnEmptyStringForInvalidData() {
+        assertEquals("", MessageCompressor.decompress(
+                ByteBuffer.wrap(new byte[] {MessageCompressor.COMPRESSED_MARKER, (byte) 0xFF, (byte) 0xFF, 7})));
+        assertEquals("", MessageCompressor.decompress(
+                ByteBuffer.wrap(new byte[Constants.NETWORK_PACKET_SIZE + 2])));
+    }
+}
@@ -0,0 +1,186 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.util.Collections;
+
+import net.usikkert.kouchat.misc.User;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+/**
+ * Test of {@link MessageDecoders}.
+ *
+ * @author Christian Ihle
+ */
+@SuppressWarnings("HardCodedStringLiteral")
+public class MessageDecodersTest {
+
+    private MessageDispatcher dispatcher;
+    private MessageResponder responder;
+    private User me;
+
+    @Before
+    public void setUp() {
+        dispatcher = new MessageDispatcher();
+        responder = mock(MessageResponder.class);
+        me = new User("Test", 1234);
+
+        MessageDecoders.registerAll(dispatcher, responder);
+    }
+
+    @Test
+    public void registerAllShouldRegisterEveryTypeExceptPrivateMessages() {
+        assertEquals("{AWAY=0, BACK=0, CLIENT=0, EXPOSE=0, EXPOSING=0, GETTOPIC=0, IDLE=0, LOGOFF=0, LOGON=0, " +
+                             "MSG=0, NICK=0, NICKCRASH=0, SENDFILE=0, SENDFILEABORT=0, SENDFILEACCEPT=0, " +
+                             "STOPPEDWRITING=0, TOPIC=0, WRITING=0}",
+                     dispatcher.getHitCounts().toString());
+    }
+
+    @Test
+    public void msgShouldGiveMessageAndColorToResponder() {
+        dispatch("100!MSG#Niles:[-15987646]Hello [there]");
+
+        verify(responder).messageArrived(100, "Hello [there]", -15987646);
+    }
+
+    @Test
+    public void writingAndStoppedWritingShouldGiveWritingStatusToResponder() {
+        dispatch("100!WRITING#Niles:");
+        dispatch("100!STOPPEDWRITING#Niles:");
+
+        verify(responder).writingChanged(100, true);
+        verify(responder).writingChanged(100, false);
+    }
+
+    @Test
+    public void logonShouldGiveNewUserToResponder() {
+        dispatch("100!LOGON#Niles:");
+
+        final ArgumentCaptor<User> userCaptor = ArgumentCaptor.forClass(User.class);
+        verify(responder).userLogOn(userCaptor.capture());
+
+        final User user = userCaptor.getValue();
+        assertEquals("Niles", user.getNick());
+        assertEquals(100, user.getCode());
+        assertEquals("192.168.1.1", user.getIpAddress());
+    }
+
+    @Test
+    public void exposingShouldMarkUserAsAwayIfPayloadHasAwayMessage() {
+        dispatch("100!EXPOSING#Niles:Gone fishing");
+
+        final ArgumentCaptor<User> userCaptor = ArgumentCaptor.forClass(User.class);
+        verify(responder).userExposing(userCaptor.capture());
+
+        assertTrue(userCaptor.getValue().isAway());
+        assertEquals("Gone fishing", userCaptor.getValue().getAwayMsg());
+    }
+
+    @Test
+    public void awayAndBackShouldGiveAwayStatusToResponder() {
+        dispatch("100!AWAY#Niles:Gone fishing");
+        dispatch("100!BACK#Niles:");
+
+        verify(responder).awayChanged(100, true, "Gone fishing");
+        verify(responder).awayChanged(100, false, "");
+    }
+
+    @Test
+    public void nickCrashShouldOnlyNotifyResponderIfItIsMyNick() {
+        dispatch("100!NICKCRASH#Niles:Other");
+        verify(responder, never()).nickCrash();
+
+        dispatch("100!NICKCRASH#Niles:Test");
+        verify(responder).nickCrash();
+    }
+
+    @Test
+    public void topicShouldGiveTopicToResponder() {
+        dispatch("100!TOPIC#Niles:(Niles)[1234567890]The topic");
+
+        verify(responder).topicChanged(100, "The topic", "Niles", 1234567890L);
+    }
+
+    @Test
+    public void sendFileShouldOnlyNotifyResponderIfSentToMe() {
+        dispatch("100!SENDFILE#Niles:(999)[2048]{55}file.txt");
+        verify(responder, never()).fileSend(anyInt(), anyLong(), anyString(), anyString(), anyInt());
+
+        dispatch("100!SENDFILE#Niles:(1234)[2048]{55}file.txt");
+        verify(responder).fileSend(100, 2048, "file.txt", "Niles", 55);
+    }
+
+    @Test
+    public void sendFileAcceptShouldGivePortToResponder() {
+        dispatch("100!SENDFILEACCEPT#Niles:(1234)[40000]{55}file.txt");
+
+        verify(responder).fileSendAccepted(100, "file.txt", 55, 40000, 0, 0, 1);
+    }
+
+    @Test
+    public void sendFileAcceptShouldGiveResumeOffsetAndChecksumToResponder() {
+        dispatch("100!SENDFILEACCEPT#Niles:(1234)[40000]{55}1048576:3735928559/file:with:colons.txt");
+
+        verify(responder).fileSendAccepted(100, "file:with:colons.txt", 55, 40000, 1048576, 3735928559L, 1);
+    }
+
+    @Test
+    public void sendFileAcceptShouldGiveNumberOfConnectionsToResponder() {
+        dispatch("100!SENDFILEACCEPT#Niles:(1234)[40000]{55}2048:12345:8/file.txt");
+
+        verify(responder).fileSendAccepted(100, "file.txt", 55, 40000, 2048, 12345, 8);
+    }
+
+    @Test
+    public void sendFileAbortShouldGiveFileToResponder() {
+        dispatch("100!SENDFILEABORT#Niles:(1234){55}file.txt");
+
+        verify(responder).fileSendAborted(100, "file.txt", 55);
+    }
+
+    @Test
+    public void clientShouldGiveClientInfoToResponder() {
+        dispatch("100!CLIENT#Niles:(KouChat v1.4.0 Swing)[1753]{Linux}<40656>/40657\\");
+
+        verify(responder).clientInfo(100, "KouChat v1.4.0 Swing", 1753, "Linux", 40656, 40657,
+                                     Collections.<String>emptySet());
+    }
+
+    @Test
+    public void clientShouldGiveCapabilitiesToResponder() {
+        dispatch("100!CLIENT#Niles:(KouChat v1.5.0 Swing)[1753]{Linux}<40656>/40657\\|deflate|");
+
+        verify(responder).clientInfo(100, "KouChat v1.5.0 Swing", 1753, "Linux", 40656, 40657,
+                                     Collections.singleton("deflate"));
+    }
+
+    private void dispatch(final String message) {
+        assertTrue(dispatcher.dispatch(MessageEnvelope.parse(message), "192.168.1.1", me));
+    }
+}
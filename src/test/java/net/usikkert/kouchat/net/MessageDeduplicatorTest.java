@@ -0,0 +1,257 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import net.usikkert.kouchat.event.ReceiverListener;
+import net.usikkert.kouchat.junit.ExpectedException;
+import net.usikkert.kouchat.misc.Controller;
+import net.usikkert.kouchat.misc.User;
+import net.usikkert.kouchat.settings.Settings;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Test of {@link MessageDeduplicator}.
+ *
+ * @author Christian Ihle
+ */
+@SuppressWarnings("HardCodedStringLiteral")
+public class MessageDeduplicatorTest {
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    private MessageDeduplicator deduplicator;
+
+    private ReceiverListener mainChatListener;
+    private ReceiverListener privateChatListener;
+    private MessageLossListener lossListener;
+    private LinkProbeListener probeListener;
+
+    private User niles;
+    private User tina;
+
+    @Before
+    public void setUp() {
+        final Controller controller = mock(Controller.class);
+        final Settings settings = mock(Settings.class);
+
+        final User me = new User("Me", 100);
+        me.setMe(true);
+        niles = new User("Niles", 200);
+        tina = new User("Tina", 300);
+
+        when(settings.getMe()).thenReturn(me);
+        when(controller.getUser(100)).thenReturn(me);
+        when(controller.getUser(200)).thenReturn(niles);
+        when(controller.getUser(300)).thenReturn(tina);
+
+        mainChatListener = mock(ReceiverListener.class);
+        privateChatListener = mock(ReceiverListener.class);
+
+        deduplicator = new MessageDeduplicator(controller, settings);
+        deduplicator.registerMainChatReceiverListener(mainChatListener);
+        deduplicator.registerPrivateChatReceiverListener(privateChatListener);
+
+        lossListener = mock(MessageLossListener.class);
+        deduplicator.registerMessageLossListener(lossListener);
+
+        probeListener = mock(LinkProbeListener.class);
+        deduplicator.registerLinkProbeListener(probeListener);
+    }
+
+    @Test
+    public void constructorShouldThrowExceptionIfControllerIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Controller can not be null");
+
+        new MessageDeduplicator(null, mock(Settings.class));
+    }
+
+    @Test
+    public void constructorShouldThrowExceptionIfSettingsIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Settings can not be null");
+
+        new MessageDeduplicator(mock(Controller.class), null);
+    }
+
+    @Test
+    public void multicastMessageWithoutSequenceShouldOnlyBeForwardedWhenNotUsingTcp() {
+        deduplicator.messageArrived("200!MSG#Niles:[-1]Hello", "192.168.1.2");
+        verify(mainChatListener).messageArrived("200!MSG#Niles:[-1]Hello", "192.168.1.2");
+
+        niles.setTcpEnabled(true);
+        deduplicator.messageArrived("200!MSG#Niles:[-1]Hello again", "192.168.1.2");
+        verify(mainChatListener, never()).messageArrived("200!MSG#Niles:[-1]Hello again", "192.168.1.2");
+    }
+
+    @Test
+    public void tcpMessageWithoutSequenceShouldOnlyBeForwardedWhenUsingTcp() {
+        deduplicator.messageArrived("200!MSG#Niles:[-1]Hello", "192.168.1.2", niles);
+        verify(mainChatListener, never()).messageArrived(anyString(), anyString());
+
+        niles.setTcpEnabled(true);
+        deduplicator.messageArrived("200!MSG#Niles:[-1]Hello", "192.168.1.2", niles);
+        verify(mainChatListener).messageArrived("200!MSG#Niles:[-1]Hello", "192.168.1.2");
+    }
+
+    @Test
+    public void sequencedMessageShouldBeForwardedWithoutSequence() {
+        deduplicator.messageArrived("200.0!MSG#Niles:[-1]Hello", "192.168.1.2");
+
+        verify(mainChatListener).messageArrived("200!MSG#Niles:[-1]Hello", "192.168.1.2");
+    }
+
+    @Test
+    public void sequencedMessageFromMulticastShouldBeForwardedFirstEvenWhenUsingTcp() {
+        niles.setTcpEnabled(true);
+
+        deduplicator.messageArrived("200.0!MSG#Niles:[-1]Hello", "192.168.1.2");
+        deduplicator.messageArrived("200.0!MSG#Niles:[-1]Hello", "192.168.1.2", niles);
+
+        verify(mainChatListener, times(1)).messageArrived("200!MSG#Niles:[-1]Hello", "192.168.1.2");
+    }
+
+    @Test
+    public void sequencedMessageFromTcpShouldBeForwardedFirstEvenWhenNotUsingTcp() {
+        deduplicator.messageArrived("200.0!MSG#Niles:[-1]Hello", "192.168.1.2", niles);
+        deduplicator.messageArrived("200.0!MSG#Niles:[-1]Hello", "192.168.1.2");
+
+        verify(mainChatListener, times(1)).messageArrived("200!MSG#Niles:[-1]Hello", "192.168.1.2");
+    }
+
+    @Test
+    public void sequencesShouldBeSeparateForEachUser() {
+        deduplicator.messageArrived("200.0!MSG#Niles:[-1]Hello", "192.168.1.2");
+        deduplicator.messageArrived("300.0!MSG#Tina:[-1]Hello", "192.168.1.3");
+        deduplicator.messageArrived("200.1!MSG#Niles:[-1]Hello", "192.168.1.2");
+
+        verify(mainChatListener, times(2)).messageArrived("200!MSG#Niles:[-1]Hello", "192.168.1.2");
+        verify(mainChatListener).messageArrived("300!MSG#Tina:[-1]Hello", "192.168.1.3");
+    }
+
+    @Test
+    public void sequencedPrivateMessageShouldBeForwardedOnceToPrivateChatListener() {
+        deduplicator.messageArrived("200.5!PRIVMSG#Niles:(100)[-1]Psst", "192.168.1.2");
+        deduplicator.messageArrived("200.5!PRIVMSG#Niles:(100)[-1]Psst", "192.168.1.2", niles);
+
+        verify(privateChatListener, times(1)).messageArrived("200!PRIVMSG#Niles:(100)[-1]Psst", "192.168.1.2");
+        verifyZeroInteractions(mainChatListener);
+    }
+
+    @Test
+    public void sequencedPrivateMessageForSomeoneElseShouldBeDropped() {
+        deduplicator.messageArrived("200.5!PRIVMSG#Niles:(300)[-1]Psst", "192.168.1.2");
+
+        verifyZeroInteractions(privateChatListener);
+    }
+
+    @Test
+    public void skippedSequencesShouldBeReportedAsMissing() {
+        deduplicator.messageArrived("200.0!MSG#Niles:[-1]Hello", "192.168.1.2");
+        deduplicator.messageArrived("200.1!MSG#Niles:[-1]Hello", "192.168.1.2");
+        verifyZeroInteractions(lossListener);
+
+        deduplicator.messageArrived("200.5!MSG#Niles:[-1]Hello", "192.168.1.2");
+        verify(lossListener).messagesMissing(200, 2, 4);
+    }
+
+    @Test
+    public void lateMessagesShouldNotBeReportedAsMissing() {
+        deduplicator.messageArrived("200.0!MSG#Niles:[-1]Hello", "192.168.1.2");
+        deduplicator.messageArrived("200.2!MSG#Niles:[-1]Hello", "192.168.1.2");
+        deduplicator.messageArrived("200.1!MSG#Niles:[-1]Hello", "192.168.1.2");
+        deduplicator.messageArrived("200.2!MSG#Niles:[-1]Hello", "192.168.1.2", niles);
+
+        verify(lossListener, times(1)).messagesMissing(anyInt(), anyLong(), anyLong());
+        verify(lossListener).messagesMissing(200, 1, 1);
+    }
+
+    @Test
+    public void firstSequenceFromUserShouldNotBeReportedAsMissing() {
+        deduplicator.messageArrived("200.10!MSG#Niles:[-1]Hello", "192.168.1.2");
+
+        verifyZeroInteractions(lossListener);
+    }
+
+    @Test
+    public void privateMessagesShouldNotLeaveGapsInTheOtherSequences() {
+        deduplicator.messageArrived("200.0!MSG#Niles:[-1]Hello", "192.168.1.2");
+        deduplicator.messageArrived("200.0!PRIVMSG#Niles:(100)[-1]Psst", "192.168.1.2");
+        deduplicator.messageArrived("200.3!PRIVMSG#Niles:(100)[-1]Psst", "192.168.1.2");
+        deduplicator.messageArrived("200.1!MSG#Niles:[-1]Hello", "192.168.1.2");
+
+        verifyZeroInteractions(lossListener);
+        verify(privateChatListener, times(2)).messageArrived("200!PRIVMSG#Niles:(100)[-1]Psst", "192.168.1.2");
+        verify(mainChatListener, times(2)).messageArrived("200!MSG#Niles:[-1]Hello", "192.168.1.2");
+    }
+
+    @Test
+    public void isSeenShouldOnlyBeTrueForMessagesToEveryoneThatArrived() {
+        assertFalse(deduplicator.isSeen(200, 0));
+
+        deduplicator.messageArrived("200.0!MSG#Niles:[-1]Hello", "192.168.1.2");
+        deduplicator.messageArrived("200.1!PRIVMSG#Niles:(100)[-1]Psst", "192.168.1.2");
+
+        assertTrue(deduplicator.isSeen(200, 0));
+        assertFalse(deduplicator.isSeen(200, 1));
+        assertFalse(deduplicator.isSeen(300, 0));
+    }
+
+    @Test
+    public void nackToMeShouldOnlyGoToTheLossListener() {
+        deduplicator.messageArrived("200!NACK#Niles:(100)4,5", "192.168.1.2");
+
+        verify(lossListener).nackArrived(any(MessageEnvelope.class), eq("192.168.1.2"));
+        verifyZeroInteractions(mainChatListener, privateChatListener);
+    }
+
+    @Test
+    public void nackToSomeoneElseShouldBeDropped() {
+        deduplicator.messageArrived("200!NACK#Niles:(300)4,5", "192.168.1.2");
+
+        verifyZeroInteractions(lossListener, mainChatListener, privateChatListener);
+    }
+
+    @Test
+    public void probesToMeShouldOnlyGoToTheProbeListener() {
+        deduplicator.messageArrived("200!PING#Niles:(100)12345", "192.168.1.2");
+        deduplicator.messageArrived("200!PONG#Niles:(100)12345", "192.168.1.2");
+
+        verify(probeListener, times(2)).probeArrived(any(MessageEnvelope.class), eq("192.168.1.2"));
+        verifyZeroInteractions(mainChatListener, privateChatListener, lossListener);
+    }
+
+    @Test
+    public void probesToSomeoneElseShouldBeDropped() {
+        deduplicator.messageArrived("200!PING#Niles:(300)12345", "192.168.1.2");
+
+        verifyZeroInteractions(probeListener, mainChatListener, privateChatListener);
+    }
+}
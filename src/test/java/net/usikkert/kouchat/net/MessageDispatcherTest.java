@@ -0,0 +1,124 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.util.Map;
+
+import net.usikkert.kouchat.junit.ExpectedException;
+import net.usikkert.kouchat.misc.User;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Test of {@link MessageDispatcher}.
+ *
+ * @author Christian Ihle
+ */
+@SuppressWarnings("HardCodedStringLiteral")
+public class MessageDispatcherTest {
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    private MessageDispatcher dispatcher;
+    private MessageDecoder idleDecoder;
+    private MessageDecoder msgDecoder;
+    private User me;
+
+    @Before
+    public void setUp() {
+        dispatcher = new MessageDispatcher();
+        idleDecoder = mock(MessageDecoder.class);
+        msgDecoder = mock(MessageDecoder.class);
+        me = new User("Test", 1234);
+
+        dispatcher.register(NetworkMessageType.IDLE, idleDecoder);
+        dispatcher.register(NetworkMessageType.MSG, msgDecoder);
+    }
+
+    @Test
+    public void registerShouldThrowExceptionIfTypeIsEmpty() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Type can not be empty");
+
+        dispatcher.register("", idleDecoder);
+    }
+
+    @Test
+    public void registerShouldThrowExceptionIfDecoderIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Decoder can not be null");
+
+        dispatcher.register(NetworkMessageType.AWAY, null);
+    }
+
+    @Test
+    public void registerShouldThrowExceptionIfTypeIsAlreadyRegistered() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Type is already registered: IDLE");
+
+        dispatcher.register(NetworkMessageType.IDLE, msgDecoder);
+    }
+
+    @Test
+    public void dispatchShouldUseDecoderForTypeAndCountHits() {
+        final MessageEnvelope envelope = MessageEnvelope.parse("100!IDLE#Niles:");
+
+        assertTrue(dispatcher.dispatch(envelope, "192.168.1.1", me));
+        assertTrue(dispatcher.dispatch(envelope, "192.168.1.1", me));
+
+        verify(idleDecoder, times(2)).decode(envelope, "192.168.1.1", me);
+        verifyZeroInteractions(msgDecoder);
+
+        assertEquals(2, dispatcher.getHitCount(NetworkMessageType.IDLE));
+        assertEquals(0, dispatcher.getHitCount(NetworkMessageType.MSG));
+    }
+
+    @Test
+    public void dispatchShouldReturnFalseForUnknownType() {
+        assertFalse(dispatcher.dispatch(MessageEnvelope.parse("100!AWAY#Niles:gone"), "192.168.1.1", me));
+
+        verifyZeroInteractions(idleDecoder, msgDecoder);
+        assertEquals(0, dispatcher.getHitCount(NetworkMessageType.AWAY));
+    }
+
+    @Test
+    public void getHitCountsShouldIncludeAllRegisteredTypesSorted() {
+        dispatcher.dispatch(MessageEnvelope.parse("100!MSG#Niles:[1]Hello"), "192.168.1.1", me);
+
+        final Map<String, Long> hitCounts = dispatcher.getHitCounts();
+
+        assertEquals("{IDLE=0, MSG=1}", hitCounts.toString());
+    }
+
+    @Test
+    public void getDecoderShouldReturnRegisteredDecoderOrNull() {
+        assertSame(idleDecoder, dispatcher.getDecoder(NetworkMessageType.IDLE));
+        assertNull(dispatcher.getDecoder(NetworkMessageType.AWAY));
+    }
+}
@@ -0,0 +1,208 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import static org.junit.Assert.*;
+
+import net.usikkert.kouchat.junit.ExpectedException;
+
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Test of {@link MessageEnvelope}.
+ *
+ * @author Christian Ihle
+ */
+@SuppressWarnings("HardCodedStringLiteral")
+public class MessageEnvelopeTest {
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    @Test
+    public void parseShouldThrowExceptionIfMessageIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Message can not be null");
+
+        MessageEnvelope.parse(null);
+    }
+
+    @Test
+    public void parseShouldFindHeaderFields() {
+        final MessageEnvelope envelope = MessageEnvelope.parse("12345678!MSG#Niles:[-15987646]Hello there");
+
+        assertEquals(12345678, envelope.getUserCode());
+        assertSame(NetworkMessageType.MSG, envelope.getType());
+        assertEquals("Niles", envelope.getNick());
+        assertEquals("[-15987646]Hello there", envelope.getPayload());
+        assertEquals("12345678!MSG#Niles:[-15987646]Hello there", envelope.getMessage());
+    }
+
+    @Test
+    public void parseShouldHandleEmptyNickAndPayload() {
+        final MessageEnvelope envelope = MessageEnvelope.parse("1!IDLE#:");
+
+        assertEquals(1, envelope.getUserCode());
+        assertSame(NetworkMessageType.IDLE, envelope.getType());
+        assertEquals("", envelope.getNick());
+        assertEquals("", envelope.getPayload());
+    }
+
+    @Test
+    public void parseShouldHandleNegativeUserCode() {
+        assertEquals(-15, MessageEnvelope.parse("-15!IDLE#Niles:").getUserCode());
+    }
+
+    @Test
+    public void parseShouldKeepUnknownTypes() {
+        final MessageEnvelope envelope = MessageEnvelope.parse("1!SOMETHING#Niles:payload");
+
+        assertEquals("SOMETHING", envelope.getType());
+        assertFalse(envelope.hasRecipient());
+    }
+
+    @Test
+    public void parseShouldHandleMessageWithoutSequence() {
+        final MessageEnvelope envelope = MessageEnvelope.parse("12345678!MSG#Niles:[-15987646]Hello. Bye!");
+
+        assertFalse(envelope.hasSequence());
+        assertEquals(MessageEnvelope.NO_SEQUENCE, envelope.getSequence());
+        assertSame(envelope, envelope.withoutSequence());
+    }
+
+    @Test
+    public void parseShouldFindSequenceAfterUserCode() {
+        final MessageEnvelope envelope = MessageEnvelope.parse("12345678.42!MSG#Niles:[-15987646]Hello there");
+
+        assertTrue(envelope.hasSequence());
+        assertEquals(42, envelope.getSequence());
+        assertEquals(12345678, envelope.getUserCode());
+        assertSame(NetworkMessageType.MSG, envelope.getType());
+        assertEquals("Niles", envelope.getNick());
+        assertEquals("[-15987646]Hello there", envelope.getPayload());
+    }
+
+    @Test
+    public void withoutSequenceShouldRemoveSequenceFromMessage() {
+        final MessageEnvelope envelope =
+                MessageEnvelope.parse("-15.9000!PRIVMSG#Niles:(100)[-1]Hello").withoutSequence();
+
+        assertEquals("-15!PRIVMSG#Niles:(100)[-1]Hello", envelope.getMessage());
+        assertFalse(envelope.hasSequence());
+        assertEquals(-15, envelope.getUserCode());
+        assertSame(NetworkMessageType.PRIVMSG, envelope.getType());
+        assertEquals("Niles", envelope.getNick());
+        assertEquals("(100)[-1]Hello", envelope.getPayload());
+        assertEquals(100, envelope.getRecipientCode());
+    }
+
+    @Test
+    public void parseShouldThrowExceptionIfSequenceIsEmpty() {
+        expectedException.expect(NumberFormatException.class);
+
+        MessageEnvelope.parse("1.!MSG#Niles:Hello");
+    }
+
+    @Test
+    public void parseShouldThrowExceptionIfSequenceIsNegative() {
+        expectedException.expect(NumberFormatException.class);
+        expectedException.expectMessage("For input string: \"-5\"");
+
+        MessageEnvelope.parse("1.-5!MSG#Niles:Hello");
+    }
+
+    @Test
+    public void parseShouldThrowExceptionIfSequenceIsTooLarge() {
+        expectedException.expect(NumberFormatException.class);
+
+        MessageEnvelope.parse("1.9223372036854775808!MSG#Niles:Hello");
+    }
+
+    @Test
+    public void parseShouldThrowExceptionIfDelimitersAreMissing() {
+        expectedException.expect(StringIndexOutOfBoundsException.class);
+
+        MessageEnvelope.parse("Error");
+    }
+
+    @Test
+    public void parseShouldThrowExceptionIfDelimitersAreInWrongOrder() {
+        expectedException.expect(StringIndexOutOfBoundsException.class);
+
+        MessageEnvelope.parse("1!MSG:Niles#Hello");
+    }
+
+    @Test
+    public void parseShouldThrowExceptionIfUserCodeIsNotANumber() {
+        expectedException.expect(NumberFormatException.class);
+        expectedException.expectMessage("For input string: \"a1\"");
+
+        MessageEnvelope.parse("a1!MSG#Niles:Hello");
+    }
+
+    @Test
+    public void parseShouldThrowExceptionIfUserCodeIsTooLarge() {
+        expectedException.expect(NumberFormatException.class);
+
+        MessageEnvelope.parse("2147483648!MSG#Niles:Hello");
+    }
+
+    @Test
+    public void parseShouldThrowExceptionIfUserCodeIsOnlyASign() {
+        expectedException.expect(NumberFormatException.class);
+
+        MessageEnvelope.parse("-!MSG#Niles:Hello");
+    }
+
+    @Test
+    public void hasRecipientShouldBeTrueForPrivateMessagesAndFiles() {
+        assertTrue(MessageEnvelope.parse("1!PRIVMSG#Niles:(2)[3]Hello").hasRecipient());
+        assertTrue(MessageEnvelope.parse("1!SENDFILE#Niles:(2)[3]{4}file").hasRecipient());
+        assertTrue(MessageEnvelope.parse("1!SENDFILEACCEPT#Niles:(2)[3]{4}file").hasRecipient());
+        assertTrue(MessageEnvelope.parse("1!SENDFILEABORT#Niles:(2){4}file").hasRecipient());
+
+        assertFalse(MessageEnvelope.parse("1!MSG#Niles:[3]Hello").hasRecipient());
+    }
+
+    @Test
+    public void getRecipientCodeShouldParseFirstParentheses() {
+        final MessageEnvelope envelope = MessageEnvelope.parse("1!PRIVMSG#Ni(l)es:(18737868)[-6750208](hello)");
+
+        assertEquals(18737868, envelope.getRecipientCode());
+    }
+
+    @Test
+    public void getRecipientCodeShouldThrowExceptionIfParenthesesAreMissing() {
+        expectedException.expect(StringIndexOutOfBoundsException.class);
+
+        MessageEnvelope.parse("1!PRIVMSG#Niles:[-6750208]hello").getRecipientCode();
+    }
+
+    @Test
+    public void getPayloadShouldReturnSameInstanceEveryTime() {
+        final MessageEnvelope envelope = MessageEnvelope.parse("1!MSG#Niles:[3]Hello");
+
+        assertSame(envelope.getPayload(), envelope.getPayload());
+    }
+}
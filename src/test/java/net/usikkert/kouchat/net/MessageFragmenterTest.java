@@ -0,0 +1,149 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import static org.junit.Assert.*;
+
+import java.io.UnsupportedEncodingException;
+import java.util.List;
+
+import net.usikkert.kouchat.Constants;
+import net.usikkert.kouchat.junit.ExpectedException;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Test of {@link MessageFragmenter}.
+ *
+ * @author Christian Ihle
+ */
+@SuppressWarnings("HardCodedStringLiteral")
+public class MessageFragmenterTest {
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    private MessageFragmenter fragmenter;
+
+    @Before
+    public void setUp() {
+        fragmenter = new MessageFragmenter();
+    }
+
+    @Test
+    public void fragmentShouldThrowExceptionIfMessageIsNull() throws UnsupportedEncodingException {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Message can not be null");
+
+        fragmenter.fragment(null);
+    }
+
+    @Test
+    public void fragmentShouldNotSplitMessageThatFitsInOnePacket() throws UnsupportedEncodingException {
+        final String message = "12345!MSG#Tester:[255]" + repeat('a', Constants.NETWORK_PACKET_SIZE - 22);
+
+        final List<String> fragments = fragmenter.fragment(message);
+
+        assertEquals(1, fragments.size());
+        assertSame(message, fragments.get(0));
+    }
+
+    @Test
+    public void fragmentShouldSplitLargeMessageIntoPacketsThatFit() throws UnsupportedEncodingException {
+        final String message = "12345!MSG#Tester:[255]" + repeat('a', 2000);
+
+        final List<String> fragments = fragmenter.fragment(message);
+
+        assertEquals(5, fragments.size());
+
+        final StringBuilder joined = new StringBuilder();
+
+        for (int i = 0; i < fragments.size(); i++) {
+            final String fragment = fragments.get(i);
+            assertTrue(fragment.getBytes(Constants.MESSAGE_CHARSET).length <= Constants.NETWORK_PACKET_SIZE);
+            assertTrue(fragment.matches("FRAG:\\d+:" + i + ":5:.+"));
+
+            joined.append(fragment.substring(fragment.indexOf(':', fragment.indexOf(":5:") + 1) + 1));
+        }
+
+        assertEquals(message, joined.toString());
+    }
+
+    @Test
+    public void fragmentShouldUseSameIdForAllFragmentsOfOneMessage() throws UnsupportedEncodingException {
+        final List<String> fragments = fragmenter.fragment(repeat('a', 1000));
+        final String messageId = getMessageId(fragments.get(0));
+
+        for (final String fragment : fragments) {
+            assertEquals(messageId, getMessageId(fragment));
+        }
+
+        assertNotEquals(messageId, getMessageId(fragmenter.fragment(repeat('a', 1000)).get(0)));
+    }
+
+    @Test
+    public void fragmentShouldNotSplitCharacters() throws UnsupportedEncodingException {
+        // 3 bytes for each character, and a surrogate pair of 4 bytes
+        final String message = repeat('€', 300) + "😀" + repeat('€', 300);
+
+        final List<String> fragments = fragmenter.fragment(message);
+
+        final StringBuilder joined = new StringBuilder();
+
+        for (final String fragment : fragments) {
+            final String part = fragment.substring(fragment.indexOf(':', fragment.indexOf(':', 5) + 1) + 1);
+            final String payload = part.substring(part.indexOf(':') + 1);
+
+            assertTrue(payload.getBytes(Constants.MESSAGE_CHARSET).length <= MessageFragmenter.FRAGMENT_PAYLOAD_BYTES);
+            assertFalse(Character.isHighSurrogate(payload.charAt(payload.length() - 1)));
+
+            joined.append(payload);
+        }
+
+        assertEquals(message, joined.toString());
+    }
+
+    @Test
+    public void fragmentShouldThrowExceptionIfMessageNeedsTooManyFragments() throws UnsupportedEncodingException {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Message needs 129 fragments. Max is 128");
+
+        fragmenter.fragment(repeat('a', MessageFragmenter.FRAGMENT_PAYLOAD_BYTES * 128 + 1));
+    }
+
+    private String getMessageId(final String fragment) {
+        return fragment.substring(5, fragment.indexOf(':', 5));
+    }
+
+    private String repeat(final char character, final int times) {
+        final StringBuilder builder = new StringBuilder();
+
+        for (int i = 0; i < times; i++) {
+            builder.append(character);
+        }
+
+        return builder.toString();
+    }
+}
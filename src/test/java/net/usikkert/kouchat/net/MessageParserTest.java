@@ -25,6 +25,10 @@ package net.usikkert.kouchat.net;
 import static org.junit.Assert.*;
 import static org.mockito.Mockito.*;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -48,6 +52,7 @@ public class MessageParserTest {
     private MessageParser messageParser;
 
     private Logger log;
+    private Logger clientDecoderLog;
     private MessageResponder responder;
 
     @Before
@@ -60,6 +65,9 @@ public class MessageParserTest {
 
         TestUtils.setFieldValue(messageParser, "loggedOn", true);
         log = TestUtils.setFieldValueWithMock(messageParser, "LOG", Logger.class);
+
+        final MessageDispatcher dispatcher = TestUtils.getFieldValue(messageParser, MessageDispatcher.class, "dispatcher");
+        clientDecoderLog = TestUtils.setFieldValueWithMock(dispatcher.getDecoder(NetworkMessageType.CLIENT), "LOG", Logger.class);
     }
 
     @Test
@@ -96,7 +104,7 @@ public class MessageParserTest {
 
         final ArgumentCaptor<Exception> exceptionCaptor = ArgumentCaptor.forClass(Exception.class);
 
-        verify(log).log(eq(Level.WARNING),
+        verify(clientDecoderLog).log(eq(Level.WARNING),
                         eq("Failed to parse private chat port. " +
                                    "message=16320462!CLIENT#Christian:(KouChat v1.3.0 Swing)[2688]{Linux}<a40657>, " +
                                    "ipAddress=192.168.1.1"),
@@ -111,7 +119,7 @@ public class MessageParserTest {
                                      "192.168.1.1");
 
         verify(responder).clientInfo(19879835, "KouChat v1.3.0 Swing", 1854,
-                                     "Linux", 40656, 0);
+                                     "Linux", 40656, 0, Collections.<String>emptySet());
     }
 
     @Test
@@ -120,7 +128,16 @@ public class MessageParserTest {
                                      "192.168.1.1");
 
         verify(responder).clientInfo(10066122, "KouChat v1.4.0 Swing", 1753,
-                                     "Linux", 40656, 40657);
+                                     "Linux", 40656, 40657, Collections.<String>emptySet());
+    }
+
+    @Test
+    public void messageArrivedShouldParseClientWithCapabilities() {
+        messageParser.messageArrived("10066122!CLIENT#Christian:(KouChat v1.5.0 Swing)[1753]{Linux}<40656>/40657\\|deflate,other|",
+                                     "192.168.1.1");
+
+        verify(responder).clientInfo(10066122, "KouChat v1.5.0 Swing", 1753,
+                                     "Linux", 40656, 40657, new HashSet<>(Arrays.asList("deflate", "other")));
     }
 
     @Test
@@ -130,7 +147,7 @@ public class MessageParserTest {
 
         final ArgumentCaptor<Exception> exceptionCaptor = ArgumentCaptor.forClass(Exception.class);
 
-        verify(log).log(eq(Level.WARNING),
+        verify(clientDecoderLog).log(eq(Level.WARNING),
                         eq("Failed to parse tcp chat port. " +
                                    "message=10066122!CLIENT#Christian:(KouChat v1.4.0 Swing)[1753]{Linux}<40656>/b40657\\, " +
                                    "ipAddress=192.168.1.1"),
@@ -167,4 +184,67 @@ public class MessageParserTest {
             assertEquals(expectedMessage, exception.getMessage());
         }
     }
+
+    @Test
+    public void messageArrivedShouldCountMessagesPerType() {
+        messageParser.messageArrived("10066122!IDLE#Christian:", "192.168.1.1");
+        messageParser.messageArrived("10066122!IDLE#Christian:", "192.168.1.1");
+        messageParser.messageArrived("10066122!MSG#Christian:[-15987646]Hello", "192.168.1.1");
+        messageParser.messageArrived("1234!IDLE#Test:", "192.168.1.2");
+
+        final Map<String, Long> messageCounts = messageParser.getMessageCounts();
+
+        assertEquals(Long.valueOf(2), messageCounts.get(NetworkMessageType.IDLE));
+        assertEquals(Long.valueOf(1), messageCounts.get(NetworkMessageType.MSG));
+        assertEquals(Long.valueOf(0), messageCounts.get(NetworkMessageType.CLIENT));
+
+        verify(responder, times(2)).userIdle(10066122, "192.168.1.1");
+        verify(responder).messageArrived(10066122, "Hello", -15987646);
+        verify(responder).meIdle("192.168.1.2");
+    }
+
+    @Test
+    public void messageArrivedShouldIgnoreUnknownMessageTypes() {
+        messageParser.messageArrived("10066122!UNKNOWN#Christian:payload", "192.168.1.1");
+
+        verifyZeroInteractions(responder);
+        assertFalse(messageParser.getMessageCounts().containsKey("UNKNOWN"));
+    }
+
+    @Test
+    public void messageArrivedShouldReportActivityFromOtherUsers() {
+        final PeerActivityListener activityListener = mock(PeerActivityListener.class);
+        messageParser.registerPeerActivityListener(activityListener);
+
+        messageParser.messageArrived("10066122!IDLE#Christian:", "192.168.1.1");
+        messageParser.messageArrived("10066122!MSG#Christian:[-15987646]Hello", "192.168.1.1");
+        messageParser.messageArrived("10066122!UNKNOWN#Christian:payload", "192.168.1.1");
+        messageParser.messageArrived("1234!IDLE#Test:", "192.168.1.2");
+
+        verify(activityListener).activityArrived(10066122, true);
+        verify(activityListener, times(2)).activityArrived(10066122, false);
+        verifyNoMoreInteractions(activityListener);
+    }
+
+    @Test
+    public void messageArrivedShouldReportLogOffFromOtherUsers() {
+        final PeerActivityListener activityListener = mock(PeerActivityListener.class);
+        messageParser.registerPeerActivityListener(activityListener);
+
+        messageParser.messageArrived("10066122!LOGOFF#Christian:", "192.168.1.1");
+
+        verify(activityListener).userLoggedOff(10066122);
+        verifyNoMoreInteractions(activityListener);
+    }
+
+    @Test
+    public void messageArrivedShouldNotReportActivityWhenNotLoggedOn() {
+        final PeerActivityListener activityListener = mock(PeerActivityListener.class);
+        messageParser.registerPeerActivityListener(activityListener);
+        TestUtils.setFieldValue(messageParser, "loggedOn", false);
+
+        messageParser.messageArrived("10066122!IDLE#Christian:", "192.168.1.1");
+
+        verifyZeroInteractions(activityListener);
+    }
 }
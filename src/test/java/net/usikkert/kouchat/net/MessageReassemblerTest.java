@@ -0,0 +1,201 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.List;
+
+import net.usikkert.kouchat.event.ReceiverListener;
+import net.usikkert.kouchat.junit.ExpectedException;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Test of {@link MessageReassembler}.
+ *
+ * @author Christian Ihle
+ */
+@SuppressWarnings("HardCodedStringLiteral")
+public class MessageReassemblerTest {
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    private MessageReassembler reassembler;
+    private ReceiverListener listener;
+    private MessageFragmenter fragmenter;
+
+    @Before
+    public void setUp() {
+        listener = mock(ReceiverListener.class);
+        reassembler = new MessageReassembler(listener);
+        fragmenter = new MessageFragmenter();
+    }
+
+    @Test
+    public void constructorShouldThrowExceptionIfListenerIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Listener can not be null");
+
+        new MessageReassembler(null);
+    }
+
+    @Test
+    public void messageArrivedShouldForwardRegularMessagesRightAway() {
+        reassembler.messageArrived("12345!MSG#Tester:[255]Hello", "192.168.1.2");
+
+        verify(listener).messageArrived("12345!MSG#Tester:[255]Hello", "192.168.1.2");
+    }
+
+    @Test
+    public void messageArrivedShouldForwardCompleteMessageWhenAllFragmentsHaveArrived()
+            throws UnsupportedEncodingException {
+        final String message = "12345!MSG#Tester:[255]" + createMessage(2000);
+        final List<String> fragments = fragmenter.fragment(message);
+
+        for (final String fragment : fragments) {
+            reassembler.messageArrived(fragment, "192.168.1.2");
+        }
+
+        verify(listener).messageArrived(message, "192.168.1.2");
+        verifyNoMoreInteractions(listener);
+        assertEquals(0, reassembler.getIncompleteMessageCount());
+    }
+
+    @Test
+    public void messageArrivedShouldKeepWhitespaceAtFragmentBoundariesFromReceivedDatagrams()
+            throws UnsupportedEncodingException {
+        final String message = createMessage(MessageFragmenter.FRAGMENT_PAYLOAD_BYTES - 2) + "  \n  " + createMessage(400);
+        final List<String> fragments = fragmenter.fragment(message);
+        final ByteBufferPool pool = new ByteBufferPool(10, 1024, true);
+
+        assertEquals(2, fragments.size());
+        assertTrue(fragments.get(0).endsWith("  "));
+
+        for (final String fragment : fragments) {
+            final ByteBuffer buffer = pool.acquire();
+            buffer.put(fragment.getBytes(Charset.forName("UTF-8")));
+            buffer.put(new byte[] {0, 0});
+            buffer.flip();
+
+            new ReceivedDatagram(buffer, "192.168.1.2", pool).deliverTo(reassembler);
+        }
+
+        verify(listener).messageArrived(message, "192.168.1.2");
+        verifyNoMoreInteractions(listener);
+    }
+
+    @Test
+    public void messageArrivedShouldHandleFragmentsOutOfOrderAndDuplicates() throws UnsupportedEncodingException {
+        final String message = createMessage(1500);
+        final List<String> fragments = fragmenter.fragment(message);
+
+        reassembler.messageArrived(fragments.get(3), "192.168.1.2");
+        reassembler.messageArrived(fragments.get(1), "192.168.1.2");
+        reassembler.messageArrived(fragments.get(1), "192.168.1.2");
+        reassembler.messageArrived(fragments.get(0), "192.168.1.2");
+
+        verifyZeroInteractions(listener);
+        assertEquals(1, reassembler.getIncompleteMessageCount());
+
+        reassembler.messageArrived(fragments.get(2), "192.168.1.2");
+
+        verify(listener).messageArrived(message, "192.168.1.2");
+    }
+
+    @Test
+    public void messageArrivedShouldKeepFragmentsFromDifferentIpAddressesApart() {
+        reassembler.messageArrived("FRAG:1:0:2:Hello ", "192.168.1.2");
+        reassembler.messageArrived("FRAG:1:0:2:Goodbye ", "192.168.1.3");
+        reassembler.messageArrived("FRAG:1:1:2:world", "192.168.1.3");
+        reassembler.messageArrived("FRAG:1:1:2:there", "192.168.1.2");
+
+        verify(listener).messageArrived("Goodbye world", "192.168.1.3");
+        verify(listener).messageArrived("Hello there", "192.168.1.2");
+    }
+
+    @Test
+    public void addFragmentShouldThrowAwayFragmentsThatHaveExpired() {
+        assertNull(reassembler.addFragment("FRAG:1:0:2:Hello ", "192.168.1.2", 1000));
+        assertNull(reassembler.addFragment("FRAG:2:0:2:Hi ", "192.168.1.2", 5000));
+
+        assertNull(reassembler.addFragment("FRAG:1:1:2:there", "192.168.1.2",
+                                           1001 + MessageReassembler.REASSEMBLY_TIMEOUT));
+        assertEquals(2, reassembler.getIncompleteMessageCount());
+
+        assertEquals("Hi there", reassembler.addFragment("FRAG:2:1:2:there", "192.168.1.2", 6000));
+    }
+
+    @Test
+    public void addFragmentShouldRemoveOldestMessageWhenThereAreTooManyIncompleteMessages() {
+        for (int i = 0; i < MessageReassembler.MAX_INCOMPLETE_MESSAGES; i++) {
+            reassembler.addFragment("FRAG:" + i + ":0:2:Message " + i, "192.168.1.2", 1000 + i);
+        }
+
+        assertEquals(MessageReassembler.MAX_INCOMPLETE_MESSAGES, reassembler.getIncompleteMessageCount());
+
+        reassembler.addFragment("FRAG:100:0:2:Message 100", "192.168.1.2", 2000);
+
+        assertEquals(MessageReassembler.MAX_INCOMPLETE_MESSAGES, reassembler.getIncompleteMessageCount());
+        assertEquals("Message 1 done", reassembler.addFragment("FRAG:1:1:2: done", "192.168.1.2", 2001));
+        assertNull(reassembler.addFragment("FRAG:0:1:2: done", "192.168.1.2", 2002));
+    }
+
+    @Test
+    public void messageArrivedShouldIgnoreInvalidFragments() {
+        reassembler.messageArrived("FRAG:1:0", "192.168.1.2");
+        reassembler.messageArrived("FRAG:1:x:2:Hello", "192.168.1.2");
+        reassembler.messageArrived("FRAG:1:2:2:Hello", "192.168.1.2");
+        reassembler.messageArrived("FRAG:1:0:0:Hello", "192.168.1.2");
+        reassembler.messageArrived("FRAG:1:0:1000:Hello", "192.168.1.2");
+
+        verifyZeroInteractions(listener);
+        assertEquals(0, reassembler.getIncompleteMessageCount());
+    }
+
+    @Test
+    public void messageArrivedShouldDropMessageIfFragmentCountChanges() {
+        reassembler.messageArrived("FRAG:1:0:2:Hello", "192.168.1.2");
+        reassembler.messageArrived("FRAG:1:1:3:there", "192.168.1.2");
+
+        verifyZeroInteractions(listener);
+        assertEquals(0, reassembler.getIncompleteMessageCount());
+    }
+
+    private String createMessage(final int length) {
+        final StringBuilder builder = new StringBuilder();
+
+        for (int i = 0; i < length; i++) {
+            builder.append((char) ('a' + i % 26));
+        }
+
+        return builder.toString();
+    }
+}
@@ -0,0 +1,105 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import static org.junit.Assert.*;
+
+import net.usikkert.kouchat.junit.ExpectedException;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Test of {@link MessageRetransmitBuffer}.
+ *
+ * @author Christian Ihle
+ */
+@SuppressWarnings("HardCodedStringLiteral")
+public class MessageRetransmitBufferTest {
+
+    private static final long INTERVAL = MessageRetransmitBuffer.RETRANSMIT_INTERVAL;
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    private MessageRetransmitBuffer buffer;
+
+    @Before
+    public void setUp() {
+        buffer = new MessageRetransmitBuffer();
+    }
+
+    @Test
+    public void addShouldThrowExceptionIfMessageIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Message can not be null");
+
+        buffer.add(0, null, false, false, false);
+    }
+
+    @Test
+    public void getForRetransmitShouldReturnTheMessageWithTheSequence() {
+        buffer.add(4, "100.4!MSG#Me:[-1]Hello", true, false, false);
+        buffer.add(5, "100.5!MSG#Me:[-1]Hello again", false, true, true);
+
+        final MessageRetransmitBuffer.SentMessage sentMessage = buffer.getForRetransmit(5, 1000);
+
+        assertNotNull(sentMessage);
+        assertEquals(5, sentMessage.getSequence());
+        assertEquals("100.5!MSG#Me:[-1]Hello again", sentMessage.getMessage());
+        assertFalse(sentMessage.isCompress());
+        assertTrue(sentMessage.isBinary());
+        assertTrue(sentMessage.isFragment());
+
+        assertTrue(buffer.getForRetransmit(4, 1000).isCompress());
+    }
+
+    @Test
+    public void getForRetransmitShouldReturnNullForUnknownSequences() {
+        buffer.add(4, "100.4!MSG#Me:[-1]Hello", false, false, false);
+
+        assertNull(buffer.getForRetransmit(3, 1000));
+        assertNull(buffer.getForRetransmit(5, 1000));
+        assertNull(buffer.getForRetransmit(-1, 1000));
+    }
+
+    @Test
+    public void getForRetransmitShouldReturnNullWhenTheMessageIsReplacedByNewerMessage() {
+        buffer.add(4, "100.4!MSG#Me:[-1]Hello", false, false, false);
+        buffer.add(4 + MessageRetransmitBuffer.SIZE, "100.260!MSG#Me:[-1]Hello", false, false, false);
+
+        assertNull(buffer.getForRetransmit(4, 1000));
+        assertNotNull(buffer.getForRetransmit(4 + MessageRetransmitBuffer.SIZE, 1000));
+    }
+
+    @Test
+    public void getForRetransmitShouldOnlyReturnTheSameMessageOncePerInterval() {
+        buffer.add(4, "100.4!MSG#Me:[-1]Hello", false, false, false);
+
+        assertNotNull(buffer.getForRetransmit(4, 1000));
+        assertNull(buffer.getForRetransmit(4, 1000));
+        assertNull(buffer.getForRetransmit(4, 1000 + INTERVAL - 1));
+        assertNotNull(buffer.getForRetransmit(4, 1000 + INTERVAL));
+    }
+}
@@ -0,0 +1,169 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import static org.junit.Assert.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test of {@link MessageSequenceWindow}.
+ *
+ * @author Christian Ihle
+ */
+public class MessageSequenceWindowTest {
+
+    private static final int SIZE = MessageSequenceWindow.SIZE;
+
+    private MessageSequenceWindow window;
+
+    @Before
+    public void setUp() {
+        window = new MessageSequenceWindow();
+    }
+
+    @Test
+    public void markSeenShouldOnlyBeTrueTheFirstTime() {
+        assertTrue(window.markSeen(0));
+        assertFalse(window.markSeen(0));
+
+        assertTrue(window.markSeen(1));
+        assertFalse(window.markSeen(1));
+        assertFalse(window.markSeen(0));
+    }
+
+    @Test
+    public void markSeenShouldAcceptFirstSequenceFromUserThatStartedEarlier() {
+        assertTrue(window.markSeen(5000));
+        assertFalse(window.markSeen(5000));
+        assertTrue(window.markSeen(4999));
+    }
+
+    @Test
+    public void markSeenShouldHandleSequencesOutOfOrder() {
+        assertTrue(window.markSeen(10));
+        assertTrue(window.markSeen(8));
+        assertTrue(window.markSeen(11));
+        assertTrue(window.markSeen(9));
+
+        for (int sequence = 8; sequence <= 11; sequence++) {
+            assertFalse(window.markSeen(sequence));
+        }
+    }
+
+    @Test
+    public void markSeenShouldHandleGapsInSequence() {
+        assertTrue(window.markSeen(1));
+        assertTrue(window.markSeen(100));
+
+        assertTrue(window.markSeen(50));
+        assertFalse(window.markSeen(50));
+    }
+
+    @Test
+    public void markSeenShouldRememberTheWholeWindow() {
+        for (int sequence = 0; sequence < SIZE * 3; sequence++) {
+            assertTrue(window.markSeen(sequence));
+        }
+
+        for (int sequence = SIZE * 2; sequence < SIZE * 3; sequence++) {
+            assertFalse(window.markSeen(sequence));
+        }
+    }
+
+    @Test
+    public void markSeenShouldForgetSequencesWhenTheWindowMovesPastThem() {
+        assertTrue(window.markSeen(5));
+        assertTrue(window.markSeen(SIZE + 4));
+
+        // SIZE + 5 uses the same bit as 5, so it's cleared when the window moves there
+        assertTrue(window.markSeen(SIZE + 5));
+        assertFalse(window.markSeen(SIZE + 5));
+    }
+
+    @Test
+    public void markSeenShouldClearEverythingAfterLargeJump() {
+        for (int sequence = 0; sequence < SIZE; sequence++) {
+            window.markSeen(sequence);
+        }
+
+        for (int sequence = SIZE * 10; sequence < SIZE * 11; sequence++) {
+            assertTrue(window.markSeen(sequence));
+        }
+    }
+
+    @Test
+    public void markSeenShouldStartOverWhenSequenceIsTooOldForTheWindow() {
+        assertTrue(window.markSeen(SIZE * 5));
+        assertTrue(window.markSeen(0)); // Like when the user starts counting from the beginning again
+        assertFalse(window.markSeen(0));
+
+        assertTrue(window.markSeen(1));
+        assertTrue(window.markSeen(SIZE * 5)); // Forgotten after starting over
+    }
+
+    @Test
+    public void getHighestShouldReturnTheHighestSequenceSeen() {
+        assertEquals(-1, window.getHighest());
+
+        window.markSeen(5);
+        assertEquals(5, window.getHighest());
+
+        window.markSeen(3);
+        assertEquals(5, window.getHighest());
+
+        window.markSeen(9);
+        assertEquals(9, window.getHighest());
+    }
+
+    @Test
+    public void isSeenShouldOnlyBeTrueForSequencesMarkedAsSeen() {
+        assertFalse(window.isSeen(0));
+
+        window.markSeen(0);
+        window.markSeen(2);
+
+        assertTrue(window.isSeen(0));
+        assertFalse(window.isSeen(1));
+        assertTrue(window.isSeen(2));
+        assertFalse(window.isSeen(3));
+    }
+
+    @Test
+    public void isSeenShouldNotChangeTheWindow() {
+        assertFalse(window.isSeen(7));
+        assertFalse(window.isSeen(7));
+        assertEquals(-1, window.getHighest());
+
+        assertTrue(window.markSeen(7));
+    }
+
+    @Test
+    public void isSeenShouldBeTrueForSequencesTooOldForTheWindow() {
+        window.markSeen(SIZE * 2);
+
+        assertTrue(window.isSeen(SIZE - 1));
+        assertFalse(window.isSeen(SIZE + 1));
+    }
+}
@@ -0,0 +1,82 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import static org.junit.Assert.*;
+
+import net.usikkert.kouchat.junit.ExpectedException;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Test of {@link MessageSequencer}.
+ *
+ * @author Christian Ihle
+ */
+@SuppressWarnings("HardCodedStringLiteral")
+public class MessageSequencerTest {
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    private MessageSequencer sequencer;
+
+    @Before
+    public void setUp() {
+        sequencer = new MessageSequencer();
+    }
+
+    @Test
+    public void addSequenceShouldThrowExceptionIfMessageIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Message can not be null");
+
+        sequencer.addSequence(null);
+    }
+
+    @Test
+    public void addSequenceShouldCountUpForEachMessage() {
+        assertEquals("12345678.0!MSG#Niles:[-1]Hello!", sequencer.addSequence("12345678!MSG#Niles:[-1]Hello!"));
+        assertEquals("12345678.1!IDLE#Niles:", sequencer.addSequence("12345678!IDLE#Niles:"));
+        assertEquals("12345678.2!PRIVMSG#Niles:(100)[-1]Hi",
+                     sequencer.addSequence("12345678!PRIVMSG#Niles:(100)[-1]Hi"));
+    }
+
+    @Test
+    public void addSequenceShouldBeParsedByEnvelope() {
+        sequencer.addSequence("12345678!IDLE#Niles:");
+
+        final MessageEnvelope envelope = MessageEnvelope.parse(sequencer.addSequence("12345678!MSG#Niles:[-1]Hello"));
+
+        assertEquals(1, envelope.getSequence());
+        assertEquals("12345678!MSG#Niles:[-1]Hello", envelope.withoutSequence().getMessage());
+    }
+
+    @Test
+    public void addSequenceShouldNotChangeMessageWithoutHeader() {
+        assertEquals("Hello", sequencer.addSequence("Hello"));
+        assertEquals("12345678.0!IDLE#Niles:", sequencer.addSequence("12345678!IDLE#Niles:"));
+    }
+}
@@ -0,0 +1,195 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import net.usikkert.kouchat.junit.ExpectedException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Test of {@link NetworkEventLoop}.
+ *
+ * @author Christian Ihle
+ */
+@SuppressWarnings("HardCodedStringLiteral")
+public class NetworkEventLoopTest {
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    private NetworkEventLoop eventLoop;
+
+    @Before
+    public void setUp() {
+        eventLoop = new NetworkEventLoop();
+    }
+
+    @After
+    public void tearDown() {
+        eventLoop.stop();
+    }
+
+    @Test
+    public void executeShouldThrowExceptionIfTaskIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Task can not be null");
+
+        eventLoop.execute(null);
+    }
+
+    @Test
+    public void executeShouldRunTaskOnThreadOfEventLoop() throws IOException, InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final boolean[] inEventLoop = new boolean[1];
+
+        eventLoop.start();
+        assertTrue(eventLoop.isRunning());
+        assertFalse(eventLoop.inEventLoop());
+
+        eventLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                inEventLoop[0] = eventLoop.inEventLoop();
+                latch.countDown();
+            }
+        });
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertTrue(inEventLoop[0]);
+    }
+
+    @Test
+    public void registerShouldNotifyHandlerWhenChannelIsReady() throws IOException, InterruptedException {
+        final BlockingQueue<String> received = new LinkedBlockingQueue<>();
+        final DatagramChannel receiver = DatagramChannel.open();
+        receiver.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+
+        eventLoop.register(receiver, SelectionKey.OP_READ, new NetworkEventHandler() {
+            @Override
+            public void ready(final SelectionKey key) throws IOException {
+                final ByteBuffer buffer = ByteBuffer.allocate(100);
+
+                while (receiver.receive(buffer) != null) {
+                    buffer.flip();
+                    received.add(new String(buffer.array(), 0, buffer.limit(), "UTF-8"));
+                    buffer.clear();
+                }
+            }
+
+            @Override
+            public void failed(final IOException e) {
+                received.add("failed");
+            }
+        });
+
+        assertFalse(receiver.isBlocking());
+
+        try (final DatagramChannel sender = DatagramChannel.open()) {
+            sender.send(ByteBuffer.wrap("first".getBytes("UTF-8")), receiver.getLocalAddress());
+            sender.send(ByteBuffer.wrap("second".getBytes("UTF-8")), receiver.getLocalAddress());
+        }
+
+        assertEquals("first", received.poll(5, TimeUnit.SECONDS));
+        assertEquals("second", received.poll(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void handlerThatFailsShouldHaveChannelClosed() throws IOException, InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final DatagramChannel receiver = DatagramChannel.open();
+        receiver.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+
+        eventLoop.register(receiver, SelectionKey.OP_READ, new NetworkEventHandler() {
+            @Override
+            public void ready(final SelectionKey key) throws IOException {
+                throw new IOException("Broken");
+            }
+
+            @Override
+            public void failed(final IOException e) {
+                assertEquals("Broken", e.getMessage());
+                latch.countDown();
+            }
+        });
+
+        try (final DatagramChannel sender = DatagramChannel.open()) {
+            sender.send(ByteBuffer.wrap("data".getBytes("UTF-8")), receiver.getLocalAddress());
+        }
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertFalse(receiver.isOpen());
+    }
+
+    @Test
+    public void stopShouldCloseRegisteredChannels() throws IOException, InterruptedException {
+        final DatagramChannel receiver = DatagramChannel.open();
+        receiver.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+
+        eventLoop.register(receiver, SelectionKey.OP_READ, new NetworkEventHandler() {
+            @Override
+            public void ready(final SelectionKey key) {
+
+            }
+
+            @Override
+            public void failed(final IOException e) {
+
+            }
+        });
+
+        final CountDownLatch registered = new CountDownLatch(1);
+
+        eventLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                registered.countDown();
+            }
+        });
+
+        assertTrue(registered.await(5, TimeUnit.SECONDS));
+        eventLoop.stop();
+
+        for (int i = 0; i < 100 && receiver.isOpen(); i++) {
+            Thread.sleep(50);
+        }
+
+        assertFalse(receiver.isOpen());
+        assertFalse(eventLoop.isRunning());
+    }
+}
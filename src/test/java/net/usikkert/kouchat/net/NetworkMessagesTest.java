@@ -107,13 +107,13 @@ public class NetworkMessagesTest {
     /**
      * Tests sendClient().
      *
-     * Expects: 13132531!CLIENT#Christian:(KouChat v0.9.9-dev null)[134]{Linux}<2222>/4444\
+     * Expects: 13132531!CLIENT#Christian:(KouChat v0.9.9-dev null)[134]{Linux}<2222>/4444\|deflate,binary2,batch,tcptie,seq,ping,resume,streams,frag,framing,filecrc|
      */
     @Test
     public void testSendClientMessage() {
         final String startsWith = "(" + me.getClient() + ")[";
         final String middle = ".+\\)\\[\\d+\\]\\{.+"; // like:)[134[{
-        final String endsWidth = "]{" + me.getOperatingSystem() + "}<2222>/4444\\";
+        final String endsWidth = "]{" + me.getOperatingSystem() + "}<2222>/4444\\|deflate,binary2,batch,tcptie,seq,ping,resume,streams,frag,framing,filecrc|";
 
         messages.sendClient();
 
@@ -122,6 +122,48 @@ public class NetworkMessagesTest {
         verify(service).sendMessageToAllUsers(endsWith(endsWidth));
     }
 
+    /**
+     * Tests sendClient() with the binary protocol disabled.
+     *
+     * Expects: 13132531!CLIENT#Christian:(KouChat v0.9.9-dev null)[134]{Linux}<2222>/4444\|deflate,batch,tcptie,seq,ping,resume,streams,frag,framing,filecrc|
+     */
+    @Test
+    public void testSendClientMessageWithoutBinaryProtocol() {
+        when(settings.isNoBinaryProtocol()).thenReturn(true);
+
+        messages.sendClient();
+
+        verify(service).sendMessageToAllUsers(endsWith("}<2222>/4444\\|deflate,batch,tcptie,seq,ping,resume,streams,frag,framing,filecrc|"));
+    }
+
+    /**
+     * Tests sendClient() with the tcp relay topology enabled.
+     *
+     * Expects: 13132531!CLIENT#Christian:(KouChat v0.9.9-dev null)[134]{Linux}<2222>/4444\|deflate,binary2,batch,tcptie,seq,ping,resume,streams,frag,framing,filecrc,relay|
+     */
+    @Test
+    public void testSendClientMessageWithTcpRelay() {
+        when(settings.isTcpRelay()).thenReturn(true);
+
+        messages.sendClient();
+
+        verify(service).sendMessageToAllUsers(endsWith("}<2222>/4444\\|deflate,binary2,batch,tcptie,seq,ping,resume,streams,frag,framing,filecrc,relay|"));
+    }
+
+    /**
+     * Tests sendClient() with reliable multicast enabled.
+     *
+     * Expects: 13132531!CLIENT#Christian:(KouChat v0.9.9-dev null)[134]{Linux}<2222>/4444\|deflate,binary2,batch,tcptie,seq,ping,resume,streams,frag,framing,filecrc,nack|
+     */
+    @Test
+    public void testSendClientMessageWithReliableMulticast() {
+        when(service.isReliableMulticastEnabled()).thenReturn(true);
+
+        messages.sendClient();
+
+        verify(service).sendMessageToAllUsers(endsWith("}<2222>/4444\\|deflate,binary2,batch,tcptie,seq,ping,resume,streams,frag,framing,filecrc,nack|"));
+    }
+
     /**
      * Tests sendExposeMessage().
      *
@@ -219,6 +261,38 @@ public class NetworkMessagesTest {
         verify(service).sendMessageToAllUsers(createMessage("SENDFILEACCEPT") + info);
     }
 
+    /**
+     * Tests sendFileAccept() with a resume offset.
+     *
+     * Expects: 17247198!SENDFILEACCEPT#Christian:(4321)[20103]{8578765}1048576:3735928559/some_file.txt
+     *
+     * @throws CommandException In case the message could not be sent.
+     */
+    @Test
+    public void testSendFileAcceptMessageWithResumeOffset() throws CommandException {
+        final User user = new User("TestUser", 4321);
+
+        messages.sendFileAccept(user, 20103, 8578765, "some_file.txt", 1048576, 3735928559L, 1);
+        verify(service).sendMessageToAllUsers(createMessage("SENDFILEACCEPT") +
+                                                      "(4321)[20103]{8578765}1048576:3735928559/some_file.txt");
+    }
+
+    /**
+     * Tests sendFileAccept() with several connections.
+     *
+     * Expects: 17247198!SENDFILEACCEPT#Christian:(4321)[20103]{8578765}0:0:8/some_file.txt
+     *
+     * @throws CommandException In case the message could not be sent.
+     */
+    @Test
+    public void testSendFileAcceptMessageWithStreams() throws CommandException {
+        final User user = new User("TestUser", 4321);
+
+        messages.sendFileAccept(user, 20103, 8578765, "some_file.txt", 0, 0, 8);
+        verify(service).sendMessageToAllUsers(createMessage("SENDFILEACCEPT") +
+                                                      "(4321)[20103]{8578765}0:0:8/some_file.txt");
+    }
+
     /**
      * Tests sendGetTopicMessage().
      *
@@ -313,6 +387,48 @@ public class NetworkMessagesTest {
         verify(service).sendMessageToUser(createMessage("PRIVMSG") + message, user);
     }
 
+    /**
+     * Tests sendNack().
+     *
+     * Expects: 10897608!NACK#Christian:(435435)4,5,9
+     */
+    @Test
+    public void testSendNack() {
+        final User user = new User("TestUser", 435435);
+
+        messages.sendNack(user, "4,5,9");
+
+        verify(service).sendUdpMessageToUser(createMessage("NACK") + "(435435)4,5,9", user);
+    }
+
+    /**
+     * Tests sendPing().
+     *
+     * Expects: 10897608!PING#Christian:(435435)123456789
+     */
+    @Test
+    public void testSendPing() {
+        final User user = new User("TestUser", 435435);
+
+        messages.sendPing(user, 123456789);
+
+        verify(service).sendUdpMessageToUser(createMessage("PING") + "(435435)123456789", user);
+    }
+
+    /**
+     * Tests sendPong().
+     *
+     * Expects: 10897608!PONG#Christian:(435435)123456789
+     */
+    @Test
+    public void testSendPong() {
+        final User user = new User("TestUser", 435435);
+
+        messages.sendPong(user, "123456789");
+
+        verify(service).sendUdpMessageToUser(createMessage("PONG") + "(435435)123456789", user);
+    }
+
     /**
      * Tests sendStoppedWritingMessage().
      *
@@ -25,6 +25,9 @@ package net.usikkert.kouchat.net;
 import static org.junit.Assert.*;
 import static org.mockito.Mockito.*;
 
+import java.io.IOException;
+import java.util.Collections;
+
 import net.usikkert.kouchat.junit.ExpectedException;
 import net.usikkert.kouchat.misc.Controller;
 import net.usikkert.kouchat.misc.ErrorHandler;
@@ -106,6 +109,32 @@ public class NetworkServiceTest {
         assertNull(TestUtils.getFieldValue(networkService, UDPSender.class, "udpSender"));
     }
 
+    @Test
+    public void isReliableMulticastEnabledShouldBeTrueWhenEnabledWithPrivateChat() {
+        when(settings.isReliableMulticast()).thenReturn(true);
+
+        final NetworkService networkService = new NetworkService(controller, settings, errorHandler);
+
+        assertTrue(networkService.isReliableMulticastEnabled());
+    }
+
+    @Test
+    public void isReliableMulticastEnabledShouldBeFalseWhenPrivateChatDisabled() {
+        when(settings.isReliableMulticast()).thenReturn(true);
+        when(settings.isNoPrivateChat()).thenReturn(true);
+
+        final NetworkService networkService = new NetworkService(controller, settings, errorHandler);
+
+        assertFalse(networkService.isReliableMulticastEnabled());
+    }
+
+    @Test
+    public void isReliableMulticastEnabledShouldBeFalseWhenNotEnabled() {
+        final NetworkService networkService = new NetworkService(controller, settings, errorHandler);
+
+        assertFalse(networkService.isReliableMulticastEnabled());
+    }
+
     @Test
     public void registerPrivateChatReceiverListenerShouldNotFailWhenPrivateChatDisabled() {
         when(settings.isNoPrivateChat()).thenReturn(true);
@@ -115,6 +144,52 @@ public class NetworkServiceTest {
         networkService.registerPrivateChatReceiverListener(null);
     }
 
+    @Test
+    public void registerReceiverListenersShouldNotCreateInboundQueuesByDefault() {
+        final NetworkService networkService = new NetworkService(controller, settings, errorHandler);
+
+        networkService.registerMainChatMessageReceiverListener(mock(MessageParser.class));
+        networkService.registerPrivateChatReceiverListener(mock(PrivateMessageParser.class));
+
+        assertNull(networkService.getMainChatInboundQueue());
+        assertNull(networkService.getPrivateChatInboundQueue());
+    }
+
+    @Test
+    public void registerReceiverListenersShouldCreateInboundQueuesWithPolicyFromSettings() {
+        when(settings.getInboundQueue()).thenReturn("block");
+
+        final NetworkService networkService = new NetworkService(controller, settings, errorHandler);
+
+        networkService.registerMainChatMessageReceiverListener(mock(MessageParser.class));
+        networkService.registerPrivateChatReceiverListener(mock(PrivateMessageParser.class));
+
+        final InboundMessageQueue mainChatInboundQueue = networkService.getMainChatInboundQueue();
+        final InboundMessageQueue privateChatInboundQueue = networkService.getPrivateChatInboundQueue();
+
+        assertEquals(InboundMessageQueue.OverflowPolicy.BLOCK, mainChatInboundQueue.getOverflowPolicy());
+        assertEquals(InboundMessageQueue.OverflowPolicy.BLOCK, privateChatInboundQueue.getOverflowPolicy());
+        assertTrue(mainChatInboundQueue.isRunning());
+        assertTrue(privateChatInboundQueue.isRunning());
+
+        mainChatInboundQueue.stop();
+        privateChatInboundQueue.stop();
+    }
+
+    @Test
+    public void registerReceiverListenersShouldUseDropPolicyIfPolicyIsUnknown() {
+        when(settings.getInboundQueue()).thenReturn("wait");
+
+        final NetworkService networkService = new NetworkService(controller, settings, errorHandler);
+
+        networkService.registerMainChatMessageReceiverListener(mock(MessageParser.class));
+
+        final InboundMessageQueue mainChatInboundQueue = networkService.getMainChatInboundQueue();
+        assertEquals(InboundMessageQueue.OverflowPolicy.DROP, mainChatInboundQueue.getOverflowPolicy());
+
+        mainChatInboundQueue.stop();
+    }
+
     @Test
     public void beforeNetworkCameUpShouldDoNothing() {
         final NetworkService networkService = new NetworkService(controller, settings, errorHandler);
@@ -140,6 +215,21 @@ public class NetworkServiceTest {
         networkService.networkWentDown(false);
     }
 
+    @Test
+    public void networkWentDownShouldStopTheEventLoop() throws IOException {
+        when(settings.isNoPrivateChat()).thenReturn(true);
+        when(settings.isNioSelector()).thenReturn(true);
+
+        final NetworkService networkService = new NetworkService(controller, settings, errorHandler);
+        final NetworkEventLoop eventLoop = TestUtils.getFieldValue(networkService, NetworkEventLoop.class, "eventLoop");
+        eventLoop.start();
+        assertTrue(eventLoop.isRunning());
+
+        networkService.networkWentDown(false);
+
+        assertFalse(eventLoop.isRunning());
+    }
+
     @Test
     public void sendMessageToUserShouldNotSendMessageWhenPrivateChatDisabled() {
         when(settings.isNoPrivateChat()).thenReturn(true);
@@ -150,4 +240,32 @@ public class NetworkServiceTest {
         final boolean messageSent = networkService.sendMessageToUser("Nothing", user);
         assertFalse(messageSent);
     }
+
+    @Test
+    public void isFragmentSupportedByAllUsersShouldHandleUsersRemovedWhileChecking() {
+        final User user = new User("User", 111);
+        user.setCapabilities(Collections.singleton(ClientCapability.FRAGMENT));
+
+        final UserList userList = mock(UserList.class);
+        when(userList.size()).thenReturn(3);
+        when(userList.get(0)).thenReturn(user);
+        when(userList.get(1)).thenReturn(null);
+        when(userList.get(2)).thenReturn(null);
+        when(controller.getUserList()).thenReturn(userList);
+
+        final NetworkService networkService = new NetworkService(controller, settings, errorHandler);
+
+        assertTrue(networkService.isFragmentSupportedByAllUsers());
+    }
+
+    @Test
+    public void isFragmentSupportedByAllUsersShouldBeFalseIfAllUsersAreRemovedWhileChecking() {
+        final UserList userList = mock(UserList.class);
+        when(userList.size()).thenReturn(2);
+        when(controller.getUserList()).thenReturn(userList);
+
+        final NetworkService networkService = new NetworkService(controller, settings, errorHandler);
+
+        assertFalse(networkService.isFragmentSupportedByAllUsers());
+    }
 }
@@ -0,0 +1,351 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import net.usikkert.kouchat.junit.ExpectedException;
+import net.usikkert.kouchat.misc.Controller;
+import net.usikkert.kouchat.misc.SortedUserList;
+import net.usikkert.kouchat.misc.User;
+import net.usikkert.kouchat.misc.UserList;
+import net.usikkert.kouchat.net.tcp.TCPNetworkService;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Test of {@link PeerLinkMonitor}.
+ *
+ * @author Christian Ihle
+ */
+@SuppressWarnings("HardCodedStringLiteral")
+public class PeerLinkMonitorTest {
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    private PeerLinkMonitor monitor;
+
+    private ScheduledExecutorService scheduler;
+    private NetworkMessages networkMessages;
+    private TCPNetworkService tcpNetworkService;
+    private Controller controller;
+    private PeerLinkListener listener;
+
+    private User me;
+    private User niles;
+
+    @Before
+    public void setUp() {
+        scheduler = mock(ScheduledExecutorService.class);
+        networkMessages = mock(NetworkMessages.class);
+        tcpNetworkService = mock(TCPNetworkService.class);
+        controller = mock(Controller.class);
+        listener = mock(PeerLinkListener.class);
+
+        me = new User("Me", 100);
+        me.setMe(true);
+
+        niles = new User("Niles", 200);
+        niles.setIpAddress("192.168.1.2");
+        niles.setPrivateChatPort(5000);
+        niles.setCapabilities(new HashSet<>(Arrays.asList(ClientCapability.SEQUENCE, ClientCapability.PING)));
+
+        final UserList userList = new SortedUserList();
+        userList.add(me);
+        userList.add(niles);
+
+        when(controller.getUserList()).thenReturn(userList);
+        when(controller.getUser(100)).thenReturn(me);
+        when(controller.getUser(200)).thenReturn(niles);
+
+        monitor = new PeerLinkMonitor(scheduler, networkMessages, tcpNetworkService, controller);
+        monitor.registerPeerLinkListener(listener);
+        monitor.connect();
+    }
+
+    @Test
+    public void constructorShouldThrowExceptionIfSchedulerIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Scheduler can not be null");
+
+        new PeerLinkMonitor(null, networkMessages, tcpNetworkService, controller);
+    }
+
+    @Test
+    public void constructorShouldThrowExceptionIfNetworkMessagesIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Network messages can not be null");
+
+        new PeerLinkMonitor(scheduler, null, tcpNetworkService, controller);
+    }
+
+    @Test
+    public void constructorShouldThrowExceptionIfTcpNetworkServiceIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("TCP network service can not be null");
+
+        new PeerLinkMonitor(scheduler, networkMessages, null, controller);
+    }
+
+    @Test
+    public void constructorShouldThrowExceptionIfControllerIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Controller can not be null");
+
+        new PeerLinkMonitor(scheduler, networkMessages, tcpNetworkService, null);
+    }
+
+    @Test
+    public void constructorShouldScheduleProbes() {
+        verify(scheduler).scheduleWithFixedDelay(monitor, LinkQuality.PROBE_INTERVAL, LinkQuality.PROBE_INTERVAL,
+                                                 TimeUnit.MILLISECONDS);
+    }
+
+    @Test
+    public void runShouldProbeUsersThatSupportIt() {
+        monitor.run();
+
+        verify(networkMessages).sendPing(eq(niles), anyLong());
+        verifyNoMoreInteractions(networkMessages);
+    }
+
+    @Test
+    public void runShouldNotProbeUsersWithoutSupportOrPrivateChat() {
+        niles.setCapabilities(new HashSet<>(Arrays.asList(ClientCapability.SEQUENCE)));
+        monitor.run();
+
+        niles.setCapabilities(new HashSet<>(Arrays.asList(ClientCapability.PING)));
+        niles.setPrivateChatPort(0);
+        monitor.run();
+
+        verifyZeroInteractions(networkMessages);
+    }
+
+    @Test
+    public void runShouldSkipUsersRemovedWhileProbing() {
+        final UserList userList = mock(UserList.class);
+        when(userList.size()).thenReturn(3);
+        when(userList.get(0)).thenReturn(niles);
+        when(controller.getUserList()).thenReturn(userList);
+
+        monitor.run();
+
+        verify(networkMessages).sendPing(eq(niles), anyLong());
+        verifyNoMoreInteractions(networkMessages);
+    }
+
+    @Test
+    public void runShouldNotProbeWhenDisconnected() {
+        monitor.disconnect();
+        monitor.run();
+
+        verifyZeroInteractions(networkMessages);
+    }
+
+    @Test
+    public void pingShouldBeAnsweredWithPongWithTheSameTime() {
+        monitor.probeArrived(MessageEnvelope.parse("200!PING#Niles:(100)12345"), "192.168.1.20");
+
+        verify(networkMessages).sendPong(niles, "12345");
+    }
+
+    @Test
+    public void pingFromUnknownUserShouldBeIgnored() {
+        monitor.probeArrived(MessageEnvelope.parse("300!PING#Tina:(100)12345"), "192.168.1.3");
+
+        verifyZeroInteractions(networkMessages);
+    }
+
+    @Test
+    public void pongShouldMeasureTheUdpLink() {
+        assertNull(monitor.getUdpLinkQuality(niles));
+
+        monitor.probeArrived(MessageEnvelope.parse("200!PONG#Niles:(100)" + System.nanoTime()), "192.168.1.2");
+
+        final LinkQuality udpLink = monitor.getUdpLinkQuality(niles);
+        assertNotNull(udpLink);
+        assertTrue(udpLink.hasSamples());
+    }
+
+    @Test
+    public void invalidPongShouldBeIgnored() {
+        monitor.probeArrived(MessageEnvelope.parse("200!PONG#Niles:(100)abc"), "192.168.1.2");
+
+        assertNull(monitor.getUdpLinkQuality(niles));
+    }
+
+    @Test
+    public void userThatStopsAnsweringShouldBeReportedAsUnreachableOnce() {
+        pong();
+
+        for (int i = 0; i <= LinkQuality.DEAD_AFTER_MISSES; i++) {
+            monitor.run();
+        }
+
+        verifyZeroInteractions(listener);
+
+        monitor.run();
+        monitor.run();
+
+        verify(listener, times(1)).peerUnreachable(niles);
+    }
+
+    @Test
+    public void userShouldBeReportedAgainAfterAnsweringAndThenStoppingAgain() {
+        pong();
+        runUntilDead();
+        monitor.run();
+
+        pong();
+        runUntilDead();
+        monitor.run();
+
+        verify(listener, times(2)).peerUnreachable(niles);
+    }
+
+    @Test
+    public void userThatNeverAnsweredShouldNotBeReportedAsUnreachable() {
+        for (int i = 0; i < 10; i++) {
+            monitor.run();
+        }
+
+        verifyZeroInteractions(listener);
+    }
+
+    @Test
+    public void userWithWorkingTcpConnectionShouldNotBeReportedAsUnreachable() {
+        niles.setTcpEnabled(true);
+        when(tcpNetworkService.getLinkQuality(niles)).thenReturn(answeredLink(1000));
+
+        pong();
+
+        for (int i = 0; i < 10; i++) {
+            monitor.run();
+        }
+
+        verifyZeroInteractions(listener);
+    }
+
+    @Test
+    public void selectPrivatePathShouldUseBothWithoutTcpOrSequence() {
+        assertEquals(PeerLinkMonitor.Path.BOTH, monitor.selectPrivatePath(niles));
+
+        niles.setTcpEnabled(true);
+        niles.setCapabilities(new HashSet<>(Arrays.asList(ClientCapability.PING)));
+        when(tcpNetworkService.getLinkQuality(niles)).thenReturn(answeredLink(1000));
+        pong();
+
+        assertEquals(PeerLinkMonitor.Path.BOTH, monitor.selectPrivatePath(niles));
+    }
+
+    @Test
+    public void selectPrivatePathShouldUseBothUntilBothPathsAreMeasured() {
+        niles.setTcpEnabled(true);
+        when(tcpNetworkService.getLinkQuality(niles)).thenReturn(answeredLink(1000));
+
+        assertEquals(PeerLinkMonitor.Path.BOTH, monitor.selectPrivatePath(niles));
+
+        when(tcpNetworkService.getLinkQuality(niles)).thenReturn(new LinkQuality());
+        pong();
+
+        assertEquals(PeerLinkMonitor.Path.BOTH, monitor.selectPrivatePath(niles));
+    }
+
+    @Test
+    public void selectPrivatePathShouldPreferTcpWhenBothAreHealthy() {
+        niles.setTcpEnabled(true);
+        when(tcpNetworkService.getLinkQuality(niles)).thenReturn(answeredLink(1));
+        pong();
+
+        assertEquals(PeerLinkMonitor.Path.TCP, monitor.selectPrivatePath(niles));
+    }
+
+    @Test
+    public void selectPrivatePathShouldUseUdpWhenTcpIsMuchSlower() {
+        niles.setTcpEnabled(true);
+        when(tcpNetworkService.getLinkQuality(niles)).thenReturn(answeredLink(Long.MAX_VALUE / 8));
+        pong();
+
+        assertEquals(PeerLinkMonitor.Path.UDP, monitor.selectPrivatePath(niles));
+    }
+
+    @Test
+    public void selectPrivatePathShouldAvoidTheUnhealthyPath() {
+        niles.setTcpEnabled(true);
+        final LinkQuality tcpLink = answeredLink(1000);
+        when(tcpNetworkService.getLinkQuality(niles)).thenReturn(tcpLink);
+        pong();
+
+        runUntilDead();
+        assertEquals(PeerLinkMonitor.Path.TCP, monitor.selectPrivatePath(niles));
+
+        // The loss goes down as probes are answered again
+        for (int i = 0; i < 10; i++) {
+            monitor.run();
+            pong();
+        }
+
+        assertEquals(PeerLinkMonitor.Path.TCP, monitor.selectPrivatePath(niles));
+
+        makeDead(tcpLink);
+        assertEquals(PeerLinkMonitor.Path.UDP, monitor.selectPrivatePath(niles));
+
+        runUntilDead();
+        assertEquals(PeerLinkMonitor.Path.BOTH, monitor.selectPrivatePath(niles));
+    }
+
+    private void pong() {
+        monitor.probeArrived(MessageEnvelope.parse("200!PONG#Niles:(100)" + System.nanoTime()), "192.168.1.2");
+    }
+
+    private void runUntilDead() {
+        for (int i = 0; i <= LinkQuality.DEAD_AFTER_MISSES; i++) {
+            monitor.run();
+        }
+
+        assertTrue(monitor.getUdpLinkQuality(niles).isDead());
+    }
+
+    private LinkQuality answeredLink(final long rtt) {
+        final LinkQuality linkQuality = new LinkQuality();
+        linkQuality.probeSent();
+        linkQuality.answered(rtt);
+
+        return linkQuality;
+    }
+
+    private void makeDead(final LinkQuality linkQuality) {
+        for (int i = 0; i <= LinkQuality.DEAD_AFTER_MISSES; i++) {
+            linkQuality.probeSent();
+        }
+    }
+}
@@ -0,0 +1,224 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import net.usikkert.kouchat.event.ReceiverListener;
+import net.usikkert.kouchat.junit.ExpectedException;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Test of {@link ReceivedDatagram}.
+ *
+ * @author Christian Ihle
+ */
+@SuppressWarnings("HardCodedStringLiteral")
+public class ReceivedDatagramTest {
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    private ByteBufferPool directPool;
+    private ByteBufferPool heapPool;
+
+    @Before
+    public void setUp() {
+        directPool = new ByteBufferPool(10, 512, true);
+        heapPool = new ByteBufferPool(10, 512, false);
+    }
+
+    @Test
+    public void constructorShouldThrowExceptionIfBufferIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Buffer can not be null");
+
+        new ReceivedDatagram(null, "192.168.1.1", directPool);
+    }
+
+    @Test
+    public void constructorShouldThrowExceptionIfIpAddressIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("IP address can not be null");
+
+        new ReceivedDatagram(ByteBuffer.allocate(10), null, directPool);
+    }
+
+    @Test
+    public void constructorShouldThrowExceptionIfBufferPoolIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Buffer pool can not be null");
+
+        new ReceivedDatagram(ByteBuffer.allocate(10), "192.168.1.1", null);
+    }
+
+    @Test
+    public void getMessageShouldDecodeOnlyReceivedBytesFromDirectBuffer() {
+        final ReceivedDatagram datagram = createDatagram(directPool, "1234!MSG#Nick:[-1]Hei på deg");
+
+        assertEquals("1234!MSG#Nick:[-1]Hei på deg", datagram.getMessage());
+        assertEquals("192.168.1.1", datagram.getIpAddress());
+    }
+
+    @Test
+    public void getMessageShouldDecodeOnlyReceivedBytesFromHeapBuffer() {
+        final ReceivedDatagram datagram = createDatagram(heapPool, "1234!MSG#Nick:[-1]Hei på deg");
+
+        assertEquals("1234!MSG#Nick:[-1]Hei på deg", datagram.getMessage());
+    }
+
+    @Test
+    public void getMessageShouldDecompressCompressedDatagramFromDirectBuffer() throws UnsupportedEncodingException {
+        final byte[] compressed = new MessageCompressor().encode("1234!MSG#Nick:[-1]Hei på deg, hei på deg");
+        final ReceivedDatagram datagram = createDatagram(directPool, compressed);
+
+        assertEquals(MessageCompressor.COMPRESSED_MARKER, compressed[0]);
+        assertEquals("1234!MSG#Nick:[-1]Hei på deg, hei på deg", datagram.getMessage());
+    }
+
+    @Test
+    public void getMessageShouldDecompressCompressedDatagramFromHeapBuffer() throws UnsupportedEncodingException {
+        final byte[] compressed = new MessageCompressor().encode("1234!IDLE#Nick:(1234)[44]{0}");
+        final ReceivedDatagram datagram = createDatagram(heapPool, compressed);
+
+        assertEquals(MessageCompressor.COMPRESSED_MARKER, compressed[0]);
+        assertEquals("1234!IDLE#Nick:(1234)[44]{0}", datagram.getMessage());
+    }
+
+    @Test
+    public void getMessageShouldDecodeBinaryDatagramFromDirectBuffer() {
+        final byte[] binary = new BinaryMessageEncoder().encode("1234!MSG#Nick:[-1]Hei på deg, hei på deg");
+        final ReceivedDatagram datagram = createDatagram(directPool, binary);
+
+        assertEquals(BinaryMessageEncoder.BINARY_MARKER, binary[0]);
+        assertEquals("1234!MSG#:[-1]Hei på deg, hei på deg", datagram.getMessage());
+    }
+
+    @Test
+    public void getMessageShouldDecodeBinaryDatagramFromHeapBuffer() {
+        final byte[] binary = new BinaryMessageEncoder().encode("1234!NICK#Nick:");
+        final ReceivedDatagram datagram = createDatagram(heapPool, binary);
+
+        assertEquals(BinaryMessageEncoder.BINARY_MARKER, binary[0]);
+        assertEquals("1234!NICK#Nick:", datagram.getMessage());
+    }
+
+    @Test
+    public void getMessageShouldTrimWhitespaceLikeTheOriginalReceivers() {
+        final ReceivedDatagram datagram = createDatagram(directPool, " 1234!IDLE#Nick: \n");
+
+        assertEquals("1234!IDLE#Nick:", datagram.getMessage());
+    }
+
+    @Test
+    public void getMessageShouldReturnSameInstanceOnEveryCall() {
+        final ReceivedDatagram datagram = createDatagram(directPool, "1234!IDLE#Nick:");
+
+        assertSame(datagram.getMessage(), datagram.getMessage());
+    }
+
+    @Test
+    public void getMessageShouldWorkAfterReleaseIfAlreadyDecoded() {
+        final ReceivedDatagram datagram = createDatagram(directPool, "1234!IDLE#Nick:");
+        datagram.getMessage();
+        datagram.release();
+
+        assertEquals("1234!IDLE#Nick:", datagram.getMessage());
+    }
+
+    @Test
+    public void getMessageShouldThrowExceptionIfReleasedBeforeDecoding() {
+        final ReceivedDatagram datagram = createDatagram(directPool, "1234!IDLE#Nick:");
+        datagram.release();
+
+        expectedException.expect(IllegalStateException.class);
+        expectedException.expectMessage("Datagram is already released");
+
+        datagram.getMessage();
+    }
+
+    @Test
+    public void getBufferShouldReturnReadOnlyViewOfReceivedBytes() {
+        final ReceivedDatagram datagram = createDatagram(directPool, "1234!IDLE#Nick:");
+
+        final ByteBuffer buffer = datagram.getBuffer();
+
+        assertTrue(buffer.isReadOnly());
+        assertEquals(15, buffer.remaining());
+        assertEquals(15, datagram.getLength());
+        assertEquals('1', buffer.get(0));
+    }
+
+    @Test
+    public void releaseShouldReturnBufferToPoolOnlyOnce() {
+        final ReceivedDatagram datagram = createDatagram(directPool, "1234!IDLE#Nick:");
+
+        datagram.release();
+        datagram.release();
+
+        assertEquals(1, directPool.getAvailable());
+    }
+
+    @Test
+    public void deliverToShouldDecodeAndReleaseForNormalListener() {
+        final ReceiverListener listener = mock(ReceiverListener.class);
+        final ReceivedDatagram datagram = createDatagram(directPool, "1234!IDLE#Nick:");
+
+        datagram.deliverTo(listener);
+
+        verify(listener).messageArrived("1234!IDLE#Nick:", "192.168.1.1");
+        assertEquals(1, directPool.getAvailable());
+    }
+
+    @Test
+    public void deliverToShouldGiveDatagramToDatagramListenerWithoutReleasing() {
+        final DatagramReceiverListener listener = mock(DatagramReceiverListener.class);
+        final ReceivedDatagram datagram = createDatagram(directPool, "1234!IDLE#Nick:");
+
+        datagram.deliverTo(listener);
+
+        verify(listener).datagramArrived(datagram);
+        verify(listener, never()).messageArrived(anyString(), anyString());
+        assertEquals(0, directPool.getAvailable());
+    }
+
+    private ReceivedDatagram createDatagram(final ByteBufferPool pool, final String message) {
+        return createDatagram(pool, message.getBytes(Charset.forName("UTF-8")));
+    }
+
+    private ReceivedDatagram createDatagram(final ByteBufferPool pool, final byte[] bytes) {
+        final ByteBuffer buffer = pool.acquire();
+        buffer.put(bytes);
+        buffer.flip();
+
+        return new ReceivedDatagram(buffer, "192.168.1.1", pool);
+    }
+}
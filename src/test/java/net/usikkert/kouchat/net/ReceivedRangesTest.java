@@ -0,0 +1,126 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * Test of {@link ReceivedRanges}.
+ *
+ * @author Christian Ihle
+ */
+public class ReceivedRangesTest {
+
+    @Test
+    public void shouldStartWithTheGivenCompletePrefix() {
+        final ReceivedRanges ranges = new ReceivedRanges(1000);
+
+        assertEquals(1000, ranges.getCompletePrefix());
+        assertEquals(0, ranges.getGaps());
+    }
+
+    @Test
+    public void addShouldExtendTheCompletePrefixWhenAddedInOrder() {
+        final ReceivedRanges ranges = new ReceivedRanges(0);
+
+        ranges.add(0, 100);
+        ranges.add(100, 250);
+
+        assertEquals(250, ranges.getCompletePrefix());
+        assertEquals(0, ranges.getGaps());
+    }
+
+    @Test
+    public void addShouldKeepRangesAfterAGap() {
+        final ReceivedRanges ranges = new ReceivedRanges(0);
+
+        ranges.add(200, 300);
+        ranges.add(500, 600);
+
+        assertEquals(0, ranges.getCompletePrefix());
+        assertEquals(2, ranges.getGaps());
+    }
+
+    @Test
+    public void addShouldMergeTouchingRanges() {
+        final ReceivedRanges ranges = new ReceivedRanges(0);
+
+        ranges.add(200, 300);
+        ranges.add(400, 500);
+        ranges.add(300, 400);
+
+        assertEquals(1, ranges.getGaps());
+        assertEquals(0, ranges.getCompletePrefix());
+    }
+
+    @Test
+    public void addShouldMergeOverlappingRanges() {
+        final ReceivedRanges ranges = new ReceivedRanges(0);
+
+        ranges.add(200, 300);
+        ranges.add(250, 350);
+        ranges.add(150, 210);
+
+        assertEquals(1, ranges.getGaps());
+
+        ranges.add(0, 150);
+
+        assertEquals(350, ranges.getCompletePrefix());
+        assertEquals(0, ranges.getGaps());
+    }
+
+    @Test
+    public void addShouldMergeEveryRangeWhenTheGapIsFilled() {
+        final ReceivedRanges ranges = new ReceivedRanges(100);
+
+        ranges.add(300, 400);
+        ranges.add(200, 300);
+        ranges.add(500, 600);
+
+        assertEquals(100, ranges.getCompletePrefix());
+        assertEquals(2, ranges.getGaps());
+
+        ranges.add(100, 200);
+
+        assertEquals(400, ranges.getCompletePrefix());
+        assertEquals(1, ranges.getGaps());
+
+        ranges.add(400, 500);
+
+        assertEquals(600, ranges.getCompletePrefix());
+        assertEquals(0, ranges.getGaps());
+    }
+
+    @Test
+    public void addShouldIgnoreRangesInsideTheCompletePrefix() {
+        final ReceivedRanges ranges = new ReceivedRanges(0);
+
+        ranges.add(0, 1000);
+        ranges.add(200, 300);
+
+        assertEquals(1000, ranges.getCompletePrefix());
+        assertEquals(0, ranges.getGaps());
+    }
+}
@@ -0,0 +1,340 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import net.usikkert.kouchat.junit.ExpectedException;
+import net.usikkert.kouchat.misc.Controller;
+import net.usikkert.kouchat.misc.User;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+/**
+ * Test of {@link ReliableMulticast}.
+ *
+ * @author Christian Ihle
+ */
+@SuppressWarnings("HardCodedStringLiteral")
+public class ReliableMulticastTest {
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    private ReliableMulticast reliableMulticast;
+
+    private ScheduledExecutorService scheduler;
+    private MessageSender messageSender;
+    private NetworkMessages networkMessages;
+    private MessageDeduplicator messageDeduplicator;
+    private Controller controller;
+    private User me;
+    private Random random;
+
+    private List<Runnable> scheduledTasks;
+    private List<Long> scheduledDelays;
+
+    private User niles;
+
+    @Before
+    public void setUp() {
+        scheduler = mock(ScheduledExecutorService.class);
+        messageSender = mock(MessageSender.class);
+        networkMessages = mock(NetworkMessages.class);
+        messageDeduplicator = mock(MessageDeduplicator.class);
+        controller = mock(Controller.class);
+        random = mock(Random.class);
+
+        scheduledTasks = new ArrayList<>();
+        scheduledDelays = new ArrayList<>();
+
+        doAnswer(new Answer<ScheduledFuture<?>>() {
+            @Override
+            public ScheduledFuture<?> answer(final InvocationOnMock invocation) {
+                scheduledTasks.add((Runnable) invocation.getArguments()[0]);
+                scheduledDelays.add((Long) invocation.getArguments()[1]);
+                assertEquals(TimeUnit.MILLISECONDS, invocation.getArguments()[2]);
+
+                return null;
+            }
+        }).when(scheduler).schedule(any(Runnable.class), anyLong(), any(TimeUnit.class));
+
+        me = new User("Me", 100);
+        me.setMe(true);
+
+        niles = new User("Niles", 200);
+        niles.setIpAddress("192.168.1.2");
+        niles.setPrivateChatPort(5000);
+        niles.setCapabilities(new HashSet<>(Arrays.asList(ClientCapability.SEQUENCE, ClientCapability.NACK)));
+
+        when(controller.getUser(100)).thenReturn(me);
+        when(controller.getUser(200)).thenReturn(niles);
+
+        reliableMulticast = new ReliableMulticast(scheduler, messageSender, networkMessages, messageDeduplicator,
+                                                  controller, random);
+    }
+
+    @Test
+    public void constructorShouldThrowExceptionIfSchedulerIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Scheduler can not be null");
+
+        new ReliableMulticast(null, messageSender, networkMessages, messageDeduplicator, controller, random);
+    }
+
+    @Test
+    public void constructorShouldThrowExceptionIfMessageSenderIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Message sender can not be null");
+
+        new ReliableMulticast(scheduler, null, networkMessages, messageDeduplicator, controller, random);
+    }
+
+    @Test
+    public void constructorShouldThrowExceptionIfNetworkMessagesIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Network messages can not be null");
+
+        new ReliableMulticast(scheduler, messageSender, null, messageDeduplicator, controller, random);
+    }
+
+    @Test
+    public void constructorShouldThrowExceptionIfMessageDeduplicatorIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Message deduplicator can not be null");
+
+        new ReliableMulticast(scheduler, messageSender, networkMessages, null, controller, random);
+    }
+
+    @Test
+    public void constructorShouldThrowExceptionIfControllerIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Controller can not be null");
+
+        new ReliableMulticast(scheduler, messageSender, networkMessages, messageDeduplicator, null, random);
+    }
+
+    @Test
+    public void constructorShouldThrowExceptionIfRandomIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Random can not be null");
+
+        new ReliableMulticast(scheduler, messageSender, networkMessages, messageDeduplicator, controller, null);
+    }
+
+    @Test
+    public void nackArrivedShouldSendTheKeptMessagesAgain() {
+        reliableMulticast.messageSent("100.4!MSG#Me:[-1]Hello", true, false, false);
+        reliableMulticast.messageSent("100.5!MSG#Me:[-1]Hello again", false, true, true);
+
+        reliableMulticast.nackArrived(MessageEnvelope.parse("200!NACK#Niles:(100)4,5,6"), "192.168.1.2");
+
+        verify(messageSender).send("100.4!MSG#Me:[-1]Hello", true, false, false);
+        verify(messageSender).send("100.5!MSG#Me:[-1]Hello again", false, true, true);
+        verifyNoMoreInteractions(messageSender);
+    }
+
+    @Test
+    public void nackArrivedShouldNotSendTheSameMessageTwiceRightAway() {
+        reliableMulticast.messageSent("100.4!MSG#Me:[-1]Hello", false, false, false);
+
+        reliableMulticast.nackArrived(MessageEnvelope.parse("200!NACK#Niles:(100)4"), "192.168.1.2");
+        reliableMulticast.nackArrived(MessageEnvelope.parse("300!NACK#Tina:(100)4"), "192.168.1.3");
+
+        verify(messageSender, times(1)).send("100.4!MSG#Me:[-1]Hello", false, false, false);
+    }
+
+    @Test
+    public void nackArrivedShouldIgnoreBadSequences() {
+        reliableMulticast.messageSent("100.4!MSG#Me:[-1]Hello", false, false, false);
+
+        reliableMulticast.nackArrived(MessageEnvelope.parse("200!NACK#Niles:(100)4,x"), "192.168.1.2");
+        reliableMulticast.nackArrived(MessageEnvelope.parse("200!NACK#Niles:(100)"), "192.168.1.2");
+
+        verify(messageSender).send("100.4!MSG#Me:[-1]Hello", false, false, false);
+    }
+
+    @Test
+    public void messageSentShouldIgnoreMessagesWithoutSequence() {
+        reliableMulticast.messageSent("100!MSG#Me:[-1]Hello", false, false, false);
+
+        reliableMulticast.nackArrived(MessageEnvelope.parse("200!NACK#Niles:(100)0"), "192.168.1.2");
+
+        verifyZeroInteractions(messageSender);
+    }
+
+    @Test
+    public void messagesMissingShouldSendNackAfterRandomDelay() {
+        when(random.nextDouble()).thenReturn(0.5);
+
+        reliableMulticast.messagesMissing(200, 2, 4);
+
+        assertEquals(1, scheduledTasks.size());
+        assertEquals(Long.valueOf(40), scheduledDelays.get(0));
+        verifyZeroInteractions(networkMessages);
+        assertTrue(reliableMulticast.hasLostMessages(200));
+
+        scheduledTasks.get(0).run();
+
+        verify(networkMessages).sendNack(niles, "2,3,4");
+    }
+
+    @Test
+    public void messagesMissingShouldOnlyScheduleOneNackForEachUser() {
+        reliableMulticast.messagesMissing(200, 2, 2);
+        reliableMulticast.messagesMissing(200, 5, 6);
+
+        assertEquals(1, scheduledTasks.size());
+
+        scheduledTasks.get(0).run();
+
+        verify(networkMessages).sendNack(niles, "2,5,6");
+    }
+
+    @Test
+    public void messagesMissingShouldNotAskForMessagesThatArrivedWhileWaiting() {
+        when(messageDeduplicator.isSeen(200, 3)).thenReturn(true);
+
+        reliableMulticast.messagesMissing(200, 2, 4);
+        scheduledTasks.get(0).run();
+
+        verify(networkMessages).sendNack(niles, "2,4");
+    }
+
+    @Test
+    public void messagesMissingShouldNotSendNackWhenAllMessagesArrivedWhileWaiting() {
+        when(messageDeduplicator.isSeen(eq(200), anyLong())).thenReturn(true);
+
+        reliableMulticast.messagesMissing(200, 2, 4);
+        scheduledTasks.get(0).run();
+
+        verifyZeroInteractions(networkMessages);
+        assertEquals(1, scheduledTasks.size());
+        assertFalse(reliableMulticast.hasLostMessages(200));
+    }
+
+    @Test
+    public void messagesMissingShouldAskAgainWithLongerDelayAndThenGiveUp() {
+        reliableMulticast.messagesMissing(200, 2, 2);
+
+        for (int attempt = 1; attempt <= ReliableMulticast.MAX_NACK_ATTEMPTS; attempt++) {
+            scheduledTasks.get(attempt - 1).run();
+
+            verify(networkMessages, times(attempt)).sendNack(niles, "2");
+            assertEquals(Long.valueOf(ReliableMulticast.NACK_RETRY_DELAY << (attempt - 1)),
+                         scheduledDelays.get(attempt));
+        }
+
+        scheduledTasks.get(ReliableMulticast.MAX_NACK_ATTEMPTS).run();
+
+        verify(networkMessages, times(ReliableMulticast.MAX_NACK_ATTEMPTS)).sendNack(any(User.class), anyString());
+        assertFalse(reliableMulticast.hasLostMessages(200));
+    }
+
+    @Test
+    public void messagesMissingShouldStartOverAfterGivingUp() {
+        when(messageDeduplicator.isSeen(200, 2)).thenReturn(true);
+
+        reliableMulticast.messagesMissing(200, 2, 2);
+        scheduledTasks.get(0).run();
+
+        reliableMulticast.messagesMissing(200, 8, 8);
+        assertEquals(2, scheduledTasks.size());
+
+        scheduledTasks.get(1).run();
+        verify(networkMessages).sendNack(niles, "8");
+    }
+
+    @Test
+    public void messagesMissingShouldLimitTheNumberOfSequencesInEachNack() {
+        reliableMulticast.messagesMissing(200, 0, 99);
+        scheduledTasks.get(0).run();
+
+        final StringBuilder sequences = new StringBuilder("0");
+
+        for (int sequence = 1; sequence < ReliableMulticast.MAX_SEQUENCES_PER_NACK; sequence++) {
+            sequences.append(',').append(sequence);
+        }
+
+        verify(networkMessages).sendNack(niles, sequences.toString());
+    }
+
+    @Test
+    public void messagesMissingShouldOnlyAskForTheMessagesThatAreStillKept() {
+        reliableMulticast.messagesMissing(200, 0, MessageRetransmitBuffer.SIZE + 9);
+        scheduledTasks.get(0).run();
+
+        verify(networkMessages).sendNack(eq(niles), startsWith("10,11,"));
+    }
+
+    @Test
+    public void messagesMissingShouldIgnoreUsersThatDoNotSupportNack() {
+        niles.setCapabilities(new HashSet<>(Arrays.asList(ClientCapability.SEQUENCE)));
+
+        reliableMulticast.messagesMissing(200, 2, 4);
+
+        assertTrue(scheduledTasks.isEmpty());
+    }
+
+    @Test
+    public void messagesMissingShouldIgnoreUsersWithoutPrivateChat() {
+        niles.setPrivateChatPort(0);
+
+        reliableMulticast.messagesMissing(200, 2, 4);
+
+        assertTrue(scheduledTasks.isEmpty());
+    }
+
+    @Test
+    public void messagesMissingShouldIgnoreMeAndUnknownUsers() {
+        reliableMulticast.messagesMissing(100, 2, 4);
+        reliableMulticast.messagesMissing(300, 2, 4);
+
+        assertTrue(scheduledTasks.isEmpty());
+    }
+
+    @Test
+    public void nackShouldNotBeSentIfUserIsGoneWhenItsTime() {
+        reliableMulticast.messagesMissing(200, 2, 4);
+        when(controller.getUser(200)).thenReturn(null);
+
+        scheduledTasks.get(0).run();
+
+        verifyZeroInteractions(networkMessages);
+        assertFalse(reliableMulticast.hasLostMessages(200));
+    }
+}
@@ -0,0 +1,90 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * Test of {@link StreamScaler}.
+ *
+ * @author Christian Ihle
+ */
+public class StreamScalerTest {
+
+    @Test
+    public void shouldStartWithOneConnection() {
+        final StreamScaler scaler = new StreamScaler(4);
+
+        assertEquals(1, scaler.getStreams());
+        assertFalse(scaler.isDone());
+    }
+
+    @Test
+    public void updateShouldAddConnectionsWhileTheSpeedGoesUp() {
+        final StreamScaler scaler = new StreamScaler(8);
+
+        assertEquals(2, scaler.update(1000));
+        assertEquals(3, scaler.update(1800));
+        assertEquals(4, scaler.update(2500));
+        assertFalse(scaler.isDone());
+    }
+
+    @Test
+    public void updateShouldStopAddingConnectionsWhenTheSpeedDoesNotGoUpEnough() {
+        final StreamScaler scaler = new StreamScaler(8);
+
+        assertEquals(2, scaler.update(1000));
+        assertEquals(2, scaler.update(1100));
+        assertTrue(scaler.isDone());
+
+        // Even if it gets faster later
+        assertEquals(2, scaler.update(5000));
+    }
+
+    @Test
+    public void updateShouldNeverGoAboveTheHighestNumberOfConnections() {
+        final StreamScaler scaler = new StreamScaler(2);
+
+        assertEquals(2, scaler.update(1000));
+        assertTrue(scaler.isDone());
+        assertEquals(2, scaler.update(5000));
+    }
+
+    @Test
+    public void shouldBeDoneWithOnlyOneConnectionAllowed() {
+        final StreamScaler scaler = new StreamScaler(1);
+
+        assertTrue(scaler.isDone());
+        assertEquals(1, scaler.update(1000));
+    }
+
+    @Test
+    public void updateShouldNotAddConnectionsWithoutProgress() {
+        final StreamScaler scaler = new StreamScaler(4);
+
+        assertEquals(1, scaler.update(0));
+        assertTrue(scaler.isDone());
+    }
+}
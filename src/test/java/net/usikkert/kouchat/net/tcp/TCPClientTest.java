@@ -0,0 +1,557 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net.tcp;
+
+import static org.junit.Assert.*;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import net.usikkert.kouchat.junit.ExpectedException;
+import net.usikkert.kouchat.net.LinkQuality;
+import net.usikkert.kouchat.net.NetworkEventLoop;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Test of {@link TCPClient}.
+ *
+ * @author Christian Ihle
+ */
+@SuppressWarnings("HardCodedStringLiteral")
+public class TCPClientTest {
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    private NetworkEventLoop eventLoop;
+    private ServerSocket serverSocket;
+    private BlockingQueue<String> messages;
+    private BlockingQueue<TCPClient> disconnects;
+    private BlockingQueue<TCPClient> answers;
+
+    @Before
+    public void setUp() throws IOException {
+        eventLoop = new NetworkEventLoop();
+        serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        messages = new LinkedBlockingQueue<>();
+        disconnects = new LinkedBlockingQueue<>();
+        answers = new LinkedBlockingQueue<>();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        eventLoop.stop();
+        serverSocket.close();
+    }
+
+    @Test
+    public void constructorShouldThrowExceptionIfSocketIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Socket can not be null");
+
+        new TCPClient(null, eventLoop);
+    }
+
+    @Test
+    public void eventLoopClientShouldExchangeMessagesWithBlockingStreams() throws IOException, InterruptedException {
+        final TCPClient client = connectEventLoopClient();
+
+        try (final Socket peer = serverSocket.accept()) {
+            final DataInputStream peerInput = new DataInputStream(peer.getInputStream());
+            final DataOutputStream peerOutput = new DataOutputStream(peer.getOutputStream());
+
+            client.send("Hello from event loop");
+            client.send("Unicode: æøå €");
+            assertEquals("Hello from event loop", peerInput.readUTF());
+            assertEquals("Unicode: æøå €", peerInput.readUTF());
+
+            peerOutput.writeUTF("Hello from blocking");
+            peerOutput.writeUTF("");
+            peerOutput.flush();
+            assertEquals("Hello from blocking", messages.poll(5, TimeUnit.SECONDS));
+            assertEquals("", messages.poll(5, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void eventLoopClientShouldReadMessagesLargerThanInitialBuffer() throws IOException, InterruptedException {
+        final TCPClient client = connectEventLoopClient();
+        final StringBuilder largeMessage = new StringBuilder();
+
+        for (int i = 0; i < 20_000; i++) {
+            largeMessage.append((char) ('a' + i % 26));
+        }
+
+        try (final Socket peer = serverSocket.accept()) {
+            final DataOutputStream peerOutput = new DataOutputStream(peer.getOutputStream());
+
+            peerOutput.writeUTF("before");
+            peerOutput.writeUTF(largeMessage.toString());
+            peerOutput.writeUTF("after");
+            peerOutput.flush();
+
+            assertEquals("before", messages.poll(5, TimeUnit.SECONDS));
+            assertEquals(largeMessage.toString(), messages.poll(5, TimeUnit.SECONDS));
+            assertEquals("after", messages.poll(5, TimeUnit.SECONDS));
+            assertTrue(client.isConnected());
+        }
+    }
+
+    @Test
+    public void eventLoopClientShouldNotifyListenerWhenPeerDisconnects() throws IOException, InterruptedException {
+        final TCPClient client = connectEventLoopClient();
+
+        serverSocket.accept().close();
+
+        assertSame(client, disconnects.poll(5, TimeUnit.SECONDS));
+        assertFalse(client.isConnected());
+    }
+
+    @Test
+    public void clientShouldBeAnsweredOnceByTheFirstMessageFromPeer() throws IOException, InterruptedException {
+        final TCPClient client = connectEventLoopClient();
+
+        try (final Socket peer = serverSocket.accept()) {
+            final DataOutputStream peerOutput = new DataOutputStream(peer.getOutputStream());
+            assertFalse(client.isAnswered());
+
+            peerOutput.writeUTF(TCPClient.FRAMING_OFFER);
+            peerOutput.writeUTF("Hello");
+            peerOutput.flush();
+
+            assertEquals("Hello", messages.poll(5, TimeUnit.SECONDS));
+            assertSame(client, answers.poll());
+            assertTrue(answers.isEmpty());
+            assertTrue(client.isAnswered());
+        }
+    }
+
+    @Test
+    public void blockingClientShouldSendQueuedMessagesAndNotifyListener() throws IOException, InterruptedException {
+        final TCPClient client = connectBlockingClient();
+        final RecordingSendListener sendListener = new RecordingSendListener();
+
+        try (final Socket peer = serverSocket.accept()) {
+            final DataInputStream peerInput = new DataInputStream(peer.getInputStream());
+
+            client.send("First", sendListener);
+            client.send("Second", sendListener);
+
+            assertEquals("First", peerInput.readUTF());
+            assertEquals("Second", peerInput.readUTF());
+            assertEquals("First", sendListener.sent.poll(5, TimeUnit.SECONDS));
+            assertEquals("Second", sendListener.sent.poll(5, TimeUnit.SECONDS));
+            assertTrue(sendListener.notSent.isEmpty());
+        }
+
+        client.disconnect();
+    }
+
+    @Test
+    public void eventLoopClientShouldNotifyListenerWhenMessageIsSent() throws IOException, InterruptedException {
+        final TCPClient client = connectEventLoopClient();
+        final RecordingSendListener sendListener = new RecordingSendListener();
+
+        try (final Socket peer = serverSocket.accept()) {
+            client.send("Hello", sendListener);
+
+            assertEquals("Hello", new DataInputStream(peer.getInputStream()).readUTF());
+            assertEquals("Hello", sendListener.sent.poll(5, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void sendShouldNotifyListenerWhenNotConnected() {
+        final TCPClient client = new TCPClient(new Socket());
+        final RecordingSendListener sendListener = new RecordingSendListener();
+
+        client.send("Hello", sendListener);
+
+        assertEquals("Hello", sendListener.notSent.poll());
+        assertTrue(sendListener.sent.isEmpty());
+    }
+
+    @Test
+    public void blockingClientShouldDisconnectInsteadOfBlockingWhenPeerStopsReading()
+            throws IOException, InterruptedException {
+        final TCPClient client = connectBlockingClient();
+        assertClientDisconnectsWhenQueueOverflows(client);
+    }
+
+    @Test
+    public void eventLoopClientShouldDisconnectInsteadOfBlockingWhenPeerStopsReading()
+            throws IOException, InterruptedException {
+        final TCPClient client = connectEventLoopClient();
+        assertClientDisconnectsWhenQueueOverflows(client);
+    }
+
+    @Test
+    public void blockingClientsShouldSwitchToLengthPrefixedFramingAndSendLargeMessages()
+            throws IOException, InterruptedException {
+        final TCPClient client = connectBlockingClient();
+        final BlockingQueue<String> peerMessages = new LinkedBlockingQueue<>();
+        final TCPClient peer = connectPeerClient(serverSocket.accept(), null, peerMessages);
+
+        assertLargeMessagesAfterSwitch(client, peer, peerMessages);
+
+        client.disconnect();
+        peer.disconnect();
+    }
+
+    @Test
+    public void eventLoopClientShouldSwitchToLengthPrefixedFramingWithBlockingPeer()
+            throws IOException, InterruptedException {
+        final TCPClient client = connectEventLoopClient();
+        final BlockingQueue<String> peerMessages = new LinkedBlockingQueue<>();
+        final TCPClient peer = connectPeerClient(serverSocket.accept(), null, peerMessages);
+
+        assertLargeMessagesAfterSwitch(client, peer, peerMessages);
+
+        peer.disconnect();
+    }
+
+    @Test
+    public void shouldKeepOldFramingWhenPeerIgnoresOffer() throws IOException, InterruptedException {
+        final TCPClient client = connectEventLoopClient();
+
+        try (final Socket peer = serverSocket.accept()) {
+            final DataInputStream peerInput = new DataInputStream(peer.getInputStream());
+
+            client.offerLengthPrefixedFraming();
+            client.send("After offer");
+
+            assertEquals(TCPClient.FRAMING_OFFER, peerInput.readUTF());
+            assertEquals("After offer", peerInput.readUTF());
+            assertFalse(client.isWritingLengthPrefixed());
+            assertFalse(client.isReadingLengthPrefixed());
+        }
+    }
+
+    @Test
+    public void lengthPrefixedFramingShouldBeFourByteLengthAndUtf8() throws IOException, InterruptedException {
+        final TCPClient client = connectEventLoopClient();
+
+        try (final Socket peer = serverSocket.accept()) {
+            final DataInputStream peerInput = new DataInputStream(peer.getInputStream());
+            final DataOutputStream peerOutput = new DataOutputStream(peer.getOutputStream());
+
+            peerOutput.writeUTF(TCPClient.FRAMING_OFFER);
+            peerOutput.flush();
+            assertEquals(TCPClient.FRAMING_SWITCH, peerInput.readUTF());
+
+            client.send("Hei æøå €");
+            final byte[] expected = "Hei æøå €".getBytes("UTF-8");
+            assertEquals(expected.length, peerInput.readInt());
+            final byte[] actual = new byte[expected.length];
+            peerInput.readFully(actual);
+            assertArrayEquals(expected, actual);
+
+            peerOutput.writeUTF(TCPClient.FRAMING_SWITCH);
+            peerOutput.writeInt(expected.length);
+            peerOutput.write(expected);
+            peerOutput.writeInt(0);
+            peerOutput.flush();
+
+            assertEquals("Hei æøå €", messages.poll(5, TimeUnit.SECONDS));
+            assertEquals("", messages.poll(5, TimeUnit.SECONDS));
+            assertTrue(client.isReadingLengthPrefixed());
+        }
+    }
+
+    @Test
+    public void shouldDisconnectWhenFrameIsTooLarge() throws IOException, InterruptedException {
+        final TCPClient client = connectEventLoopClient();
+
+        try (final Socket peer = serverSocket.accept()) {
+            final DataOutputStream peerOutput = new DataOutputStream(peer.getOutputStream());
+
+            peerOutput.writeUTF(TCPClient.FRAMING_SWITCH);
+            peerOutput.writeInt(TCPClient.MAX_FRAME_BYTES + 1);
+            peerOutput.flush();
+
+            assertSame(client, disconnects.poll(5, TimeUnit.SECONDS));
+            assertFalse(client.isConnected());
+        }
+    }
+
+    @Test
+    public void sendShouldNotifyListenerWhenMessageIsTooLargeForOldFraming() throws IOException, InterruptedException {
+        final TCPClient client = connectEventLoopClient();
+        final RecordingSendListener sendListener = new RecordingSendListener();
+
+        try (final Socket peer = serverSocket.accept()) {
+            client.send(createLargeMessage(70_000), sendListener);
+
+            assertNotNull(sendListener.notSent.poll(5, TimeUnit.SECONDS));
+            assertTrue(client.isConnected());
+        }
+    }
+
+    @Test
+    public void pingShouldBeAnsweredByPeerAndMeasureRoundTripTime() throws IOException, InterruptedException {
+        final TCPClient client = connectBlockingClient();
+        final BlockingQueue<String> peerMessages = new LinkedBlockingQueue<>();
+        final TCPClient peer = connectPeerClient(serverSocket.accept(), null, peerMessages);
+
+        assertFalse(client.getLinkQuality().hasSamples());
+
+        client.ping();
+
+        for (int i = 0; i < 50 && !client.getLinkQuality().hasSamples(); i++) {
+            Thread.sleep(50);
+        }
+
+        assertTrue(client.getLinkQuality().hasSamples());
+        assertTrue(client.getLinkQuality().isHealthy());
+        assertTrue(client.getLinkQuality().getSmoothedRtt() > 0);
+
+        // The pings are handled by the client, and never given to the listener
+        assertTrue(messages.isEmpty());
+        assertTrue(peerMessages.isEmpty());
+
+        client.disconnect();
+        peer.disconnect();
+    }
+
+    @Test
+    public void shouldAnswerPingWithPongWithTheSameTime() throws IOException, InterruptedException {
+        connectEventLoopClient();
+
+        try (final Socket peer = serverSocket.accept()) {
+            final DataInputStream peerInput = new DataInputStream(peer.getInputStream());
+            final DataOutputStream peerOutput = new DataOutputStream(peer.getOutputStream());
+
+            peerOutput.writeUTF(TCPClient.PING + "123456");
+            peerOutput.flush();
+
+            assertEquals(TCPClient.PONG + "123456", peerInput.readUTF());
+            assertTrue(messages.isEmpty());
+        }
+    }
+
+    @Test
+    public void linkShouldBeDeadWhenPeerStopsAnsweringPings() throws IOException, InterruptedException {
+        final TCPClient client = connectEventLoopClient();
+
+        try (final Socket peer = serverSocket.accept()) {
+            final DataInputStream peerInput = new DataInputStream(peer.getInputStream());
+
+            for (int i = 0; i <= LinkQuality.DEAD_AFTER_MISSES; i++) {
+                assertFalse(client.getLinkQuality().isDead());
+                client.ping();
+                assertTrue(peerInput.readUTF().startsWith(TCPClient.PING));
+            }
+
+            assertTrue(client.getLinkQuality().isDead());
+        }
+    }
+
+    private void assertLargeMessagesAfterSwitch(final TCPClient client, final TCPClient peer,
+                                                final BlockingQueue<String> peerMessages)
+            throws InterruptedException {
+        final String largeMessage = createLargeMessage(100_000) + " æøå €";
+
+        client.offerLengthPrefixedFraming();
+        peer.offerLengthPrefixedFraming();
+
+        for (int i = 0; i < 50 && !(client.isReadingLengthPrefixed() && peer.isReadingLengthPrefixed()); i++) {
+            Thread.sleep(50);
+        }
+
+        assertTrue(client.isWritingLengthPrefixed());
+        assertTrue(client.isReadingLengthPrefixed());
+        assertTrue(peer.isWritingLengthPrefixed());
+        assertTrue(peer.isReadingLengthPrefixed());
+
+        for (int i = 0; i < 10; i++) {
+            client.send("Small " + i);
+        }
+
+        client.send(largeMessage);
+        peer.send(largeMessage);
+        peer.send("After large");
+
+        for (int i = 0; i < 10; i++) {
+            assertEquals("Small " + i, peerMessages.poll(5, TimeUnit.SECONDS));
+        }
+
+        assertEquals(largeMessage, peerMessages.poll(5, TimeUnit.SECONDS));
+        assertEquals(largeMessage, messages.poll(5, TimeUnit.SECONDS));
+        assertEquals("After large", messages.poll(5, TimeUnit.SECONDS));
+
+        // The framing messages are handled by the client, and never given to the listener
+        assertTrue(messages.isEmpty());
+        assertTrue(peerMessages.isEmpty());
+    }
+
+    private void assertClientDisconnectsWhenQueueOverflows(final TCPClient client)
+            throws IOException, InterruptedException {
+        final RecordingSendListener sendListener = new RecordingSendListener();
+        final String largeMessage = createLargeMessage();
+
+        try (final Socket peer = serverSocket.accept()) {
+            final long start = System.currentTimeMillis();
+
+            for (int i = 0; i < TCPClient.MAX_QUEUED_MESSAGES * 2 && client.isConnected(); i++) {
+                client.send(largeMessage, sendListener);
+            }
+
+            assertTrue(System.currentTimeMillis() - start < 5000);
+            assertFalse(client.isConnected());
+            assertEquals(1, client.getOverflowCount());
+            assertSame(client, disconnects.poll(5, TimeUnit.SECONDS));
+            assertNotNull(sendListener.notSent.poll(5, TimeUnit.SECONDS));
+
+            // Everything that was queued is either sent or failed
+            for (int i = 0; i < 50 && client.getQueueDepth() > 0; i++) {
+                Thread.sleep(100);
+            }
+
+            assertEquals(0, client.getQueueDepth());
+            assertTrue(peer.isConnected());
+        }
+    }
+
+    private String createLargeMessage() {
+        return createLargeMessage(60_000);
+    }
+
+    private String createLargeMessage(final int length) {
+        final StringBuilder largeMessage = new StringBuilder();
+
+        for (int i = 0; i < length; i++) {
+            largeMessage.append((char) ('a' + i % 26));
+        }
+
+        return largeMessage.toString();
+    }
+
+    private TCPClient connectBlockingClient() throws IOException {
+        final Socket socket = new Socket(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort());
+        final TCPClient client = new TCPClient(socket);
+
+        client.registerClientListener(new TCPClientListener() {
+            @Override
+            public void messageArrived(final String message, final TCPClient theClient) {
+                messages.add(message);
+            }
+
+            @Override
+            public void answered(final TCPClient theClient) {
+                answers.add(theClient);
+            }
+
+            @Override
+            public void disconnected(final TCPClient theClient) {
+                disconnects.add(theClient);
+            }
+        });
+
+        assertTrue(client.connect());
+
+        return client;
+    }
+
+    private TCPClient connectPeerClient(final Socket socket, final NetworkEventLoop peerEventLoop,
+                                        final BlockingQueue<String> peerMessages) {
+        final TCPClient peer = new TCPClient(socket, peerEventLoop);
+
+        peer.registerClientListener(new TCPClientListener() {
+            @Override
+            public void messageArrived(final String message, final TCPClient theClient) {
+                peerMessages.add(message);
+            }
+
+            @Override
+            public void answered(final TCPClient theClient) {
+
+            }
+
+            @Override
+            public void disconnected(final TCPClient theClient) {
+
+            }
+        });
+
+        assertTrue(peer.connect());
+
+        return peer;
+    }
+
+    private TCPClient connectEventLoopClient() throws IOException {
+        final SocketChannel channel = SocketChannel.open(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort()));
+        final TCPClient client = new TCPClient(channel.socket(), eventLoop);
+
+        client.registerClientListener(new TCPClientListener() {
+            @Override
+            public void messageArrived(final String message, final TCPClient theClient) {
+                messages.add(message);
+            }
+
+            @Override
+            public void answered(final TCPClient theClient) {
+                answers.add(theClient);
+            }
+
+            @Override
+            public void disconnected(final TCPClient theClient) {
+                disconnects.add(theClient);
+            }
+        });
+
+        assertTrue(client.connect());
+        assertTrue(client.isConnected());
+
+        return client;
+    }
+
+    private static class RecordingSendListener implements TCPSendListener {
+
+        private final BlockingQueue<String> sent = new LinkedBlockingQueue<>();
+        private final BlockingQueue<String> notSent = new LinkedBlockingQueue<>();
+
+        @Override
+        public void messageSent(final String message) {
+            sent.add(message);
+        }
+
+        @Override
+        public void messageNotSent(final String message) {
+            notSent.add(message);
+        }
+    }
+}
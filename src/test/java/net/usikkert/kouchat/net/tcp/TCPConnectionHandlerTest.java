@@ -0,0 +1,229 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net.tcp;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Collections;
+import java.util.Map;
+
+import net.usikkert.kouchat.misc.Controller;
+import net.usikkert.kouchat.misc.User;
+import net.usikkert.kouchat.net.ClientCapability;
+import net.usikkert.kouchat.settings.Settings;
+import net.usikkert.kouchat.util.TestUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test of the tie-break in {@link TCPConnectionHandler}, where only the user with the lowest code connects.
+ *
+ * @author Christian Ihle
+ */
+@SuppressWarnings("HardCodedStringLiteral")
+public class TCPConnectionHandlerTest {
+
+    private Controller controller;
+    private Settings settings;
+    private ServerSocket serverSocket;
+
+    private TCPConnectionHandler handler;
+
+    @Before
+    public void setUp() throws IOException {
+        controller = mock(Controller.class);
+        settings = mock(Settings.class);
+        serverSocket = new ServerSocket(0, 10, InetAddress.getLoopbackAddress());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (handler != null) {
+            handler.disconnect();
+        }
+
+        serverSocket.close();
+    }
+
+    @Test
+    public void userAddedShouldWaitForUserWithLowerCodeToConnect() throws IOException {
+        createHandler(200);
+        final User user = createUser(100, true);
+
+        handler.userAdded(user);
+
+        serverSocket.setSoTimeout(500);
+
+        try {
+            serverSocket.accept().close();
+            fail("Should not connect to a user with a lower code");
+        }
+
+        catch (final SocketTimeoutException e) {
+            // Expected
+        }
+
+        assertTrue(getReconnectScheduler().isScheduled(user));
+        assertEquals(TCPConnectionHandler.WAIT_FOR_CONNECT_ATTEMPTS, handler.getInitialAttempts(user));
+    }
+
+    @Test
+    public void userAddedShouldConnectToUserWithHigherCode() throws IOException {
+        createHandler(100);
+        final User user = createUser(200, true);
+
+        handler.userAdded(user);
+
+        try (final Socket peer = accept()) {
+            assertEquals("SYS-IDENTIFY:100:200", new DataInputStream(peer.getInputStream()).readUTF());
+        }
+
+        assertEquals(0, handler.getInitialAttempts(user));
+    }
+
+    @Test
+    public void userAddedShouldAlwaysConnectToUserWithoutTieBreak() throws IOException {
+        createHandler(200);
+        final User user = createUser(100, false);
+
+        handler.userAdded(user);
+
+        try (final Socket peer = accept()) {
+            assertEquals("SYS-IDENTIFY:200:100", new DataInputStream(peer.getInputStream()).readUTF());
+        }
+
+        assertFalse(getReconnectScheduler().isScheduled(user));
+        assertEquals(0, handler.getInitialAttempts(user));
+    }
+
+    @Test
+    public void socketAddedShouldRejectSecondClientFromUserWithHigherCode() throws Exception {
+        createHandler(100);
+        final User user = createUser(200, true);
+
+        handler.userAdded(user);
+
+        try (final Socket firstPeer = accept()) {
+            assertEquals("SYS-IDENTIFY:100:200", new DataInputStream(firstPeer.getInputStream()).readUTF());
+
+            try (final Socket secondPeer = connectFromUser(200, 100)) {
+                // Disconnected by the handler, since the first connection is kept
+                assertEquals(-1, secondPeer.getInputStream().read());
+            }
+
+            assertEquals(1, getUserClients().get(user).getClientCount());
+        }
+    }
+
+    @Test
+    public void socketAddedShouldAcceptSecondClientFromUserWithLowerCode() throws Exception {
+        createHandler(200);
+        final User user = createUser(100, false);
+
+        handler.userAdded(user);
+
+        try (final Socket firstPeer = accept()) {
+            assertEquals("SYS-IDENTIFY:200:100", new DataInputStream(firstPeer.getInputStream()).readUTF());
+
+            try (final Socket ignored = connectFromUser(100, 200)) {
+                waitForClientCount(user, 2);
+            }
+        }
+    }
+
+    private void createHandler(final int myCode) {
+        final User me = new User("Me", myCode);
+        me.setMe(true);
+
+        when(settings.getMe()).thenReturn(me);
+
+        handler = new TCPConnectionHandler(controller, settings);
+        handler.connect();
+    }
+
+    private User createUser(final int code, final boolean tieBreak) {
+        final User user = new User("User" + code, code);
+        user.setIpAddress(InetAddress.getLoopbackAddress().getHostAddress());
+        user.setTcpChatPort(serverSocket.getLocalPort());
+
+        if (tieBreak) {
+            user.setCapabilities(Collections.singleton(ClientCapability.TCP_TIE_BREAK));
+        }
+
+        when(controller.getUser(code)).thenReturn(user);
+
+        return user;
+    }
+
+    private Socket accept() throws IOException {
+        serverSocket.setSoTimeout(5000);
+
+        return serverSocket.accept();
+    }
+
+    /**
+     * Connects to the handler the same way the user does, and sends the identification.
+     */
+    private Socket connectFromUser(final int userCode, final int myCode) throws IOException {
+        final Socket peer;
+
+        try (final ServerSocket handlerServerSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            peer = new Socket(InetAddress.getLoopbackAddress(), handlerServerSocket.getLocalPort());
+            handler.socketAdded(handlerServerSocket.accept());
+        }
+
+        final DataOutputStream peerOutput = new DataOutputStream(peer.getOutputStream());
+        peerOutput.writeUTF("SYS-IDENTIFY:" + userCode + ":" + myCode);
+        peerOutput.flush();
+        peer.setSoTimeout(5000);
+
+        return peer;
+    }
+
+    private void waitForClientCount(final User user, final int clientCount) throws InterruptedException {
+        for (int i = 0; i < 100 && getUserClients().get(user).getClientCount() != clientCount; i++) {
+            Thread.sleep(50);
+        }
+
+        assertEquals(clientCount, getUserClients().get(user).getClientCount());
+    }
+
+    private TCPReconnectScheduler getReconnectScheduler() {
+        return TestUtils.getFieldValue(handler, TCPReconnectScheduler.class, "reconnectScheduler");
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<User, TCPUserClient> getUserClients() {
+        return TestUtils.getFieldValue(handler, Map.class, "userClients");
+    }
+}
@@ -0,0 +1,195 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net.tcp;
+
+import static org.junit.Assert.*;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import net.usikkert.kouchat.net.NetworkEventLoop;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+
+/**
+ * Benchmark of the old unbuffered {@link DataOutputStream#writeUTF(String)} path
+ * against the buffered and batched length-prefixed framing in {@link TCPClient}.
+ *
+ * Does not really assert anything. Run manually and compare the numbers.
+ *
+ * @author Christian Ihle
+ */
+@Ignore
+@SuppressWarnings("HardCodedStringLiteral")
+public class TCPFramingBenchmarkTest {
+
+    private static final int MESSAGES = 200_000;
+    private static final int ROUNDS = 3;
+
+    private ServerSocket serverSocket;
+    private NetworkEventLoop eventLoop;
+    private String message;
+
+    @Before
+    public void setUp() throws IOException {
+        serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        eventLoop = new NetworkEventLoop();
+
+        final StringBuilder builder = new StringBuilder("12345!MSG#Tester:[-16777216]");
+
+        while (builder.length() < 100) {
+            builder.append("Hello æøå ");
+        }
+
+        message = builder.toString();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        eventLoop.stop();
+        serverSocket.close();
+    }
+
+    @Test
+    public void compareFraming() throws Exception {
+        for (int i = 1; i <= ROUNDS; i++) {
+            System.out.printf("Round %d: unbuffered writeUTF %d ms, blocking length-prefixed %d ms, " +
+                                      "event loop length-prefixed %d ms%n",
+                              i, benchmarkWriteUTF(), benchmarkTCPClient(false), benchmarkTCPClient(true));
+        }
+    }
+
+    private long benchmarkWriteUTF() throws Exception {
+        try (final Socket socket = new Socket(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort());
+             final Socket peer = serverSocket.accept()) {
+            final CountDownLatch received = startReader(peer);
+            final DataOutputStream output = new DataOutputStream(socket.getOutputStream());
+            final long start = System.nanoTime();
+
+            for (int i = 0; i < MESSAGES; i++) {
+                output.writeUTF(message);
+            }
+
+            assertTrue(received.await(60, TimeUnit.SECONDS));
+
+            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        }
+    }
+
+    private long benchmarkTCPClient(final boolean useEventLoop) throws Exception {
+        final TCPClient client;
+
+        if (useEventLoop) {
+            final SocketChannel channel = SocketChannel.open(
+                    new InetSocketAddress(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort()));
+            client = new TCPClient(channel.socket(), eventLoop);
+        } else {
+            client = new TCPClient(new Socket(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort()));
+        }
+
+        final CountDownLatch received = new CountDownLatch(MESSAGES);
+        final TCPClient peer = new TCPClient(serverSocket.accept());
+
+        peer.registerClientListener(new TCPClientListener() {
+            @Override
+            public void messageArrived(final String theMessage, final TCPClient theClient) {
+                received.countDown();
+            }
+
+            @Override
+            public void answered(final TCPClient theClient) {
+
+            }
+
+            @Override
+            public void disconnected(final TCPClient theClient) {
+
+            }
+        });
+
+        assertTrue(client.connect());
+        assertTrue(peer.connect());
+
+        peer.offerLengthPrefixedFraming(); // Makes the client write with the new framing
+
+        for (int i = 0; i < 100 && !peer.isReadingLengthPrefixed(); i++) {
+            Thread.sleep(10);
+        }
+
+        assertTrue(client.isWritingLengthPrefixed());
+
+        final long start = System.nanoTime();
+
+        for (int i = 0; i < MESSAGES; i++) {
+            // Stay below the queue limit, since overflowing disconnects
+            while (client.getQueueDepth() > TCPClient.MAX_QUEUED_MESSAGES / 2) {
+                Thread.yield();
+            }
+
+            client.send(message);
+        }
+
+        assertTrue(received.await(60, TimeUnit.SECONDS));
+        final long time = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        client.disconnect();
+        peer.disconnect();
+
+        return time;
+    }
+
+    private CountDownLatch startReader(final Socket peer) {
+        final CountDownLatch received = new CountDownLatch(MESSAGES);
+
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final DataInputStream input = new DataInputStream(peer.getInputStream());
+
+                    while (received.getCount() > 0) {
+                        input.readUTF();
+                        received.countDown();
+                    }
+                }
+
+                catch (final IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }).start();
+
+        return received;
+    }
+}
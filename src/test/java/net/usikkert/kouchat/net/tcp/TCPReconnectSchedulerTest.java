@@ -0,0 +1,330 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net.tcp;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import net.usikkert.kouchat.junit.ExpectedException;
+import net.usikkert.kouchat.misc.User;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+/**
+ * Test of {@link TCPReconnectScheduler}.
+ *
+ * @author Christian Ihle
+ */
+@SuppressWarnings("HardCodedStringLiteral")
+public class TCPReconnectSchedulerTest {
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    private TCPReconnectScheduler reconnectScheduler;
+
+    private ScheduledExecutorService scheduler;
+    private ExecutorService executorService;
+    private TCPReconnectListener listener;
+    private Random random;
+    private ScheduledFuture<?> future;
+
+    private List<Runnable> scheduledTasks;
+    private List<Long> scheduledDelays;
+    private List<Runnable> executedTasks;
+
+    private User user;
+
+    @Before
+    public void setUp() {
+        scheduler = mock(ScheduledExecutorService.class);
+        executorService = mock(ExecutorService.class);
+        listener = mock(TCPReconnectListener.class);
+        random = mock(Random.class);
+        future = mock(ScheduledFuture.class);
+
+        scheduledTasks = new ArrayList<>();
+        scheduledDelays = new ArrayList<>();
+        executedTasks = new ArrayList<>();
+
+        doAnswer(new Answer<ScheduledFuture<?>>() {
+            @Override
+            public ScheduledFuture<?> answer(final InvocationOnMock invocation) {
+                scheduledTasks.add((Runnable) invocation.getArguments()[0]);
+                scheduledDelays.add((Long) invocation.getArguments()[1]);
+                assertEquals(TimeUnit.MILLISECONDS, invocation.getArguments()[2]);
+
+                return future;
+            }
+        }).when(scheduler).schedule(any(Runnable.class), anyLong(), any(TimeUnit.class));
+
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(final InvocationOnMock invocation) {
+                executedTasks.add((Runnable) invocation.getArguments()[0]);
+                return null;
+            }
+        }).when(executorService).execute(any(Runnable.class));
+
+        user = new User("User", 100);
+
+        reconnectScheduler = new TCPReconnectScheduler(scheduler, executorService, listener, random);
+    }
+
+    @Test
+    public void constructorShouldThrowExceptionIfSchedulerIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Scheduler can not be null");
+
+        new TCPReconnectScheduler(null, executorService, listener, random);
+    }
+
+    @Test
+    public void constructorShouldThrowExceptionIfExecutorServiceIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Executor service can not be null");
+
+        new TCPReconnectScheduler(scheduler, null, listener, random);
+    }
+
+    @Test
+    public void constructorShouldThrowExceptionIfListenerIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Reconnect listener can not be null");
+
+        new TCPReconnectScheduler(scheduler, executorService, null, random);
+    }
+
+    @Test
+    public void constructorShouldThrowExceptionIfRandomIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Random can not be null");
+
+        new TCPReconnectScheduler(scheduler, executorService, listener, null);
+    }
+
+    @Test
+    public void scheduleShouldThrowExceptionIfUserIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("User can not be null");
+
+        reconnectScheduler.schedule(null);
+    }
+
+    @Test
+    public void getDelayShouldDoubleForEachAttempt() {
+        when(random.nextDouble()).thenReturn(0.0);
+
+        assertEquals(250, reconnectScheduler.getDelay(0));
+        assertEquals(500, reconnectScheduler.getDelay(1));
+        assertEquals(1000, reconnectScheduler.getDelay(2));
+        assertEquals(2000, reconnectScheduler.getDelay(3));
+    }
+
+    @Test
+    public void getDelayShouldNeverBeMoreThanMaxDelay() {
+        when(random.nextDouble()).thenReturn(0.9999999);
+
+        assertEquals(TCPReconnectScheduler.MAX_DELAY - 1, reconnectScheduler.getDelay(7));
+        assertEquals(TCPReconnectScheduler.MAX_DELAY - 1, reconnectScheduler.getDelay(100));
+        assertEquals(TCPReconnectScheduler.MAX_DELAY - 1, reconnectScheduler.getDelay(Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void getDelayShouldBeBetweenHalfAndAllOfTheBackoff() {
+        final TCPReconnectScheduler seededScheduler =
+                new TCPReconnectScheduler(scheduler, executorService, listener, new Random(42));
+
+        for (int attempts = 0; attempts < 20; attempts++) {
+            final long backoff = Math.min(TCPReconnectScheduler.MAX_DELAY,
+                                          TCPReconnectScheduler.INITIAL_DELAY << attempts);
+
+            for (int i = 0; i < 100; i++) {
+                final long delay = seededScheduler.getDelay(attempts);
+
+                assertTrue(delay >= backoff / 2);
+                assertTrue(delay <= backoff);
+            }
+        }
+    }
+
+    @Test
+    public void scheduleShouldOnlyScheduleOnceForTheSameUser() {
+        reconnectScheduler.schedule(user);
+        reconnectScheduler.schedule(user);
+
+        assertTrue(reconnectScheduler.isScheduled(user));
+        assertEquals(1, scheduledTasks.size());
+    }
+
+    @Test
+    public void scheduleShouldStartTheBackoffAtTheInitialAttemptsFromTheListener() {
+        when(random.nextDouble()).thenReturn(0.0);
+        when(listener.getInitialAttempts(user)).thenReturn(3);
+        when(listener.reconnect(user)).thenReturn(false);
+
+        reconnectScheduler.schedule(user);
+        runScheduledTask(0);
+        runExecutedTask(0);
+
+        assertEquals(Long.valueOf(2000), scheduledDelays.get(0));
+        assertEquals(Long.valueOf(4000), scheduledDelays.get(1));
+    }
+
+    @Test
+    public void successfulReconnectShouldStopReconnecting() {
+        when(listener.reconnect(user)).thenReturn(true);
+
+        reconnectScheduler.schedule(user);
+        runScheduledTask(0);
+        runExecutedTask(0);
+
+        verify(listener).reconnect(user);
+        assertFalse(reconnectScheduler.isScheduled(user));
+        assertEquals(1, scheduledTasks.size());
+    }
+
+    @Test
+    public void failedReconnectShouldTryAgainWithLongerDelay() {
+        when(random.nextDouble()).thenReturn(0.0);
+        when(listener.reconnect(user)).thenReturn(false, false, true);
+
+        reconnectScheduler.schedule(user);
+        runScheduledTask(0);
+        runExecutedTask(0);
+        runScheduledTask(1);
+        runExecutedTask(1);
+        runScheduledTask(2);
+        runExecutedTask(2);
+
+        verify(listener, times(3)).reconnect(user);
+        assertFalse(reconnectScheduler.isScheduled(user));
+        assertEquals(3, scheduledTasks.size());
+        assertEquals(Long.valueOf(250), scheduledDelays.get(0));
+        assertEquals(Long.valueOf(500), scheduledDelays.get(1));
+        assertEquals(Long.valueOf(1000), scheduledDelays.get(2));
+    }
+
+    @Test
+    public void scheduleAfterSuccessfulReconnectShouldStartWithShortDelayAgain() {
+        when(random.nextDouble()).thenReturn(0.0);
+        when(listener.reconnect(user)).thenReturn(false, true);
+
+        reconnectScheduler.schedule(user);
+        runScheduledTask(0);
+        runExecutedTask(0);
+        runScheduledTask(1);
+        runExecutedTask(1);
+
+        reconnectScheduler.schedule(user);
+
+        assertEquals(3, scheduledTasks.size());
+        assertEquals(Long.valueOf(250), scheduledDelays.get(2));
+    }
+
+    @Test
+    public void cancelShouldCancelTheScheduledReconnect() {
+        reconnectScheduler.schedule(user);
+        reconnectScheduler.cancel(user);
+
+        assertFalse(reconnectScheduler.isScheduled(user));
+        verify(future).cancel(false);
+
+        runScheduledTask(0);
+
+        assertTrue(executedTasks.isEmpty());
+        verify(listener, never()).reconnect(any(User.class));
+    }
+
+    @Test
+    public void cancelDuringReconnectShouldNotTryAgain() {
+        when(listener.reconnect(user)).thenReturn(false);
+
+        reconnectScheduler.schedule(user);
+        runScheduledTask(0);
+        reconnectScheduler.cancel(user);
+        runExecutedTask(0);
+
+        assertFalse(reconnectScheduler.isScheduled(user));
+        assertEquals(1, scheduledTasks.size());
+    }
+
+    @Test
+    public void cancelAllShouldCancelAllTheScheduledReconnects() {
+        final User otherUser = new User("Other", 200);
+
+        reconnectScheduler.schedule(user);
+        reconnectScheduler.schedule(otherUser);
+        reconnectScheduler.cancelAll();
+
+        assertFalse(reconnectScheduler.isScheduled(user));
+        assertFalse(reconnectScheduler.isScheduled(otherUser));
+        verify(future, times(2)).cancel(false);
+    }
+
+    @Test
+    public void reconnectsShouldWaitWhenTooManyAreRunningAtTheSameTime() {
+        when(listener.reconnect(any(User.class))).thenReturn(true);
+
+        for (int i = 0; i <= TCPReconnectScheduler.MAX_PARALLEL_CONNECTS; i++) {
+            reconnectScheduler.schedule(new User("User" + i, i + 1));
+        }
+
+        for (int i = 0; i <= TCPReconnectScheduler.MAX_PARALLEL_CONNECTS; i++) {
+            runScheduledTask(i);
+        }
+
+        // The last one had to wait
+        assertEquals(TCPReconnectScheduler.MAX_PARALLEL_CONNECTS, executedTasks.size());
+        assertEquals(TCPReconnectScheduler.MAX_PARALLEL_CONNECTS + 2, scheduledTasks.size());
+
+        // Still waiting while the others are running
+        runScheduledTask(TCPReconnectScheduler.MAX_PARALLEL_CONNECTS + 1);
+        assertEquals(TCPReconnectScheduler.MAX_PARALLEL_CONNECTS, executedTasks.size());
+
+        // One finished, so the last one can start
+        runExecutedTask(0);
+        runScheduledTask(TCPReconnectScheduler.MAX_PARALLEL_CONNECTS + 2);
+        assertEquals(TCPReconnectScheduler.MAX_PARALLEL_CONNECTS + 1, executedTasks.size());
+    }
+
+    private void runScheduledTask(final int index) {
+        scheduledTasks.get(index).run();
+    }
+
+    private void runExecutedTask(final int index) {
+        executedTasks.get(index).run();
+    }
+}
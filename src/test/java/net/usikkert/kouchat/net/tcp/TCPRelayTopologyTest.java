@@ -0,0 +1,310 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net.tcp;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import net.usikkert.kouchat.junit.ExpectedException;
+import net.usikkert.kouchat.misc.Controller;
+import net.usikkert.kouchat.misc.SortedUserList;
+import net.usikkert.kouchat.misc.User;
+import net.usikkert.kouchat.misc.UserList;
+import net.usikkert.kouchat.net.ClientCapability;
+import net.usikkert.kouchat.settings.Settings;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Test of {@link TCPRelayTopology}.
+ *
+ * @author Christian Ihle
+ */
+@SuppressWarnings("HardCodedStringLiteral")
+public class TCPRelayTopologyTest {
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    private TCPRelayTopology topology;
+
+    private Settings settings;
+    private SortedUserList userList;
+
+    private User me;
+    private User user100;
+    private User user200;
+    private User user300;
+    private User oldUser;
+
+    @Before
+    public void setUp() {
+        final Controller controller = mock(Controller.class);
+        settings = mock(Settings.class);
+        userList = new SortedUserList();
+
+        me = createUser("Me", 250);
+        me.setMe(true);
+        user100 = createUser("User100", 100);
+        user200 = createUser("User200", 200);
+        user300 = createUser("User300", 300);
+        oldUser = new User("Old", 50);
+        oldUser.setTcpChatPort(5000);
+
+        for (final User user : Arrays.asList(me, user100, user200, user300, oldUser)) {
+            userList.add(user);
+            when(controller.getUser(user.getCode())).thenReturn(user);
+        }
+
+        when(controller.getUserList()).thenReturn(userList);
+        when(settings.getMe()).thenReturn(me);
+        when(settings.isTcpRelay()).thenReturn(true);
+
+        topology = new TCPRelayTopology(controller, settings);
+    }
+
+    @Test
+    public void constructorShouldThrowExceptionIfControllerIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Controller can not be null");
+
+        new TCPRelayTopology(null, settings);
+    }
+
+    @Test
+    public void constructorShouldThrowExceptionIfSettingsIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Settings can not be null");
+
+        new TCPRelayTopology(mock(Controller.class), null);
+    }
+
+    @Test
+    public void getRelayCodesShouldReturnTheLowestCodesWithRelayCapability() {
+        assertEquals(Arrays.asList(100, 200), topology.getRelayCodes());
+    }
+
+    @Test
+    public void getRelayCodesShouldIncludeMe() {
+        userList.remove(user100);
+
+        assertEquals(Arrays.asList(200, 250), topology.getRelayCodes());
+    }
+
+    @Test
+    public void getRelayCodesShouldSkipUsersWithoutTcpPort() {
+        user100.setTcpChatPort(0);
+
+        assertEquals(Arrays.asList(200, 250), topology.getRelayCodes());
+    }
+
+    @Test
+    public void getRelayCodesShouldReturnNothingWhenDisabled() {
+        when(settings.isTcpRelay()).thenReturn(false);
+
+        assertTrue(topology.getRelayCodes().isEmpty());
+    }
+
+    @Test
+    public void getRelayCodesShouldSkipUsersRemovedWhileElecting() {
+        final UserList shrinkingUserList = mock(UserList.class);
+        when(shrinkingUserList.size()).thenReturn(3);
+        when(shrinkingUserList.get(0)).thenReturn(user300);
+
+        final Controller controller = mock(Controller.class);
+        when(controller.getUserList()).thenReturn(shrinkingUserList);
+
+        assertEquals(Arrays.asList(250, 300), new TCPRelayTopology(controller, settings).getRelayCodes());
+    }
+
+    @Test
+    public void shouldConnectToShouldOnlyConnectToRelaysWhenNotRelay() {
+        assertTrue(topology.shouldConnectTo(user100));
+        assertTrue(topology.shouldConnectTo(user200));
+        assertFalse(topology.shouldConnectTo(user300));
+    }
+
+    @Test
+    public void shouldConnectToShouldConnectToEveryoneWhenRelay() {
+        userList.remove(user100);
+
+        assertTrue(topology.shouldConnectTo(user200));
+        assertTrue(topology.shouldConnectTo(user300));
+    }
+
+    @Test
+    public void shouldConnectToShouldAlwaysConnectToUsersWithoutRelayCapability() {
+        assertTrue(topology.shouldConnectTo(oldUser));
+    }
+
+    @Test
+    public void shouldConnectToShouldConnectToEveryoneWhenDisabled() {
+        when(settings.isTcpRelay()).thenReturn(false);
+
+        assertTrue(topology.shouldConnectTo(user300));
+    }
+
+    @Test
+    public void shouldForwardShouldOnlyForwardMessagesForEveryoneFromTheSenderWhenRelay() {
+        userList.remove(user100);
+
+        assertTrue(topology.shouldForward("300!MSG#User300:[-15987646]Hello", user300));
+        assertFalse(topology.shouldForward("200!MSG#User200:[-15987646]Hello", user300));
+        assertFalse(topology.shouldForward("300!PRIVMSG#User300:(200)[-15987646]Hello", user300));
+        assertFalse(topology.shouldForward("SYS-RELAY:300!MSG#User300:[-15987646]Hello", user300));
+        assertFalse(topology.shouldForward("50!MSG#Old:[-15987646]Hello", oldUser));
+    }
+
+    @Test
+    public void shouldForwardShouldNotForwardWhenNotRelay() {
+        assertFalse(topology.shouldForward("300!MSG#User300:[-15987646]Hello", user300));
+    }
+
+    @Test
+    public void isRelayShouldBeTrueOnlyWhenElected() {
+        assertFalse(topology.isRelay());
+
+        userList.remove(user100);
+
+        assertTrue(topology.isRelay());
+
+        when(settings.isTcpRelay()).thenReturn(false);
+
+        assertFalse(topology.isRelay());
+    }
+
+    @Test
+    public void routeMessagesShouldHaveRoutePrefix() {
+        final String route = topology.createRouteMessage(user300);
+
+        assertEquals("SYS-RELAY-ROUTE:300", route);
+        assertTrue(topology.isRouteMessage(route));
+        assertFalse(topology.isForwardedMessage(route));
+        assertFalse(topology.isRouteMessage("SYS-RELAY:300!MSG#User300:Hello"));
+    }
+
+    @Test
+    public void acceptRouteShouldUseTheFirstRelayToAnnounceTheUser() {
+        topology.acceptRoute("SYS-RELAY-ROUTE:300", user100);
+        topology.acceptRoute("SYS-RELAY-ROUTE:300", user200);
+
+        assertTrue(user300.isTcpRelayed());
+        assertSame(user300, topology.acceptForwardedMessage("300!MSG#User300:Hello", user100));
+        assertNull(topology.acceptForwardedMessage("300!MSG#User300:Hello", user200));
+    }
+
+    @Test
+    public void acceptRouteShouldIgnoreMeTheRelayAndUnknownUsers() {
+        topology.acceptRoute("SYS-RELAY-ROUTE:250", user100);
+        topology.acceptRoute("SYS-RELAY-ROUTE:100", user100);
+        topology.acceptRoute("SYS-RELAY-ROUTE:999", user100);
+        topology.acceptRoute("SYS-RELAY-ROUTE:Garbage", user100);
+
+        assertFalse(me.isTcpRelayed());
+        assertFalse(user100.isTcpRelayed());
+    }
+
+    @Test
+    public void forwardedMessagesShouldHaveRelayPrefix() {
+        final String forwarded = topology.createForwardedMessage("300!MSG#User300:Hello");
+
+        assertEquals("SYS-RELAY:300!MSG#User300:Hello", forwarded);
+        assertTrue(topology.isForwardedMessage(forwarded));
+        assertFalse(topology.isForwardedMessage("300!MSG#User300:Hello"));
+        assertEquals("300!MSG#User300:Hello", topology.getOriginalMessage(forwarded));
+    }
+
+    @Test
+    public void acceptForwardedMessageShouldUseTheFirstRelayForEachUser() {
+        assertSame(user300, topology.acceptForwardedMessage("300!MSG#User300:Hello", user100));
+        assertTrue(user300.isTcpRelayed());
+
+        assertNull(topology.acceptForwardedMessage("300!MSG#User300:Hello", user200));
+        assertSame(user300, topology.acceptForwardedMessage("300!MSG#User300:Again", user100));
+    }
+
+    @Test
+    public void acceptForwardedMessageShouldIgnoreButRememberRelayOfUsersWithDirectConnection() {
+        user300.setTcpEnabled(true);
+
+        assertNull(topology.acceptForwardedMessage("300!MSG#User300:Hello", user100));
+        assertTrue(user300.isTcpRelayed());
+
+        user300.setTcpEnabled(false);
+
+        assertSame(user300, topology.acceptForwardedMessage("300!MSG#User300:Hello", user100));
+    }
+
+    @Test
+    public void acceptForwardedMessageShouldIgnoreMyOwnAndUnknownMessages() {
+        assertNull(topology.acceptForwardedMessage("250!MSG#Me:Hello", user100));
+        assertNull(topology.acceptForwardedMessage("999!MSG#Unknown:Hello", user100));
+        assertNull(topology.acceptForwardedMessage("Garbage", user100));
+    }
+
+    @Test
+    public void relayDisconnectedShouldSwitchToAnotherRelay() {
+        topology.acceptForwardedMessage("300!MSG#User300:Hello", user100);
+
+        topology.relayDisconnected(user100);
+
+        assertFalse(user300.isTcpRelayed());
+        assertSame(user300, topology.acceptForwardedMessage("300!MSG#User300:Hello", user200));
+        assertTrue(user300.isTcpRelayed());
+    }
+
+    @Test
+    public void userRemovedShouldRemoveRoutesFromAndThroughTheUser() {
+        topology.acceptForwardedMessage("300!MSG#User300:Hello", user100);
+        topology.acceptForwardedMessage("200!MSG#User200:Hello", user100);
+
+        topology.userRemoved(user300);
+        assertFalse(user300.isTcpRelayed());
+        assertTrue(user200.isTcpRelayed());
+
+        topology.userRemoved(user100);
+        assertFalse(user200.isTcpRelayed());
+    }
+
+    @Test
+    public void clearShouldRemoveAllRoutes() {
+        topology.acceptForwardedMessage("300!MSG#User300:Hello", user100);
+
+        topology.clear();
+
+        assertFalse(user300.isTcpRelayed());
+    }
+
+    private User createUser(final String nick, final int code) {
+        final User user = new User(nick, code);
+        user.setTcpChatPort(5000);
+        user.setCapabilities(Collections.singleton(ClientCapability.RELAY));
+
+        return user;
+    }
+}
@@ -0,0 +1,185 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.net.tcp;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import net.usikkert.kouchat.junit.ExpectedException;
+import net.usikkert.kouchat.misc.Controller;
+import net.usikkert.kouchat.misc.User;
+import net.usikkert.kouchat.settings.Settings;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Test of {@link TCPUserIdentifier}.
+ *
+ * @author Christian Ihle
+ */
+@SuppressWarnings("HardCodedStringLiteral")
+public class TCPUserIdentifierTest {
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    private TCPUserIdentifier identifier;
+
+    private Controller controller;
+    private Settings settings;
+    private TCPClient client;
+    private User user;
+    private ScheduledExecutorService executor;
+
+    @Before
+    public void setUp() {
+        controller = mock(Controller.class);
+        settings = mock(Settings.class);
+        client = mock(TCPClient.class);
+
+        user = new User("User", 200);
+        user.setIpAddress("192.168.1.2");
+
+        when(settings.getMe()).thenReturn(new User("Me", 100));
+        when(controller.getUser(200)).thenReturn(user);
+        when(client.getIPAddress()).thenReturn("192.168.1.2");
+
+        identifier = new TCPUserIdentifier(controller, settings, client);
+        executor = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void constructorShouldThrowExceptionIfControllerIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Controller can not be null");
+
+        new TCPUserIdentifier(null, settings, client);
+    }
+
+    @Test
+    public void constructorShouldThrowExceptionIfSettingsIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Settings can not be null");
+
+        new TCPUserIdentifier(controller, null, client);
+    }
+
+    @Test
+    public void constructorShouldThrowExceptionIfClientIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Client can not be null");
+
+        new TCPUserIdentifier(controller, settings, null);
+    }
+
+    @Test
+    public void constructorShouldRegisterAsClientListener() {
+        verify(client).registerClientListener(identifier);
+    }
+
+    @Test
+    public void messageArrivedShouldUnregisterAsClientListener() {
+        identifier.messageArrived("SYS-IDENTIFY:200:100", client);
+
+        verify(client).registerClientListener(null);
+    }
+
+    @Test
+    public void waitForUserShouldReturnAsSoonAsTheIdentificationArrives() {
+        executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                identifier.messageArrived("SYS-IDENTIFY:200:100", client);
+            }
+        }, 100, TimeUnit.MILLISECONDS);
+
+        final long start = System.currentTimeMillis();
+
+        assertSame(user, identifier.waitForUser());
+        assertTrue(System.currentTimeMillis() - start < TCPUserIdentifier.IDENTIFY_TIMEOUT);
+    }
+
+    @Test
+    public void waitForUserShouldReturnNullAsSoonAsTheClientDisconnects() {
+        executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                identifier.disconnected(client);
+            }
+        }, 100, TimeUnit.MILLISECONDS);
+
+        final long start = System.currentTimeMillis();
+
+        assertNull(identifier.waitForUser());
+        assertTrue(System.currentTimeMillis() - start < TCPUserIdentifier.IDENTIFY_TIMEOUT);
+    }
+
+    @Test
+    public void waitForUserShouldReturnNullAfterTheTimeoutWithoutIdentification() {
+        final long start = System.currentTimeMillis();
+
+        assertNull(identifier.waitForUser());
+        assertTrue(System.currentTimeMillis() - start >= TCPUserIdentifier.IDENTIFY_TIMEOUT);
+    }
+
+    @Test
+    public void waitForUserShouldReturnNullIfIdentificationIsForSomeoneElse() {
+        identifier.messageArrived("SYS-IDENTIFY:200:300", client);
+
+        assertNull(identifier.waitForUser());
+    }
+
+    @Test
+    public void waitForUserShouldReturnNullIfTheMessageIsNotAnIdentification() {
+        identifier.messageArrived("Hello", client);
+
+        assertNull(identifier.waitForUser());
+    }
+
+    @Test
+    public void waitForUserShouldReturnNullIfTheUserIsUnknown() {
+        identifier.messageArrived("SYS-IDENTIFY:300:100", client);
+
+        assertNull(identifier.waitForUser());
+    }
+
+    @Test
+    public void waitForUserShouldReturnNullIfTheUserHasAnotherIpAddress() {
+        when(client.getIPAddress()).thenReturn("192.168.1.3");
+        identifier.messageArrived("SYS-IDENTIFY:200:100", client);
+
+        assertNull(identifier.waitForUser());
+    }
+}
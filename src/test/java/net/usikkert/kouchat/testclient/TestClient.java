@@ -66,8 +66,37 @@ public class TestClient {
     }
 
     public TestClient(@NonNls final String nickName, final int userCode, final int ownColor) {
+        this(nickName, userCode, ownColor, false);
+    }
+
+    /**
+     * Creates a test client.
+     *
+     * @param nickName The nick name to use.
+     * @param userCode The user code to use, or 0 for a random user code.
+     * @param ownColor The color to use for messages, or 0 for the default color.
+     * @param noBinaryProtocol If the binary protocol should be disabled, to act like an older client.
+     */
+    public TestClient(@NonNls final String nickName, final int userCode, final int ownColor,
+                      final boolean noBinaryProtocol) {
+        this(nickName, userCode, ownColor, noBinaryProtocol, false);
+    }
+
+    /**
+     * Creates a test client.
+     *
+     * @param nickName The nick name to use.
+     * @param userCode The user code to use, or 0 for a random user code.
+     * @param ownColor The color to use for messages, or 0 for the default color.
+     * @param noBinaryProtocol If the binary protocol should be disabled, to act like an older client.
+     * @param tcpRelay If tcp should use the relay topology.
+     */
+    public TestClient(@NonNls final String nickName, final int userCode, final int ownColor,
+                      final boolean noBinaryProtocol, final boolean tcpRelay) {
         final Settings settings = new Settings();
         settings.setClient("Test");
+        settings.setNoBinaryProtocol(noBinaryProtocol);
+        settings.setTcpRelay(tcpRelay);
 
         if (ownColor != 0) {
             settings.setOwnColor(ownColor);
@@ -94,6 +123,10 @@ public class TestClient {
         return me.getCode();
     }
 
+    public String getNickName() {
+        return me.getNick();
+    }
+
     /**
      * Starts a telnet server at port 20000 and blocks until /quit.
      */
@@ -180,6 +213,17 @@ public class TestClient {
         return ui.gotMessage(user, message);
     }
 
+    /**
+     * Counts how many times the specified message has arrived from the specified user in the main chat.
+     *
+     * @param user The user who sent the message.
+     * @param message The message the user sent.
+     * @return The number of times the message has arrived.
+     */
+    public int countMessages(final User user, final String message) {
+        return ui.countMessages(user, message);
+    }
+
     /**
      * Gets the color of the specified message from the specified user in the main chat.
      *
@@ -350,6 +394,30 @@ public class TestClient {
         return user;
     }
 
+    /**
+     * Checks if this client has a tcp connection to one of the users it knows about.
+     *
+     * @param nickName Nick name of the user to check.
+     * @return If the user is known, and connected using tcp.
+     */
+    public boolean hasTcpConnectionTo(final String nickName) {
+        final User user = controller.getUser(nickName);
+
+        return user != null && user.isTcpEnabled();
+    }
+
+    /**
+     * Checks if this client gets the messages from one of the users it knows about through a tcp relay.
+     *
+     * @param nickName Nick name of the user to check.
+     * @return If the user is known, and relayed using tcp.
+     */
+    public boolean hasTcpRelayTo(final String nickName) {
+        final User user = controller.getUser(nickName);
+
+        return user != null && user.isTcpRelayed();
+    }
+
     private FileReceiver findFileReceiver(final User user, final String fileName) {
         final User localUser = controller.getUser(user.getCode()); // Because user might be from another context
 
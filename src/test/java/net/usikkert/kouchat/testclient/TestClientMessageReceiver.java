@@ -63,6 +63,27 @@ public class TestClientMessageReceiver {
         return testClientMessage != null;
     }
 
+    /**
+     * Counts how many times the specified message has arrived from the specified user.
+     *
+     * @param nickName The nick name of the user who sent the message.
+     * @param message The message the user sent.
+     * @return The number of times the message has arrived.
+     */
+    public int countMessages(final String nickName, final String message) {
+        int count = 0;
+
+        for (final TestClientMessage receivedMessage : receivedMessages) {
+            final Matcher matcher = messagePattern.matcher(receivedMessage.getMessage());
+
+            if (matcher.matches() && matcher.group(1).equals(nickName) && matcher.group(2).equals(message)) {
+                count++;
+            }
+        }
+
+        return count;
+    }
+
     /**
      * Returns the color of the specified message from the specified user.
      *
@@ -150,6 +150,10 @@ public class TestClientUserInterface implements UserInterface, ChatWindow {
         return messageReceiver.gotMessage(user.getNick(), message);
     }
 
+    public int countMessages(final User user, final String message) {
+        return messageReceiver.countMessages(user.getNick(), message);
+    }
+
     public int getColorOfMessage(final User user, final String message) {
         return messageReceiver.getColorOfMessage(user.getNick(), message);
     }
@@ -0,0 +1,122 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.util;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.*;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Test of {@link TaskExecutors}.
+ *
+ * @author Christian Ihle
+ */
+public class TaskExecutorsTest {
+
+    /** Number of blocking tasks, like users logging on at the same time. */
+    private static final int TASKS = 200;
+
+    @Test
+    public void newTaskExecutorWithoutVirtualThreadsShouldReturnThreadPool() {
+        final ExecutorService executor = TaskExecutors.newTaskExecutor(false);
+
+        assertTrue(executor instanceof ThreadPoolExecutor);
+        executor.shutdown();
+    }
+
+    @Test
+    public void newTaskExecutorWithVirtualThreadsShouldFallBackToThreadPoolIfNotSupported() {
+        assumeFalse(TaskExecutors.isVirtualThreadsSupported());
+
+        final ExecutorService executor = TaskExecutors.newTaskExecutor(true);
+
+        assertTrue(executor instanceof ThreadPoolExecutor);
+        executor.shutdown();
+    }
+
+    @Test
+    public void threadPoolShouldUseOnePlatformThreadForEachBlockingTask() throws InterruptedException {
+        final int platformThreads = platformThreadsUsedByBlockingTasks(TaskExecutors.newTaskExecutor(false));
+
+        assertTrue("Expected at least " + TASKS + " threads, was " + platformThreads, platformThreads >= TASKS);
+    }
+
+    @Test
+    public void virtualThreadsShouldUseFewPlatformThreadsForBlockingTasks() throws InterruptedException {
+        assumeTrue(TaskExecutors.isVirtualThreadsSupported());
+
+        final int platformThreads = platformThreadsUsedByBlockingTasks(TaskExecutors.newTaskExecutor(true));
+        final int carrierThreads = Runtime.getRuntime().availableProcessors();
+
+        assertTrue("Expected at most " + carrierThreads + " threads, was " + platformThreads,
+                   platformThreads <= carrierThreads);
+    }
+
+    /**
+     * Runs tasks that block until all of them have started, like tasks waiting for a user to identify,
+     * and counts how many more platform threads are alive while they are blocked.
+     */
+    private int platformThreadsUsedByBlockingTasks(final ExecutorService executor) throws InterruptedException {
+        final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        final CountDownLatch started = new CountDownLatch(TASKS);
+        final CountDownLatch release = new CountDownLatch(1);
+        final int threadsBefore = threadMXBean.getThreadCount();
+
+        try {
+            for (int i = 0; i < TASKS; i++) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        started.countDown();
+
+                        try {
+                            release.await();
+                        }
+
+                        catch (final InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                });
+            }
+
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+
+            return threadMXBean.getThreadCount() - threadsBefore;
+        }
+
+        finally {
+            release.countDown();
+            executor.shutdown();
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        }
+    }
+}
@@ -0,0 +1,192 @@
+
+/***************************************************************************
+ *   Copyright 2006-2019 by Christian Ihle                                 *
+ *   contact@kouchat.net                                                   *
+ *                                                                         *
+ *   This file is part of KouChat.                                         *
+ *                                                                         *
+ *   KouChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   KouChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with KouChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.kouchat.util;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+/**
+ * Test of {@link TimingWheel}.
+ *
+ * @author Christian Ihle
+ */
+@SuppressWarnings("HardCodedStringLiteral")
+public class TimingWheelTest {
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    private TimingWheel<String> wheel;
+
+    @Before
+    public void setUp() {
+        wheel = new TimingWheel<>(100, 8, 1000);
+    }
+
+    @Test
+    public void constructorShouldThrowExceptionIfTickDurationIsNotPositive() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Tick duration must be positive");
+
+        new TimingWheel<String>(0, 8, 1000);
+    }
+
+    @Test
+    public void constructorShouldThrowExceptionIfWheelSizeIsNotPositive() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Wheel size must be positive");
+
+        new TimingWheel<String>(100, 0, 1000);
+    }
+
+    @Test
+    public void scheduleShouldThrowExceptionIfItemIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("Item can not be null");
+
+        wheel.schedule(null, 1500);
+    }
+
+    @Test
+    public void advanceShouldExpireItemAtTheEndOfTheTickOfTheDeadline() {
+        wheel.schedule("a", 1250);
+
+        assertEquals(Collections.emptyList(), wheel.advance(1299));
+        assertTrue(wheel.isScheduled("a"));
+
+        assertEquals(Collections.singletonList("a"), wheel.advance(1300));
+        assertFalse(wheel.isScheduled("a"));
+        assertTrue(wheel.isEmpty());
+    }
+
+    @Test
+    public void advanceShouldExpireItemsInOrderOfDeadline() {
+        wheel.schedule("c", 1500);
+        wheel.schedule("a", 1100);
+        wheel.schedule("b", 1300);
+        wheel.schedule("d", 1900);
+
+        assertEquals(Arrays.asList("a", "b", "c"), wheel.advance(1500));
+        assertEquals(1, wheel.size());
+    }
+
+    @Test
+    public void advanceShouldHandleDeadlinesMoreThanOneLapAway() {
+        wheel.schedule("near", 1200);
+        wheel.schedule("far", 1200 + 8 * 100 * 2);
+
+        assertEquals(Collections.singletonList("near"), wheel.advance(1200));
+        assertEquals(Collections.emptyList(), wheel.advance(2000));
+        assertEquals(Collections.emptyList(), wheel.advance(2799));
+        assertEquals(Collections.singletonList("far"), wheel.advance(2800));
+    }
+
+    @Test
+    public void advanceShouldExpireEverythingWhenTimeJumpsForward() {
+        wheel.schedule("a", 1100);
+        wheel.schedule("b", 3000);
+        wheel.schedule("c", 9000);
+
+        assertEquals(Arrays.asList("a", "b", "c"), wheel.advance(20000));
+        assertTrue(wheel.isEmpty());
+    }
+
+    @Test
+    public void scheduleShouldReplaceTheDeadline() {
+        wheel.schedule("a", 1100);
+        wheel.schedule("a", 1500);
+
+        assertEquals(1, wheel.size());
+        assertEquals(Collections.emptyList(), wheel.advance(1400));
+        assertEquals(Collections.singletonList("a"), wheel.advance(1500));
+    }
+
+    @Test
+    public void scheduleShouldExpirePassedDeadlineOnTheNextTick() {
+        wheel.advance(1500);
+        wheel.schedule("a", 1000);
+
+        assertEquals(1600, wheel.getNextDeadlineTime());
+        assertEquals(Collections.singletonList("a"), wheel.advance(1600));
+    }
+
+    @Test
+    public void cancelShouldRemoveTheDeadline() {
+        wheel.schedule("a", 1100);
+
+        assertTrue(wheel.cancel("a"));
+        assertFalse(wheel.cancel("a"));
+
+        assertFalse(wheel.isScheduled("a"));
+        assertEquals(Collections.emptyList(), wheel.advance(2000));
+    }
+
+    @Test
+    public void getNextDeadlineTimeShouldBeMinusOneWhenEmpty() {
+        assertEquals(-1, wheel.getNextDeadlineTime());
+
+        wheel.schedule("a", 1100);
+        wheel.advance(1100);
+
+        assertEquals(-1, wheel.getNextDeadlineTime());
+    }
+
+    @Test
+    public void getNextDeadlineTimeShouldSkipTicksWithoutDeadlines() {
+        wheel.schedule("b", 1550);
+        wheel.schedule("a", 1350);
+
+        assertEquals(1400, wheel.getNextDeadlineTime());
+        assertEquals(Collections.singletonList("a"), wheel.advance(1400));
+
+        assertEquals(1600, wheel.getNextDeadlineTime());
+        assertEquals(Collections.singletonList("b"), wheel.advance(1600));
+    }
+
+    @Test
+    public void getNextDeadlineTimeShouldStopAtTheEndOfTheLapForDeadlinesFurtherAway() {
+        wheel.schedule("far", 1200 + 8 * 100 * 2);
+
+        assertEquals(1900, wheel.getNextDeadlineTime());
+        assertEquals(Collections.emptyList(), wheel.advance(1900));
+
+        assertEquals(2800, wheel.getNextDeadlineTime());
+        assertEquals(Collections.singletonList("far"), wheel.advance(2800));
+    }
+
+    @Test
+    public void getNextDeadlineTimeShouldFollowTheCurrentTimeWhenEmpty() {
+        wheel.advance(5050);
+        wheel.schedule("a", 5100);
+
+        assertEquals(5100, wheel.getNextDeadlineTime());
+        assertEquals(Collections.singletonList("a"), wheel.advance(5100));
+    }
+}
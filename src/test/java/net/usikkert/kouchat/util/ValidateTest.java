@@ -78,4 +78,17 @@ public class ValidateTest {
 
         Validate.notEmpty(" ", "This is the message");
     }
+
+    @Test
+    public void isTrueShouldDoNothingIfExpressionIsTrue() {
+        Validate.isTrue(true, "No exception");
+    }
+
+    @Test
+    public void isTrueShouldThrowExceptionIfExpressionIsFalse() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("This is the message");
+
+        Validate.isTrue(false, "This is the message");
+    }
 }